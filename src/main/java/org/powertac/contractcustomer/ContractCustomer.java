@@ -9,6 +9,7 @@ import org.powertac.common.msg.ContractAnnounce;
 import org.powertac.common.msg.ContractDecommit;
 import org.powertac.common.timeseries.LoadTimeSeries;
 import org.powertac.customer.AbstractContractCustomer;
+import org.powertac.customer.SubscriptionUpdates;
 import org.springframework.stereotype.Service;
 
 public class ContractCustomer extends AbstractContractCustomer {
@@ -35,24 +36,34 @@ public class ContractCustomer extends AbstractContractCustomer {
 
 	@Override
 	public void step() {
+		// The announcement and the load series use shared repos, so when
+		// stepped in parallel all of it runs in the serial phase, in
+		// customer order
+		SubscriptionUpdates.defer(new Runnable() {
+			@Override
+			public void run() {
+				stepSerial();
+			}
+		});
+	}
+
+	private void stepSerial() {
+		DateTime now = service.getTimeslotRepo().currentTimeslot()
+				.getStartTime();
 		// no active contract then announce that it needs one
-		if(!activeContract(service.getTimeslotRepo().currentTimeslot().getStartTime())){
+		if(!activeContract(now)){
 			for (CustomerInfo ci : service.getCustomerRepo().findByName(
 					getName())) {
-				ContractAnnounce cann = new ContractAnnounce(ci.getId(), service.getTimeslotRepo().currentTimeslot().getStartTime().getMillis());// has to be CustomerInfo ID
+				ContractAnnounce cann = new ContractAnnounce(ci.getId(), now.getMillis());// has to be CustomerInfo ID
 				service.getBrokerProxyService().broadcastMessage(cann);
 			}
 		}
 		
 		historicLoad = service.getTimeSeriesRepo()
 				.findHistoricLoadByCustomerId(custId);
-		DateTime now = service.getTimeslotRepo().currentTimeslot()
-				.getStartTime();
 		LoadTimeSeries l = generator.generateLoadTimeSeries(now,
 				now.plusHours(1), (int) (custId % 3));
 		historicLoad.addValue(now, l.getValue(now));
-
-		
 	}
 
 }
@@ -8,6 +8,7 @@ import org.apache.log4j.Logger;
 import org.joda.time.Instant;
 import org.powertac.common.Competition;
 import org.powertac.common.CustomerInfo;
+import org.powertac.common.WeatherReport;
 import org.powertac.common.enumerations.PowerType;
 import org.powertac.common.interfaces.BrokerProxy;
 import org.powertac.common.interfaces.ContractMarket;
@@ -24,14 +25,17 @@ import org.powertac.common.repo.TariffRepo;
 import org.powertac.common.repo.TariffSubscriptionRepo;
 import org.powertac.common.repo.TimeSeriesRepo;
 import org.powertac.common.repo.TimeslotRepo;
+import org.powertac.common.repo.WeatherForecastRepo;
 import org.powertac.common.repo.WeatherReportRepo;
+import org.powertac.customer.ModelDiagnostics;
+import org.powertac.customer.WeatherSnapshot;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 @Service
 public class ContractCustomerService extends TimeslotPhaseProcessor implements
 		ContractNegotiationMessageListener, InitializationService,
-		CustomerServiceAccessor {
+		CustomerServiceAccessor, WeatherSnapshot.Source {
 
 	static private Logger log = Logger.getLogger(ContractCustomerService.class
 			.getName());
@@ -54,6 +58,9 @@ public class ContractCustomerService extends TimeslotPhaseProcessor implements
 	@Autowired
 	private WeatherReportRepo weatherReportRepo;
 
+	@Autowired
+	private WeatherForecastRepo weatherForecastRepo;
+
 	@Autowired
 	private TariffRepo tariffRepo;
 
@@ -87,6 +94,12 @@ public class ContractCustomerService extends TimeslotPhaseProcessor implements
 	/** List of the Customers in the competition */
 	ArrayList<ContractCustomer> contractCustomerList;
 
+	/** Trace, journal and recording files, restarted with each game */
+	private ModelDiagnostics diagnostics = new ModelDiagnostics();
+
+	/** Weather for the current timeslot, published before stepping */
+	private volatile WeatherSnapshot weatherSnapshot = null;
+
 	/** This is the constructor of the Office Consumer Service. */
 	public ContractCustomerService() {
 		super();
@@ -107,6 +120,8 @@ public class ContractCustomerService extends TimeslotPhaseProcessor implements
 		contractMarketService.registerContractNegotiationMessageListener(this);
 
 		serverPropertiesService.configureMe(this);
+		diagnostics.configure(serverPropertiesService);
+		diagnostics.start();
 
 		contractCustomerList.clear();
 		
@@ -144,11 +159,32 @@ public class ContractCustomerService extends TimeslotPhaseProcessor implements
 	@Override
 	public void activate(Instant time, int phaseNumber) {
 		log.info("Activate");
+		publishWeather();
 		if (contractCustomerList.size() > 0) {
 			for (ContractCustomer contractCustomer : contractCustomerList) {
 				contractCustomer.step();
 			}
 		}
+		diagnostics.flush();
+	}
+
+	// Builds the timeslot's weather snapshot from the current report and
+	// forecast, once for all customers
+	private void publishWeather() {
+		WeatherReport report = weatherReportRepo.currentWeatherReport();
+		if (null == report) {
+			log.warn("No weather report to publish");
+			weatherSnapshot = null;
+			return;
+		}
+		weatherSnapshot = WeatherSnapshot.create(
+				timeslotRepo.currentSerialNumber(), report,
+				weatherForecastRepo.currentWeatherForecast());
+	}
+
+	@Override
+	public WeatherSnapshot getWeatherSnapshot() {
+		return weatherSnapshot;
 	}
 
 	@Override
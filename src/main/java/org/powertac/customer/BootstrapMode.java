@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import org.powertac.common.Competition;
+
+/**
+ * Tells models whether a timeslot belongs to the bootstrap period, so
+ * those configured for it can step in a reduced-fidelity fast mode.
+ * Bootstrap timeslots are the discarded ones plus the bootstrap
+ * timeslots proper; a sim session starts numbering after them, so its
+ * models always run at full fidelity.
+ */
+public final class BootstrapMode
+{
+  private BootstrapMode ()
+  {
+    super();
+  }
+
+  /**
+   * True just in case the timeslot with the given serial number is part
+   * of the current competition's bootstrap period
+   */
+  public static boolean isBootstrap (int timeslot)
+  {
+    Competition competition = Competition.currentCompetition();
+    if (null == competition)
+      return false;
+    return timeslot < competition.getBootstrapDiscardedTimeslots()
+                      + competition.getBootstrapTimeslotCount();
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.util.Arrays;
+
+/**
+ * Append-only series of doubles, XOR-compressed into a bit stream. Each
+ * value is stored as the XOR of its bits with those of the previous value;
+ * slowly-changing values share sign, exponent and high mantissa bits, so
+ * the XOR has long runs of leading and trailing zeros and only the bits
+ * between are kept. An unchanged value takes one bit.
+ *
+ * Values are kept in fixed-size blocks, each starting with an uncompressed
+ * value, so a range query decodes at most one partial block before the
+ * range starts. Retention is a ring of blocks: when the series holds more
+ * than its capacity, the oldest block is dropped. Samples are addressed
+ * by their absolute index since the first append.
+ */
+public class CompressedSeries
+{
+  public static final int BLOCK_SIZE = 128;
+
+  private final Block[] ring;
+  private int head = 0; // ring index of the oldest block
+  private int blocks = 0;
+  private long firstIndex = 0; // absolute index of the oldest sample
+  private long size = 0; // samples appended, ever
+
+  /**
+   * Creates a series that retains at least the given number of samples
+   */
+  public CompressedSeries (int capacity)
+  {
+    super();
+    ring = new Block[Math.max(1, (capacity + BLOCK_SIZE - 1) / BLOCK_SIZE) + 1];
+  }
+
+  public void append (double value)
+  {
+    Block block = (0 == blocks) ? null : ring[(head + blocks - 1) % ring.length];
+    if (null == block || block.count == BLOCK_SIZE) {
+      if (blocks == ring.length) {
+        // drop the oldest block, reusing it
+        block = ring[head];
+        head = (head + 1) % ring.length;
+        blocks -= 1;
+        firstIndex += BLOCK_SIZE;
+        block.clear();
+      }
+      else {
+        block = new Block();
+      }
+      ring[(head + blocks) % ring.length] = block;
+      blocks += 1;
+    }
+    block.append(value);
+    size += 1;
+  }
+
+  /**
+   * Absolute index of the oldest retained sample
+   */
+  public long getFirstIndex ()
+  {
+    return firstIndex;
+  }
+
+  /**
+   * Absolute index one past the newest sample
+   */
+  public long getEndIndex ()
+  {
+    return size;
+  }
+
+  /**
+   * Copies count samples starting at absolute index from into dest,
+   * starting at offset. Samples outside the retained range are NaN.
+   */
+  public void read (long from, int count, double[] dest, int offset)
+  {
+    int filled = 0;
+    while (filled < count && from + filled < firstIndex) {
+      dest[offset + filled++] = Double.NaN;
+    }
+    while (filled < count && from + filled < size) {
+      long index = from + filled;
+      int b = (int)((index - firstIndex) / BLOCK_SIZE);
+      Block block = ring[(head + b) % ring.length];
+      int start = (int)((index - firstIndex) % BLOCK_SIZE);
+      int n = Math.min(count - filled, block.count - start);
+      block.decode(start, n, dest, offset + filled);
+      filled += n;
+    }
+    while (filled < count) {
+      dest[offset + filled++] = Double.NaN;
+    }
+  }
+
+  /**
+   * Returns the single sample at the given absolute index, or NaN
+   */
+  public double get (long index)
+  {
+    double[] result = new double[1];
+    read(index, 1, result, 0);
+    return result[0];
+  }
+
+  /**
+   * Approximate heap bytes used by the compressed data
+   */
+  public long getBytes ()
+  {
+    long result = 16L + ring.length * 8L;
+    for (int i = 0; i < blocks; i++) {
+      result += 40L + ring[(head + i) % ring.length].bits.length * 8L;
+    }
+    return result;
+  }
+
+  // One block of XOR-encoded samples
+  private static class Block
+  {
+    long[] bits = new long[8];
+    long bitCount = 0;
+    int count = 0;
+    long previous;
+    int leading = -1; // current meaningful-bit window, -1 if none
+    int trailing;
+
+    void clear ()
+    {
+      Arrays.fill(bits, 0L);
+      bitCount = 0;
+      count = 0;
+      leading = -1;
+    }
+
+    void append (double value)
+    {
+      long v = Double.doubleToRawLongBits(value);
+      if (0 == count) {
+        write(v, 64);
+      }
+      else {
+        long xor = v ^ previous;
+        if (0 == xor) {
+          write(0, 1);
+        }
+        else {
+          int lead = Math.min(31, Long.numberOfLeadingZeros(xor));
+          int trail = Long.numberOfTrailingZeros(xor);
+          if (leading >= 0 && lead >= leading && trail >= trailing) {
+            // fits in the previous window
+            write(2, 2);
+            write(xor >>> trailing, 64 - leading - trailing);
+          }
+          else {
+            int length = 64 - lead - trail;
+            write(3, 2);
+            write(lead, 5);
+            write(length - 1, 6);
+            write(xor >>> trail, length);
+            leading = lead;
+            trailing = trail;
+          }
+        }
+      }
+      previous = v;
+      count += 1;
+    }
+
+    // Decodes n samples starting at position start in this block
+    void decode (int start, int n, double[] dest, int offset)
+    {
+      long pos = 0;
+      long v = 0;
+      int lead = 0;
+      int trail = 0;
+      for (int i = 0; i < start + n; i++) {
+        if (0 == i) {
+          v = read(pos, 64);
+          pos += 64;
+        }
+        else if (0 == read(pos++, 1)) {
+          // unchanged
+        }
+        else {
+          if (1 == read(pos++, 1)) {
+            lead = (int)read(pos, 5);
+            int length = (int)read(pos + 5, 6) + 1;
+            pos += 11;
+            trail = 64 - lead - length;
+          }
+          int length = 64 - lead - trail;
+          v ^= read(pos, length) << trail;
+          pos += length;
+        }
+        if (i >= start)
+          dest[offset + i - start] = Double.longBitsToDouble(v);
+      }
+    }
+
+    private void write (long value, int n)
+    {
+      if (0 == n)
+        return;
+      int word = (int)(bitCount >>> 6);
+      if (word + 1 >= bits.length)
+        bits = Arrays.copyOf(bits, bits.length * 2);
+      int used = (int)(bitCount & 63);
+      if (n < 64)
+        value &= (1L << n) - 1;
+      // bits are packed from the high end of each word
+      int free = 64 - used;
+      if (n <= free) {
+        bits[word] |= value << (free - n);
+      }
+      else {
+        bits[word] |= value >>> (n - free);
+        bits[word + 1] |= value << (64 - (n - free));
+      }
+      bitCount += n;
+    }
+
+    private long read (long pos, int n)
+    {
+      if (0 == n)
+        return 0L;
+      int word = (int)(pos >>> 6);
+      int used = (int)(pos & 63);
+      int free = 64 - used;
+      long result;
+      if (n <= free) {
+        result = bits[word] >>> (free - n);
+      }
+      else {
+        result = (bits[word] << (n - free))
+            | (bits[word + 1] >>> (64 - (n - free)));
+      }
+      if (n < 64)
+        result &= (1L << n) - 1;
+      return result;
+    }
+  }
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Binary trace of per-timeslot model events, a cheap replacement for
+ * building log.info strings on every step. Each event is a fixed-size
+ * slot holding the model id, timeslot, event type and up to four
+ * doubles, written into a preallocated direct (off-heap) ring buffer.
+ * Writers claim slots with a compare-and-set and never block or
+ * allocate; if the flusher falls a full ring behind, events are dropped
+ * and counted. A daemon thread copies committed slots to the trace file
+ * in claim order. TraceDecoder turns a file back into text.
+ *
+ * Tracing is off unless started, normally by ModelDiagnostics from the
+ * server configuration, which also stops it when the game ends or the
+ * server shuts down; stop() writes out everything claimed so far. While
+ * tracing is off, recording an event costs one volatile read.
+ *
+ * File layout, big-endian: magic, version, slot size, then the event
+ * schema (count, and for each event its label, field count and field
+ * names as UTF strings), then slots. A slot is model id (int), timeslot
+ * (int), event ordinal (short), value count (short), 4 bytes padding and
+ * four doubles. MODEL slots carry the model's name in UTF-8 in place of
+ * the doubles, with its length as the value count. They are queued on
+ * the heap rather than claimed from the ring, and the flusher writes
+ * them ahead of the events that use them, so names are never dropped.
+ */
+public final class EventTrace
+{
+  static private Logger log = Logger.getLogger(EventTrace.class.getName());
+
+  public static final int MAGIC = 0x50545452; // "PTTR"
+  public static final int VERSION = 1;
+  public static final int SLOT_SIZE = 48;
+  public static final int MAX_VALUES = 4;
+  public static final int DEFAULT_SLOTS = 1 << 16;
+  private static final int VALUE_OFFSET = 16;
+  private static final long FLUSH_NANOS = 5000000L;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final EventTrace DISABLED = new EventTrace();
+  private static volatile EventTrace current = DISABLED;
+
+  private final boolean enabled;
+  private final ByteBuffer ring;
+  private final int mask;
+  private final AtomicLongArray committed; // claim number + 1, by slot
+  private final AtomicLong head = new AtomicLong(0); // next claim
+  private final AtomicLong flushed = new AtomicLong(0); // next to write
+  private final AtomicLong dropped = new AtomicLong(0);
+  private final HashMap<String, Integer> models =
+      new HashMap<String, Integer>();
+  private final ArrayList<ByteBuffer> names = new ArrayList<ByteBuffer>();
+
+  private FileChannel channel;
+  private FileOutputStream stream;
+  private Thread flusher;
+  private volatile boolean running;
+
+  // the disabled trace
+  private EventTrace ()
+  {
+    super();
+    enabled = false;
+    ring = null;
+    mask = 0;
+    committed = null;
+  }
+
+  private EventTrace (File file, int slots) throws IOException
+  {
+    super();
+    int size = Integer.highestOneBit(Math.max(16, slots));
+    enabled = true;
+    ring = ByteBuffer.allocateDirect(size * SLOT_SIZE);
+    mask = size - 1;
+    committed = new AtomicLongArray(size);
+    stream = new FileOutputStream(file);
+    channel = stream.getChannel();
+    writeHeader();
+    running = true;
+    flusher = new Thread(new Runnable() {
+      @Override
+      public void run ()
+      {
+        flushLoop();
+      }
+    }, "EventTrace flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Current trace; never null, but possibly disabled
+   */
+  public static EventTrace get ()
+  {
+    return current;
+  }
+
+  /**
+   * Starts tracing to the given file, with a ring of the given number of
+   * slots (rounded down to a power of two). Stops any current trace.
+   */
+  public static synchronized EventTrace start (File file, int slots)
+      throws IOException
+  {
+    stop();
+    EventTrace trace = new EventTrace(file, slots);
+    current = trace;
+    log.info("Tracing to " + file);
+    return trace;
+  }
+
+  /**
+   * Stops the current trace, writing out all events recorded so far.
+   */
+  public static synchronized void stop ()
+  {
+    EventTrace trace = current;
+    current = DISABLED;
+    if (trace.enabled)
+      trace.close();
+  }
+
+  public boolean isEnabled ()
+  {
+    return enabled;
+  }
+
+  /**
+   * Id of the named model in this trace, assigning one and queueing the
+   * name for the flusher on first use.
+   */
+  public synchronized int register (String name)
+  {
+    Integer id = models.get(name);
+    if (null != id)
+      return id;
+    int result = models.size();
+    models.put(name, result);
+    if (enabled) {
+      byte[] bytes = name.getBytes(UTF8);
+      int length = Math.min(bytes.length, SLOT_SIZE - VALUE_OFFSET);
+      ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+      slot.putInt(result);
+      slot.putInt(-1);
+      slot.putShort((short)TraceEvent.MODEL.ordinal());
+      slot.putShort((short)length);
+      slot.position(VALUE_OFFSET);
+      slot.put(bytes, 0, length);
+      slot.rewind();
+      names.add(slot);
+    }
+    return result;
+  }
+
+  // -------------------- Recording --------------------
+  public void record (int model, int timeslot, TraceEvent event, double a)
+  {
+    if (!enabled)
+      return;
+    long seq = claim();
+    if (seq < 0)
+      return;
+    int base = header(seq, model, timeslot, event, 1);
+    ring.putDouble(base + VALUE_OFFSET, a);
+    commit(seq);
+  }
+
+  public void record (int model, int timeslot, TraceEvent event,
+                      double a, double b)
+  {
+    if (!enabled)
+      return;
+    long seq = claim();
+    if (seq < 0)
+      return;
+    int base = header(seq, model, timeslot, event, 2);
+    ring.putDouble(base + VALUE_OFFSET, a);
+    ring.putDouble(base + VALUE_OFFSET + 8, b);
+    commit(seq);
+  }
+
+  public void record (int model, int timeslot, TraceEvent event,
+                      double a, double b, double c)
+  {
+    if (!enabled)
+      return;
+    long seq = claim();
+    if (seq < 0)
+      return;
+    int base = header(seq, model, timeslot, event, 3);
+    ring.putDouble(base + VALUE_OFFSET, a);
+    ring.putDouble(base + VALUE_OFFSET + 8, b);
+    ring.putDouble(base + VALUE_OFFSET + 16, c);
+    commit(seq);
+  }
+
+  public void record (int model, int timeslot, TraceEvent event,
+                      double a, double b, double c, double d)
+  {
+    if (!enabled)
+      return;
+    long seq = claim();
+    if (seq < 0)
+      return;
+    int base = header(seq, model, timeslot, event, 4);
+    ring.putDouble(base + VALUE_OFFSET, a);
+    ring.putDouble(base + VALUE_OFFSET + 8, b);
+    ring.putDouble(base + VALUE_OFFSET + 16, c);
+    ring.putDouble(base + VALUE_OFFSET + 24, d);
+    commit(seq);
+  }
+
+  /**
+   * Events recorded, including those dropped
+   */
+  public long getRecorded ()
+  {
+    return enabled ? head.get() + dropped.get() : 0L;
+  }
+
+  /**
+   * Events dropped because the ring was full
+   */
+  public long getDropped ()
+  {
+    return dropped.get();
+  }
+
+  // Claims the next slot, or returns -1 if the ring is full
+  private long claim ()
+  {
+    while (true) {
+      long seq = head.get();
+      if (seq - flushed.get() > mask) {
+        dropped.incrementAndGet();
+        return -1L;
+      }
+      if (head.compareAndSet(seq, seq + 1))
+        return seq;
+    }
+  }
+
+  private int header (long seq, int model, int timeslot, TraceEvent event,
+                      int count)
+  {
+    int base = (int)(seq & mask) * SLOT_SIZE;
+    ring.putInt(base, model);
+    ring.putInt(base + 4, timeslot);
+    ring.putShort(base + 8, (short)event.ordinal());
+    ring.putShort(base + 10, (short)count);
+    return base;
+  }
+
+  // Publishes a written slot to the flusher
+  private void commit (long seq)
+  {
+    committed.lazySet((int)(seq & mask), seq + 1);
+  }
+
+  // -------------------- Flushing --------------------
+  private void writeHeader () throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(SLOT_SIZE);
+    TraceEvent[] events = TraceEvent.values();
+    out.writeShort(events.length);
+    for (TraceEvent event : events) {
+      out.writeUTF(event.getLabel());
+      out.writeShort(event.getFieldCount());
+      for (int i = 0; i < event.getFieldCount(); i++)
+        out.writeUTF(event.getField(i));
+    }
+    out.flush();
+    writeFully(ByteBuffer.wrap(bytes.toByteArray()));
+  }
+
+  private void flushLoop ()
+  {
+    try {
+      while (true) {
+        boolean stopping = !running;
+        long written = flushCommitted();
+        if (stopping && flushed.get() == head.get())
+          break;
+        if (0 == written)
+          LockSupport.parkNanos(FLUSH_NANOS);
+      }
+    }
+    catch (IOException e) {
+      log.error("Trace flush failed", e);
+    }
+  }
+
+  // Writes out the committed slots following the last one written, and
+  // returns how many there were. Names are taken after the slots are
+  // found, so every model in them has its name written first.
+  private long flushCommitted () throws IOException
+  {
+    long start = flushed.get();
+    long end = start;
+    long limit = head.get();
+    while (end < limit && committed.get((int)(end & mask)) == end + 1)
+      end += 1;
+    long written = writeNames();
+    if (end == start)
+      return written;
+    int from = (int)(start & mask);
+    int to = (int)(end & mask);
+    if (from < to || 0 == to) {
+      writeSlots(from, (0 == to) ? mask + 1 : to);
+    }
+    else {
+      writeSlots(from, mask + 1);
+      writeSlots(0, to);
+    }
+    flushed.set(end);
+    return written + end - start;
+  }
+
+  private long writeNames () throws IOException
+  {
+    ByteBuffer[] pending;
+    synchronized (this) {
+      if (names.isEmpty())
+        return 0L;
+      pending = names.toArray(new ByteBuffer[names.size()]);
+      names.clear();
+    }
+    for (ByteBuffer slot : pending)
+      writeFully(slot);
+    return pending.length;
+  }
+
+  private void writeSlots (int from, int to) throws IOException
+  {
+    ByteBuffer view = ring.duplicate();
+    view.limit(to * SLOT_SIZE);
+    view.position(from * SLOT_SIZE);
+    writeFully(view);
+  }
+
+  private void writeFully (ByteBuffer buffer) throws IOException
+  {
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+  }
+
+  private void close ()
+  {
+    running = false;
+    LockSupport.unpark(flusher);
+    try {
+      flusher.join();
+      channel.force(false);
+      stream.close();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    catch (IOException e) {
+      log.error("Trace close failed", e);
+    }
+    if (dropped.get() > 0)
+      log.warn("Trace dropped " + dropped.get() + " events");
+  }
+
+  /**
+   * A model's handle on the current trace. It registers the model's name
+   * with each new trace on first use, so models need not know when
+   * tracing starts or stops.
+   */
+  public static class Source
+  {
+    private final String name;
+    private EventTrace trace = DISABLED;
+    private int id = -1;
+
+    public Source (String name)
+    {
+      super();
+      this.name = name;
+    }
+
+    public boolean isEnabled ()
+    {
+      return current.enabled;
+    }
+
+    public void record (int timeslot, TraceEvent event, double a)
+    {
+      EventTrace t = current;
+      if (t.enabled)
+        t.record(idIn(t), timeslot, event, a);
+    }
+
+    public void record (int timeslot, TraceEvent event, double a, double b)
+    {
+      EventTrace t = current;
+      if (t.enabled)
+        t.record(idIn(t), timeslot, event, a, b);
+    }
+
+    public void record (int timeslot, TraceEvent event,
+                        double a, double b, double c)
+    {
+      EventTrace t = current;
+      if (t.enabled)
+        t.record(idIn(t), timeslot, event, a, b, c);
+    }
+
+    public void record (int timeslot, TraceEvent event,
+                        double a, double b, double c, double d)
+    {
+      EventTrace t = current;
+      if (t.enabled)
+        t.record(idIn(t), timeslot, event, a, b, c, d);
+    }
+
+    private int idIn (EventTrace t)
+    {
+      if (t != trace) {
+        id = t.register(name);
+        trace = t;
+      }
+      return id;
+    }
+  }
+}
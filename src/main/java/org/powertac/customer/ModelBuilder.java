@@ -24,6 +24,8 @@ import org.apache.log4j.Logger;
 import org.powertac.common.config.ConfigurableValue;
 import org.powertac.common.interfaces.ServerConfiguration;
 import org.powertac.common.spring.SpringApplicationContext;
+import org.powertac.customer.model.FleetAnalyzer;
+import org.powertac.customer.model.LiftTruck;
 
 /**
  * Builds model components from configuration. This is essentially the same
@@ -89,6 +91,10 @@ public class ModelBuilder
       try {
         clazz = Class.forName("org.powertac.customer.model." + classname);
         Collection<?> list = serverConfiguration.configureInstances(clazz);
+        if (LiftTruck.class == clazz) {
+          // check all fleets at once, before any of them is initialized
+          new FleetAnalyzer().analyze(list);
+        }
         beans.put(classname, list);
         log.info("Loaded " + list.size() + " instances of " + classname);
       }
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import org.apache.log4j.Logger;
+import org.powertac.common.config.ConfigurableValue;
+import org.powertac.common.interfaces.ServerConfiguration;
+
+/**
+ * Starts and stops the model diagnostics, EventTrace, StateJournal,
+ * ReplayRecorder and the ModelMetrics MBeans, as configured. The
+ * customer service owns one, configures and starts it when a game is
+ * initialized, and stops it when the next one is, so each game gets its
+ * own files. The service calls flush() after stepping the models in
+ * each timeslot. A shutdown hook stops it if the server exits
+ * mid-game, so the files are complete up to the last timeslot written.
+ *
+ * Each file setting names the file to write; left unset, that
+ * diagnostic stays off and costs the models next to nothing.
+ */
+public class ModelDiagnostics
+{
+  static private Logger log =
+      Logger.getLogger(ModelDiagnostics.class.getName());
+
+  @ConfigurableValue(valueType = "String",
+      description = "file for the binary event trace, none if empty")
+  private String traceFile = null;
+
+  @ConfigurableValue(valueType = "Integer",
+      description = "event trace ring size in events")
+  private int traceSlots = EventTrace.DEFAULT_SLOTS;
+
+  @ConfigurableValue(valueType = "String",
+      description = "file for the state change journal, none if empty")
+  private String journalFile = null;
+
+  @ConfigurableValue(valueType = "String",
+      description = "file for recorded model inputs, none if empty")
+  private String replayFile = null;
+
+  @ConfigurableValue(valueType = "Boolean",
+      description = "register model metrics with the platform MBean server")
+  private boolean jmx = false;
+
+  private Thread shutdownHook = null;
+
+  public ModelDiagnostics ()
+  {
+    super();
+  }
+
+  /**
+   * Reads the settings from the server configuration.
+   */
+  public void configure (ServerConfiguration config)
+  {
+    if (null == config) {
+      // should not happen outside of testing
+      log.warn("No server configuration for model diagnostics");
+      return;
+    }
+    config.configureMe(this);
+  }
+
+  /**
+   * Stops any diagnostics still running, then starts the configured
+   * ones.
+   */
+  public synchronized void start ()
+  {
+    stop();
+    if (isSet(traceFile)) {
+      try {
+        EventTrace.start(new File(traceFile), traceSlots);
+      }
+      catch (IOException e) {
+        log.error("Cannot start trace to " + traceFile, e);
+      }
+    }
+    if (isSet(journalFile)) {
+      try {
+        StateJournal.start(new File(journalFile));
+      }
+      catch (IOException e) {
+        log.error("Cannot start journal to " + journalFile, e);
+      }
+    }
+    if (isSet(replayFile)) {
+      try {
+        ReplayRecorder.start(new File(replayFile));
+      }
+      catch (IOException e) {
+        log.error("Cannot start replay recording to " + replayFile, e);
+      }
+    }
+    if (jmx)
+      ModelMetrics.startJmx(ManagementFactory.getPlatformMBeanServer());
+    if (isRunning()) {
+      shutdownHook = new Thread(new Runnable() {
+        @Override
+        public void run ()
+        {
+          stopDiagnostics();
+        }
+      }, "ModelDiagnostics shutdown");
+      Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+  }
+
+  /**
+   * Writes out what the models recorded in the timeslot just stepped.
+   * Call once per timeslot from the host's serial phase, after all
+   * models have stepped.
+   */
+  public void flush ()
+  {
+    StateJournal.get().flush();
+    ReplayRecorder.get().flush();
+  }
+
+  /**
+   * Stops all diagnostics, writing out what they hold. Call between
+   * steps.
+   */
+  public synchronized void stop ()
+  {
+    if (null != shutdownHook) {
+      try {
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+      }
+      catch (IllegalStateException e) {
+        // already shutting down
+      }
+      shutdownHook = null;
+    }
+    stopDiagnostics();
+  }
+
+  private static void stopDiagnostics ()
+  {
+    EventTrace.stop();
+    StateJournal.stop();
+    ReplayRecorder.stop();
+    ModelMetrics.stopJmx();
+  }
+
+  private boolean isRunning ()
+  {
+    return EventTrace.get().isEnabled()
+        || StateJournal.get().isEnabled()
+        || ReplayRecorder.get().isEnabled()
+        || jmx;
+  }
+
+  private boolean isSet (String file)
+  {
+    return null != file && !file.isEmpty();
+  }
+
+  // ---------------------- Settings ----------------------
+  public String getTraceFile ()
+  {
+    return traceFile;
+  }
+
+  public ModelDiagnostics withTraceFile (String file)
+  {
+    traceFile = file;
+    return this;
+  }
+
+  public int getTraceSlots ()
+  {
+    return traceSlots;
+  }
+
+  public ModelDiagnostics withTraceSlots (int slots)
+  {
+    if (slots < 16)
+      log.error("Trace slots " + slots + " must be at least 16");
+    else
+      traceSlots = slots;
+    return this;
+  }
+
+  public String getJournalFile ()
+  {
+    return journalFile;
+  }
+
+  public ModelDiagnostics withJournalFile (String file)
+  {
+    journalFile = file;
+    return this;
+  }
+
+  public String getReplayFile ()
+  {
+    return replayFile;
+  }
+
+  public ModelDiagnostics withReplayFile (String file)
+  {
+    replayFile = file;
+    return this;
+  }
+
+  public boolean isJmx ()
+  {
+    return jmx;
+  }
+
+  public ModelDiagnostics withJmx (boolean value)
+  {
+    jmx = value;
+    return this;
+  }
+}
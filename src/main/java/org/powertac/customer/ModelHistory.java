@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Per-timeslot trajectory of a customer model, kept as a set of named
+ * columns of doubles. Each column has two tiers: hourly samples, one per
+ * timeslot, and daily means of 24 consecutive samples. Both are
+ * XOR-compressed CompressedSeries with ring-buffer retention; timeslots
+ * are implicit, since samples are consecutive. A daily mean is taken over
+ * the samples present, skipping missing (NaN) ones, and is NaN only for a
+ * day with none. The default retention
+ * covers a full 60-day game in the hourly tier, and a year in the daily
+ * tier.
+ *
+ * Range queries copy into caller-supplied arrays and decode only the
+ * blocks covering the range.
+ */
+public class ModelHistory
+{
+  static private Logger log = Logger.getLogger(ModelHistory.class.getName());
+
+  public static final int DEFAULT_HOURS = 60 * 24;
+  public static final int DEFAULT_DAYS = 366;
+
+  private final String[] columns;
+  private final CompressedSeries[] hourly;
+  private final CompressedSeries[] daily;
+
+  private int firstTimeslot = -1;
+  private int nextTimeslot = -1;
+
+  // running sums and counts of samples present for the current day
+  private final double[] daySum;
+  private final int[] dayPresent;
+  private int dayCount = 0;
+
+  public ModelHistory (String... columns)
+  {
+    this(DEFAULT_HOURS, DEFAULT_DAYS, columns);
+  }
+
+  public ModelHistory (int hours, int days, String... columns)
+  {
+    super();
+    this.columns = columns.clone();
+    hourly = new CompressedSeries[columns.length];
+    daily = new CompressedSeries[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      hourly[i] = new CompressedSeries(hours);
+      daily[i] = new CompressedSeries(days);
+    }
+    daySum = new double[columns.length];
+    dayPresent = new int[columns.length];
+  }
+
+  /**
+   * Records one sample per column, in column order, for the given
+   * timeslot. Timeslots skipped since the last record are filled with
+   * NaN; a timeslot that does not advance is recorded as the next one.
+   */
+  public void record (int timeslot, double... values)
+  {
+    if (values.length != columns.length) {
+      log.error("History record has " + values.length + " values for "
+                + columns.length + " columns");
+      return;
+    }
+    if (firstTimeslot < 0) {
+      firstTimeslot = timeslot;
+      nextTimeslot = timeslot;
+    }
+    while (nextTimeslot < timeslot) {
+      append(null);
+    }
+    append(values);
+  }
+
+  private void append (double[] values)
+  {
+    for (int i = 0; i < columns.length; i++) {
+      double value = (null == values) ? Double.NaN : values[i];
+      hourly[i].append(value);
+      if (!Double.isNaN(value)) {
+        daySum[i] += value;
+        dayPresent[i] += 1;
+      }
+    }
+    nextTimeslot += 1;
+    dayCount += 1;
+    if (24 == dayCount) {
+      for (int i = 0; i < columns.length; i++) {
+        daily[i].append((0 == dayPresent[i])
+                        ? Double.NaN : daySum[i] / dayPresent[i]);
+      }
+      Arrays.fill(daySum, 0.0);
+      Arrays.fill(dayPresent, 0);
+      dayCount = 0;
+    }
+  }
+
+  /**
+   * Index of the named column, or -1
+   */
+  public int getColumn (String name)
+  {
+    for (int i = 0; i < columns.length; i++) {
+      if (columns[i].equals(name))
+        return i;
+    }
+    return -1;
+  }
+
+  public String[] getColumns ()
+  {
+    return columns.clone();
+  }
+
+  /**
+   * First timeslot recorded, or -1 if none
+   */
+  public int getFirstTimeslot ()
+  {
+    return firstTimeslot;
+  }
+
+  /**
+   * Last timeslot recorded, or -1 if none
+   */
+  public int getLastTimeslot ()
+  {
+    return (firstTimeslot < 0) ? -1 : nextTimeslot - 1;
+  }
+
+  /**
+   * Oldest timeslot still held in the hourly tier, or -1 if none
+   */
+  public int getOldestTimeslot ()
+  {
+    if (firstTimeslot < 0)
+      return -1;
+    return firstTimeslot + (int)hourly[0].getFirstIndex();
+  }
+
+  /**
+   * Copies samples of a column for timeslots from through to - 1 into
+   * dest. Timeslots not held are NaN.
+   */
+  public void getHourly (int column, int from, int to, double[] dest)
+  {
+    if (firstTimeslot < 0) {
+      Arrays.fill(dest, 0, to - from, Double.NaN);
+      return;
+    }
+    hourly[column].read(from - firstTimeslot, to - from, dest, 0);
+  }
+
+  /**
+   * Single sample of a column, or NaN if not held
+   */
+  public double getHourly (int column, int timeslot)
+  {
+    if (firstTimeslot < 0)
+      return Double.NaN;
+    return hourly[column].get(timeslot - firstTimeslot);
+  }
+
+  /**
+   * Number of complete days recorded
+   */
+  public int getDays ()
+  {
+    return (int)daily[0].getEndIndex();
+  }
+
+  /**
+   * Copies daily means of a column for days from through to - 1, counted
+   * from the first timeslot recorded, into dest.
+   */
+  public void getDaily (int column, int from, int to, double[] dest)
+  {
+    daily[column].read(from, to - from, dest, 0);
+  }
+
+  /**
+   * Approximate heap bytes used by all tiers
+   */
+  public long getBytes ()
+  {
+    long result = 64L;
+    for (int i = 0; i < columns.length; i++) {
+      result += hourly[i].getBytes() + daily[i].getBytes();
+    }
+    return result;
+  }
+}
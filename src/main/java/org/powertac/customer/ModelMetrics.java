@@ -0,0 +1,601 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runtime metrics for a customer model: step latency, energy, regulation
+ * offered and delivered, plan and profile cache hit rates, optimizer
+ * solves and energy deficits. A model gets its metrics from forModel()
+ * and updates them on its step path. Each counter is an AtomicLong,
+ * doubles held as their bits, so updates take no locks and readers on
+ * other threads see consistent values; since a model is stepped by one
+ * thread at a time, the compare-and-set loops succeed on the first try.
+ *
+ * Metrics are kept in a registry by model type and name, where a model
+ * created again under the same name replaces the earlier one. Per-type
+ * totals are computed on demand. With JMX started, by startJmx() or by
+ * ModelDiagnostics when configured to, each model's metrics and each
+ * type's totals are registered as MBeans under org.powertac.customer,
+ * with the type and the quoted model name as keys; the totals have the
+ * unquoted name "all".
+ */
+public final class ModelMetrics implements ModelMetricsMBean
+{
+  static private Logger log = Logger.getLogger(ModelMetrics.class.getName());
+
+  public static final String DOMAIN = "org.powertac.customer";
+  public static final String TOTALS = "all";
+
+  private static final ConcurrentHashMap<String, ModelMetrics> registry =
+      new ConcurrentHashMap<String, ModelMetrics>();
+  private static MBeanServer server = null;
+  private static final HashSet<String> typesRegistered = new HashSet<String>();
+
+  private final String type;
+  private final String name;
+  private volatile ProfileCache<?> profileCache = null;
+
+  private final AtomicLong steps = new AtomicLong();
+  private final AtomicLong stepNanos = new AtomicLong();
+  private final AtomicLong maxStepNanos = new AtomicLong();
+  private final AtomicLong energy = new AtomicLong();
+  private final AtomicLong offeredUp = new AtomicLong();
+  private final AtomicLong offeredDown = new AtomicLong();
+  private final AtomicLong deliveredUp = new AtomicLong();
+  private final AtomicLong deliveredDown = new AtomicLong();
+  private final AtomicLong planHits = new AtomicLong();
+  private final AtomicLong planMisses = new AtomicLong();
+  private final AtomicLong solves = new AtomicLong();
+  private final AtomicLong deficits = new AtomicLong();
+  private final AtomicLong deficitEnergy = new AtomicLong();
+
+  private ModelMetrics (String type, String name)
+  {
+    super();
+    this.type = type;
+    this.name = name;
+  }
+
+  /**
+   * Creates and registers the metrics for a model, replacing any held
+   * for an earlier model of the same type and name.
+   */
+  public static ModelMetrics forModel (AbstractCustomer model)
+  {
+    ModelMetrics result =
+        new ModelMetrics(model.getClass().getSimpleName(), model.getName());
+    registry.put(result.getKey(), result);
+    synchronized (ModelMetrics.class) {
+      if (null != server)
+        register(result);
+    }
+    return result;
+  }
+
+  /**
+   * Metrics for all registered models
+   */
+  public static Collection<ModelMetrics> getModels ()
+  {
+    return registry.values();
+  }
+
+  /**
+   * Metrics for the named model of the given type, or null
+   */
+  public static ModelMetrics get (String type, String name)
+  {
+    return registry.get(type + ":" + name);
+  }
+
+  /**
+   * Totals over the registered models of a type, computed on each call
+   */
+  public static ModelMetricsMBean getTotals (String type)
+  {
+    return new Totals(type);
+  }
+
+  /**
+   * Registers the metrics of current and future models with the given
+   * server.
+   */
+  public static synchronized void startJmx (MBeanServer mbeanServer)
+  {
+    stopJmx();
+    server = mbeanServer;
+    for (ModelMetrics metrics : registry.values())
+      register(metrics);
+    log.info("Model metrics registered with JMX");
+  }
+
+  /**
+   * Unregisters all model metrics
+   */
+  public static synchronized void stopJmx ()
+  {
+    if (null == server)
+      return;
+    try {
+      for (ObjectName bean :
+           server.queryNames(new ObjectName(DOMAIN + ":*"), null)) {
+        server.unregisterMBean(bean);
+      }
+    }
+    catch (JMException e) {
+      log.error("Cannot unregister model metrics", e);
+    }
+    typesRegistered.clear();
+    server = null;
+  }
+
+  // Registers a model's bean, and its type's totals if not yet there.
+  // Call with the class locked.
+  private static void register (ModelMetrics metrics)
+  {
+    try {
+      ObjectName bean = getObjectName(metrics.type,
+                                      ObjectName.quote(metrics.name));
+      if (server.isRegistered(bean))
+        server.unregisterMBean(bean);
+      server.registerMBean(new StandardMBean(metrics,
+                                             ModelMetricsMBean.class),
+                           bean);
+      if (typesRegistered.add(metrics.type)) {
+        server.registerMBean(new StandardMBean(new Totals(metrics.type),
+                                               ModelMetricsMBean.class),
+                             getObjectName(metrics.type, TOTALS));
+      }
+    }
+    catch (JMException e) {
+      log.error("Cannot register metrics for " + metrics.getKey(), e);
+    }
+  }
+
+  static ObjectName getObjectName (String type, String name)
+      throws JMException
+  {
+    return new ObjectName(DOMAIN + ":type=" + type + ",name=" + name);
+  }
+
+  private String getKey ()
+  {
+    return type + ":" + name;
+  }
+
+  // ------------------- updates -------------------
+  /**
+   * Records a step that took the given time
+   */
+  public void stepped (long nanos)
+  {
+    steps.incrementAndGet();
+    stepNanos.addAndGet(nanos);
+    long max = maxStepNanos.get();
+    while (nanos > max && !maxStepNanos.compareAndSet(max, nanos))
+      max = maxStepNanos.get();
+  }
+
+  public void addEnergy (double kWh)
+  {
+    add(energy, kWh);
+  }
+
+  public void addRegulationOffered (double up, double down)
+  {
+    add(offeredUp, up);
+    add(offeredDown, down);
+  }
+
+  public void addRegulationDelivered (double regulation)
+  {
+    if (regulation > 0.0)
+      add(deliveredUp, regulation);
+    else if (regulation < 0.0)
+      add(deliveredDown, regulation);
+  }
+
+  public void planHit ()
+  {
+    planHits.incrementAndGet();
+  }
+
+  public void planMiss ()
+  {
+    planMisses.incrementAndGet();
+  }
+
+  public void solved ()
+  {
+    solves.incrementAndGet();
+  }
+
+  public void deficit (double kWh)
+  {
+    deficits.incrementAndGet();
+    add(deficitEnergy, kWh);
+  }
+
+  /**
+   * Sets the cache whose hit rates are reported as profile hits
+   */
+  public void setProfileCache (ProfileCache<?> cache)
+  {
+    profileCache = cache;
+  }
+
+  private static void add (AtomicLong sum, double value)
+  {
+    while (true) {
+      long bits = sum.get();
+      long next =
+          Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + value);
+      if (sum.compareAndSet(bits, next))
+        return;
+    }
+  }
+
+  private static double value (AtomicLong sum)
+  {
+    return Double.longBitsToDouble(sum.get());
+  }
+
+  private static double rate (long hits, long misses)
+  {
+    long total = hits + misses;
+    return (0 == total) ? 0.0 : (double)hits / total;
+  }
+
+  // ------------------- MBean -------------------
+  @Override
+  public String getType ()
+  {
+    return type;
+  }
+
+  @Override
+  public String getName ()
+  {
+    return name;
+  }
+
+  @Override
+  public long getSteps ()
+  {
+    return steps.get();
+  }
+
+  @Override
+  public double getMeanStepMicros ()
+  {
+    long count = steps.get();
+    return (0 == count) ? 0.0 : stepNanos.get() / 1000.0 / count;
+  }
+
+  @Override
+  public double getMaxStepMicros ()
+  {
+    return maxStepNanos.get() / 1000.0;
+  }
+
+  @Override
+  public double getEnergyUsed ()
+  {
+    return value(energy);
+  }
+
+  @Override
+  public double getRegulationOfferedUp ()
+  {
+    return value(offeredUp);
+  }
+
+  @Override
+  public double getRegulationOfferedDown ()
+  {
+    return value(offeredDown);
+  }
+
+  @Override
+  public double getRegulationDeliveredUp ()
+  {
+    return value(deliveredUp);
+  }
+
+  @Override
+  public double getRegulationDeliveredDown ()
+  {
+    return value(deliveredDown);
+  }
+
+  @Override
+  public long getPlanHits ()
+  {
+    return planHits.get();
+  }
+
+  @Override
+  public long getPlanMisses ()
+  {
+    return planMisses.get();
+  }
+
+  @Override
+  public double getPlanHitRate ()
+  {
+    return rate(planHits.get(), planMisses.get());
+  }
+
+  @Override
+  public long getProfileHits ()
+  {
+    ProfileCache<?> cache = profileCache;
+    return (null == cache) ? 0L : cache.getHits();
+  }
+
+  @Override
+  public long getProfileMisses ()
+  {
+    ProfileCache<?> cache = profileCache;
+    return (null == cache) ? 0L : cache.getMisses();
+  }
+
+  @Override
+  public double getProfileHitRate ()
+  {
+    return rate(getProfileHits(), getProfileMisses());
+  }
+
+  @Override
+  public long getSolves ()
+  {
+    return solves.get();
+  }
+
+  @Override
+  public long getDeficits ()
+  {
+    return deficits.get();
+  }
+
+  @Override
+  public double getDeficitEnergy ()
+  {
+    return value(deficitEnergy);
+  }
+
+  /**
+   * Zeroes the counters. Profile hits are kept by the cache, and are
+   * not affected.
+   */
+  @Override
+  public void reset ()
+  {
+    for (AtomicLong counter : new AtomicLong[] {steps, stepNanos,
+                                                maxStepNanos, energy,
+                                                offeredUp, offeredDown,
+                                                deliveredUp, deliveredDown,
+                                                planHits, planMisses, solves,
+                                                deficits, deficitEnergy}) {
+      counter.set(0L);
+    }
+  }
+
+  // Sums over the models of a type
+  private static class Totals implements ModelMetricsMBean
+  {
+    private final String type;
+
+    Totals (String type)
+    {
+      super();
+      this.type = type;
+    }
+
+    private List<ModelMetrics> models ()
+    {
+      List<ModelMetrics> result = new ArrayList<ModelMetrics>();
+      for (ModelMetrics metrics : registry.values()) {
+        if (metrics.type.equals(type))
+          result.add(metrics);
+      }
+      return result;
+    }
+
+    @Override
+    public String getType ()
+    {
+      return type;
+    }
+
+    @Override
+    public String getName ()
+    {
+      return TOTALS;
+    }
+
+    @Override
+    public long getSteps ()
+    {
+      long result = 0L;
+      for (ModelMetrics metrics : models())
+        result += metrics.getSteps();
+      return result;
+    }
+
+    @Override
+    public double getMeanStepMicros ()
+    {
+      long count = 0L;
+      long nanos = 0L;
+      for (ModelMetrics metrics : models()) {
+        count += metrics.steps.get();
+        nanos += metrics.stepNanos.get();
+      }
+      return (0 == count) ? 0.0 : nanos / 1000.0 / count;
+    }
+
+    @Override
+    public double getMaxStepMicros ()
+    {
+      double result = 0.0;
+      for (ModelMetrics metrics : models())
+        result = Math.max(result, metrics.getMaxStepMicros());
+      return result;
+    }
+
+    @Override
+    public double getEnergyUsed ()
+    {
+      double result = 0.0;
+      for (ModelMetrics metrics : models())
+        result += metrics.getEnergyUsed();
+      return result;
+    }
+
+    @Override
+    public double getRegulationOfferedUp ()
+    {
+      double result = 0.0;
+      for (ModelMetrics metrics : models())
+        result += metrics.getRegulationOfferedUp();
+      return result;
+    }
+
+    @Override
+    public double getRegulationOfferedDown ()
+    {
+      double result = 0.0;
+      for (ModelMetrics metrics : models())
+        result += metrics.getRegulationOfferedDown();
+      return result;
+    }
+
+    @Override
+    public double getRegulationDeliveredUp ()
+    {
+      double result = 0.0;
+      for (ModelMetrics metrics : models())
+        result += metrics.getRegulationDeliveredUp();
+      return result;
+    }
+
+    @Override
+    public double getRegulationDeliveredDown ()
+    {
+      double result = 0.0;
+      for (ModelMetrics metrics : models())
+        result += metrics.getRegulationDeliveredDown();
+      return result;
+    }
+
+    @Override
+    public long getPlanHits ()
+    {
+      long result = 0L;
+      for (ModelMetrics metrics : models())
+        result += metrics.getPlanHits();
+      return result;
+    }
+
+    @Override
+    public long getPlanMisses ()
+    {
+      long result = 0L;
+      for (ModelMetrics metrics : models())
+        result += metrics.getPlanMisses();
+      return result;
+    }
+
+    @Override
+    public double getPlanHitRate ()
+    {
+      return rate(getPlanHits(), getPlanMisses());
+    }
+
+    @Override
+    public long getProfileHits ()
+    {
+      long result = 0L;
+      for (ModelMetrics metrics : models())
+        result += metrics.getProfileHits();
+      return result;
+    }
+
+    @Override
+    public long getProfileMisses ()
+    {
+      long result = 0L;
+      for (ModelMetrics metrics : models())
+        result += metrics.getProfileMisses();
+      return result;
+    }
+
+    @Override
+    public double getProfileHitRate ()
+    {
+      return rate(getProfileHits(), getProfileMisses());
+    }
+
+    @Override
+    public long getSolves ()
+    {
+      long result = 0L;
+      for (ModelMetrics metrics : models())
+        result += metrics.getSolves();
+      return result;
+    }
+
+    @Override
+    public long getDeficits ()
+    {
+      long result = 0L;
+      for (ModelMetrics metrics : models())
+        result += metrics.getDeficits();
+      return result;
+    }
+
+    @Override
+    public double getDeficitEnergy ()
+    {
+      double result = 0.0;
+      for (ModelMetrics metrics : models())
+        result += metrics.getDeficitEnergy();
+      return result;
+    }
+
+    @Override
+    public void reset ()
+    {
+      for (ModelMetrics metrics : models())
+        metrics.reset();
+    }
+  }
+}
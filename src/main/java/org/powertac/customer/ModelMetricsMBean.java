@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+/**
+ * Management interface for the metrics of a customer model, or the
+ * totals over all models of a type. Energy and regulation are in kWh,
+ * summed over timeslots; regulation delivered is what the model read
+ * from its subscriptions, positive for up-regulation.
+ */
+public interface ModelMetricsMBean
+{
+  public String getType ();
+
+  public String getName ();
+
+  public long getSteps ();
+
+  public double getMeanStepMicros ();
+
+  public double getMaxStepMicros ();
+
+  public double getEnergyUsed ();
+
+  public double getRegulationOfferedUp ();
+
+  public double getRegulationOfferedDown ();
+
+  public double getRegulationDeliveredUp ();
+
+  public double getRegulationDeliveredDown ();
+
+  /**
+   * Steps served from precomputed actions, a LiftTruck step cursor or a
+   * ColdStorage quiescent span
+   */
+  public long getPlanHits ();
+
+  public long getPlanMisses ();
+
+  public double getPlanHitRate ();
+
+  public long getProfileHits ();
+
+  public long getProfileMisses ();
+
+  public double getProfileHitRate ();
+
+  /**
+   * Optimizer runs: LP capacity plans for LiftTruck, dynamic programs
+   * for ColdStorage
+   */
+  public long getSolves ();
+
+  /**
+   * Timeslots in which trucks used more energy than their batteries had
+   */
+  public long getDeficits ();
+
+  public double getDeficitEnergy ();
+
+  public void reset ();
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Binary snapshot of the dynamic state of a set of customer models, so
+ * that a game can start from a saved post-bootstrap state instead of
+ * running the bootstrap period again.
+ *
+ * To save, call save() between timeslots with the models to keep; those
+ * that implement SnapshotState are written. To restore, configure and
+ * initialize the models as usual, then open() the snapshot and call
+ * restore() on each. The file is mapped read-only, and each model reads
+ * its record straight from the mapping.
+ *
+ * File layout, big-endian: magic, version, the timeslot the snapshot
+ * was taken in, and the record count; then an index with each record's
+ * key (UTF), record version, offset and length; then the records. A
+ * model's key is its class name and its name, so a model restores only
+ * into one of the same type.
+ */
+public class ModelSnapshot
+{
+  static private Logger log = Logger.getLogger(ModelSnapshot.class.getName());
+
+  public static final int MAGIC = 0x50545353; // "PTSS"
+  public static final int VERSION = 1;
+
+  private final int timeslot;
+  private final ByteBuffer data;
+  private final HashMap<String, int[]> index =
+      new HashMap<String, int[]>(); // version, offset, length
+
+  private ModelSnapshot (ByteBuffer data) throws IOException
+  {
+    super();
+    this.data = data;
+    if (data.getInt() != MAGIC)
+      throw new IOException("Not a model snapshot");
+    int version = data.getInt();
+    if (version != VERSION)
+      throw new IOException("Unsupported snapshot version " + version);
+    timeslot = data.getInt();
+    int count = data.getInt();
+    for (int i = 0; i < count; i++) {
+      String key = readUTF(data);
+      int[] entry = new int[3];
+      entry[0] = data.getInt();
+      entry[1] = data.getInt();
+      entry[2] = data.getInt();
+      index.put(key, entry);
+    }
+  }
+
+  /**
+   * Writes the state of the given models, returning the number saved
+   */
+  public static int save (File file, int timeslot,
+                          Collection<? extends AbstractCustomer> models)
+      throws IOException
+  {
+    // records first, so the index can give their offsets
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    DataOutputStream recordOut = new DataOutputStream(records);
+    ByteArrayOutputStream entries = new ByteArrayOutputStream();
+    DataOutputStream indexOut = new DataOutputStream(entries);
+    int count = 0;
+    for (AbstractCustomer model : models) {
+      if (!(model instanceof SnapshotState))
+        continue;
+      SnapshotState state = (SnapshotState)model;
+      int start = records.size();
+      state.saveState(recordOut);
+      recordOut.flush();
+      indexOut.writeUTF(getKey(model));
+      indexOut.writeInt(state.getSnapshotVersion());
+      indexOut.writeInt(start);
+      indexOut.writeInt(records.size() - start);
+      count += 1;
+    }
+    indexOut.flush();
+    int base = 16 + entries.size();
+
+    DataOutputStream out =
+        new DataOutputStream(new FileOutputStream(file));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(timeslot);
+      out.writeInt(count);
+      // offsets are written relative to the records; make them absolute
+      ByteBuffer fix = ByteBuffer.wrap(entries.toByteArray());
+      while (fix.hasRemaining()) {
+        readUTF(fix);
+        fix.getInt();
+        int offset = fix.position();
+        fix.putInt(offset, fix.getInt() + base);
+        fix.getInt();
+      }
+      out.write(fix.array());
+      records.writeTo(out);
+    }
+    finally {
+      out.close();
+    }
+    log.info("Saved " + count + " models at timeslot " + timeslot
+             + " to " + file);
+    return count;
+  }
+
+  /**
+   * Maps a snapshot file for restoring
+   */
+  public static ModelSnapshot open (File file) throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      MappedByteBuffer data =
+          raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0L,
+                               raf.length());
+      return new ModelSnapshot(data);
+    }
+    finally {
+      // the mapping stays valid after the file is closed
+      raf.close();
+    }
+  }
+
+  /**
+   * Timeslot the snapshot was taken in
+   */
+  public int getTimeslot ()
+  {
+    return timeslot;
+  }
+
+  /**
+   * Keys of the models in the snapshot
+   */
+  public Set<String> getKeys ()
+  {
+    return index.keySet();
+  }
+
+  /**
+   * Restores a model's state from the snapshot. Returns false if the
+   * model is not in the snapshot or cannot read its record.
+   */
+  public boolean restore (AbstractCustomer model)
+  {
+    if (!(model instanceof SnapshotState))
+      return false;
+    int[] entry = index.get(getKey(model));
+    if (null == entry) {
+      log.warn("No snapshot for " + getKey(model));
+      return false;
+    }
+    ByteBuffer record = data.duplicate();
+    record.position(entry[1]);
+    record.limit(entry[1] + entry[2]);
+    boolean result =
+        ((SnapshotState)model).restoreState(record.slice(), entry[0]);
+    if (!result)
+      log.error("Cannot restore " + getKey(model) + " from version "
+                + entry[0]);
+    return result;
+  }
+
+  /**
+   * Writes an array with its length, for use in saveState()
+   */
+  public static void writeDoubles (DataOutput out, double[] values)
+      throws IOException
+  {
+    out.writeInt(values.length);
+    for (double value : values)
+      out.writeDouble(value);
+  }
+
+  /**
+   * Reads an array written by writeDoubles()
+   */
+  public static double[] readDoubles (ByteBuffer in)
+  {
+    double[] result = new double[in.getInt()];
+    in.asDoubleBuffer().get(result);
+    in.position(in.position() + result.length * 8);
+    return result;
+  }
+
+  static String getKey (AbstractCustomer model)
+  {
+    return model.getClass().getName() + ":" + model.getName();
+  }
+
+  // Reads a string written by DataOutput.writeUTF(); keys are ASCII in
+  // practice, but this handles the full modified UTF-8 encoding
+  private static String readUTF (ByteBuffer in)
+  {
+    int length = in.getShort() & 0xffff;
+    StringBuilder result = new StringBuilder(length);
+    int end = in.position() + length;
+    while (in.position() < end) {
+      int a = in.get() & 0xff;
+      if (a < 0x80) {
+        result.append((char)a);
+      }
+      else if ((a & 0xe0) == 0xc0) {
+        int b = in.get() & 0x3f;
+        result.append((char)(((a & 0x1f) << 6) | b));
+      }
+      else {
+        int b = in.get() & 0x3f;
+        int c = in.get() & 0x3f;
+        result.append((char)(((a & 0x0f) << 12) | (b << 6) | c));
+      }
+    }
+    return result.toString();
+  }
+}
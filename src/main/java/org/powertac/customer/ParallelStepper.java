@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Steps a list of customer models in parallel on a fork-join pool, one
+ * timeslot at a time. Each model's subscription updates are buffered in
+ * its own SubscriptionUpdates while it steps. Once every model has
+ * stepped, the buffers are applied in list order on the calling thread,
+ * and that is also where the RegulationCapacity objects they carry are
+ * created, so domain ids are handed out in list order. While stepping,
+ * a model draws only from its own random streams and reads the timeslot,
+ * weather and its subscriptions, which do not change until the step is
+ * over. Its diagnostics go to per-model buffers or lock-free counters.
+ * The outcome is therefore the same as stepping the list sequentially,
+ * whatever the number of threads. Models that create other domain
+ * objects, or change shared state, in step() must not be stepped here.
+ *
+ * Step costs differ by orders of magnitude between models (a LiftTruck
+ * solving its LP against a ColdStorage in hysteresis), so the stepper
+ * times each step and keeps an exponential moving average per model.
+ * Each timeslot the models are ordered longest-first by that estimate
+ * and the ordered list is split into tasks of about equal estimated
+ * cost; expensive models get tasks of their own, while cheap ones are
+ * batched up to the grain size. The pool's workers steal the split-off
+ * halves as they go idle, so the wall time of a timeslot stays close to
+ * the total work divided by the number of threads. Models not seen
+ * before are assumed to cost the average.
+ *
+ * A model whose step throws is logged and skipped; updates it posted
+ * before failing are still applied, as they would be sequentially.
+ */
+public class ParallelStepper
+{
+  static private Logger log = Logger.getLogger(ParallelStepper.class.getName());
+
+  // a task is split until it costs no more than this share of the total
+  private static final int TASKS_PER_THREAD = 4;
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private int grain = 16; // models per leaf task, at most
+  private double smoothing = 0.2; // weight of the latest step cost
+
+  private ForkJoinPool pool = null;
+  private List<SubscriptionUpdates> buffers =
+      new ArrayList<SubscriptionUpdates>();
+
+  // step cost estimates in nanoseconds, by model; updateCosts fills the
+  // spare map from the current one and swaps them
+  private IdentityHashMap<AbstractCustomer, Double> costs =
+      new IdentityHashMap<AbstractCustomer, Double>();
+  private IdentityHashMap<AbstractCustomer, Double> spare =
+      new IdentityHashMap<AbstractCustomer, Double>();
+
+  // per-timeslot schedule, indexed by list position
+  private double[] estimates = new double[0];
+  private long[] elapsed = new long[0];
+  private Integer[] order = new Integer[0];
+  private double[] prefix = new double[1]; // cost of order[0..k-1]
+  private double leafCost;
+
+  // last timeslot
+  private long wallTime = 0;
+  private long work = 0;
+
+  public ParallelStepper ()
+  {
+    super();
+  }
+
+  /**
+   * Steps all models once, then applies their subscription updates in
+   * list order.
+   */
+  public void step (List<? extends AbstractCustomer> models)
+  {
+    long start = System.nanoTime();
+    int n = models.size();
+    ensureCapacity(n);
+    if (threads <= 1 || n <= 1) {
+      for (int i = 0; i < n; i++) {
+        stepOne(models, i);
+      }
+    }
+    else {
+      schedule(models, n);
+      if (null == pool)
+        pool = new ForkJoinPool(threads);
+      pool.invoke(new StepTask(models, 0, n));
+    }
+    updateCosts(models, n);
+    for (int i = 0; i < n; i++) {
+      buffers.get(i).apply();
+    }
+    wallTime = System.nanoTime() - start;
+  }
+
+  /**
+   * Releases the worker threads. The stepper can still be used; it will
+   * start a new pool when needed.
+   */
+  public void shutdown ()
+  {
+    if (null != pool) {
+      pool.shutdown();
+      pool = null;
+    }
+  }
+
+  private void ensureCapacity (int n)
+  {
+    while (buffers.size() < n)
+      buffers.add(new SubscriptionUpdates());
+    if (elapsed.length < n) {
+      estimates = new double[n];
+      elapsed = new long[n];
+      order = new Integer[n];
+      prefix = new double[n + 1];
+    }
+  }
+
+  // Orders models longest-first by estimated cost, ties in list order,
+  // and works out the cost at which tasks stop splitting
+  private void schedule (List<? extends AbstractCustomer> models, int n)
+  {
+    double known = 0.0;
+    int count = 0;
+    for (int i = 0; i < n; i++) {
+      Double cost = costs.get(models.get(i));
+      estimates[i] = (null == cost) ? -1.0 : cost;
+      if (null != cost) {
+        known += cost;
+        count += 1;
+      }
+      order[i] = i;
+    }
+    double average = (0 == count) ? 1.0 : known / count;
+    for (int i = 0; i < n; i++) {
+      if (estimates[i] < 0.0)
+        estimates[i] = average;
+    }
+    Arrays.sort(order, 0, n, new Comparator<Integer>() {
+      @Override
+      public int compare (Integer a, Integer b)
+      {
+        int result = Double.compare(estimates[b], estimates[a]);
+        return (0 != result) ? result : a.compareTo(b);
+      }
+    });
+    prefix[0] = 0.0;
+    for (int k = 0; k < n; k++) {
+      prefix[k + 1] = prefix[k] + estimates[order[k]];
+    }
+    leafCost = prefix[n] / (threads * TASKS_PER_THREAD);
+  }
+
+  // Folds this timeslot's step times into the estimates, dropping
+  // models no longer in the list
+  private void updateCosts (List<? extends AbstractCustomer> models, int n)
+  {
+    IdentityHashMap<AbstractCustomer, Double> updated = spare;
+    updated.clear();
+    work = 0;
+    for (int i = 0; i < n; i++) {
+      AbstractCustomer model = models.get(i);
+      Double cost = costs.get(model);
+      double sample = elapsed[i];
+      work += elapsed[i];
+      updated.put(model, (null == cost) ? sample
+          : cost + smoothing * (sample - cost));
+    }
+    spare = costs;
+    costs = updated;
+  }
+
+  private void stepOne (List<? extends AbstractCustomer> models, int index)
+  {
+    AbstractCustomer model = models.get(index);
+    SubscriptionUpdates buffer = buffers.get(index);
+    long start = System.nanoTime();
+    buffer.bind();
+    try {
+      model.step();
+    }
+    catch (RuntimeException e) {
+      log.error(model.getName() + " step failed", e);
+    }
+    finally {
+      buffer.unbind();
+      elapsed[index] = System.nanoTime() - start;
+    }
+  }
+
+  /**
+   * Estimated step cost of a model in nanoseconds, or NaN if it has not
+   * been stepped.
+   */
+  public double getCostEstimate (AbstractCustomer model)
+  {
+    Double cost = costs.get(model);
+    return (null == cost) ? Double.NaN : cost;
+  }
+
+  /**
+   * Wall time of the last call to step(), in nanoseconds
+   */
+  public long getWallTime ()
+  {
+    return wallTime;
+  }
+
+  /**
+   * Sum of the model step times in the last call to step(), in
+   * nanoseconds. Divided by the wall time and the number of threads it
+   * gives the parallel efficiency of the timeslot.
+   */
+  public long getWork ()
+  {
+    return work;
+  }
+
+  // Steps models order[from] through order[to - 1]. Ranges larger than
+  // the grain or costlier than a leaf are split where the estimated cost
+  // halves; the second half is left for idle workers to steal.
+  @SuppressWarnings("serial")
+  private class StepTask extends RecursiveAction
+  {
+    private final List<? extends AbstractCustomer> models;
+    private final int from;
+    private final int to;
+
+    StepTask (List<? extends AbstractCustomer> models, int from, int to)
+    {
+      super();
+      this.models = models;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute ()
+    {
+      int size = to - from;
+      if (size <= 1
+          || (size <= grain && prefix[to] - prefix[from] <= leafCost)) {
+        for (int k = from; k < to; k++) {
+          stepOne(models, order[k]);
+        }
+        return;
+      }
+      double half = (prefix[from] + prefix[to]) / 2.0;
+      int mid = from + 1;
+      while (mid < to - 1 && prefix[mid] < half)
+        mid += 1;
+      invokeAll(new StepTask(models, from, mid),
+                new StepTask(models, mid, to));
+    }
+  }
+
+  // ---------------------- Settings ----------------------
+  public int getThreads ()
+  {
+    return threads;
+  }
+
+  /**
+   * Number of worker threads; 1 steps models on the calling thread.
+   */
+  public ParallelStepper withThreads (int value)
+  {
+    if (value < 1) {
+      log.error("Threads " + value + " must be positive");
+    }
+    else if (value != threads) {
+      shutdown();
+      threads = value;
+    }
+    return this;
+  }
+
+  public int getGrain ()
+  {
+    return grain;
+  }
+
+  /**
+   * Largest number of models stepped by a single task. Tasks are also
+   * split when their estimated cost exceeds a share of the total.
+   */
+  public ParallelStepper withGrain (int value)
+  {
+    if (value < 1)
+      log.error("Grain " + value + " must be positive");
+    else
+      grain = value;
+    return this;
+  }
+
+  public double getSmoothing ()
+  {
+    return smoothing;
+  }
+
+  /**
+   * Weight of the latest step time in the cost estimates, in (0, 1]
+   */
+  public ParallelStepper withSmoothing (double value)
+  {
+    if (value <= 0.0 || value > 1.0)
+      log.error("Smoothing " + value + " must be in (0, 1]");
+    else
+      smoothing = value;
+    return this;
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.powertac.common.Tariff;
+
+/**
+ * Bounded cache of per-tariff capacity profiles, or of whatever a model
+ * keeps per tariff in order to produce them. Entries are keyed by tariff
+ * id and dropped when the cache is full (least recently used first), when
+ * they are older than the maximum age in timeslots, or when their tariff
+ * has been revoked or has expired, so long games don't accumulate
+ * profiles for dead tariffs. Hits, misses and evictions are counted.
+ */
+public class ProfileCache<V>
+{
+  public static final int DEFAULT_SIZE = 64;
+  public static final int DEFAULT_AGE = 168;
+
+  private final int maxSize;
+  private final int maxAge;
+  private final LinkedHashMap<Long, Entry<V>> entries;
+
+  // read by metrics from other threads
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  public ProfileCache ()
+  {
+    this(DEFAULT_SIZE, DEFAULT_AGE);
+  }
+
+  public ProfileCache (int maxSize, int maxAge)
+  {
+    super();
+    this.maxSize = Math.max(1, maxSize);
+    this.maxAge = maxAge;
+    entries = new LinkedHashMap<Long, Entry<V>>(16, 0.75f, true);
+  }
+
+  /**
+   * Returns the cached value for the tariff, or null if there is none or
+   * it is no longer usable at the given timeslot.
+   */
+  public V get (Tariff tariff, int timeslot)
+  {
+    Long key = tariff.getId();
+    Entry<V> entry = entries.get(key);
+    if (null == entry) {
+      misses.incrementAndGet();
+      return null;
+    }
+    if (isDead(entry.tariff)) {
+      entries.remove(key);
+      invalidations.incrementAndGet();
+      misses.incrementAndGet();
+      return null;
+    }
+    if (timeslot - entry.timeslot > maxAge) {
+      entries.remove(key);
+      evictions.incrementAndGet();
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return entry.value;
+  }
+
+  /**
+   * Adds a value created at the given timeslot, evicting the least
+   * recently used entry if the cache is full.
+   */
+  public void put (Tariff tariff, V value, int timeslot)
+  {
+    entries.put(tariff.getId(), new Entry<V>(tariff, value, timeslot));
+    while (entries.size() > maxSize) {
+      Iterator<Long> oldest = entries.keySet().iterator();
+      oldest.next();
+      oldest.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * Drops the entry for a tariff, if any
+   */
+  public void invalidate (Tariff tariff)
+  {
+    if (null != entries.remove(tariff.getId()))
+      invalidations.incrementAndGet();
+  }
+
+  /**
+   * Drops entries for revoked or expired tariffs, and entries too old
+   * at the given timeslot.
+   */
+  public void purge (int timeslot)
+  {
+    Iterator<Map.Entry<Long, Entry<V>>> it = entries.entrySet().iterator();
+    while (it.hasNext()) {
+      Entry<V> entry = it.next().getValue();
+      if (isDead(entry.tariff)) {
+        it.remove();
+        invalidations.incrementAndGet();
+      }
+      else if (timeslot - entry.timeslot > maxAge) {
+        it.remove();
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  public void clear ()
+  {
+    entries.clear();
+  }
+
+  private boolean isDead (Tariff tariff)
+  {
+    return tariff.isRevoked() || tariff.isExpired();
+  }
+
+  // ------------------- metrics -------------------
+  public int size ()
+  {
+    return entries.size();
+  }
+
+  public long getHits ()
+  {
+    return hits.get();
+  }
+
+  public long getMisses ()
+  {
+    return misses.get();
+  }
+
+  public long getEvictions ()
+  {
+    return evictions.get();
+  }
+
+  public long getInvalidations ()
+  {
+    return invalidations.get();
+  }
+
+  public double getHitRate ()
+  {
+    long hit = hits.get();
+    long total = hit + misses.get();
+    return (0 == total) ? 0.0 : (double)hit / total;
+  }
+
+  private static class Entry<V>
+  {
+    final Tariff tariff;
+    final V value;
+    final int timeslot;
+
+    Entry (Tariff tariff, V value, int timeslot)
+    {
+      this.tariff = tariff;
+      this.value = value;
+      this.timeslot = timeslot;
+    }
+  }
+}
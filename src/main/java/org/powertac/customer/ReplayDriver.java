@@ -0,0 +1,459 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.joda.time.Instant;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.RegulationCapacity;
+import org.powertac.common.Tariff;
+import org.powertac.common.TariffSubscription;
+import org.powertac.common.Timeslot;
+import org.powertac.common.WeatherForecast;
+import org.powertac.common.WeatherReport;
+import org.powertac.common.interfaces.BrokerProxy;
+import org.powertac.common.interfaces.CustomerServiceAccessor;
+import org.powertac.common.interfaces.ServerConfiguration;
+import org.powertac.common.repo.ContractRepo;
+import org.powertac.common.repo.CustomerRepo;
+import org.powertac.common.repo.RandomSeedRepo;
+import org.powertac.common.repo.TariffRepo;
+import org.powertac.common.repo.TariffSubscriptionRepo;
+import org.powertac.common.repo.TimeSeriesRepo;
+import org.powertac.common.repo.TimeslotRepo;
+import org.powertac.common.repo.WeatherReportRepo;
+
+/**
+ * Headless driver that re-runs customer models against inputs recorded
+ * by ReplayRecorder, as fast as the models step, without the server.
+ * The driver stands in for the repos a model uses: it serves the
+ * recorded timeslot, temperature and forecast, and replaces each recorded
+ * subscription with one that returns the recorded customers committed
+ * and regulation, and collects the energy the model reports.
+ *
+ * Models are added configured but not initialized. run() initializes
+ * them, restores them from a snapshot if one is given, and steps them
+ * through the recorded timeslots in lockstep. Tariffs are looked up by
+ * id in the given tariff repo, which the caller fills from the game's
+ * tariff specifications. The seed repo should give the game's seeds,
+ * since models draw some parameters at initialization, such as the
+ * sites of a ColdStoragePopulation. With those, and the snapshot taken
+ * when recording started, a replay reproduces the recorded run exactly.
+ *
+ * The models recorded in a timeslot are stepped together by a
+ * ParallelStepper, on the number of threads set by withThreads(), so a
+ * replay of many models uses every core.
+ */
+public class ReplayDriver
+{
+  static private Logger log = Logger.getLogger(ReplayDriver.class.getName());
+
+  private final ReplayLog inputs;
+  private final TariffRepo tariffRepo;
+  private final RandomSeedRepo seedRepo;
+  private final Accessor service = new Accessor();
+  private final ParallelStepper stepper = new ParallelStepper();
+
+  private final ArrayList<Replayed> models = new ArrayList<Replayed>();
+  private final IdentityHashMap<CustomerInfo, Replayed> byCustomer =
+      new IdentityHashMap<CustomerInfo, Replayed>();
+
+  // the timeslot being replayed
+  private Timeslot timeslot = null;
+  private WeatherReport weather = null;
+  private WeatherSnapshot snapshot = null;
+
+  public ReplayDriver (ReplayLog inputs, TariffRepo tariffRepo,
+                       RandomSeedRepo seedRepo)
+  {
+    super();
+    this.inputs = inputs;
+    this.tariffRepo = tariffRepo;
+    this.seedRepo = seedRepo;
+  }
+
+  /**
+   * Adds a model to the replay. Returns false if it was not recorded, or
+   * subscribed to a tariff the tariff repo does not have.
+   */
+  public boolean add (AbstractCustomer model)
+  {
+    ReplayLog.Inputs recorded = inputs.get(model);
+    if (null == recorded) {
+      log.error("No recorded inputs for " + model.getName());
+      return false;
+    }
+    for (int i = 0; i < recorded.size(); i++) {
+      long id = recorded.getTariffId(i);
+      if (null == tariffRepo.findTariffById(id)) {
+        log.error("Tariff " + id + " not available to replay "
+                  + model.getName());
+        return false;
+      }
+    }
+    models.add(new Replayed(model, recorded));
+    return true;
+  }
+
+  /**
+   * Sets the number of threads models are stepped on
+   */
+  public ReplayDriver withThreads (int threads)
+  {
+    stepper.withThreads(threads);
+    return this;
+  }
+
+  /**
+   * Access to the stand-in repos, for models that need more setup
+   */
+  public CustomerServiceAccessor getServiceAccessor ()
+  {
+    return service;
+  }
+
+  /**
+   * Initializes the models, restores them from the snapshot unless it is
+   * null, and steps them through the recorded timeslots. A model is
+   * stepped only in the timeslots it was recorded in. Returns the
+   * number of timeslots replayed.
+   */
+  public int run (ModelSnapshot snapshot)
+  {
+    int first = inputs.getFirstTimeslot();
+    int last = inputs.getLastTimeslot();
+    if (last < first || models.isEmpty()) {
+      log.warn("Nothing to replay");
+      return 0;
+    }
+    int hours = last - first + 1;
+    if (null != snapshot && snapshot.getTimeslot() != first - 1) {
+      log.warn("Snapshot from timeslot " + snapshot.getTimeslot()
+               + " for replay from " + first);
+    }
+
+    setTimeslot(first);
+    for (Replayed replayed : models) {
+      replayed.usage = new double[hours];
+      AbstractCustomer model = replayed.model;
+      model.setServiceAccessor(service);
+      model.initialize();
+      for (CustomerInfo info : model.getCustomerInfos())
+        byCustomer.put(info, replayed);
+      if (null != snapshot && !snapshot.restore(model))
+        log.warn("Replaying " + model.getName() + " from its initial state");
+    }
+
+    int replayed = 0;
+    ArrayList<Replayed> recorded = new ArrayList<Replayed>();
+    ArrayList<AbstractCustomer> stepping = new ArrayList<AbstractCustomer>();
+    try {
+      for (int slot = first; slot <= last; slot++) {
+        if (!setTimeslot(slot))
+          continue;
+        recorded.clear();
+        stepping.clear();
+        for (Replayed model : models) {
+          if (model.subscribe(slot)) {
+            recorded.add(model);
+            stepping.add(model.model);
+          }
+        }
+        stepper.step(stepping);
+        for (Replayed model : recorded)
+          model.usage[slot - first] = model.collectUsage();
+        StateJournal.get().flush();
+        replayed += 1;
+      }
+    }
+    finally {
+      stepper.shutdown();
+    }
+    log.info("Replayed " + models.size() + " models over " + replayed
+             + " timeslots");
+    return replayed;
+  }
+
+  /**
+   * Energy the model reported in each replayed timeslot, starting with
+   * the first recorded one, summed over its subscriptions
+   */
+  public double[] getUsage (AbstractCustomer model)
+  {
+    for (Replayed replayed : models) {
+      if (replayed.model == model)
+        return replayed.usage;
+    }
+    return null;
+  }
+
+  // Sets up the timeslot and weather from the first model recorded in
+  // the timeslot. Returns false if no model was.
+  private boolean setTimeslot (int slot)
+  {
+    for (Replayed replayed : models) {
+      int entry = replayed.find(slot);
+      if (entry >= 0) {
+        ReplayLog.Inputs recorded = replayed.recorded;
+        timeslot = new Timeslot(slot,
+                                new Instant(recorded.getStartMillis(entry)));
+        weather = new WeatherReport(slot, recorded.getTemperature(entry),
+                                    0.0, 0.0, 0.0);
+        double[] forecast = inputs.getForecast(slot);
+        if (null == forecast) {
+          log.warn("No forecast recorded for timeslot " + slot);
+          snapshot = WeatherSnapshot.create(slot, weather,
+                                            (WeatherForecast)null);
+        }
+        else {
+          snapshot = WeatherSnapshot.create(slot, weather, forecast);
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // A model being replayed, with its subscriptions by tariff id
+  private class Replayed
+  {
+    final AbstractCustomer model;
+    final ReplayLog.Inputs recorded;
+    int cursor = 0;
+    double[] usage;
+    final HashMap<Long, ReplaySubscription> subscriptions =
+        new HashMap<Long, ReplaySubscription>();
+    final List<TariffSubscription> active =
+        new ArrayList<TariffSubscription>();
+
+    Replayed (AbstractCustomer model, ReplayLog.Inputs recorded)
+    {
+      super();
+      this.model = model;
+      this.recorded = recorded;
+    }
+
+    // index of the model's first entry for the timeslot, or -1
+    int find (int slot)
+    {
+      while (cursor < recorded.size() && recorded.getTimeslot(cursor) < slot)
+        cursor += 1;
+      if (cursor < recorded.size() && recorded.getTimeslot(cursor) == slot)
+        return cursor;
+      return -1;
+    }
+
+    // Sets up the subscriptions recorded for the timeslot. Dropped
+    // subscriptions show no customers, so that handles refresh.
+    boolean subscribe (int slot)
+    {
+      for (TariffSubscription sub : active)
+        ((ReplaySubscription)sub).committed = 0;
+      active.clear();
+      int entry = find(slot);
+      if (entry < 0)
+        return false;
+      for (; entry < recorded.size()
+             && recorded.getTimeslot(entry) == slot; entry++) {
+        long id = recorded.getTariffId(entry);
+        ReplaySubscription sub = subscriptions.get(id);
+        if (null == sub) {
+          sub = new ReplaySubscription(model.getCustomerInfos().get(0),
+                                       tariffRepo.findTariffById(id));
+          subscriptions.put(id, sub);
+        }
+        sub.committed = recorded.getCustomersCommitted(entry);
+        sub.regulation = recorded.getRegulation(entry);
+        active.add(sub);
+      }
+      return true;
+    }
+
+    double collectUsage ()
+    {
+      double result = 0.0;
+      for (TariffSubscription sub : active) {
+        ReplaySubscription replay = (ReplaySubscription)sub;
+        result += replay.energy;
+        replay.energy = 0.0;
+      }
+      return result;
+    }
+  }
+
+  // Plays back the recorded subscription inputs
+  static class ReplaySubscription extends TariffSubscription
+  {
+    private final Tariff tariff;
+    int committed = 0;
+    double regulation = 0.0;
+    double energy = 0.0;
+    RegulationCapacity capacity = null;
+
+    ReplaySubscription (CustomerInfo customer, Tariff tariff)
+    {
+      super(customer, tariff);
+      this.tariff = tariff;
+    }
+
+    @Override
+    public Tariff getTariff ()
+    {
+      return tariff;
+    }
+
+    @Override
+    public int getCustomersCommitted ()
+    {
+      return committed;
+    }
+
+    @Override
+    public double getRegulation ()
+    {
+      return regulation;
+    }
+
+    @Override
+    public void usePower (double kwh)
+    {
+      energy += kwh;
+    }
+
+    @Override
+    public void setRegulationCapacity (RegulationCapacity capacity)
+    {
+      this.capacity = capacity;
+    }
+  }
+
+  private class ReplayTimeslotRepo extends TimeslotRepo
+  {
+    @Override
+    public Timeslot currentTimeslot ()
+    {
+      return timeslot;
+    }
+
+    @Override
+    public int currentSerialNumber ()
+    {
+      return timeslot.getSerialNumber();
+    }
+  }
+
+  private class ReplayWeatherRepo extends WeatherReportRepo
+  {
+    @Override
+    public WeatherReport currentWeatherReport ()
+    {
+      return weather;
+    }
+  }
+
+  private class ReplaySubscriptionRepo extends TariffSubscriptionRepo
+  {
+    @Override
+    public List<TariffSubscription>
+    findActiveSubscriptionsForCustomer (CustomerInfo customer)
+    {
+      Replayed replayed = byCustomer.get(customer);
+      if (null == replayed)
+        return new ArrayList<TariffSubscription>();
+      return new ArrayList<TariffSubscription>(replayed.active);
+    }
+  }
+
+  private class Accessor
+  implements CustomerServiceAccessor, WeatherSnapshot.Source
+  {
+    private final TimeslotRepo timeslotRepo = new ReplayTimeslotRepo();
+    private final WeatherReportRepo weatherRepo = new ReplayWeatherRepo();
+    private final TariffSubscriptionRepo subscriptionRepo =
+        new ReplaySubscriptionRepo();
+
+    @Override
+    public CustomerRepo getCustomerRepo ()
+    {
+      return null;
+    }
+
+    @Override
+    public RandomSeedRepo getRandomSeedRepo ()
+    {
+      return seedRepo;
+    }
+
+    @Override
+    public TariffRepo getTariffRepo ()
+    {
+      return tariffRepo;
+    }
+
+    @Override
+    public TariffSubscriptionRepo getTariffSubscriptionRepo ()
+    {
+      return subscriptionRepo;
+    }
+
+    @Override
+    public TimeslotRepo getTimeslotRepo ()
+    {
+      return timeslotRepo;
+    }
+
+    @Override
+    public WeatherReportRepo getWeatherReportRepo ()
+    {
+      return weatherRepo;
+    }
+
+    @Override
+    public ServerConfiguration getServerConfiguration ()
+    {
+      return null;
+    }
+
+    @Override
+    public ContractRepo getContractRepo ()
+    {
+      return null;
+    }
+
+    @Override
+    public TimeSeriesRepo getTimeSeriesRepo ()
+    {
+      return null;
+    }
+
+    @Override
+    public BrokerProxy getBrokerProxyService ()
+    {
+      return null;
+    }
+
+    @Override
+    public WeatherSnapshot getWeatherSnapshot ()
+    {
+      return snapshot;
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Model inputs read back from a file written by ReplayRecorder, indexed
+ * by model and timeslot, and the temperature forecast for each timeslot.
+ */
+public class ReplayLog
+{
+  private final HashMap<String, Inputs> models =
+      new HashMap<String, Inputs>();
+  private final HashMap<Integer, double[]> forecasts =
+      new HashMap<Integer, double[]>();
+  private int firstTimeslot = Integer.MAX_VALUE;
+  private int lastTimeslot = -1;
+
+  private ReplayLog ()
+  {
+    super();
+  }
+
+  /**
+   * Reads a recording. A recording cut off in the middle of a record,
+   * as when the server dies, is read up to the last complete record.
+   */
+  public static ReplayLog read (File file) throws IOException
+  {
+    ReplayLog result = new ReplayLog();
+    DataInputStream in =
+        new DataInputStream(new BufferedInputStream(
+            new FileInputStream(file), 1 << 16));
+    try {
+      if (in.readInt() != ReplayRecorder.MAGIC)
+        throw new IOException("Not a replay recording");
+      int version = in.readInt();
+      if (version != ReplayRecorder.VERSION)
+        throw new IOException("Unsupported recording version " + version);
+      ArrayList<Inputs> byIndex = new ArrayList<Inputs>();
+      while (true) {
+        int kind = in.read();
+        if (kind < 0)
+          break;
+        if (kind == ReplayRecorder.MODEL_DEF) {
+          int index = in.readInt();
+          String key = in.readUTF();
+          Inputs inputs = new Inputs(key);
+          while (byIndex.size() <= index)
+            byIndex.add(null);
+          byIndex.set(index, inputs);
+          result.models.put(key, inputs);
+        }
+        else if (kind == ReplayRecorder.INPUT) {
+          Inputs inputs = byIndex.get(in.readInt());
+          int timeslot = in.readInt();
+          inputs.add(timeslot, in.readLong(), in.readDouble(),
+                     in.readLong(), in.readInt(), in.readDouble());
+          result.firstTimeslot = Math.min(result.firstTimeslot, timeslot);
+          result.lastTimeslot = Math.max(result.lastTimeslot, timeslot);
+        }
+        else if (kind == ReplayRecorder.FORECAST) {
+          int timeslot = in.readInt();
+          double[] temps = new double[in.readInt()];
+          for (int h = 0; h < temps.length; h++)
+            temps[h] = in.readDouble();
+          result.forecasts.put(timeslot, temps);
+        }
+        else {
+          throw new IOException("Bad record kind " + kind);
+        }
+      }
+    }
+    catch (EOFException eof) {
+      // truncated record; keep what came before it
+    }
+    finally {
+      in.close();
+    }
+    return result;
+  }
+
+  /**
+   * Keys of the recorded models, in the form used by ModelSnapshot
+   */
+  public Set<String> getKeys ()
+  {
+    return models.keySet();
+  }
+
+  /**
+   * Inputs for the given model, or null if it was not recorded
+   */
+  public Inputs get (AbstractCustomer model)
+  {
+    return models.get(ModelSnapshot.getKey(model));
+  }
+
+  /**
+   * Hourly temperature forecast the models saw in the given timeslot,
+   * starting with the next timeslot, or null if none was recorded
+   */
+  public double[] getForecast (int timeslot)
+  {
+    return forecasts.get(timeslot);
+  }
+
+  /**
+   * First recorded timeslot, or Integer.MAX_VALUE if nothing was recorded
+   */
+  public int getFirstTimeslot ()
+  {
+    return firstTimeslot;
+  }
+
+  /**
+   * Last recorded timeslot, or -1 if nothing was recorded
+   */
+  public int getLastTimeslot ()
+  {
+    return lastTimeslot;
+  }
+
+  /**
+   * One model's inputs, one entry per subscription per timeslot, in the
+   * order they were recorded.
+   */
+  public static class Inputs
+  {
+    private final String key;
+    private int size = 0;
+    private int[] timeslot = new int[64];
+    private long[] start = new long[64];
+    private double[] temperature = new double[64];
+    private long[] tariffId = new long[64];
+    private int[] committed = new int[64];
+    private double[] regulation = new double[64];
+
+    Inputs (String key)
+    {
+      super();
+      this.key = key;
+    }
+
+    private void add (int slot, long startMillis, double temp, long tariff,
+                      int customers, double reg)
+    {
+      if (size == timeslot.length) {
+        int capacity = size * 2;
+        timeslot = Arrays.copyOf(timeslot, capacity);
+        start = Arrays.copyOf(start, capacity);
+        temperature = Arrays.copyOf(temperature, capacity);
+        tariffId = Arrays.copyOf(tariffId, capacity);
+        committed = Arrays.copyOf(committed, capacity);
+        regulation = Arrays.copyOf(regulation, capacity);
+      }
+      timeslot[size] = slot;
+      start[size] = startMillis;
+      temperature[size] = temp;
+      tariffId[size] = tariff;
+      committed[size] = customers;
+      regulation[size] = reg;
+      size += 1;
+    }
+
+    public String getKey ()
+    {
+      return key;
+    }
+
+    public int size ()
+    {
+      return size;
+    }
+
+    public int getTimeslot (int entry)
+    {
+      return timeslot[entry];
+    }
+
+    public long getStartMillis (int entry)
+    {
+      return start[entry];
+    }
+
+    public double getTemperature (int entry)
+    {
+      return temperature[entry];
+    }
+
+    public long getTariffId (int entry)
+    {
+      return tariffId[entry];
+    }
+
+    public int getCustomersCommitted (int entry)
+    {
+      return committed[entry];
+    }
+
+    public double getRegulation (int entry)
+    {
+      return regulation[entry];
+    }
+  }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.powertac.common.Tariff;
+import org.powertac.common.TariffSubscription;
+import org.powertac.common.Timeslot;
+
+/**
+ * Records the external inputs each customer model sees in each
+ * timeslot, so that a model's run can be reproduced without the server
+ * by ReplayDriver. The inputs are the ones a model reads from the
+ * server: the weather snapshot, with its temperature forecast, and, for
+ * each of its subscriptions, the tariff, the customers committed and the
+ * regulation exercised.
+ * Models record their inputs at the start of step(), into their own
+ * Source, which needs no locking since a model is stepped by one thread
+ * at a time.
+ *
+ * The host calls flush() once per timeslot from its serial phase, after
+ * all models have stepped. The recorder then writes every source's
+ * records, ordered by model key within each timeslot, and flushes the
+ * file, so a recording cut off by a crash has every timeslot flushed
+ * before it. stop() writes out what the sources still hold and closes
+ * the file.
+ *
+ * Random streams are not recorded. To replay from a point other than
+ * the start of the game, save a ModelSnapshot of the models when
+ * starting the recorder, and hand it to the driver.
+ *
+ * The recorder is off unless started, normally by ModelDiagnostics from
+ * the server configuration.
+ *
+ * File layout, big-endian: magic and version, then records, each
+ * starting with a kind byte. A model definition has the model's index
+ * (int) and its snapshot key (UTF). An input record has the model index
+ * (int), timeslot (int), timeslot start (long millis), temperature
+ * (double), tariff id (long, -1 if none), customers committed (int) and
+ * regulation (double). A model with several subscriptions writes one
+ * input record for each. A forecast record, written once per timeslot
+ * ahead of its input records, has the timeslot (int), the number of
+ * hours (int) and the forecast temperature for each hour (double).
+ */
+public final class ReplayRecorder
+{
+  static private Logger log = Logger.getLogger(ReplayRecorder.class.getName());
+
+  public static final int MAGIC = 0x50545250; // "PTRP"
+  public static final int VERSION = 2;
+  public static final byte MODEL_DEF = 0;
+  public static final byte INPUT = 1;
+  public static final byte FORECAST = 2;
+
+  private static final ReplayRecorder DISABLED = new ReplayRecorder();
+  private static volatile ReplayRecorder current = DISABLED;
+
+  // sources in file order within a timeslot
+  private static final Comparator<Source> ORDER = new Comparator<Source>() {
+    @Override
+    public int compare (Source a, Source b)
+    {
+      return a.key.compareTo(b.key);
+    }
+  };
+
+  private final boolean enabled;
+  private DataOutputStream out;
+  private final List<Source> sources = new ArrayList<Source>();
+  private int definedModels = 0;
+  private int forecastSlot = Integer.MIN_VALUE; // last forecast written
+  private long records = 0L;
+
+  // the disabled recorder
+  private ReplayRecorder ()
+  {
+    super();
+    enabled = false;
+  }
+
+  private ReplayRecorder (File file) throws IOException
+  {
+    super();
+    enabled = true;
+    out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file), 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+  }
+
+  /**
+   * Current recorder; never null, but possibly disabled
+   */
+  public static ReplayRecorder get ()
+  {
+    return current;
+  }
+
+  /**
+   * Starts recording to the given file. Stops any current recording.
+   */
+  public static synchronized ReplayRecorder start (File file)
+      throws IOException
+  {
+    stop();
+    ReplayRecorder recorder = new ReplayRecorder(file);
+    current = recorder;
+    log.info("Recording model inputs to " + file);
+    return recorder;
+  }
+
+  /**
+   * Stops the current recording, writing out all inputs recorded so far,
+   * and closes its file. Call between steps.
+   */
+  public static synchronized void stop ()
+  {
+    ReplayRecorder recorder = current;
+    current = DISABLED;
+    if (recorder.enabled)
+      recorder.close();
+  }
+
+  public boolean isEnabled ()
+  {
+    return enabled;
+  }
+
+  /**
+   * Input records written so far
+   */
+  public synchronized long getRecords ()
+  {
+    return records;
+  }
+
+  /**
+   * Writes out all inputs the sources hold, in timeslot order, and
+   * flushes the file. Call from the host's serial phase, once per
+   * timeslot, after all models have stepped.
+   */
+  public synchronized void flush ()
+  {
+    if (!enabled || null == out)
+      return;
+    List<Source> pending = new ArrayList<Source>();
+    for (Source source : sources) {
+      if (source.count > 0)
+        pending.add(source);
+    }
+    if (pending.isEmpty())
+      return;
+    Collections.sort(pending, ORDER);
+    try {
+      for (Source source : pending) {
+        if (source.index < 0)
+          define(source);
+      }
+      // sources record in timeslot order, so each timeslot takes the
+      // next run of records from each source
+      int[] taken = new int[pending.size()];
+      while (true) {
+        int slot = Integer.MAX_VALUE;
+        for (int i = 0; i < pending.size(); i++) {
+          Source source = pending.get(i);
+          if (taken[i] < source.count)
+            slot = Math.min(slot, source.timeslot[taken[i]]);
+        }
+        if (Integer.MAX_VALUE == slot)
+          break;
+        writeForecast(pending, taken, slot);
+        for (int i = 0; i < pending.size(); i++)
+          taken[i] = write(pending.get(i), taken[i], slot);
+      }
+      out.flush();
+    }
+    catch (IOException e) {
+      log.error("Cannot record inputs, recording stopped", e);
+      closeFile();
+    }
+    for (Source source : pending) {
+      Arrays.fill(source.weather, 0, source.count, null);
+      source.count = 0;
+    }
+  }
+
+  // Adds a source to the recorder; it is defined in the file when it is
+  // first flushed
+  private synchronized void register (Source source)
+  {
+    sources.add(source);
+  }
+
+  private void define (Source source) throws IOException
+  {
+    source.index = definedModels;
+    definedModels += 1;
+    out.writeByte(MODEL_DEF);
+    out.writeInt(source.index);
+    out.writeUTF(source.key);
+  }
+
+  // Writes the forecast the first source recorded for the given
+  // timeslot, unless it has been written already. Models see the same
+  // snapshot within a timeslot, so one forecast serves them all.
+  private void writeForecast (List<Source> pending, int[] taken, int slot)
+    throws IOException
+  {
+    if (slot <= forecastSlot)
+      return;
+    for (int i = 0; i < pending.size(); i++) {
+      Source source = pending.get(i);
+      if (taken[i] < source.count && source.timeslot[taken[i]] == slot) {
+        WeatherSnapshot weather = source.weather[taken[i]];
+        int hours = weather.getForecastHours();
+        out.writeByte(FORECAST);
+        out.writeInt(slot);
+        out.writeInt(hours);
+        for (int h = 1; h <= hours; h++)
+          out.writeDouble(weather.getForecastTemp(h));
+        forecastSlot = slot;
+        return;
+      }
+    }
+  }
+
+  // Writes the source's records for the given timeslot, starting at
+  // from, and returns the index past them
+  private int write (Source source, int from, int slot) throws IOException
+  {
+    int k = from;
+    while (k < source.count && source.timeslot[k] == slot) {
+      out.writeByte(INPUT);
+      out.writeInt(source.index);
+      out.writeInt(slot);
+      out.writeLong(source.start[k]);
+      out.writeDouble(source.weather[k].getTemperature());
+      out.writeLong(source.tariffId[k]);
+      out.writeInt(source.committed[k]);
+      out.writeDouble(source.regulation[k]);
+      records += 1;
+      k += 1;
+    }
+    return k;
+  }
+
+  private synchronized void close ()
+  {
+    flush();
+    closeFile();
+  }
+
+  private void closeFile ()
+  {
+    if (null == out)
+      return;
+    try {
+      out.close();
+    }
+    catch (IOException e) {
+      log.error("Cannot close replay recording", e);
+    }
+    out = null;
+    log.info("Recorded " + records + " model inputs");
+  }
+
+  /**
+   * A model's input buffer. It registers the model with each new
+   * recorder on first use, so models need not know when recording
+   * starts or stops. Not thread-safe; each model owns its own.
+   */
+  public static class Source
+  {
+    private final String key;
+    private ReplayRecorder recorder = DISABLED;
+    private int index = -1;
+    private int count = 0;
+    private int[] timeslot = new int[16];
+    private long[] start = new long[16];
+    private WeatherSnapshot[] weather = new WeatherSnapshot[16];
+    private long[] tariffId = new long[16];
+    private int[] committed = new int[16];
+    private double[] regulation = new double[16];
+
+    /**
+     * Buffer for the given model. Create it once configuration has
+     * settled the model's name.
+     */
+    public Source (AbstractCustomer model)
+    {
+      super();
+      this.key = ModelSnapshot.getKey(model);
+    }
+
+    public boolean isEnabled ()
+    {
+      return current.enabled;
+    }
+
+    /**
+     * Records the model's inputs from one of its subscriptions for the
+     * given timeslot, along with the weather snapshot it sees. Ignored
+     * while recording is off.
+     */
+    public void record (Timeslot slot, WeatherSnapshot snapshot,
+                        TariffSubscription sub)
+    {
+      ReplayRecorder r = current;
+      if (!r.enabled)
+        return;
+      int serial = slot.getSerialNumber();
+      if (r != recorder) {
+        recorder = r;
+        index = -1;
+        count = 0;
+        r.register(this);
+      }
+      else if (count > 0 && serial < timeslot[count - 1]) {
+        log.error(key + " inputs for timeslot " + serial
+                  + " after timeslot " + timeslot[count - 1]);
+        return;
+      }
+      if (count == timeslot.length) {
+        timeslot = Arrays.copyOf(timeslot, count * 2);
+        start = Arrays.copyOf(start, count * 2);
+        weather = Arrays.copyOf(weather, count * 2);
+        tariffId = Arrays.copyOf(tariffId, count * 2);
+        committed = Arrays.copyOf(committed, count * 2);
+        regulation = Arrays.copyOf(regulation, count * 2);
+      }
+      Tariff tariff = sub.getTariff();
+      timeslot[count] = serial;
+      start[count] = slot.getStartInstant().getMillis();
+      weather[count] = snapshot;
+      tariffId[count] = (null == tariff) ? -1L : tariff.getId();
+      committed[count] = sub.getCustomersCommitted();
+      regulation[count] = sub.getRegulation();
+      count += 1;
+    }
+  }
+}
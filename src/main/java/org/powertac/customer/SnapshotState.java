@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A customer model whose dynamic state can be saved in a ModelSnapshot
+ * and restored into a freshly configured and initialized instance.
+ * Configuration is not part of the state; it comes from the usual
+ * configuration on restart.
+ */
+public interface SnapshotState
+{
+  /**
+   * Version of the record written by saveState(). Change it whenever the
+   * record changes.
+   */
+  public int getSnapshotVersion ();
+
+  /**
+   * Writes the model's dynamic state
+   */
+  public void saveState (DataOutput out) throws IOException;
+
+  /**
+   * Reads back a record written by saveState() with the given version.
+   * Returns false if the record is not one this model can read.
+   */
+  public boolean restoreState (ByteBuffer in, int version);
+}
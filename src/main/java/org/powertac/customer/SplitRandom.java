@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.powertac.common.RandomSeed;
+import org.powertac.common.repo.RandomSeedRepo;
+
+/**
+ * Small, fast, splittable random-number stream for per-timeslot model
+ * sampling. The generator is SplitMix64: a 64-bit counter advanced by an
+ * odd gamma and scrambled by a fixed mixing function, so a draw is a few
+ * arithmetic operations with no synchronization. Normal deviates use the
+ * Marsaglia-Tsang ziggurat with 128 layers; almost all draws take one
+ * table lookup and one multiply.
+ *
+ * Streams are derived from RandomSeed instances, so they are recorded
+ * and replayed with the rest of the game's seeds. A stream belongs to a
+ * single model; child streams for sub-models or sites come from
+ * stream(key), which depends only on the parent's starting seed and the
+ * key, so they are the same whatever order the children are created or
+ * stepped in, serially or in parallel. Instances are not thread-safe.
+ */
+public class SplitRandom
+{
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+  private static final double DOUBLE_UNIT = 1.0 / (1L << 53);
+
+  private final long origin; // seed at creation, for derived streams
+  private final long gamma;
+  private long seed;
+
+  /**
+   * Creates a stream with the given seed
+   */
+  public SplitRandom (long seed)
+  {
+    this(seed, GOLDEN_GAMMA);
+  }
+
+  private SplitRandom (long seed, long gamma)
+  {
+    super();
+    this.origin = seed;
+    this.seed = seed;
+    this.gamma = gamma;
+  }
+
+  /**
+   * Creates a stream seeded from a game seed. One long is drawn from the
+   * seed, as models have done to seed their normal samplers.
+   */
+  public static SplitRandom fromSeed (RandomSeed randomSeed)
+  {
+    return new SplitRandom(randomSeed.nextLong());
+  }
+
+  /**
+   * Creates the stream for a model and purpose, such as "model" or
+   * "eval", from the game's seed repo.
+   */
+  public static SplitRandom forModel (RandomSeedRepo repo, Class<?> type,
+                                      String name, String purpose)
+  {
+    return fromSeed(repo.getRandomSeed(type.getName() + "-" + name,
+                                       0, purpose));
+  }
+
+  /**
+   * Returns a new stream that depends only on this stream's starting seed
+   * and the key, not on the draws made so far.
+   */
+  public SplitRandom stream (long key)
+  {
+    long s = mix64(origin + mix64(key * GOLDEN_GAMMA + gamma));
+    return new SplitRandom(s, mixGamma(s + GOLDEN_GAMMA));
+  }
+
+  /**
+   * Returns a new stream, advancing this one
+   */
+  public SplitRandom split ()
+  {
+    return new SplitRandom(nextLong(), mixGamma(nextSeed()));
+  }
+
+  /**
+   * Writes the stream's position, for model snapshots
+   */
+  public void saveState (DataOutput out) throws IOException
+  {
+    out.writeLong(origin);
+    out.writeLong(gamma);
+    out.writeLong(seed);
+  }
+
+  /**
+   * Recreates a stream at the position written by saveState()
+   */
+  public static SplitRandom restoreState (ByteBuffer in)
+  {
+    long origin = in.getLong();
+    SplitRandom result = new SplitRandom(origin, in.getLong());
+    result.seed = in.getLong();
+    return result;
+  }
+
+  // ------------------------ Draws ------------------------
+  public long nextLong ()
+  {
+    return mix64(nextSeed());
+  }
+
+  public int nextInt ()
+  {
+    return (int)(mix64(nextSeed()) >>> 32);
+  }
+
+  /**
+   * Uniform int in [0, bound)
+   */
+  public int nextInt (int bound)
+  {
+    if (bound <= 0)
+      throw new IllegalArgumentException("bound must be positive");
+    // rejection of the few values that would bias the result
+    int r = nextInt() >>> 1;
+    int m = bound - 1;
+    if ((bound & m) == 0)
+      return (int)((bound * (long)r) >> 31);
+    for (int u = r; u - (r = u % bound) + m < 0; u = nextInt() >>> 1)
+      ;
+    return r;
+  }
+
+  /**
+   * Uniform double in [0, 1)
+   */
+  public double nextDouble ()
+  {
+    return (nextLong() >>> 11) * DOUBLE_UNIT;
+  }
+
+  // Uniform double in (0, 1), safe to take the log of
+  private double nextOpenDouble ()
+  {
+    return ((nextLong() >>> 11) + 0.5) * DOUBLE_UNIT;
+  }
+
+  /**
+   * Standard normal deviate
+   */
+  public double nextGaussian ()
+  {
+    long bits = nextLong();
+    // the layer comes from low bits, the value from the high 32 bits
+    int iz = (int)(bits & 127);
+    int hz = (int)(bits >> 32);
+    if (Math.abs((long)hz) < KN[iz])
+      return hz * WN[iz];
+    return gaussianTail(hz, iz);
+  }
+
+  // Slow path of the ziggurat: the base strip's tail, or the wedge of
+  // a layer
+  private double gaussianTail (int hz, int iz)
+  {
+    while (true) {
+      double x = hz * WN[iz];
+      if (0 == iz) {
+        double y;
+        do {
+          x = -Math.log(nextOpenDouble()) / R;
+          y = -Math.log(nextOpenDouble());
+        } while (y + y < x * x);
+        return (hz > 0) ? R + x : -R - x;
+      }
+      if (FN[iz] + nextDouble() * (FN[iz - 1] - FN[iz])
+          < Math.exp(-0.5 * x * x))
+        return x;
+      long bits = nextLong();
+      iz = (int)(bits & 127);
+      hz = (int)(bits >> 32);
+      if (Math.abs((long)hz) < KN[iz])
+        return hz * WN[iz];
+    }
+  }
+
+  // --------------------- Bulk fill ----------------------
+  /**
+   * Fills dest[offset .. offset + count - 1] with uniform doubles in
+   * [0, 1), the same values as that many calls to nextDouble().
+   */
+  public void fillDoubles (double[] dest, int offset, int count)
+  {
+    long s = seed;
+    for (int i = offset; i < offset + count; i++) {
+      s += gamma;
+      dest[i] = (mix64(s) >>> 11) * DOUBLE_UNIT;
+    }
+    seed = s;
+  }
+
+  /**
+   * Fills dest[offset .. offset + count - 1] with standard normal
+   * deviates, the same values as that many calls to nextGaussian().
+   */
+  public void fillGaussians (double[] dest, int offset, int count)
+  {
+    for (int i = offset; i < offset + count; i++) {
+      dest[i] = nextGaussian();
+    }
+  }
+
+  /**
+   * Fills dest[offset .. offset + count - 1] with longs, the same values
+   * as that many calls to nextLong().
+   */
+  public void fillLongs (long[] dest, int offset, int count)
+  {
+    long s = seed;
+    for (int i = offset; i < offset + count; i++) {
+      s += gamma;
+      dest[i] = mix64(s);
+    }
+    seed = s;
+  }
+
+  // --------------------- SplitMix64 ---------------------
+  private long nextSeed ()
+  {
+    return seed += gamma;
+  }
+
+  private static long mix64 (long z)
+  {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  // Odd gamma with enough bit transitions to mix well
+  private static long mixGamma (long z)
+  {
+    z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+    z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    z = (z ^ (z >>> 33)) | 1L;
+    int n = Long.bitCount(z ^ (z >>> 1));
+    return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+  }
+
+  // --------------------- Ziggurat tables ---------------------
+  // Right edge of the base layer, and the area of each layer
+  private static final double R = 3.442619855899;
+  private static final double V = 9.91256303526217e-3;
+
+  private static final long[] KN = new long[128];
+  private static final double[] WN = new double[128];
+  private static final double[] FN = new double[128];
+
+  static {
+    double m = 2147483648.0; // 2^31
+    double dn = R;
+    double tn = dn;
+    double q = V / Math.exp(-0.5 * dn * dn);
+    KN[0] = (long)((dn / q) * m);
+    KN[1] = 0;
+    WN[0] = q / m;
+    WN[127] = dn / m;
+    FN[0] = 1.0;
+    FN[127] = Math.exp(-0.5 * dn * dn);
+    for (int i = 126; i >= 1; i--) {
+      dn = Math.sqrt(-2.0 * Math.log(V / dn + Math.exp(-0.5 * dn * dn)));
+      KN[i + 1] = (long)((dn / tn) * m);
+      tn = dn;
+      FN[i] = Math.exp(-0.5 * dn * dn);
+      WN[i] = dn / m;
+    }
+  }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Journal of the high-rate model state changes, the ones that used to go
+ * through the @StateChange aspect on every call. Each model writes
+ * changes into its own Source, a set of primitive arrays that needs no
+ * locking since a model is stepped by one thread at a time. Each change
+ * is stamped with its timeslot and with the milliseconds since logging
+ * started, the clock the state log's %r uses.
+ *
+ * The host calls flush() once per timeslot from its serial phase, after
+ * all models have stepped. The journal then takes every source's
+ * changes, ordered by class name and object id and then by the order
+ * they were made, so the file does not depend on how the models were
+ * scheduled, and appends one block per timeslot with a single write
+ * into a memory-mapped region. Changes a host has not flushed are held
+ * by their sources; stop() writes them out.
+ *
+ * The journal is off unless started, normally by ModelDiagnostics from
+ * the server configuration. While it is off, each change goes straight
+ * to the "State" log in the format the state logging aspect uses,
+ * class::id::method::value, so existing logs and the tools that replay
+ * them see no difference. While it is on, StateJournalDecoder turns the
+ * journal into lines in the same format, with the same millisecond
+ * prefix, that can be merged into the state log by time.
+ *
+ * File layout, big-endian: magic and version, then blocks. A block
+ * starts with a marker, the timeslot, a definition count and an entry
+ * count. Each definition is a kind byte and an index, followed for an
+ * object by its class name (UTF) and id (long), and for a method by its
+ * name (UTF). Each entry is object index (int), method index (short),
+ * 2 bytes padding, the time in milliseconds (long) and the new value
+ * (double). A zero marker, or the end of the file, ends the journal.
+ */
+public final class StateJournal
+{
+  static private Logger log = Logger.getLogger(StateJournal.class.getName());
+  static private Logger stateLog = Logger.getLogger("State");
+
+  public static final int MAGIC = 0x5054534a; // "PTSJ"
+  public static final int VERSION = 1;
+  public static final int BLOCK = 0x424c4f4b; // "BLOK"
+  public static final int ENTRY_SIZE = 24;
+  public static final byte OBJECT_DEF = 0;
+  public static final byte METHOD_DEF = 1;
+  private static final int BLOCK_HEADER = 16;
+  private static final long CHUNK = 1L << 22; // bytes mapped at a time
+
+  // method names, shared by all journals; replaced on each addition so
+  // that readers need no lock
+  private static volatile String[] methodNames = new String[0];
+
+  private static final StateJournal DISABLED = new StateJournal();
+  private static volatile StateJournal current = DISABLED;
+
+  // sources in file order
+  private static final Comparator<Source> ORDER = new Comparator<Source>() {
+    @Override
+    public int compare (Source a, Source b)
+    {
+      int result = a.className.compareTo(b.className);
+      return (0 != result) ? result : Long.compare(a.id, b.id);
+    }
+  };
+
+  private final boolean enabled;
+  private final List<Source> sources = new ArrayList<Source>();
+  private int definedObjects = 0;
+  private int definedMethods = 0;
+  private ByteArrayOutputStream definitions = new ByteArrayOutputStream();
+  private DataOutputStream defOut = new DataOutputStream(definitions);
+  private int defCount = 0;
+  private int lastTimeslot = Integer.MIN_VALUE;
+
+  private RandomAccessFile file;
+  private FileChannel channel;
+  private MappedByteBuffer region;
+  private long position = 0L; // end of the journal in the file
+  private long batches = 0L;
+  private long entries = 0L;
+
+  // the disabled journal
+  private StateJournal ()
+  {
+    super();
+    enabled = false;
+  }
+
+  private StateJournal (File journal) throws IOException
+  {
+    super();
+    enabled = true;
+    file = new RandomAccessFile(journal, "rw");
+    file.setLength(0L);
+    channel = file.getChannel();
+    ensureMapped(8);
+    region.putInt(MAGIC);
+    region.putInt(VERSION);
+    position = 8;
+  }
+
+  /**
+   * Current journal; never null, but possibly disabled
+   */
+  public static StateJournal get ()
+  {
+    return current;
+  }
+
+  /**
+   * Starts journaling to the given file. Stops any current journal.
+   */
+  public static synchronized StateJournal start (File file)
+      throws IOException
+  {
+    stop();
+    StateJournal journal = new StateJournal(file);
+    current = journal;
+    log.info("Journaling state to " + file);
+    return journal;
+  }
+
+  /**
+   * Stops the current journal, writing out all changes recorded so far.
+   */
+  public static synchronized void stop ()
+  {
+    StateJournal journal = current;
+    current = DISABLED;
+    if (journal.enabled)
+      journal.close();
+  }
+
+  /**
+   * Index of the named state-change method, for use with Source.record().
+   * Models look these up once, in static initializers.
+   */
+  public static synchronized int method (String name)
+  {
+    String[] names = methodNames;
+    int index = Arrays.asList(names).indexOf(name);
+    if (index < 0) {
+      index = names.length;
+      names = Arrays.copyOf(names, index + 1);
+      names[index] = name;
+      methodNames = names;
+    }
+    return index;
+  }
+
+  static String methodName (int index)
+  {
+    return methodNames[index];
+  }
+
+  public boolean isEnabled ()
+  {
+    return enabled;
+  }
+
+  /**
+   * Batches written so far
+   */
+  public synchronized long getBatches ()
+  {
+    return batches;
+  }
+
+  /**
+   * State changes written so far
+   */
+  public synchronized long getEntries ()
+  {
+    return entries;
+  }
+
+  /**
+   * Writes out all changes the sources hold, one block per timeslot in
+   * timeslot order. Call from the host's serial phase, once per
+   * timeslot, after all models have stepped.
+   */
+  public synchronized void flush ()
+  {
+    if (!enabled)
+      return;
+    List<Source> pending = new ArrayList<Source>();
+    for (Source source : sources) {
+      if (source.count > 0)
+        pending.add(source);
+    }
+    if (pending.isEmpty())
+      return;
+    Collections.sort(pending, ORDER);
+    for (Source source : pending) {
+      if (source.index < 0)
+        define(source);
+    }
+    defineMethods();
+    // sources record in timeslot order, so each block takes the next run
+    // of changes from each source
+    int[] taken = new int[pending.size()];
+    while (true) {
+      int slot = Integer.MAX_VALUE;
+      int size = 0;
+      for (int i = 0; i < pending.size(); i++) {
+        Source source = pending.get(i);
+        if (taken[i] < source.count)
+          slot = Math.min(slot, source.timeslots[taken[i]]);
+      }
+      if (Integer.MAX_VALUE == slot)
+        break;
+      for (int i = 0; i < pending.size(); i++) {
+        Source source = pending.get(i);
+        int end = taken[i];
+        while (end < source.count && source.timeslots[end] == slot)
+          end += 1;
+        size += end - taken[i];
+      }
+      if (slot <= lastTimeslot)
+        log.warn("Journal changes for timeslot " + slot + " after "
+                 + lastTimeslot + " was written");
+      if (!writeBlock(slot, size, pending, taken))
+        break;
+      lastTimeslot = Math.max(lastTimeslot, slot);
+    }
+    for (Source source : pending)
+      source.count = 0;
+  }
+
+  // Adds a source to the journal; it is defined in the file when it is
+  // first flushed
+  private synchronized void register (Source source)
+  {
+    sources.add(source);
+  }
+
+  private void define (Source source)
+  {
+    source.index = definedObjects;
+    definedObjects += 1;
+    try {
+      defOut.writeByte(OBJECT_DEF);
+      defOut.writeInt(source.index);
+      defOut.writeUTF(source.className);
+      defOut.writeLong(source.id);
+    }
+    catch (IOException e) {
+      // cannot happen on a byte array
+      log.error("Cannot define " + source.className, e);
+    }
+    defCount += 1;
+  }
+
+  // Appends the given timeslot's changes to the file in one mapped write,
+  // moving each source's taken count past them
+  private boolean writeBlock (int slot, int size, List<Source> pending,
+                              int[] taken)
+  {
+    int bytes = BLOCK_HEADER + definitions.size() + size * ENTRY_SIZE;
+    try {
+      ensureMapped(bytes);
+    }
+    catch (IOException e) {
+      log.error("Journal write failed, dropping changes from timeslot "
+                + slot, e);
+      return false;
+    }
+    region.putInt(BLOCK);
+    region.putInt(slot);
+    region.putInt(defCount);
+    region.putInt(size);
+    region.put(definitions.toByteArray());
+    for (int i = 0; i < pending.size(); i++) {
+      Source source = pending.get(i);
+      int k = taken[i];
+      while (k < source.count && source.timeslots[k] == slot) {
+        region.putInt(source.index);
+        region.putShort(source.methods[k]);
+        region.putShort((short)0);
+        region.putLong(source.millis[k]);
+        region.putDouble(source.values[k]);
+        k += 1;
+      }
+      taken[i] = k;
+    }
+    position += bytes;
+    batches += 1;
+    entries += size;
+    definitions.reset();
+    defCount = 0;
+    return true;
+  }
+
+  // Defines the methods registered since the last batch
+  private void defineMethods ()
+  {
+    String[] names = methodNames;
+    try {
+      while (definedMethods < names.length) {
+        defOut.writeByte(METHOD_DEF);
+        defOut.writeInt(definedMethods);
+        defOut.writeUTF(names[definedMethods]);
+        definedMethods += 1;
+        defCount += 1;
+      }
+    }
+    catch (IOException e) {
+      log.error("Cannot define methods", e);
+    }
+  }
+
+  // Makes sure the mapped region has room for size more bytes, mapping
+  // a new region at the end of the journal if not
+  private void ensureMapped (int size) throws IOException
+  {
+    if (null != region && region.remaining() >= size)
+      return;
+    if (null != region)
+      region.force();
+    region = channel.map(FileChannel.MapMode.READ_WRITE, position,
+                         Math.max(CHUNK, size));
+  }
+
+  private synchronized void close ()
+  {
+    flush();
+    try {
+      region.force();
+      region = null;
+      // drop the unused tail of the last mapped region
+      channel.truncate(position);
+      file.close();
+    }
+    catch (IOException e) {
+      log.error("Journal close failed", e);
+    }
+    log.info("Journal wrote " + entries + " changes in " + batches
+             + " batches");
+  }
+
+  /**
+   * A model's state-change buffer. It registers the model with each new
+   * journal on first use, so models need not know when journaling starts
+   * or stops. Not thread-safe; each model owns its own.
+   */
+  public static class Source
+  {
+    private final String className;
+    private final long id;
+    private final String prefix;
+    private StateJournal journal = DISABLED;
+    private int index = -1;
+    private int count = 0;
+    private int[] timeslots = new int[16];
+    private long[] millis = new long[16];
+    private short[] methods = new short[16];
+    private double[] values = new double[16];
+
+    public Source (String className, long id)
+    {
+      super();
+      this.className = className;
+      this.id = id;
+      this.prefix = className + "::" + id + "::";
+    }
+
+    public boolean isEnabled ()
+    {
+      return current.enabled;
+    }
+
+    /**
+     * Records a change made in the given timeslot by the given method,
+     * which has a single double argument. The timeslot is ignored while
+     * journaling is off.
+     */
+    public void record (int timeslot, int method, double value)
+    {
+      StateJournal j = current;
+      if (!j.enabled) {
+        if (stateLog.isInfoEnabled())
+          stateLog.info(prefix + methodName(method) + "::" + value);
+        return;
+      }
+      if (j != journal) {
+        journal = j;
+        index = -1;
+        count = 0;
+        j.register(this);
+      }
+      else if (count > 0 && timeslot < timeslots[count - 1]) {
+        log.error(prefix + methodName(method) + " in timeslot " + timeslot
+                  + " after timeslot " + timeslots[count - 1]);
+        timeslot = timeslots[count - 1];
+      }
+      if (count == values.length) {
+        timeslots = Arrays.copyOf(timeslots, count * 2);
+        millis = Arrays.copyOf(millis, count * 2);
+        methods = Arrays.copyOf(methods, count * 2);
+        values = Arrays.copyOf(values, count * 2);
+      }
+      // start time first, since reading it may load LoggingEvent
+      long start = LoggingEvent.getStartTime();
+      timeslots[count] = timeslot;
+      millis[count] = System.currentTimeMillis() - start;
+      methods[count] = (short)method;
+      values[count] = value;
+      count += 1;
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Offline decoder for StateJournal files. Writes each change as a state
+ * log line, the milliseconds since logging started, a colon and then
+ * class::id::method::value, the same as the state logging aspect
+ * writes. Lines are in timeslot order, so they can be merged by time
+ * into the state log of the same run and fed to the tools that read
+ * state logs.
+ *
+ * Usage: StateJournalDecoder journal-file
+ */
+public class StateJournalDecoder
+{
+  private List<String> objects = new ArrayList<String>();
+  private List<String> methods = new ArrayList<String>();
+
+  public StateJournalDecoder ()
+  {
+    super();
+  }
+
+  /**
+   * Decodes a whole journal, returning the number of changes written
+   */
+  public long decode (InputStream input, Writer output) throws IOException
+  {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+    PrintWriter out = new PrintWriter(output);
+    if (in.readInt() != StateJournal.MAGIC)
+      throw new IOException("Not a state journal");
+    int version = in.readInt();
+    if (version != StateJournal.VERSION)
+      throw new IOException("Unsupported journal version " + version);
+
+    long count = 0;
+    while (true) {
+      int marker;
+      try {
+        marker = in.readInt();
+      }
+      catch (EOFException e) {
+        break;
+      }
+      if (marker != StateJournal.BLOCK)
+        break;
+      in.readInt(); // timeslot
+      int definitions = in.readInt();
+      int entries = in.readInt();
+      for (int i = 0; i < definitions; i++)
+        readDefinition(in);
+      for (int i = 0; i < entries; i++) {
+        int object = in.readInt();
+        int method = in.readShort();
+        in.readShort(); // padding
+        long millis = in.readLong();
+        double value = in.readDouble();
+        out.print(millis);
+        out.print(':');
+        out.print(get(objects, object, "unknown::" + object));
+        out.print("::");
+        out.print(get(methods, method, "method" + method));
+        out.print("::");
+        out.println(value);
+        count += 1;
+      }
+    }
+    out.flush();
+    return count;
+  }
+
+  private void readDefinition (DataInputStream in) throws IOException
+  {
+    byte kind = in.readByte();
+    int index = in.readInt();
+    if (StateJournal.OBJECT_DEF == kind) {
+      String className = in.readUTF();
+      long id = in.readLong();
+      set(objects, index, className + "::" + id);
+    }
+    else if (StateJournal.METHOD_DEF == kind) {
+      set(methods, index, in.readUTF());
+    }
+    else {
+      throw new IOException("Bad definition kind " + kind);
+    }
+  }
+
+  private void set (List<String> names, int index, String name)
+  {
+    while (names.size() <= index)
+      names.add(null);
+    names.set(index, name);
+  }
+
+  private String get (List<String> names, int index, String missing)
+  {
+    if (index >= 0 && index < names.size() && null != names.get(index))
+      return names.get(index);
+    return missing;
+  }
+
+  public static void main (String[] args) throws IOException
+  {
+    if (args.length != 1) {
+      System.err.println("Usage: StateJournalDecoder journal-file");
+      return;
+    }
+    InputStream in = new FileInputStream(args[0]);
+    try {
+      new StateJournalDecoder().decode(in, new OutputStreamWriter(System.out));
+    }
+    finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.powertac.common.Tariff;
+import org.powertac.common.TariffSubscription;
+import org.powertac.common.enumerations.PowerType;
+
+/**
+ * Cached subscription for a single-member customer model. The model's
+ * current subscription changes only on signup, withdrawal, or revocation
+ * or expiration of its tariff. The subscription repo is queried only
+ * after one of those: when the model invalidates the handle after
+ * evaluating tariffs, when the cached subscription no longer has any
+ * customers committed, or when its tariff is revoked or expired. Each
+ * other call is a few field reads.
+ */
+public class SubscriptionHandle
+{
+  static private Logger log =
+      Logger.getLogger(SubscriptionHandle.class.getName());
+
+  private AbstractCustomer customer;
+  private PowerType powerType;
+  private TariffSubscription current = null;
+  private long refreshCount = 0;
+
+  public SubscriptionHandle (AbstractCustomer customer, PowerType powerType)
+  {
+    super();
+    this.customer = customer;
+    this.powerType = powerType;
+  }
+
+  /**
+   * Returns the current subscription, refreshing it from the repo only
+   * if it may have changed.
+   */
+  public TariffSubscription get ()
+  {
+    if (!isValid())
+      refresh();
+    return current;
+  }
+
+  /**
+   * Forces a refresh on next use. Models call this after evaluating
+   * tariffs, since that is where signups and withdrawals originate.
+   */
+  public void invalidate ()
+  {
+    current = null;
+  }
+
+  // number of repo queries, for testing and metrics
+  public long getRefreshCount ()
+  {
+    return refreshCount;
+  }
+
+  private boolean isValid ()
+  {
+    if (null == current || current.getCustomersCommitted() <= 0)
+      return false;
+    Tariff tariff = current.getTariff();
+    return null == tariff || !(tariff.isRevoked() || tariff.isExpired());
+  }
+
+  private void refresh ()
+  {
+    refreshCount += 1;
+    List<TariffSubscription> subs =
+        customer.getCurrentSubscriptions(powerType);
+    if (subs.size() > 1) {
+      log.warn("Multiple subscriptions " + subs.size()
+               + " for " + customer.getName());
+    }
+    current = subs.get(0);
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.util.ArrayList;
+
+import org.powertac.common.RegulationCapacity;
+import org.powertac.common.TariffSubscription;
+
+/**
+ * Side effects of a model's step that must reach the rest of the server
+ * in a fixed order. Models post their usePower and setRegulationCapacity
+ * calls through the static methods here. Outside a ParallelStepper they
+ * go straight to the subscription; while the stepper runs a model, they
+ * are buffered in that model's instance and applied after all models
+ * have stepped, in model order, so a parallel timeslot produces the same
+ * transactions in the same order as a sequential one.
+ *
+ * Regulation capacity is posted as plain values, and the
+ * RegulationCapacity is created when the update is applied. It is a
+ * domain object that takes an id from the server's generator, so
+ * creating it in the serial phase keeps ids in model order and off the
+ * worker threads.
+ */
+public class SubscriptionUpdates
+{
+  private static final ThreadLocal<SubscriptionUpdates> bound =
+      new ThreadLocal<SubscriptionUpdates>();
+
+  private final ArrayList<Update> updates = new ArrayList<Update>();
+  private int size = 0;
+
+  /**
+   * Records energy used (positive) or produced (negative) on the
+   * subscription.
+   */
+  public static void usePower (TariffSubscription sub, double kWh)
+  {
+    SubscriptionUpdates buffer = bound.get();
+    if (null == buffer)
+      sub.usePower(kWh);
+    else
+      buffer.add(sub, false, kWh, 0.0, null);
+  }
+
+  /**
+   * Posts available up- and down-regulation capacity on the
+   * subscription.
+   */
+  public static void setRegulationCapacity (TariffSubscription sub,
+                                            double up, double down)
+  {
+    SubscriptionUpdates buffer = bound.get();
+    if (null == buffer)
+      sub.setRegulationCapacity(new RegulationCapacity(sub, up, down));
+    else
+      buffer.add(sub, true, up, down, null);
+  }
+
+  /**
+   * Runs some other order-sensitive action, such as broadcasting a
+   * message, now or with the buffered updates.
+   */
+  public static void defer (Runnable action)
+  {
+    SubscriptionUpdates buffer = bound.get();
+    if (null == buffer)
+      action.run();
+    else
+      buffer.add(null, false, 0.0, 0.0, action);
+  }
+
+  // Routes this thread's updates into this buffer
+  void bind ()
+  {
+    bound.set(this);
+  }
+
+  void unbind ()
+  {
+    bound.remove();
+  }
+
+  /**
+   * Applies buffered updates in the order they were posted, and empties
+   * the buffer.
+   */
+  void apply ()
+  {
+    for (int i = 0; i < size; i++) {
+      Update update = updates.get(i);
+      if (null != update.action)
+        update.action.run();
+      else if (update.capacity)
+        update.sub
+            .setRegulationCapacity(new RegulationCapacity(update.sub,
+                                                          update.value,
+                                                          update.down));
+      else
+        update.sub.usePower(update.value);
+      update.clear();
+    }
+    size = 0;
+  }
+
+  int size ()
+  {
+    return size;
+  }
+
+  // Entries are reused from one timeslot to the next. The value is the
+  // energy, or the up-regulation if this is a capacity update.
+  private void add (TariffSubscription sub, boolean capacity, double value,
+                    double down, Runnable action)
+  {
+    if (size == updates.size())
+      updates.add(new Update());
+    Update update = updates.get(size++);
+    update.sub = sub;
+    update.capacity = capacity;
+    update.value = value;
+    update.down = down;
+    update.action = action;
+  }
+
+  private static class Update
+  {
+    TariffSubscription sub;
+    boolean capacity;
+    double value;
+    double down;
+    Runnable action;
+
+    void clear ()
+    {
+      sub = null;
+      action = null;
+    }
+  }
+}
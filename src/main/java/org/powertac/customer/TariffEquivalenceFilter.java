@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.joda.time.Instant;
+import org.powertac.common.Tariff;
+import org.powertac.common.TimeService;
+
+/**
+ * Cheap pre-filter for tariff evaluation. Models that need an expensive
+ * computation (such as an LP) to produce a capacity profile can use this
+ * to avoid planning more than once for tariffs that would lead to the
+ * same plan.
+ *
+ * Tariffs whose hourly prices differ only by a positive factor, such as
+ * any two flat tariffs, lead a cost-minimizing planner to the same usage
+ * profile, so one of them stands in for the others as the source of that
+ * profile. Each tariff is then costed with its own rates, so fixed terms
+ * (periodic, signup and withdraw payments) play no part here.
+ *
+ * Tiered, variable-rate, and regulation tariffs are never considered,
+ * because their cost cannot be known from the hourly price alone.
+ */
+public class TariffEquivalenceFilter
+{
+  static private Logger log =
+      Logger.getLogger(TariffEquivalenceFilter.class.getName());
+
+  private int hours;
+
+  // price bounds by tariff, retained only for current candidates
+  private Map<Tariff, PriceBounds> bounds =
+      new HashMap<Tariff, PriceBounds>();
+
+  // tariff with the same price shape, by the tariffs it stands in for
+  private Map<Tariff, Tariff> equivalents = new HashMap<Tariff, Tariff>();
+
+  // relative tolerance for comparing price shapes
+  private static final double SHAPE_EPSILON = 1e-9;
+
+  /**
+   * Creates a filter that samples prices over the given number of hours,
+   * which should cover the longest cycle of any TOU rate.
+   */
+  public TariffEquivalenceFilter (int hours)
+  {
+    super();
+    this.hours = hours;
+  }
+
+  /**
+   * Recomputes the equivalence classes among the given candidate tariffs,
+   * sampling hourly prices starting at the given time.
+   */
+  public void update (Collection<Tariff> tariffs, Instant start)
+  {
+    Map<Tariff, PriceBounds> current = new HashMap<Tariff, PriceBounds>();
+    List<PriceBounds> candidates = new ArrayList<PriceBounds>();
+    for (Tariff tariff : tariffs) {
+      if (current.containsKey(tariff))
+        continue;
+      PriceBounds pb = bounds.get(tariff);
+      if (null == pb) {
+        pb = computeBounds(tariff, start);
+      }
+      current.put(tariff, pb);
+      if (pb.isBounded())
+        candidates.add(pb);
+    }
+    bounds = current;
+
+    // The cheapest tariff of each shape stands in for the rest, and ties
+    // are broken by id, so the choice does not depend on the order in
+    // which tariffs are offered.
+    Collections.sort(candidates, new Comparator<PriceBounds>() {
+      @Override
+      public int compare (PriceBounds a, PriceBounds b)
+      {
+        if (a.maxCost != b.maxCost)
+          return Double.compare(a.maxCost, b.maxCost);
+        return Long.valueOf(a.tariff.getId()).compareTo(b.tariff.getId());
+      }
+    });
+    equivalents.clear();
+    List<PriceBounds> shapes = new ArrayList<PriceBounds>();
+    for (PriceBounds b : candidates) {
+      PriceBounds match = null;
+      for (PriceBounds a : shapes) {
+        if (sameShape(a, b)) {
+          match = a;
+          break;
+        }
+      }
+      if (null == match)
+        shapes.add(b);
+      else
+        equivalents.put(b.tariff, match.tariff);
+    }
+    log.debug("shared profiles for " + equivalents.size() + " of "
+              + current.size() + " tariffs in " + shapes.size()
+              + " shapes");
+  }
+
+  /**
+   * Returns a tariff whose hourly prices are a positive multiple of the
+   * given tariff's, so that a usage profile planned against it is also
+   * the one planned against the given tariff. Returns null if there is
+   * none, or if the given tariff is itself the one that stands in.
+   */
+  public Tariff getEquivalentTariff (Tariff tariff)
+  {
+    return equivalents.get(tariff);
+  }
+
+  /**
+   * Returns the price bounds computed for the given tariff in the most
+   * recent update, or null if it was not a candidate.
+   */
+  PriceBounds getBounds (Tariff tariff)
+  {
+    return bounds.get(tariff);
+  }
+
+  // True just in case the hourly costs of b are a positive multiple of
+  // those of a. Fixed terms do not affect a usage plan.
+  boolean sameShape (PriceBounds a, PriceBounds b)
+  {
+    if (a.tariff.getPowerType() != b.tariff.getPowerType())
+      return false;
+    if (a.minCost <= 0.0 || b.minCost <= 0.0)
+      return false;
+    double scale = b.maxCost / a.maxCost;
+    for (int i = 0; i < a.costs.length; i++) {
+      if (Math.abs(a.costs[i] * scale - b.costs[i])
+          > SHAPE_EPSILON * b.maxCost)
+        return false;
+    }
+    return true;
+  }
+
+  // Samples hourly prices for one kWh. Customer cost is the negative of
+  // the usage charge.
+  PriceBounds computeBounds (Tariff tariff, Instant start)
+  {
+    PriceBounds result = new PriceBounds(tariff);
+    if (tariff.isTiered() || tariff.isVariableRate()
+        || tariff.hasRegulationRate())
+      return result;
+    double[] costs = new double[hours];
+    double min = Double.MAX_VALUE;
+    double max = -Double.MAX_VALUE;
+    for (int i = 0; i < hours; i++) {
+      Instant when = start.plus(i * TimeService.HOUR);
+      double cost = -tariff.getUsageCharge(when, 1.0, 0.0);
+      costs[i] = cost;
+      min = Math.min(min, cost);
+      max = Math.max(max, cost);
+    }
+    result.setCosts(costs, min, max);
+    return result;
+  }
+
+  /**
+   * Min and max hourly cost per kWh for a tariff
+   */
+  class PriceBounds
+  {
+    private Tariff tariff;
+    private boolean bounded = false;
+    private double minCost = 0.0;
+    private double maxCost = 0.0;
+    private double[] costs = null;
+
+    PriceBounds (Tariff tariff)
+    {
+      super();
+      this.tariff = tariff;
+    }
+
+    void setCosts (double[] costs, double min, double max)
+    {
+      this.costs = costs;
+      minCost = min;
+      maxCost = max;
+      bounded = true;
+    }
+
+    boolean isBounded ()
+    {
+      return bounded;
+    }
+
+    double getMinCost ()
+    {
+      return minCost;
+    }
+
+    double getMaxCost ()
+    {
+      return maxCost;
+    }
+  }
+}
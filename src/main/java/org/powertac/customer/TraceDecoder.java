@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Offline decoder for EventTrace files. Writes one line per event:
+ * timeslot, model name, event label, then name=value for each value.
+ * Event names come from the schema in the file, not from TraceEvent, so
+ * older traces decode correctly.
+ *
+ * Usage: TraceDecoder trace-file
+ */
+public class TraceDecoder
+{
+  private String[] labels;
+  private String[][] fields;
+  private List<String> models = new ArrayList<String>();
+
+  public TraceDecoder ()
+  {
+    super();
+  }
+
+  /**
+   * Decodes a whole trace, returning the number of events written
+   */
+  public long decode (InputStream input, Writer output) throws IOException
+  {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+    PrintWriter out = new PrintWriter(output);
+    if (in.readInt() != EventTrace.MAGIC)
+      throw new IOException("Not a trace file");
+    int version = in.readInt();
+    if (version != EventTrace.VERSION)
+      throw new IOException("Unsupported trace version " + version);
+    int slotSize = in.readInt();
+    readSchema(in);
+
+    byte[] payload = new byte[slotSize - 16];
+    long count = 0;
+    while (true) {
+      int model;
+      try {
+        model = in.readInt();
+      }
+      catch (EOFException e) {
+        break;
+      }
+      int timeslot = in.readInt();
+      int event = in.readShort();
+      int values = in.readShort();
+      in.readInt(); // padding
+      in.readFully(payload);
+      if (0 == event) {
+        // model registration
+        while (models.size() <= model)
+          models.add(null);
+        models.set(model, new String(payload, 0, values, "UTF-8"));
+        continue;
+      }
+      out.print(timeslot);
+      out.print(' ');
+      out.print(getModel(model));
+      out.print(' ');
+      out.print(event < labels.length ? labels[event] : "event" + event);
+      for (int i = 0; i < values; i++) {
+        out.print(' ');
+        if (event < fields.length && i < fields[event].length)
+          out.print(fields[event][i]);
+        else
+          out.print("v" + i);
+        out.print('=');
+        out.print(readDouble(payload, i * 8));
+      }
+      out.println();
+      count += 1;
+    }
+    out.flush();
+    return count;
+  }
+
+  private void readSchema (DataInputStream in) throws IOException
+  {
+    int n = in.readShort();
+    labels = new String[n];
+    fields = new String[n][];
+    for (int i = 0; i < n; i++) {
+      labels[i] = in.readUTF();
+      fields[i] = new String[in.readShort()];
+      for (int j = 0; j < fields[i].length; j++)
+        fields[i][j] = in.readUTF();
+    }
+  }
+
+  private String getModel (int id)
+  {
+    if (id >= 0 && id < models.size() && null != models.get(id))
+      return models.get(id);
+    return "model" + id;
+  }
+
+  private double readDouble (byte[] bytes, int offset)
+  {
+    long bits = 0L;
+    for (int i = 0; i < 8; i++)
+      bits = (bits << 8) | (bytes[offset + i] & 0xff);
+    return Double.longBitsToDouble(bits);
+  }
+
+  public static void main (String[] args) throws IOException
+  {
+    if (args.length != 1) {
+      System.err.println("Usage: TraceDecoder trace-file");
+      return;
+    }
+    InputStream in = new FileInputStream(args[0]);
+    try {
+      new TraceDecoder().decode(in, new OutputStreamWriter(System.out));
+    }
+    finally {
+      in.close();
+    }
+  }
+}
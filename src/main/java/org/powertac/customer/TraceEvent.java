@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+/**
+ * Types of event recorded by EventTrace, with the names of their values.
+ * The names are written to the head of each trace file, so traces can be
+ * decoded after events have been added here. Add new events at the end.
+ */
+public enum TraceEvent
+{
+  MODEL("model"), // model name registration, not a model event
+
+  COLD_REGULATION("coldstorage.regulation", "regulation", "tempChange"),
+  COLD_TURNOVER("coldstorage.turnover", "outgoing", "incoming", "tempRise"),
+  COLD_NC_USAGE("coldstorage.ncUsage", "ncUsage"),
+  COLD_HEAT_LOSS("coldstorage.heatLoss", "wallsRoof", "floor", "load"),
+  COLD_COOLING("coldstorage.cooling", "temp", "adjustment", "energy",
+               "tempChange"),
+  COLD_CAPACITY("coldstorage.capacity", "up", "down", "energy"),
+  COLD_POPULATION("coldstorage.population", "meanTemp"),
+
+  TRUCK_SHIFT("lifttruck.shift", "capacityInUse", "energyInUse",
+              "energyCharging"),
+  TRUCK_REGULATION("lifttruck.regulation", "regulation"),
+  TRUCK_NEED("lifttruck.need", "mode", "energyNeeded", "duration"),
+  TRUCK_USAGE("lifttruck.usage", "used", "up", "down"),
+  TRUCK_STATE("lifttruck.state", "capacityInUse", "energyInUse",
+              "energyCharging");
+
+  private final String label;
+  private final String[] fields;
+
+  private TraceEvent (String label, String... fields)
+  {
+    this.label = label;
+    this.fields = fields;
+  }
+
+  public String getLabel ()
+  {
+    return label;
+  }
+
+  public int getFieldCount ()
+  {
+    return fields.length;
+  }
+
+  public String getField (int index)
+  {
+    return fields[index];
+  }
+}
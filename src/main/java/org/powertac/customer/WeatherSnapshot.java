@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.powertac.common.WeatherForecast;
+import org.powertac.common.WeatherForecastPrediction;
+import org.powertac.common.WeatherReport;
+import org.powertac.common.interfaces.CustomerServiceAccessor;
+
+/**
+ * Immutable per-timeslot view of the weather for customer models. Holds
+ * the current observation and an hourly temperature forecast as
+ * primitives, so models read it with no repository calls, from any
+ * thread.
+ *
+ * A customer service that steps models creates the snapshot once per
+ * timeslot from the weather report and forecast, and hands it to its
+ * models through the service accessor by implementing Source. Models
+ * whose service does not, as in tests, get a snapshot built from the
+ * weather report repo, with a persistence forecast that holds the
+ * current temperature for every hour. That snapshot is built on the
+ * first call in a timeslot and shared by the rest of them.
+ */
+public final class WeatherSnapshot
+{
+  static private Logger log = Logger.getLogger(WeatherSnapshot.class.getName());
+
+  public static final int FORECAST_HOURS = 24;
+
+  /**
+   * Implemented by a customer service accessor that publishes a snapshot
+   * for each timeslot before it steps its models
+   */
+  public interface Source
+  {
+    /**
+     * The snapshot for the current timeslot, or null if there is none
+     */
+    WeatherSnapshot getWeatherSnapshot ();
+  }
+
+  // snapshot last built from a service's weather report repo, reused
+  // for the rest of its timeslot
+  private static volatile Fallback fallback = null;
+
+  private final int timeslot;
+  private final double temperature;
+  private final double windSpeed;
+  private final double windDirection;
+  private final double cloudCover;
+  private final double[] forecastTemps;
+
+  private WeatherSnapshot (int timeslot, double temperature,
+                           double windSpeed, double windDirection,
+                           double cloudCover, double[] forecastTemps)
+  {
+    super();
+    this.timeslot = timeslot;
+    this.temperature = temperature;
+    this.windSpeed = windSpeed;
+    this.windDirection = windDirection;
+    this.cloudCover = cloudCover;
+    this.forecastTemps = forecastTemps;
+  }
+
+  /**
+   * Returns the snapshot for the current timeslot of the given service:
+   * the one it publishes, if it is a Source and has one for this
+   * timeslot, otherwise one built from its weather report repo.
+   */
+  public static WeatherSnapshot get (CustomerServiceAccessor service)
+  {
+    int slot = service.getTimeslotRepo().currentSerialNumber();
+    if (service instanceof Source) {
+      WeatherSnapshot result = ((Source)service).getWeatherSnapshot();
+      if (null != result && result.timeslot == slot)
+        return result;
+    }
+    return fromReport(service, slot);
+  }
+
+  /**
+   * Creates the snapshot for a timeslot, with the given hourly
+   * temperature forecast starting with the next timeslot.
+   */
+  public static WeatherSnapshot create (int timeslot, WeatherReport report,
+                                        double[] forecastTemps)
+  {
+    return new WeatherSnapshot(timeslot, report.getTemperature(),
+                               report.getWindSpeed(),
+                               report.getWindDirection(),
+                               report.getCloudCover(),
+                               forecastTemps.clone());
+  }
+
+  /**
+   * Creates the snapshot for a timeslot from its weather report and the
+   * forecast issued with it. Hours the forecast does not cover hold the
+   * last temperature before them; with no forecast, that is the current
+   * temperature.
+   */
+  public static WeatherSnapshot create (int timeslot, WeatherReport report,
+                                        WeatherForecast forecast)
+  {
+    double[] temps = new double[FORECAST_HOURS];
+    Arrays.fill(temps, Double.NaN);
+    List<WeatherForecastPrediction> predictions =
+        (null == forecast) ? null : forecast.getPredictions();
+    if (null != predictions) {
+      for (WeatherForecastPrediction prediction : predictions) {
+        int hour = prediction.getForecastTime();
+        if (hour >= 1 && hour <= FORECAST_HOURS)
+          temps[hour - 1] = prediction.getTemperature();
+      }
+    }
+    double last = report.getTemperature();
+    for (int i = 0; i < FORECAST_HOURS; i++) {
+      if (Double.isNaN(temps[i]))
+        temps[i] = last;
+      last = temps[i];
+    }
+    return new WeatherSnapshot(timeslot, report.getTemperature(),
+                               report.getWindSpeed(),
+                               report.getWindDirection(),
+                               report.getCloudCover(), temps);
+  }
+
+  // The fallback snapshot for the service's timeslot, built from its
+  // repo on the first call in the timeslot. A missing report is not
+  // cached, so it is looked for again on the next call.
+  private static WeatherSnapshot fromReport (CustomerServiceAccessor service,
+                                             int slot)
+  {
+    Fallback cached = fallback;
+    if (null != cached && cached.service == service
+        && cached.snapshot.timeslot == slot)
+      return cached.snapshot;
+    WeatherReport report =
+        service.getWeatherReportRepo().currentWeatherReport();
+    if (null == report) {
+      log.error("No weather report for timeslot " + slot);
+      return new WeatherSnapshot(slot, 0.0, 0.0, 0.0, 0.0,
+                                 new double[FORECAST_HOURS]);
+    }
+    double[] forecast = new double[FORECAST_HOURS];
+    Arrays.fill(forecast, report.getTemperature());
+    WeatherSnapshot result =
+        new WeatherSnapshot(slot, report.getTemperature(),
+                            report.getWindSpeed(),
+                            report.getWindDirection(),
+                            report.getCloudCover(), forecast);
+    fallback = new Fallback(service, result);
+    return result;
+  }
+
+  public int getTimeslot ()
+  {
+    return timeslot;
+  }
+
+  public double getTemperature ()
+  {
+    return temperature;
+  }
+
+  public double getWindSpeed ()
+  {
+    return windSpeed;
+  }
+
+  public double getWindDirection ()
+  {
+    return windDirection;
+  }
+
+  public double getCloudCover ()
+  {
+    return cloudCover;
+  }
+
+  /**
+   * Forecast temperature for the given number of hours ahead, starting
+   * at 1. Hours past the end of the forecast get its last value.
+   */
+  public double getForecastTemp (int hoursAhead)
+  {
+    if (0 == forecastTemps.length)
+      return temperature;
+    int index = Math.max(0, Math.min(forecastTemps.length, hoursAhead) - 1);
+    return forecastTemps[index];
+  }
+
+  public int getForecastHours ()
+  {
+    return forecastTemps.length;
+  }
+
+  /**
+   * Copies the forecast into the given array, which must be at least
+   * getForecastHours() long.
+   */
+  public void copyForecast (double[] dest)
+  {
+    System.arraycopy(forecastTemps, 0, dest, 0, forecastTemps.length);
+  }
+
+  // A fallback snapshot and the service it was built for. Replaced as a
+  // whole, so readers on other threads see a matching pair.
+  private static final class Fallback
+  {
+    private final CustomerServiceAccessor service;
+    private final WeatherSnapshot snapshot;
+
+    Fallback (CustomerServiceAccessor service, WeatherSnapshot snapshot)
+    {
+      super();
+      this.service = service;
+      this.snapshot = snapshot;
+    }
+  }
+}
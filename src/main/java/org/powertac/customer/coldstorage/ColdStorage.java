@@ -15,24 +15,23 @@
  */
 package org.powertac.customer.coldstorage;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
-import org.apache.commons.math3.distribution.NormalDistribution;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTimeFieldType;
 import org.joda.time.Instant;
 import org.powertac.common.CustomerInfo;
 import org.powertac.common.RandomSeed;
-import org.powertac.common.RegulationCapacity;
+import org.powertac.common.Rate;
 import org.powertac.common.Tariff;
 import org.powertac.common.TariffEvaluator;
+import org.powertac.common.TariffSpecification;
 import org.powertac.common.TariffSubscription;
 import org.powertac.common.TimeService;
-import org.powertac.common.WeatherReport;
 import org.powertac.common.config.ConfigurableInstance;
 import org.powertac.common.config.ConfigurableValue;
 import org.powertac.common.enumerations.PowerType;
@@ -40,6 +39,20 @@ import org.powertac.common.interfaces.CustomerModelAccessor;
 import org.powertac.common.state.Domain;
 import org.powertac.common.state.StateChange;
 import org.powertac.customer.AbstractCustomer;
+import org.powertac.customer.BootstrapMode;
+import org.powertac.customer.EventTrace;
+import org.powertac.customer.ModelHistory;
+import org.powertac.customer.ModelMetrics;
+import org.powertac.customer.ModelSnapshot;
+import org.powertac.customer.ProfileCache;
+import org.powertac.customer.ReplayRecorder;
+import org.powertac.customer.SnapshotState;
+import org.powertac.customer.SplitRandom;
+import org.powertac.customer.StateJournal;
+import org.powertac.customer.SubscriptionHandle;
+import org.powertac.customer.SubscriptionUpdates;
+import org.powertac.customer.TraceEvent;
+import org.powertac.customer.WeatherSnapshot;
 
 /**
  * Model of a cold-storage warehouse with multiple refrigeration units.
@@ -55,7 +68,7 @@ import org.powertac.customer.AbstractCustomer;
 @ConfigurableInstance
 public class ColdStorage
 extends AbstractCustomer
-implements CustomerModelAccessor
+implements CustomerModelAccessor, SnapshotState
 {
   static private Logger log = Logger.getLogger(ColdStorage.class.getName());
 
@@ -65,6 +78,12 @@ implements CustomerModelAccessor
   static final double CP_ICE = 0.564; // kWh/tonne-K
   static final double GROUND_TEMP = 3.0; // don't freeze the ground
 
+  static final int SNAPSHOT_VERSION = 1;
+
+  // journaled state changes
+  private static final int SET_CURRENT_TEMP =
+      StateJournal.method("setCurrentTemp");
+
   // model parameters
   private double minTemp = -35.0; // deg C
   private double maxTemp = -10.0;
@@ -89,11 +108,15 @@ implements CustomerModelAccessor
   private double ncMeanReversion = 0.06;
   private double unitSize = 40.0; // tons
   private double hysteresis = 0.04; // control range
+  private int regulationHorizon = 0; // hours regulation must be sustained
+  private int variableRateHorizon = 48; // hours of published rates
+  private boolean bootstrapFastMode = false; // expected path in bootstrap
+  private boolean fastForward = false; // closed-form quiescent hours
 
   // model state
   private PowerType powerType;
   private RandomSeed opSeed;
-  private NormalDistribution normal01;
+  private SplitRandom opRandom; // per-timeslot draws
   private RandomSeed evalSeed;
 
   private double totalEnergyUsed = 0.0;
@@ -111,6 +134,22 @@ implements CustomerModelAccessor
       description = "current thermal mass")
   private double currentStock = 0.0;
 
+  private boolean fastMode = false; // last step was a bootstrap fast step
+  private QuiescentSpan quiescentSpan = new QuiescentSpan();
+  private RegulationBounds regulationBounds = null;
+  private double offeredUp = 0.0; // regulation capacity offered this hour
+  private double offeredDown = 0.0;
+  private ControlPolicy controlPolicy = null;
+  private SubscriptionHandle subscriptionHandle = null;
+  private ModelHistory history = null;
+  private double[] historyRecord = new double[3];
+  // diagnostics handles; the getters make them on first use, once
+  // configuration has settled the name and the id
+  private EventTrace.Source trace = null;
+  private StateJournal.Source journal = null;
+  private ReplayRecorder.Source replay = null;
+  private ModelMetrics metrics = null;
+
   private TariffEvaluator tariffEvaluator;
   private int profileSize = 168; // 1 week to accomodate weekly TOU
 
@@ -137,7 +176,7 @@ implements CustomerModelAccessor
     log.info("Initialize " + name);
     // fill out CustomerInfo
     powerType = PowerType.THERMAL_STORAGE_CONSUMPTION;
-    CustomerInfo info = new CustomerInfo(name, 1);
+    CustomerInfo info = new CustomerInfo(name, getPopulation());
     info.withPowerType(powerType)
         .withControllableKW(-unitSize / cop)
         .withStorageCapacity(stockCapacity * CP_ICE * (maxTemp - minTemp))
@@ -171,11 +210,16 @@ implements CustomerModelAccessor
       evalSeed = service.getRandomSeedRepo()
           .getRandomSeed(ColdStorage.class.getName() + "-" + name,
                          0, "eval");
-      normal01 = new NormalDistribution(0.0, 1.0);
-      normal01.reseedRandomGenerator(opSeed.nextLong());
+      opRandom = SplitRandom.fromSeed(opSeed);
     }
   }
 
+  // A single warehouse; populations of warehouses override this
+  public int getPopulation ()
+  {
+    return 1;
+  }
+
   @Override
   public CustomerInfo getCustomerInfo ()
   {
@@ -185,17 +229,47 @@ implements CustomerModelAccessor
   // ----------------------- Run the model ------------------------
   @Override
   public void step ()
+  {
+    long start = System.nanoTime();
+    try {
+      stepTimeslot();
+    }
+    finally {
+      getMetrics().stepped(System.nanoTime() - start);
+    }
+  }
+
+  // One timeslot of the model, timed by step()
+  void stepTimeslot ()
   {
     totalEnergyUsed = 0.0;
+    recordInputs();
+
+    if (bootstrapFastMode && BootstrapMode.isBootstrap(getTimeslotIndex())) {
+      stepBootstrap();
+      return;
+    }
+    if (fastMode) {
+      // back to full fidelity; the regulation window starts again here
+      fastMode = false;
+      regulationBounds = null;
+      quiescentSpan.clear();
+    }
 
     // First, we have to account for controls exercised in the last timeslot.
     // If there was non-zero regulation, we have to adjust the temperature.
-    double regulation = getSubscription().getRegulation();
+    TariffSubscription sub = getSubscription();
+    double regulation = sub.getRegulation();
+    getMetrics().addRegulationDelivered(regulation);
+    if (fastForward && stepQuiescent(sub, regulation))
+      return;
     if (regulation != 0.0) {
       // positive value is up-regulation, which means we lost that much
       double tempChange = regulation * cop / currentStock / CP_ICE;
-      log.info(getName() + ": regulation = " + regulation
-               + ", tempChange = " + tempChange);
+      EventTrace.Source trace = getTrace();
+      if (trace.isEnabled())
+        trace.record(getTimeslotIndex(), TraceEvent.COLD_REGULATION,
+                     regulation, tempChange);
       setCurrentTemp(currentTemp + tempChange);
     }
 
@@ -207,61 +281,311 @@ implements CustomerModelAccessor
     useEnergy(currentNcUsage);
 
     // use cooling energy to maintain and adjust current temp
-    WeatherReport weather = 
-        service.getWeatherReportRepo().currentWeatherReport();
-    double outsideTemp = weather.getTemperature();
-    double priceAdjustment = computePriceAdjustment(getTariffInfo());
+    double outsideTemp = getOutsideTemp();
     EnergyInfo info =
         computeCoolingEnergy(getCurrentTemp(),
-                             getNominalTemp(),
+                             computeTargetTemp(sub.getTariff()),
                              outsideTemp);
     setCurrentTemp(currentTemp + info.getDeltaTemp());
 
-    // Now we need to record available regulation capacity. Note that only
-    // the cooling portion is available for regulation.
-    // Note also that we have to stay within the min-max temp range
-    double availableUp = info.getEnergy() / cop;
+    offerRegulation(sub, info.getEnergy());
+    useEnergy(info.getEnergy() / cop);
+    reportUsage(sub);
+  }
+
+  // Records available regulation capacity for the hour's cooling energy.
+  // Note that only the cooling portion is available for regulation.
+  // Note also that we have to stay within the min-max temp range
+  private void offerRegulation (TariffSubscription sub, double cooling)
+  {
+    double availableUp = cooling / cop;
     if (currentTemp >= maxTemp)
       // can't regulate up above max temp
       availableUp = 0.0;
-    double availableDown = -(getMaxCooling() - info.getEnergy()) / cop;
+    double availableDown = -(getMaxCooling() - cooling) / cop;
     if (currentTemp <= minTemp)
       // and can't regulate down below min
       availableDown = 0.0;
-    RegulationCapacity capacity =
-      new RegulationCapacity(getSubscription(), availableUp, availableDown);
-    getSubscription().setRegulationCapacity(capacity);
-    log.info(getName()
-             + ": regulation capacity (" + capacity.getUpRegulationCapacity()
-             + ", " + capacity.getDownRegulationCapacity() + ")");
+    sustainableCapacity(availableUp, availableDown);
+    SubscriptionUpdates.setRegulationCapacity(sub, offeredUp, offeredDown);
+    getMetrics().addRegulationOffered(offeredUp, offeredDown);
+  }
 
-    useEnergy(info.getEnergy() / cop);
+  // Reports the hour's total usage to the subscription, metrics and
+  // history
+  private void reportUsage (TariffSubscription sub)
+  {
+    EventTrace.Source trace = getTrace();
+    if (trace.isEnabled())
+      trace.record(getTimeslotIndex(), TraceEvent.COLD_CAPACITY,
+                   offeredUp, offeredDown, totalEnergyUsed);
+
+    SubscriptionUpdates.usePower(sub, totalEnergyUsed);
+    getMetrics().addEnergy(totalEnergyUsed);
+    recordHistory();
+  }
 
-    log.debug("total energy = " + totalEnergyUsed);
-    getSubscription().usePower(totalEnergyUsed);
+  // Records the hour's external inputs when replay recording is on
+  private void recordInputs ()
+  {
+    ReplayRecorder.Source source = getReplay();
+    if (source.isEnabled()) {
+      source.record(service.getTimeslotRepo().currentTimeslot(),
+                    WeatherSnapshot.get(service), getSubscription());
+    }
+  }
+
+  // Fast-forward hour. With no regulation to account for and no control
+  // policy moving the setpoint, a quiescent warehouse follows its
+  // expected path through the current quiescent span in closed form,
+  // with no turnover or non-cooling draws, and offers regulation
+  // capacity from the hour's cooling load as the full model does.
+  // Returns false, with the state untouched, if the hour needs the full
+  // model.
+  private boolean stepQuiescent (TariffSubscription sub, double regulation)
+  {
+    if (regulation != 0.0 || null != getControlPolicy(sub.getTariff())) {
+      quiescentSpan.clear();
+      getMetrics().planMiss();
+      return false;
+    }
+    if (!quiescentSpan.advance(getProjection(), getSnapshot(),
+                               getOutsideTemp())) {
+      getMetrics().planMiss();
+      return false;
+    }
+    ThermalProjection.State next = quiescentSpan.getState();
+    setCurrentTemp(next.getTemp());
+    currentNcUsage = next.getNcUsage();
+    double usage = quiescentSpan.getUsage();
+    offerRegulation(sub, (usage - currentNcUsage) * cop);
+    useEnergy(usage);
+    getMetrics().planHit();
+    reportUsage(sub);
+    return true;
+  }
+
+  // Reduced-fidelity bootstrap hour. The warehouse follows its expected
+  // path, with no random draws, regulation capacity or tracing. Quiescent
+  // hours are stepped through a closed-form quiescent span; otherwise the
+  // controller is projected one hour. The random streams are untouched,
+  // so the full model picks up from this state at game start.
+  private void stepBootstrap ()
+  {
+    fastMode = true;
+    TariffSubscription sub = getSubscription();
+    quiescentSpan.advanceExpected(getProjection(), getSnapshot(),
+                                  getOutsideTemp());
+    useEnergy(quiescentSpan.getUsage());
+    ThermalProjection.State next = quiescentSpan.getState();
+    setCurrentTemp(next.getTemp());
+    currentNcUsage = next.getNcUsage();
+    SubscriptionUpdates.usePower(sub, totalEnergyUsed);
+    getMetrics().addEnergy(totalEnergyUsed);
+    recordHistory();
+  }
+
+  EventTrace.Source getTrace ()
+  {
+    if (null == trace)
+      trace = new EventTrace.Source(getName());
+    return trace;
+  }
+
+  ModelMetrics getMetrics ()
+  {
+    if (null == metrics) {
+      metrics = ModelMetrics.forModel(this);
+      metrics.setProfileCache(profiles);
+    }
+    return metrics;
+  }
+
+  private StateJournal.Source getJournal ()
+  {
+    if (null == journal)
+      journal = new StateJournal.Source(getClass().getName(), getId());
+    return journal;
+  }
+
+  ReplayRecorder.Source getReplay ()
+  {
+    if (null == replay)
+      replay = new ReplayRecorder.Source(this);
+    return replay;
+  }
+
+  int getTimeslotIndex ()
+  {
+    return service.getTimeslotRepo().currentSerialNumber();
+  }
+
+  // Adds this timeslot to the model's history
+  private void recordHistory ()
+  {
+    if (null == history) {
+      history = new ModelHistory("temp", "stock", "energy");
+    }
+    historyRecord[0] = currentTemp;
+    historyRecord[1] = currentStock;
+    historyRecord[2] = totalEnergyUsed;
+    history.record(getTimeslotIndex(), historyRecord);
+  }
+
+  /**
+   * Per-timeslot history of temperature, stock and energy use
+   */
+  public ModelHistory getHistory ()
+  {
+    return history;
+  }
+
+  // Sets this hour's offered regulation capacity, limited to what can be
+  // sustained over the regulation horizon, if there is one. The bounds
+  // look ahead over the weather forecast from the state at the end of
+  // this hour.
+  private void sustainableCapacity (double up, double down)
+  {
+    if (regulationHorizon > 0) {
+      if (null == regulationBounds) {
+        regulationBounds = new RegulationBounds(regulationHorizon);
+      }
+      ThermalProjection projection = getProjection();
+      ThermalProjection.State state =
+          new ThermalProjection.State(currentTemp, currentStock,
+                                      currentNcUsage);
+      WeatherSnapshot weather = WeatherSnapshot.get(service);
+      int horizon = regulationBounds.getHorizon();
+      if (regulationBounds.isEmpty()) {
+        double[] projected = new double[horizon];
+        for (int h = 1; h <= horizon; h++) {
+          projected[h - 1] =
+              projection.holdingEnergy(state, weather.getForecastTemp(h), h);
+        }
+        regulationBounds.fill(projected);
+      }
+      else {
+        regulationBounds.advance(projection
+            .holdingEnergy(state, weather.getForecastTemp(horizon), horizon));
+      }
+      double mass = currentStock * CP_ICE;
+      up = Math.min(up,
+                    regulationBounds.getSustainableUp(currentTemp, mass,
+                                                      maxTemp, cop));
+      down = Math.max(down,
+                      regulationBounds.getSustainableDown(currentTemp, mass,
+                                                          minTemp,
+                                                          getMaxCooling(),
+                                                          cop));
+    }
+    offeredUp = up;
+    offeredDown = down;
+  }
+
+  RegulationBounds getRegulationBounds ()
+  {
+    return regulationBounds;
   }
 
   // digs out the current subscription for this thing. Since the population is
   // always one, there should only ever be one of them
   private TariffSubscription getSubscription ()
   {
-    List<TariffSubscription> subs = getCurrentSubscriptions(powerType);
-    if (subs.size() > 1) {
-      log.warn("Multiple subscriptions " + subs.size() + " for " + getName());
+    if (null == subscriptionHandle) {
+      subscriptionHandle = new SubscriptionHandle(this, powerType);
+    }
+    return subscriptionHandle.get();
+  }
+
+  SubscriptionHandle getSubscriptionHandle ()
+  {
+    return subscriptionHandle;
+  }
+
+  // Returns the target temperature for the current hour. Under a TOU
+  // tariff this comes from the control policy; otherwise it's the
+  // nominal temperature.
+  private double computeTargetTemp (Tariff tariff)
+  {
+    ControlPolicy policy = getControlPolicy(tariff);
+    if (null == policy)
+      return getNominalTemp();
+    return policy.getTargetTemp(getHourOfWeek(), currentTemp);
+  }
+
+  // The control policy for the given tariff, built once when the tariff
+  // is first seen, or null if it is not a TOU tariff
+  ControlPolicy getControlPolicy (Tariff tariff)
+  {
+    if (null == tariff || !tariff.isTimeOfUse()) {
+      controlPolicy = null;
+      return null;
+    }
+    if (null == controlPolicy || controlPolicy.getTariff() != tariff) {
+      controlPolicy = makeControlPolicy(tariff);
+    }
+    return controlPolicy;
+  }
+
+  // Solves for the setpoint table of a TOU tariff
+  ControlPolicy makeControlPolicy (Tariff tariff)
+  {
+    if (null == storageOptimizer) {
+      storageOptimizer = new ThermalStorageOptimizer(this, profileSize);
+    }
+    ControlPolicy result =
+        storageOptimizer.makePolicy(tariff, getWeeklyPrices(tariff));
+    getMetrics().solved();
+    log.info(getName() + ": new control policy for tariff "
+             + tariff.getId());
+    return result;
+  }
+
+  // Hours since 00:00 Monday at the start of the current timeslot
+  int getHourOfWeek ()
+  {
+    Instant now =
+        service.getTimeslotRepo().currentTimeslot().getStartInstant();
+    return (now.get(DateTimeFieldType.dayOfWeek()) - 1) * 24
+        + now.get(DateTimeFieldType.hourOfDay());
+  }
+
+  // Prices for the week containing the current timeslot,
+  // 00:00 Monday through 23:00 Sunday
+  private double[] getWeeklyPrices (Tariff tariff)
+  {
+    Instant start =
+        service.getTimeslotRepo().currentTimeslot().getStartInstant()
+            .minus(getHourOfWeek() * TimeService.HOUR);
+    return computePrices(tariff, start);
+  }
+
+  // Per-kWh usage charges for nominal hourly consumption over profileSize
+  // hours from start, with cumulative usage reset at midnight
+  private double[] computePrices (Tariff tariff, Instant start)
+  {
+    double nhc = getNominalHourlyConsumption();
+    double[] result = new double[profileSize];
+    double cumulativeUsage = 0.0;
+    for (int i = 0; i < profileSize; i++) {
+      Instant when = start.plus(i * TimeService.HOUR);
+      if (when.get(DateTimeFieldType.hourOfDay()) == 0) {
+        cumulativeUsage = 0.0;
+      }
+      result[i] = tariff.getUsageCharge(when, nhc, cumulativeUsage) / nhc;
+      cumulativeUsage += nhc;
     }
-    return subs.get(0);
+    return result;
   }
 
-  // Returns an adjustment factor in the range [-1 .. +1] 
-  // based on energy price. 
-  private double computePriceAdjustment (TariffInfo info)
+  ControlPolicy getControlPolicy ()
   {
-    return 0.0;
+    return controlPolicy;
   }
 
-  // separated out to help create profiles
-  // TODO - handle TOU and variable-rate tariffs
-  // TODO - don't change model state here.
+  // Cooling energy and temperature change for the next hour. Reads the
+  // current stock but changes no model state; stepTimeslot() applies the
+  // result.
   EnergyInfo computeCoolingEnergy (double currentTemp,
                                    double targetTemp,
                                    double outsideTemp)
@@ -285,11 +609,11 @@ implements CustomerModelAccessor
     }
     result.setDeltaTemp(-adjustmentCooling / (currentStock * CP_ICE));
     result.setEnergy(coolingLoss + adjustmentCooling);
-    log.info(getName() + ": temp = " + currentTemp
-             + ", adjustmentCooling = " + adjustmentCooling
-             + ", total cooling energy = " + result.getEnergy()
-             + ", temp change = "
-             + (-adjustmentCooling / (currentStock * CP_ICE)));
+    EventTrace.Source trace = getTrace();
+    if (trace.isEnabled())
+      trace.record(getTimeslotIndex(), TraceEvent.COLD_COOLING, currentTemp,
+                   adjustmentCooling, result.getEnergy(),
+                   result.getDeltaTemp());
     return result;
   }
 
@@ -300,16 +624,18 @@ implements CustomerModelAccessor
     double sd = turnoverSd * stockCapacity / 24.0;
     // draw turnover quantity this hour from normal distribution
     double outgoing =
-        Math.max(0.0, (normal01.sample() * sd + turnoverMean));
+        Math.max(0.0, (opRandom.nextGaussian() * sd + turnoverMean));
     double incoming =
-        Math.max(0.0, (normal01.sample() * sd + turnoverMean));
+        Math.max(0.0, (opRandom.nextGaussian() * sd + turnoverMean));
     currentStock -=  outgoing;
     double newStock = incoming; // daily-hourly
     double newTemp =
       ((currentStock * currentTemp + newStock * newStockTemp)
           / (currentStock + newStock));
-    log.info(getName() + ": remove " + outgoing + "T, add " + incoming
-             + "T raises temp " + (newTemp - currentTemp) + "K");
+    EventTrace.Source trace = getTrace();
+    if (trace.isEnabled())
+      trace.record(getTimeslotIndex(), TraceEvent.COLD_TURNOVER, outgoing,
+                   incoming, newTemp - currentTemp);
     currentStock += incoming;
     return (newTemp - currentTemp);
   }
@@ -320,10 +646,13 @@ implements CustomerModelAccessor
       return;
     currentNcUsage = currentNcUsage
         + (nonCoolingUsage
-            * (ncUsageVariability * (opSeed.nextDouble() * 2.0 - 1.0)))
+            * (ncUsageVariability * (opRandom.nextDouble() * 2.0 - 1.0)))
             + ncMeanReversion * (nonCoolingUsage - currentNcUsage);
     currentNcUsage = Math.max(0.0, currentNcUsage);
-    log.info(getName() + ": Non-cooling usage = " + currentNcUsage);
+    EventTrace.Source trace = getTrace();
+    if (trace.isEnabled())
+      trace.record(getTimeslotIndex(), TraceEvent.COLD_NC_USAGE,
+                   currentNcUsage);
   }
 
   // computes kWh cooling energy to maintain current inside temp
@@ -333,9 +662,10 @@ implements CustomerModelAccessor
     double floorLoss =
       (R_CONVERSION / getFloorRValue() * getRoofArea())
           * (GROUND_TEMP - currentTemp);
-    log.info(getName() + ": heat loss walls & roof: " + upperLoss
-             + ", floor: " + floorLoss
-             + ", heat load: " + currentNcUsage);
+    EventTrace.Source trace = getTrace();
+    if (trace.isEnabled())
+      trace.record(getTimeslotIndex(), TraceEvent.COLD_HEAT_LOSS, upperLoss,
+                   floorLoss, currentNcUsage);
     return upperLoss + floorLoss + currentNcUsage;
   }
 
@@ -343,72 +673,84 @@ implements CustomerModelAccessor
   double getCoolingLossPerK ()
   {
     if (0.0 == coolingLossPerK) {
-      double roofLoss = R_CONVERSION / getRoofRValue() * getRoofArea();
-      double wallLoss = R_CONVERSION / getWallRValue() * getWallArea();
-      double infiltrationLoss = getInfiltrationRatio() * (roofLoss + wallLoss);
-      log.debug(": Heat loss per K -- roof: " + roofLoss
-                + ", walls: " + wallLoss
-                + ", infiltration: " + infiltrationLoss);
-      coolingLossPerK = roofLoss + wallLoss + infiltrationLoss;
+      coolingLossPerK =
+          computeCoolingLossPerK(getRoofArea(), getRoofRValue(),
+                                 getWallArea(), getWallRValue(),
+                                 getInfiltrationRatio());
+      log.debug(getName() + ": Heat loss per K " + coolingLossPerK);
     }
     return coolingLossPerK;
   }
 
+  // Heat loss through roof and walls, plus infiltration, in kWh/K
+  static double computeCoolingLossPerK (double roofArea, double roofRValue,
+                                        double wallArea, double wallRValue,
+                                        double infiltrationRatio)
+  {
+    double roofLoss = R_CONVERSION / roofRValue * roofArea;
+    double wallLoss = R_CONVERSION / wallRValue * wallArea;
+    return roofLoss + wallLoss + infiltrationRatio * (roofLoss + wallLoss);
+  }
+
   // -------------------------- Evaluate tariffs ------------------------
   @Override
   public void evaluateTariffs (List<Tariff> tariffs)
   {
     log.info(getName() + ": evaluate tariffs");
+    if (null != profiles)
+      profiles.purge(service.getTimeslotRepo().currentSerialNumber());
     tariffEvaluator.evaluateTariffs();
+    // signups and withdrawals come from here
+    if (null != subscriptionHandle)
+      subscriptionHandle.invalidate();
   }
 
   // ------------- CustomerModelAccessor methods -----------------
-  // TODO - make this tariff-dependent
-  private Map<Tariff, TariffInfo> profiles = null;
+  private ProfileCache<TariffInfo> profiles = null;
+  private double[] flatProfile = null;
+  private ThermalStorageOptimizer storageOptimizer = null;
+  private ThermalProjection projection = null;
   double nominalHourlyConsumption = 0.0;
   @Override
   public double[] getCapacityProfileStartingNextTimeSlot (Tariff tariff)
   {
     // lazy creation of profile table
     if (null == profiles) {
-      profiles = new HashMap<Tariff, TariffInfo>();
+      profiles = new ProfileCache<TariffInfo>();
+      getMetrics().setProfileCache(profiles);
     }
     // return existing profile if it exists
-    TariffInfo info = profiles.get(tariff);
+    int timeslot = service.getTimeslotRepo().currentSerialNumber();
+    TariffInfo info = profiles.get(tariff, timeslot);
     if (null != info) {
+      if (tariff.isVariableRate())
+        refreshVariableRateProfile(info);
       return info.getProfile();
     }
     // otherwise, create a new profile
     info = makeTariffInfo(tariff);
-    if (tariff.isTimeOfUse()) {
-      heuristicTouProfile(info);
+    if (tariff.isVariableRate()) {
+      variableRateProfile(info);
+    }
+    else if (tariff.isTimeOfUse()) {
+      optimizedTouProfile(info);
     }
     else {
-      // fill profile with nominal consumption
-      double[] pr = new double[profileSize];
-      Arrays.fill(pr, getNominalHourlyConsumption());
-      info.setProfile(pr);
+      // nominal consumption, shared by all flat tariffs
+      if (null == flatProfile) {
+        flatProfile = new double[profileSize];
+        Arrays.fill(flatProfile, getNominalHourlyConsumption());
+      }
+      info.setProfile(flatProfile);
     }
     log.debug(getName() + " profile " + Arrays.toString(info.getProfile()));
-    profiles.put(tariff, info);
+    profiles.put(tariff, info, timeslot);
     return info.getProfile();
   }
 
-  // Should be non-null for any tariff other than the default tariff
-  private TariffInfo getTariffInfo (Tariff tariff)
+  ProfileCache<TariffInfo> getProfileCache ()
   {
-    if (null == profiles)
-      return null;
-    return profiles.get(tariff);
-  }
-
-  // Returns the tariffInfo for the current subscribed tariff
-  private TariffInfo getTariffInfo ()
-  {
-    if (null == profiles)
-      return null;
-    TariffSubscription sub = getSubscription();
-    return profiles.get(sub.getTariff());
+    return profiles;
   }
 
   TariffInfo makeTariffInfo (Tariff tariff)
@@ -434,6 +776,114 @@ implements CustomerModelAccessor
     return nominalHourlyConsumption;
   }
 
+  // Profile from the storage optimizer, which shifts cooling into cheap
+  // hours while keeping temperature within the cost-shift band.
+  // Falls back to the heuristic if no feasible path exists.
+  void optimizedTouProfile (TariffInfo tariffInfo)
+  {
+    if (null == storageOptimizer) {
+      storageOptimizer = new ThermalStorageOptimizer(this, profileSize);
+    }
+    double[] profile = storageOptimizer.getProfile(tariffInfo.getPrices());
+    getMetrics().solved();
+    if (null == profile) {
+      heuristicTouProfile(tariffInfo);
+      return;
+    }
+    tariffInfo.setProfile(profile);
+  }
+
+  ThermalStorageOptimizer getStorageOptimizer ()
+  {
+    return storageOptimizer;
+  }
+
+  // Profile for a variable-rate tariff. Cooling moves toward hours whose
+  // expected cost is below the reference price and away from those above
+  // it. The reference and scale are fixed when the profile is built, so
+  // each hour depends only on its own price.
+  void variableRateProfile (TariffInfo tariffInfo)
+  {
+    double mean = tariffInfo.getMeanPrice();
+    double priceRange = getVariablePriceRange(tariffInfo);
+    double scale = (priceRange > 0.0) ? getCoolingRange() / priceRange : 0.0;
+    tariffInfo.setReference(mean, scale);
+    double[] prices = tariffInfo.getPrices();
+    double[] result = new double[prices.length];
+    for (int i = 0; i < prices.length; i++) {
+      result[i] = responsiveUsage(tariffInfo, prices[i]);
+    }
+    tariffInfo.setProfile(result);
+  }
+
+  // Brings a variable-rate profile up to date. Only hours whose expected
+  // price has changed are recomputed, unless the mean price has drifted
+  // far enough from the reference that the whole profile is rebuilt.
+  void refreshVariableRateProfile (TariffInfo tariffInfo)
+  {
+    Instant now =
+        service.getTimeslotRepo().currentTimeslot().getStartInstant();
+    int count = tariffInfo.refreshPrices(now, variableRateHorizon);
+    if (0 == count)
+      return;
+    double drift = Math.abs(tariffInfo.getMeanPrice()
+                            - tariffInfo.getReferencePrice());
+    double[] prices = tariffInfo.getPrices();
+    double[] profile = tariffInfo.getProfile();
+    if (null == profile || profile.length != prices.length
+        || count == prices.length
+        || drift * tariffInfo.getScaleFactor() > getCoolingRange() / 2.0) {
+      variableRateProfile(tariffInfo);
+      return;
+    }
+    boolean[] changed = tariffInfo.getChanged();
+    for (int i = 0; i < prices.length; i++) {
+      if (changed[i])
+        profile[i] = responsiveUsage(tariffInfo, prices[i]);
+    }
+  }
+
+  // Expected hourly usage at the given price, which is a charge per kWh
+  // and so negative for consumption
+  private double responsiveUsage (TariffInfo tariffInfo, double price)
+  {
+    double nominalCooling = getNominalHourlyConsumption() - nonCoolingUsage;
+    double cooling = nominalCooling
+        + (price - tariffInfo.getReferencePrice())
+          * tariffInfo.getScaleFactor();
+    cooling = Math.max(0.0, Math.min(getMaxCooling() / getCop(), cooling));
+    return cooling + nonCoolingUsage;
+  }
+
+  // kWh by which cooling can move either way from its nominal value
+  private double getCoolingRange ()
+  {
+    double nominalCooling = getNominalHourlyConsumption() - nonCoolingUsage;
+    return Math.min(nominalCooling, getMaxCooling() / getCop() - nominalCooling);
+  }
+
+  // Half the spread of the tariff's variable rates, or of the current
+  // prices if the rates don't give one
+  private double getVariablePriceRange (TariffInfo tariffInfo)
+  {
+    double range = 0.0;
+    TariffSpecification spec = tariffInfo.getTariff().getTariffSpecification();
+    if (null != spec && null != spec.getRates()) {
+      for (Rate rate : spec.getRates()) {
+        if (!rate.isFixed())
+          range = Math.max(range,
+                           Math.abs(rate.getMaxValue() - rate.getMinValue())
+                           / 2.0);
+      }
+    }
+    if (0.0 == range) {
+      double mean = tariffInfo.getMeanPrice();
+      range = Math.max(tariffInfo.getMaxPrice() - mean,
+                       mean - tariffInfo.getMinPrice());
+    }
+    return range;
+  }
+
   void heuristicTouProfile (TariffInfo tariffInfo)
   {
     double nhc = getNominalHourlyConsumption();
@@ -454,14 +904,8 @@ implements CustomerModelAccessor
               + ", scaleFactor " + scaleFactor);
     //double maxRatio = stats.getMax() / gmean;
     // Generate a profile
-    double evalTemp = getNominalTemp();
     double[] result = new double[profileSize];
-    EnergyInfo info =
-        computeCoolingEnergy(evalTemp + turnoverRise(),
-                             getNominalTemp(), getEvalEnvTemp());
-    double coolingKwh = info.getEnergy() / getCop();
-    log.debug(getName() + " coolingEnergy " + coolingKwh
-              + ", max cooling " + maxCooling
+    log.debug(getName() + " max cooling " + maxCooling
               + ", nominal cooling " + nominalCooling);
     double[] prices = tariffInfo.getPrices();
     for (int i = 0; i < profileSize; i++) {
@@ -510,10 +954,14 @@ implements CustomerModelAccessor
     return unitSize * TON_CONVERSION;
   }
 
-  @StateChange
+  // Journaled rather than @StateChange, since it changes several times
+  // per step
   void setCurrentTemp (double temp)
   {
     currentTemp = temp;
+    StateJournal.Source source = getJournal();
+    source.record(source.isEnabled() ? getTimeslotIndex() : -1,
+                  SET_CURRENT_TEMP, temp);
   }
   
   void useEnergy (double kWh)
@@ -526,6 +974,82 @@ implements CustomerModelAccessor
     return currentNcUsage;
   }
 
+  double getCurrentStock ()
+  {
+    return currentStock;
+  }
+
+  // Immutable copy of the current state, for projection
+  ThermalProjection.State getSnapshot ()
+  {
+    return new ThermalProjection.State(currentTemp, currentStock,
+                                       currentNcUsage);
+  }
+
+  // Shared projection engine, created on first use after configuration
+  ThermalProjection getProjection ()
+  {
+    if (null == projection) {
+      projection = new ThermalProjection(this);
+    }
+    return projection;
+  }
+
+  // Sets the state variables directly; pkg visibility for testing
+  void setState (double temp, double stock, double ncUsage)
+  {
+    setCurrentTemp(temp);
+    currentStock = stock;
+    currentNcUsage = ncUsage;
+  }
+
+  double getOutsideTemp ()
+  {
+    return WeatherSnapshot.get(service).getTemperature();
+  }
+
+  // ----------------- Snapshot state -----------------
+  @Override
+  public int getSnapshotVersion ()
+  {
+    return SNAPSHOT_VERSION;
+  }
+
+  /**
+   * Writes temperature, stock, non-cooling usage and the position of the
+   * random stream. The regulation window is written too, so a restored
+   * warehouse continues exactly as this one would.
+   */
+  @Override
+  public void saveState (DataOutput out) throws IOException
+  {
+    out.writeDouble(currentTemp);
+    out.writeDouble(currentStock);
+    out.writeDouble(currentNcUsage);
+    opRandom.saveState(out);
+    ModelSnapshot.writeDoubles(out, (null == regulationBounds)
+                                    ? new double[0]
+                                    : regulationBounds.getWindow());
+  }
+
+  @Override
+  public boolean restoreState (ByteBuffer in, int version)
+  {
+    if (version != SNAPSHOT_VERSION)
+      return false;
+    setCurrentTemp(in.getDouble());
+    currentStock = in.getDouble();
+    currentNcUsage = in.getDouble();
+    opRandom = SplitRandom.restoreState(in);
+    double[] window = ModelSnapshot.readDoubles(in);
+    regulationBounds = null;
+    if (window.length > 0) {
+      regulationBounds = new RegulationBounds(regulationHorizon);
+      regulationBounds.fill(window);
+    }
+    return true;
+  }
+
   // ----------------- Parameter access -----------------
 
   public double getMinTemp ()
@@ -792,6 +1316,21 @@ implements CustomerModelAccessor
     return nonCoolingUsage;
   }
 
+  double getTurnoverSd ()
+  {
+    return turnoverSd;
+  }
+
+  double getNcUsageVariability ()
+  {
+    return ncUsageVariability;
+  }
+
+  double getNcMeanReversion ()
+  {
+    return ncMeanReversion;
+  }
+
   @ConfigurableValue(valueType = "Double",
       description = "Mean hourly energy usage for non-cooling purposes")
   @StateChange
@@ -805,6 +1344,72 @@ implements CustomerModelAccessor
     return this;
   }
 
+  public int getRegulationHorizon ()
+  {
+    return regulationHorizon;
+  }
+
+  @ConfigurableValue(valueType = "Integer",
+      description = "Hours offered regulation must be sustainable, 0 for one")
+  @StateChange
+  public ColdStorage withRegulationHorizon (int hours)
+  {
+    if (hours < 0)
+      log.error(getName() + ": Regulation horizon " + hours
+                + " cannot be negative");
+    else
+      regulationHorizon = hours;
+    return this;
+  }
+
+  public int getVariableRateHorizon ()
+  {
+    return variableRateHorizon;
+  }
+
+  @ConfigurableValue(valueType = "Integer",
+      description = "Hours ahead checked for variable-rate price updates")
+  @StateChange
+  public ColdStorage withVariableRateHorizon (int hours)
+  {
+    if (hours < 0)
+      log.error(getName() + ": Variable-rate horizon " + hours
+                + " cannot be negative");
+    else
+      variableRateHorizon = hours;
+    return this;
+  }
+
+  public boolean isBootstrapFastMode ()
+  {
+    return bootstrapFastMode;
+  }
+
+  @ConfigurableValue(valueType = "Boolean",
+      description = "Step warehouses on their expected path"
+                    + " during bootstrap")
+  @StateChange
+  public ColdStorage withBootstrapFastMode (boolean value)
+  {
+    bootstrapFastMode = value;
+    return this;
+  }
+
+  public boolean isFastForward ()
+  {
+    return fastForward;
+  }
+
+  @ConfigurableValue(valueType = "Boolean",
+      description = "Step quiescent hours in closed form on the expected"
+                    + " path when no regulation or TOU policy is pending")
+  @StateChange
+  public ColdStorage withFastForward (boolean value)
+  {
+    fastForward = value;
+    return this;
+  }
+
   /**
    * Data structure to hold energy and temperature-change info
    * @author jcollins
@@ -848,7 +1453,19 @@ implements CustomerModelAccessor
     private Tariff tariff;
     double[] prices;
     double[] profile;
-    private DescriptiveStatistics stats;
+    private Instant start; // time of prices[0]
+
+    // streaming price statistics
+    private boolean statsValid = false;
+    private double priceSum;
+    private double minPrice;
+    private double maxPrice;
+    private boolean rescan = false;
+
+    // variable-rate profile reference, and hours changed by last refresh
+    private double referencePrice;
+    private double scaleFactor;
+    private boolean[] changed;
 
     TariffInfo (Tariff tariff)
     {
@@ -868,31 +1485,21 @@ implements CustomerModelAccessor
       return tariff.isTimeOfUse();
     }
 
-    // prices 00:00 Monday through 23:00 Sunday
+    // prices for profileSize hours, starting with the current timeslot
     double[] getPrices ()
     {
       if (null != this.prices)
         return prices;
-      double nhc = getNominalHourlyConsumption();
-      prices = new double[profileSize];
-      double cumulativeUsage = 0.0;
-      Instant start =
-          service.getTimeslotRepo().currentTimeslot().getStartInstant();
-      for (int i = 0; i < profileSize; i++) {
-        Instant when = start.plus(i * TimeService.HOUR);
-        if (when.get(DateTimeFieldType.hourOfDay()) == 0) {
-          cumulativeUsage = 0.0;
-        }
-        prices[i] =
-            tariff.getUsageCharge(when, nhc, cumulativeUsage) / nhc;
-        cumulativeUsage += nhc;
-      }
+      start = service.getTimeslotRepo().currentTimeslot().getStartInstant();
+      prices = computePrices(tariff, start);
+      statsValid = false;
       return prices;
     }
 
     void setPrices (double[] prices)
     {
       this.prices = prices;
+      statsValid = false;
     }
 
     // profile used for evaluation
@@ -911,26 +1518,149 @@ implements CustomerModelAccessor
     double getMeanPrice ()
     {
       ensureStats();
-      return stats.getMean();
+      return priceSum / prices.length;
     }
 
     double getMaxPrice ()
     {
       ensureStats();
-      return stats.getMax();
+      return maxPrice;
     }
 
     double getMinPrice ()
     {
       ensureStats();
-      return stats.getMin();
+      return minPrice;
     }
 
     private void ensureStats ()
     {
-      if (null == stats) {
-        stats = new DescriptiveStatistics(getPrices());
+      if (!statsValid) {
+        double[] p = getPrices();
+        priceSum = 0.0;
+        minPrice = Double.POSITIVE_INFINITY;
+        maxPrice = Double.NEGATIVE_INFINITY;
+        for (double price : p) {
+          priceSum += price;
+          minPrice = Math.min(minPrice, price);
+          maxPrice = Math.max(maxPrice, price);
+        }
+        statsValid = true;
+        rescan = false;
       }
+      else if (rescan) {
+        minPrice = Double.POSITIVE_INFINITY;
+        maxPrice = Double.NEGATIVE_INFINITY;
+        for (double price : prices) {
+          minPrice = Math.min(minPrice, price);
+          maxPrice = Math.max(maxPrice, price);
+        }
+        rescan = false;
+      }
+    }
+
+    // Replaces the price for hour i, keeping the statistics current.
+    // Min and max are rescanned only if an extreme value is replaced
+    // by a less extreme one.
+    private void replacePrice (int i, double price)
+    {
+      double old = prices[i];
+      prices[i] = price;
+      priceSum += price - old;
+      if (price <= minPrice)
+        minPrice = price;
+      else if (old == minPrice)
+        rescan = true;
+      if (price >= maxPrice)
+        maxPrice = price;
+      else if (old == maxPrice)
+        rescan = true;
+    }
+
+    /**
+     * Brings the prices up to date for a window starting at now. The
+     * window is shifted by the hours elapsed since the last refresh, and
+     * prices are looked up again only for the first horizon hours, where
+     * variable-rate charges get published, and for hours newly added at
+     * the end. Returns the number of hours whose price changed; those
+     * hours are marked in getChanged(). If the window has moved a whole
+     * length, everything is recomputed.
+     */
+    int refreshPrices (Instant now, int horizon)
+    {
+      ensureStats();
+      int n = prices.length;
+      if (null == changed || changed.length != n)
+        changed = new boolean[n];
+      Arrays.fill(changed, false);
+      long shift = (now.getMillis() - start.getMillis()) / TimeService.HOUR;
+      if (shift < 0 || shift >= n) {
+        start = now;
+        prices = computePrices(tariff, start);
+        statsValid = false;
+        Arrays.fill(changed, true);
+        return n;
+      }
+      int moved = (int)shift;
+      int count = 0;
+      if (moved > 0) {
+        for (int i = 0; i < moved; i++) {
+          priceSum -= prices[i];
+          if (prices[i] == minPrice || prices[i] == maxPrice)
+            rescan = true;
+        }
+        System.arraycopy(prices, moved, prices, 0, n - moved);
+        if (null != profile && profile.length == n)
+          System.arraycopy(profile, moved, profile, 0, n - moved);
+        start = now;
+      }
+      double nhc = getNominalHourlyConsumption();
+      for (int i = 0; i < n; i++) {
+        boolean added = i >= n - moved;
+        if (i >= horizon && !added)
+          continue;
+        Instant when = start.plus(i * TimeService.HOUR);
+        int hour = when.get(DateTimeFieldType.hourOfDay());
+        double cumulativeUsage = Math.min(i, hour) * nhc;
+        double price =
+            tariff.getUsageCharge(when, nhc, cumulativeUsage) / nhc;
+        if (added) {
+          prices[i] = price;
+          priceSum += price;
+          minPrice = Math.min(minPrice, price);
+          maxPrice = Math.max(maxPrice, price);
+        }
+        else if (price != prices[i]) {
+          replacePrice(i, price);
+        }
+        else {
+          continue;
+        }
+        changed[i] = true;
+        count += 1;
+      }
+      return count;
+    }
+
+    boolean[] getChanged ()
+    {
+      return changed;
+    }
+
+    double getReferencePrice ()
+    {
+      return referencePrice;
+    }
+
+    double getScaleFactor ()
+    {
+      return scaleFactor;
+    }
+
+    void setReference (double price, double scale)
+    {
+      referencePrice = price;
+      scaleFactor = scale;
     }
   }
 
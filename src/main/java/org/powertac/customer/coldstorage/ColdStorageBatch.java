@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer.coldstorage;
+
+/**
+ * Stepping kernel for an ensemble of cold-storage sites, as simulated by
+ * ColdStoragePopulation. State and parameters are held in parallel
+ * primitive arrays, and each timeslot is advanced in a single loop over
+ * those arrays, with no allocation or logging. The arithmetic is the
+ * same as ColdStorage.step(), in the same order, so a site given the
+ * same parameters, state and random draws as a warehouse follows the
+ * same trajectory. A site under a TOU tariff is driven to the setpoint
+ * of its control policy for the hour; other sites hold their nominal
+ * temperature.
+ *
+ * The caller supplies the random draws and regulation for each site
+ * through setInputs(), so the kernel itself holds no random streams.
+ */
+public class ColdStorageBatch
+{
+  private int size;
+
+  // state
+  private double[] temp;
+  private double[] stock;
+  private double[] ncUsage;
+
+  // per-timeslot inputs
+  private double[] regulation;
+  private double[] outgoingSample;
+  private double[] incomingSample;
+  private double[] ncSample;
+  private ControlPolicy[] policy;
+  private double[] policyOffset;
+  private int hourOfWeek = 0;
+
+  // parameters
+  private double[] cop;
+  private double[] coolingLossPerK;
+  private double[] floorLossPerK;
+  private double[] maxCooling;
+  private double[] nominalTemp;
+  private double[] minTemp;
+  private double[] maxTemp;
+  private double[] halfHysteresis;
+  private double[] turnoverMean;
+  private double[] turnoverSd;
+  private double[] newStockTemp;
+  private double[] nonCoolingUsage;
+  private double[] ncVariability;
+  private double[] ncMeanReversion;
+
+  // results
+  private double[] energy;
+  private double[] upRegulation;
+  private double[] downRegulation;
+
+  /**
+   * Creates a batch of the given size. Parameters and state must be
+   * loaded site by site before the first advance().
+   */
+  ColdStorageBatch (int size)
+  {
+    super();
+    this.size = size;
+    temp = new double[size];
+    stock = new double[size];
+    ncUsage = new double[size];
+    regulation = new double[size];
+    outgoingSample = new double[size];
+    incomingSample = new double[size];
+    ncSample = new double[size];
+    policy = new ControlPolicy[size];
+    policyOffset = new double[size];
+    cop = new double[size];
+    coolingLossPerK = new double[size];
+    floorLossPerK = new double[size];
+    maxCooling = new double[size];
+    nominalTemp = new double[size];
+    minTemp = new double[size];
+    maxTemp = new double[size];
+    halfHysteresis = new double[size];
+    turnoverMean = new double[size];
+    turnoverSd = new double[size];
+    newStockTemp = new double[size];
+    nonCoolingUsage = new double[size];
+    ncVariability = new double[size];
+    ncMeanReversion = new double[size];
+    energy = new double[size];
+    upRegulation = new double[size];
+    downRegulation = new double[size];
+  }
+
+  // Loads the parameters for a single site. Turnover mean and sd are in
+  // tonnes/hour.
+  void setParameters (int index, double siteCop, double lossPerK,
+                      double floorLoss, double siteMaxCooling,
+                      double nominal, double min, double max,
+                      double hysteresis, double turnover,
+                      double turnoverStdDev, double stockTemp,
+                      double nonCooling, double variability,
+                      double meanReversion)
+  {
+    cop[index] = siteCop;
+    coolingLossPerK[index] = lossPerK;
+    floorLossPerK[index] = floorLoss;
+    maxCooling[index] = siteMaxCooling;
+    nominalTemp[index] = nominal;
+    minTemp[index] = min;
+    maxTemp[index] = max;
+    halfHysteresis[index] = hysteresis / 2.0;
+    turnoverMean[index] = turnover;
+    turnoverSd[index] = turnoverStdDev;
+    newStockTemp[index] = stockTemp;
+    nonCoolingUsage[index] = nonCooling;
+    ncVariability[index] = variability;
+    ncMeanReversion[index] = meanReversion;
+  }
+
+  // Expected-path projection of a single site, from its parameters
+  ThermalProjection makeProjection (int index)
+  {
+    return new ThermalProjection(cop[index], coolingLossPerK[index],
+                                 floorLossPerK[index], maxCooling[index],
+                                 nominalTemp[index],
+                                 halfHysteresis[index] * 2.0,
+                                 turnoverMean[index], newStockTemp[index],
+                                 nonCoolingUsage[index],
+                                 ncMeanReversion[index],
+                                 ncVariability[index]);
+  }
+
+  // True if the site draws a non-cooling sample each timeslot
+  boolean isNcVariable (int index)
+  {
+    return ncVariability[index] != 0.0;
+  }
+
+  public int size ()
+  {
+    return size;
+  }
+
+  // Loads state for a single site
+  void setState (int index, double t, double s, double nc)
+  {
+    temp[index] = t;
+    stock[index] = s;
+    ncUsage[index] = nc;
+  }
+
+  // Loads the per-timeslot inputs for a single site
+  void setInputs (int index, double reg, double outgoing, double incoming,
+                  double nc)
+  {
+    regulation[index] = reg;
+    outgoingSample[index] = outgoing;
+    incomingSample[index] = incoming;
+    ncSample[index] = nc;
+  }
+
+  /**
+   * Sets the control policy that drives a single site, or null to hold
+   * its nominal temperature. The site's setpoints are the policy's,
+   * shifted by the given offset, so one policy for a typical site
+   * serves sites whose temperature limits are offset from it.
+   */
+  void setPolicy (int index, ControlPolicy sitePolicy, double offset)
+  {
+    policy[index] = sitePolicy;
+    policyOffset[index] = offset;
+  }
+
+  // Hour of the week for policy lookups in the next advance()
+  void setHourOfWeek (int hour)
+  {
+    hourOfWeek = hour;
+  }
+
+  /**
+   * Advances all warehouses by one timeslot, using the regulation and
+   * random draws already loaded into the input arrays.
+   */
+  void advance (double outsideTemp)
+  {
+    final double cp = ColdStorage.CP_ICE;
+    final double ground = ColdStorage.GROUND_TEMP;
+    for (int i = 0; i < size; i++) {
+      double t = temp[i];
+      double s = stock[i];
+
+      // regulation in the last timeslot
+      double reg = regulation[i];
+      if (reg != 0.0)
+        t = t + reg * cop[i] / s / cp;
+
+      // stock turnover
+      double outgoing =
+          Math.max(0.0, (outgoingSample[i] * turnoverSd[i] + turnoverMean[i]));
+      double incoming =
+          Math.max(0.0, (incomingSample[i] * turnoverSd[i] + turnoverMean[i]));
+      s -= outgoing;
+      double mixed = ((s * t + incoming * newStockTemp[i]) / (s + incoming));
+      s += incoming;
+      t = t + (mixed - t);
+
+      // non-cooling load
+      double nc = ncUsage[i];
+      if (ncVariability[i] != 0.0) {
+        nc = nc
+            + (nonCoolingUsage[i]
+                * (ncVariability[i] * (ncSample[i] * 2.0 - 1.0)))
+            + ncMeanReversion[i] * (nonCoolingUsage[i] - nc);
+        nc = Math.max(0.0, nc);
+      }
+
+      // cooling to hold or approach the setpoint
+      double target = nominalTemp[i];
+      if (null != policy[i]) {
+        double offset = policyOffset[i];
+        target = policy[i].getTargetTemp(hourOfWeek, t - offset) + offset;
+      }
+      double loss = coolingLossPerK[i] * (outsideTemp - t)
+          + floorLossPerK[i] * (ground - t)
+          + nc;
+      double adjustment = 0.0;
+      if (t < (target - halfHysteresis[i])) {
+        adjustment = -Math.min(loss, s * cp * (target - t));
+      }
+      else if (t > (target + halfHysteresis[i])) {
+        adjustment = Math.min(s * cp * (t - target),
+                              maxCooling[i] - loss);
+      }
+      double cooling = loss + adjustment;
+      t = t + (-adjustment / (s * cp));
+
+      // regulation capacity is limited to the cooling load, and to the
+      // allowable temperature range
+      double up = cooling / cop[i];
+      if (t >= maxTemp[i])
+        up = 0.0;
+      double down = -(maxCooling[i] - cooling) / cop[i];
+      if (t <= minTemp[i])
+        down = 0.0;
+
+      temp[i] = t;
+      stock[i] = s;
+      ncUsage[i] = nc;
+      upRegulation[i] = up;
+      downRegulation[i] = down;
+      energy[i] = nc + cooling / cop[i];
+    }
+  }
+
+  // ---------------- result access ---------------
+  public double getTemp (int index)
+  {
+    return temp[index];
+  }
+
+  public double getStock (int index)
+  {
+    return stock[index];
+  }
+
+  public double getNcUsage (int index)
+  {
+    return ncUsage[index];
+  }
+
+  public double getEnergy (int index)
+  {
+    return energy[index];
+  }
+
+  public double getUpRegulation (int index)
+  {
+    return upRegulation[index];
+  }
+
+  public double getDownRegulation (int index)
+  {
+    return downRegulation[index];
+  }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer.coldstorage;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Fits the roof and wall areas, coefficient of performance, turnover
+ * ratio and non-cooling usage of a ColdStorage warehouse to a measured
+ * hourly load series, given the outside temperature for each hour.
+ * All other parameters are taken from a template warehouse, which is
+ * never modified.
+ *
+ * Each candidate is evaluated headless with a ThermalProjection, so
+ * evaluations are independent and run in parallel. The search is a
+ * bounded compass search in log-parameter space: every iteration polls
+ * each coordinate in both directions at one and two step lengths, all at
+ * once on a thread pool, moves to the best improving point, and halves
+ * the step when none improves. The result does not depend on the number
+ * of threads. Note that load data alone cannot separate heat loss from
+ * coefficient of performance, so the fit is only as good as the
+ * template's starting values for those.
+ *
+ * Series are read in the layout of the load*.csv resources: a header
+ * line, then one line per day with a date followed by 24 hourly values,
+ * separated by semicolons, with comma as the decimal separator.
+ */
+public class ColdStorageCalibrator
+{
+  static private Logger log =
+      Logger.getLogger(ColdStorageCalibrator.class.getName());
+
+  static final String[] PARAMETERS =
+    {"roofArea", "wallArea", "cop", "turnoverRatio", "nonCoolingUsage"};
+  private static final double MIN_VALUE = 1e-6;
+
+  private ColdStorage template;
+  private double[] measured;
+  private double[] outsideTemps;
+  private double[] filledTemps; // projection input, with no gaps
+  private int hours;
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private int maxEvaluations = 4000;
+  private double range = 4.0; // parameters stay within this factor
+  private double tolerance = 0.001; // final step, log scale
+  private int warmup = 24; // hours left out of the error
+
+  // results
+  private double[] fitted;
+  private double error = Double.NaN;
+  private int evaluations = 0;
+
+  /**
+   * Creates a calibrator for the given template, measured kWh by hour,
+   * and outside temperature by hour. Hours missing from either series
+   * (NaN) are left out of the error. A missing outside temperature is
+   * filled with the nearest earlier one (or the first one, at the start)
+   * so that the projection carries on through it.
+   */
+  public ColdStorageCalibrator (ColdStorage template, double[] measured,
+                                double[] outsideTemps)
+  {
+    super();
+    this.template = template;
+    this.measured = measured;
+    this.outsideTemps = outsideTemps;
+    hours = Math.min(measured.length, outsideTemps.length);
+    if (measured.length != outsideTemps.length)
+      log.warn(template.getName() + ": load series " + measured.length
+               + " hours, weather " + outsideTemps.length
+               + " hours; using " + hours);
+    filledTemps = fillGaps(outsideTemps, hours);
+  }
+
+  // Copy of the first n values of series, with each NaN replaced by the
+  // nearest earlier value, or the first value if there is none
+  static double[] fillGaps (double[] series, int n)
+  {
+    double[] result = new double[n];
+    double last = Double.NaN;
+    for (int h = 0; h < n; h++) {
+      if (!Double.isNaN(series[h])) {
+        last = series[h];
+        break;
+      }
+    }
+    for (int h = 0; h < n; h++) {
+      if (!Double.isNaN(series[h]))
+        last = series[h];
+      result[h] = last;
+    }
+    return result;
+  }
+
+  // True if the given hour counts toward the error
+  private boolean contributes (int hour)
+  {
+    return hour >= warmup
+        && !Double.isNaN(measured[hour])
+        && !Double.isNaN(outsideTemps[hour]);
+  }
+
+  /**
+   * Fits the parameters, returning them in the order of PARAMETERS.
+   */
+  public double[] calibrate ()
+  {
+    int n = PARAMETERS.length;
+    double[] start = getTemplateValues();
+    double[] x = new double[n];
+    double[] lower = new double[n];
+    double[] upper = new double[n];
+    double logRange = Math.log(range);
+    for (int i = 0; i < n; i++) {
+      x[i] = Math.log(Math.max(start[i], MIN_VALUE));
+      lower[i] = x[i] - logRange;
+      upper[i] = x[i] + logRange;
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+    try {
+      evaluations = 0;
+      double best = evaluate(pool, Arrays.asList(x)).get(0);
+      double step = logRange / 2.0;
+      while (step > tolerance && evaluations < maxEvaluations) {
+        List<double[]> poll = new ArrayList<double[]>();
+        for (int scale = 1; scale <= 2; scale++) {
+          for (int i = 0; i < n; i++) {
+            for (int sign = -1; sign <= 1; sign += 2) {
+              double[] point = x.clone();
+              point[i] = Math.max(lower[i],
+                                  Math.min(upper[i],
+                                           x[i] + sign * scale * step));
+              if (point[i] != x[i])
+                poll.add(point);
+            }
+          }
+        }
+        if (poll.isEmpty())
+          break;
+        List<Double> errors = evaluate(pool, poll);
+        int index = -1;
+        for (int k = 0; k < errors.size(); k++) {
+          if (errors.get(k) < best) {
+            best = errors.get(k);
+            index = k;
+          }
+        }
+        if (index < 0)
+          step /= 2.0;
+        else
+          x = poll.get(index);
+      }
+      fitted = new double[n];
+      for (int i = 0; i < n; i++)
+        fitted[i] = Math.exp(x[i]);
+      error = best;
+    }
+    catch (InterruptedException ie) {
+      log.error(template.getName() + ": calibration interrupted");
+      Thread.currentThread().interrupt();
+    }
+    catch (ExecutionException ee) {
+      log.error(template.getName() + ": calibration failed " + ee.getCause());
+    }
+    finally {
+      pool.shutdown();
+    }
+    log.info(template.getName() + ": calibrated " + Arrays.toString(fitted)
+             + ", rms error " + getRmsError()
+             + " after " + evaluations + " evaluations");
+    return fitted;
+  }
+
+  // Evaluates a batch of log-scale points on the pool, returning the
+  // errors in the same order
+  private List<Double> evaluate (ExecutorService pool, List<double[]> points)
+    throws InterruptedException, ExecutionException
+  {
+    List<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+    for (final double[] point : points) {
+      tasks.add(new Callable<Double>() {
+        @Override
+        public Double call ()
+        {
+          double[] values = new double[point.length];
+          for (int i = 0; i < point.length; i++)
+            values[i] = Math.exp(point[i]);
+          return computeError(values);
+        }
+      });
+    }
+    List<Double> result = new ArrayList<Double>();
+    for (Future<Double> future : pool.invokeAll(tasks)) {
+      result.add(future.get());
+    }
+    evaluations += points.size();
+    return result;
+  }
+
+  /**
+   * Sum of squared differences between measured and projected hourly
+   * usage, for parameter values in the order of PARAMETERS. Safe to
+   * call from several threads.
+   */
+  double computeError (double[] values)
+  {
+    ThermalProjection projection =
+        new ThermalProjection(template, values[0], values[1], values[2],
+                              values[3], values[4]);
+    double[] usage = new double[hours];
+    projection.project(new ThermalProjection.State(template.getNominalTemp(),
+                                                   template.getStockCapacity(),
+                                                   values[4]),
+                       filledTemps, null, hours, usage, null);
+    double sum = 0.0;
+    for (int h = warmup; h < hours; h++) {
+      if (contributes(h)) {
+        double diff = usage[h] - measured[h];
+        sum += diff * diff;
+      }
+    }
+    return sum;
+  }
+
+  private double[] getTemplateValues ()
+  {
+    return new double[] {template.getRoofArea(), template.getWallArea(),
+                         template.getCop(), template.getTurnoverRatio(),
+                         template.getNonCoolingUsage()};
+  }
+
+  // ---------------------- Results ----------------------
+  public double[] getFitted ()
+  {
+    return fitted;
+  }
+
+  /**
+   * Root-mean-square error of the fit, in kWh per hour
+   */
+  public double getRmsError ()
+  {
+    int count = 0;
+    for (int h = warmup; h < hours; h++) {
+      if (contributes(h))
+        count += 1;
+    }
+    if (0 == count)
+      return Double.NaN;
+    return Math.sqrt(error / count);
+  }
+
+  public int getEvaluations ()
+  {
+    return evaluations;
+  }
+
+  // ---------------------- Settings ----------------------
+  public ColdStorageCalibrator withThreads (int value)
+  {
+    if (value < 1)
+      log.error("Threads " + value + " must be positive");
+    else
+      threads = value;
+    return this;
+  }
+
+  public ColdStorageCalibrator withMaxEvaluations (int value)
+  {
+    if (value < 1)
+      log.error("Max evaluations " + value + " must be positive");
+    else
+      maxEvaluations = value;
+    return this;
+  }
+
+  public ColdStorageCalibrator withRange (double value)
+  {
+    if (value <= 1.0)
+      log.error("Range " + value + " must be greater than 1");
+    else
+      range = value;
+    return this;
+  }
+
+  public ColdStorageCalibrator withTolerance (double value)
+  {
+    if (value <= 0.0)
+      log.error("Tolerance " + value + " must be positive");
+    else
+      tolerance = value;
+    return this;
+  }
+
+  public ColdStorageCalibrator withWarmup (int hours)
+  {
+    if (hours < 0)
+      log.error("Warmup " + hours + " cannot be negative");
+    else
+      warmup = hours;
+    return this;
+  }
+
+  // ---------------------- Series input ----------------------
+  /**
+   * Reads an hourly series in the load*.csv layout. Values that cannot
+   * be parsed are returned as NaN.
+   */
+  public static double[] readHourlySeries (Reader input) throws IOException
+  {
+    BufferedReader in = new BufferedReader(input);
+    List<String[]> days = new ArrayList<String[]>();
+    String line = in.readLine(); // header
+    while (null != (line = in.readLine())) {
+      if (line.trim().length() == 0)
+        continue;
+      days.add(line.split(";"));
+    }
+    double[] result = new double[days.size() * 24];
+    for (int d = 0; d < days.size(); d++) {
+      String[] fields = days.get(d);
+      for (int h = 0; h < 24; h++) {
+        result[d * 24 + h] = Double.NaN;
+        if (h + 1 >= fields.length)
+          continue;
+        try {
+          result[d * 24 + h] =
+              Double.parseDouble(fields[h + 1].trim().replace(',', '.'));
+        }
+        catch (NumberFormatException nfe) {
+          log.error("Bad value " + fields[h + 1] + " on " + fields[0]);
+        }
+      }
+    }
+    return result;
+  }
+
+  public static double[] readHourlySeries (String filename)
+    throws IOException
+  {
+    Reader input = new FileReader(filename);
+    try {
+      return readHourlySeries(input);
+    }
+    finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Calibrates a default warehouse against each load file in turn, and
+   * prints the fitted values as properties.xml elements.
+   * Usage: ColdStorageCalibrator weather.csv load.csv ...
+   * where weather.csv holds outside temperatures in the same layout.
+   */
+  public static void main (String[] args) throws IOException
+  {
+    if (args.length < 2) {
+      System.out.println("Usage: ColdStorageCalibrator weather.csv load.csv ...");
+      return;
+    }
+    double[] weather = readHourlySeries(args[0]);
+    for (int i = 1; i < args.length; i++) {
+      double[] load = readHourlySeries(args[i]);
+      ColdStorage template = new ColdStorage("site-" + i);
+      ColdStorageCalibrator calibrator =
+          new ColdStorageCalibrator(template, load, weather);
+      double[] result = calibrator.calibrate();
+      if (null == result)
+        continue;
+      System.out.println("<!-- " + args[i] + ", rms error "
+                         + calibrator.getRmsError() + " -->");
+      System.out.println("<" + template.getName() + ">");
+      for (int p = 0; p < PARAMETERS.length; p++) {
+        System.out.println("\t<" + PARAMETERS[p] + ">" + result[p]
+                           + "</" + PARAMETERS[p] + ">");
+      }
+      System.out.println("</" + template.getName() + ">");
+    }
+  }
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer.coldstorage;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.powertac.common.Tariff;
+import org.powertac.common.TariffSubscription;
+import org.powertac.common.Timeslot;
+import org.powertac.common.config.ConfigurableInstance;
+import org.powertac.common.config.ConfigurableValue;
+import org.powertac.common.state.Domain;
+import org.powertac.common.state.StateChange;
+import org.powertac.customer.BootstrapMode;
+import org.powertac.customer.EventTrace;
+import org.powertac.customer.ReplayRecorder;
+import org.powertac.customer.SplitRandom;
+import org.powertac.customer.SubscriptionUpdates;
+import org.powertac.customer.TraceEvent;
+import org.powertac.customer.WeatherSnapshot;
+
+/**
+ * A population of statistically similar cold-storage warehouses, presented
+ * as a single customer with population N. The configured ColdStorage
+ * parameters describe the typical site; each site's size, coefficient of
+ * performance, turnover rate and nominal temperature are sampled around
+ * them at initialization. Sites are stepped together as a vectorized
+ * ensemble with the ColdStorageBatch kernel. Each subscription is
+ * charged the total usage of the sites committed to it, and is offered
+ * their per-member average regulation capacity. Tariff evaluation uses
+ * the typical site, and so does the control policy for a TOU tariff:
+ * each site follows the typical site's setpoints, shifted by its own
+ * nominal temperature offset.
+ *
+ * In bootstrap fast mode, each site follows its own expected path
+ * through quiescent spans, as a single warehouse does. Fast-forward
+ * applies only to single warehouses, since the ensemble is advanced in
+ * one pass.
+ */
+@Domain
+@ConfigurableInstance
+public class ColdStoragePopulation
+extends ColdStorage
+{
+  static private Logger log =
+      Logger.getLogger(ColdStoragePopulation.class.getName());
+
+  private int population = 100;
+  private double sizeVariability = 0.3; // sd of log size factor
+  private double copVariability = 0.1; // relative sd
+  private double turnoverVariability = 0.25; // relative sd
+  private double nominalTempSd = 1.5; // deg C
+
+  private SplitRandom ensembleRandom;
+  private ColdStorageBatch ensemble;
+
+  // nominal temperature offset of each site from the typical site
+  private double[] siteOffset;
+
+  // control policies of the typical site, by TOU tariff subscribed
+  private Map<Tariff, ControlPolicy> policies =
+      new HashMap<Tariff, ControlPolicy>();
+
+  // per-timeslot draws, filled in bulk
+  private double[] outgoingDraws;
+  private double[] incomingDraws;
+  private double[] ncDraws;
+
+  // expected-path stepping of each site in bootstrap fast mode, made
+  // on first use
+  private ThermalProjection[] siteProjections = null;
+  private QuiescentSpan[] siteSpans = null;
+  private double[] siteEnergy = null;
+
+  public ColdStoragePopulation ()
+  {
+    super();
+  }
+
+  public ColdStoragePopulation (String name)
+  {
+    super(name);
+  }
+
+  @Override
+  public void initialize ()
+  {
+    super.initialize();
+    ensembleRandom =
+        SplitRandom.forModel(service.getRandomSeedRepo(),
+                             ColdStoragePopulation.class, name, "ensemble");
+    ensemble = new ColdStorageBatch(population);
+    siteOffset = new double[population];
+    for (int i = 0; i < population; i++) {
+      sampleSite(i);
+    }
+    outgoingDraws = new double[population];
+    incomingDraws = new double[population];
+    ncDraws = new double[population];
+    log.info(getName() + ": population " + population);
+  }
+
+  // Draws the parameters and initial state of a single site. Each site
+  // has its own stream, so a site's parameters do not depend on the
+  // population size.
+  private void sampleSite (int index)
+  {
+    SplitRandom random = ensembleRandom.stream(index);
+    double size = Math.exp(sizeVariability * random.nextGaussian()
+                           - sizeVariability * sizeVariability / 2.0);
+    // area grows more slowly than volume
+    double area = Math.pow(size, 2.0 / 3.0);
+    double siteCop =
+        Math.max(0.5, getCop()
+                      * (1.0 + copVariability * random.nextGaussian()));
+    double turnoverRatio =
+        Math.max(0.0, getTurnoverRatio()
+                      * (1.0 + turnoverVariability * random.nextGaussian()));
+    double offset = nominalTempSd * random.nextGaussian();
+    siteOffset[index] = offset;
+
+    double stock = getStockCapacity() * size;
+    double roofArea = getRoofArea() * area;
+    double wallArea = getWallArea() * area;
+    double roofLoss = R_CONVERSION / getRoofRValue() * roofArea;
+    double wallLoss = R_CONVERSION / getWallRValue() * wallArea;
+    double lossPerK = (roofLoss + wallLoss) * (1.0 + getInfiltrationRatio());
+    double floorLoss = R_CONVERSION / getFloorRValue() * roofArea;
+    double minTemp = getMinTemp() + offset;
+    double maxTemp = getMaxTemp() + offset;
+    ensemble.setParameters(index, siteCop, lossPerK, floorLoss,
+                           getMaxCooling() * size,
+                           getNominalTemp() + offset, minTemp, maxTemp,
+                           getHysteresis(),
+                           turnoverRatio * stock / 24.0,
+                           getTurnoverSd() * stock / 24.0,
+                           getNewStockTemp(),
+                           getNonCoolingUsage() * size,
+                           getNcUsageVariability(), getNcMeanReversion());
+    ensemble.setState(index,
+                      minTemp + (maxTemp - minTemp) * random.nextDouble(),
+                      stock, getNonCoolingUsage() * size);
+  }
+
+  // ----------------------- Run the model ------------------------
+  // Records the inputs from each subscription when replay recording is on
+  private void recordInputs (List<TariffSubscription> subs)
+  {
+    ReplayRecorder.Source source = getReplay();
+    if (source.isEnabled()) {
+      Timeslot timeslot = service.getTimeslotRepo().currentTimeslot();
+      WeatherSnapshot weather = WeatherSnapshot.get(service);
+      for (TariffSubscription sub : subs)
+        source.record(timeslot, weather, sub);
+    }
+  }
+
+  /**
+   * Steps the ensemble. Sites are assigned to subscriptions in order,
+   * by the number of customers committed to each.
+   */
+  @Override
+  void stepTimeslot ()
+  {
+    List<TariffSubscription> subs =
+        getCurrentSubscriptions(getCustomerInfo());
+    recordInputs(subs);
+    if (isBootstrapFastMode()
+        && BootstrapMode.isBootstrap(getTimeslotIndex())) {
+      stepBootstrap(subs);
+      return;
+    }
+    ensembleRandom.fillGaussians(outgoingDraws, 0, population);
+    ensembleRandom.fillGaussians(incomingDraws, 0, population);
+    ensembleRandom.fillDoubles(ncDraws, 0, population);
+    prunePolicies(subs);
+    int start = 0;
+    for (TariffSubscription sub : subs) {
+      int end = Math.min(population, start + sub.getCustomersCommitted());
+      double regulation = sub.getRegulation();
+      getMetrics().addRegulationDelivered(regulation);
+      ControlPolicy policy = getPolicy(sub.getTariff());
+      for (int i = start; i < end; i++) {
+        drawInputs(i, regulation);
+        ensemble.setPolicy(i, policy, siteOffset[i]);
+      }
+      start = end;
+    }
+    // sites not currently committed to any subscription
+    for (int i = start; i < population; i++) {
+      drawInputs(i, 0.0);
+      ensemble.setPolicy(i, null, 0.0);
+    }
+    ensemble.setHourOfWeek(getHourOfWeek());
+    ensemble.advance(getOutsideTemp());
+
+    // report total usage and per-member average capacity
+    start = 0;
+    for (TariffSubscription sub : subs) {
+      int end = Math.min(population, start + sub.getCustomersCommitted());
+      int count = end - start;
+      if (count <= 0)
+        continue;
+      double energy = 0.0;
+      double up = 0.0;
+      double down = 0.0;
+      for (int i = start; i < end; i++) {
+        energy += ensemble.getEnergy(i);
+        up += ensemble.getUpRegulation(i);
+        down += ensemble.getDownRegulation(i);
+      }
+      SubscriptionUpdates.setRegulationCapacity(sub, up / count,
+                                                down / count);
+      SubscriptionUpdates.usePower(sub, energy);
+      getMetrics().addRegulationOffered(up / count, down / count);
+      getMetrics().addEnergy(energy);
+      start = end;
+    }
+    EventTrace.Source trace = getTrace();
+    if (trace.isEnabled())
+      trace.record(getTimeslotIndex(), TraceEvent.COLD_POPULATION,
+                   getMeanTemp());
+  }
+
+  // Reduced-fidelity bootstrap hour. Each site follows its own expected
+  // path, through a closed-form quiescent span when it is quiescent and
+  // otherwise by projecting its controller one hour, with no random
+  // draws or regulation capacity, as in ColdStorage. The ensemble stream
+  // is untouched, so full stepping picks up from this state at game
+  // start.
+  private void stepBootstrap (List<TariffSubscription> subs)
+  {
+    if (null == siteProjections) {
+      siteProjections = new ThermalProjection[population];
+      siteSpans = new QuiescentSpan[population];
+      siteEnergy = new double[population];
+      for (int i = 0; i < population; i++) {
+        siteProjections[i] = ensemble.makeProjection(i);
+        siteSpans[i] = new QuiescentSpan();
+      }
+    }
+    double outsideTemp = getOutsideTemp();
+    for (int i = 0; i < population; i++) {
+      QuiescentSpan span = siteSpans[i];
+      span.advanceExpected(siteProjections[i],
+                           new ThermalProjection.State(ensemble.getTemp(i),
+                                                       ensemble.getStock(i),
+                                                       ensemble.getNcUsage(i)),
+                           outsideTemp);
+      ThermalProjection.State next = span.getState();
+      ensemble.setState(i, next.getTemp(), next.getStock(),
+                        next.getNcUsage());
+      siteEnergy[i] = span.getUsage();
+    }
+    int start = 0;
+    for (TariffSubscription sub : subs) {
+      int end = Math.min(population, start + sub.getCustomersCommitted());
+      if (end <= start)
+        continue;
+      double energy = 0.0;
+      for (int i = start; i < end; i++)
+        energy += siteEnergy[i];
+      SubscriptionUpdates.usePower(sub, energy);
+      getMetrics().addEnergy(energy);
+      start = end;
+    }
+  }
+
+  // The typical site's policy for a tariff, or null if it is not TOU
+  private ControlPolicy getPolicy (Tariff tariff)
+  {
+    if (null == tariff || !tariff.isTimeOfUse())
+      return null;
+    ControlPolicy result = policies.get(tariff);
+    if (null == result) {
+      result = makeControlPolicy(tariff);
+      policies.put(tariff, result);
+    }
+    return result;
+  }
+
+  // Drops the policies of tariffs no longer subscribed
+  private void prunePolicies (List<TariffSubscription> subs)
+  {
+    Iterator<Tariff> tariffs = policies.keySet().iterator();
+    while (tariffs.hasNext()) {
+      Tariff tariff = tariffs.next();
+      boolean subscribed = false;
+      for (TariffSubscription sub : subs) {
+        if (sub.getTariff() == tariff) {
+          subscribed = true;
+          break;
+        }
+      }
+      if (!subscribed)
+        tariffs.remove();
+    }
+  }
+
+  private void drawInputs (int index, double regulation)
+  {
+    ensemble.setInputs(index, regulation,
+                       outgoingDraws[index], incomingDraws[index],
+                       ensemble.isNcVariable(index) ? ncDraws[index] : 0.0);
+  }
+
+  /**
+   * Mean temperature over all sites
+   */
+  public double getMeanTemp ()
+  {
+    double sum = 0.0;
+    for (int i = 0; i < population; i++)
+      sum += ensemble.getTemp(i);
+    return sum / population;
+  }
+
+  /**
+   * Adds the ensemble stream and the state of each site to the typical
+   * site's state. Site parameters are not written, since initialize()
+   * draws them again from their own streams.
+   */
+  @Override
+  public void saveState (DataOutput out) throws IOException
+  {
+    super.saveState(out);
+    ensembleRandom.saveState(out);
+    out.writeInt(population);
+    for (int i = 0; i < population; i++) {
+      out.writeDouble(ensemble.getTemp(i));
+      out.writeDouble(ensemble.getStock(i));
+      out.writeDouble(ensemble.getNcUsage(i));
+    }
+  }
+
+  @Override
+  public boolean restoreState (ByteBuffer in, int version)
+  {
+    if (!super.restoreState(in, version))
+      return false;
+    ensembleRandom = SplitRandom.restoreState(in);
+    int count = in.getInt();
+    if (count != population) {
+      log.error(getName() + ": snapshot population " + count
+                + " does not match " + population);
+      return false;
+    }
+    for (int i = 0; i < population; i++) {
+      ensemble.setState(i, in.getDouble(), in.getDouble(), in.getDouble());
+    }
+    return true;
+  }
+
+  ColdStorageBatch getEnsemble ()
+  {
+    return ensemble;
+  }
+
+  // ----------------- Parameter access -----------------
+  @Override
+  public int getPopulation ()
+  {
+    return population;
+  }
+
+  @ConfigurableValue(valueType = "Integer",
+      description = "Number of warehouses in the population")
+  @StateChange
+  public ColdStoragePopulation withPopulation (int value)
+  {
+    if (value < 1)
+      log.error(getName() + ": Population " + value
+                + " must be positive");
+    else
+      population = value;
+    return this;
+  }
+
+  public double getSizeVariability ()
+  {
+    return sizeVariability;
+  }
+
+  @ConfigurableValue(valueType = "Double",
+      description = "Std deviation of log of site size relative to typical")
+  @StateChange
+  public ColdStoragePopulation withSizeVariability (double value)
+  {
+    if (value < 0.0)
+      log.error(getName() + ": Size variability " + value
+                + " cannot be negative");
+    else
+      sizeVariability = value;
+    return this;
+  }
+
+  public double getCopVariability ()
+  {
+    return copVariability;
+  }
+
+  @ConfigurableValue(valueType = "Double",
+      description = "Relative std deviation of coefficient of performance")
+  @StateChange
+  public ColdStoragePopulation withCopVariability (double value)
+  {
+    if (value < 0.0)
+      log.error(getName() + ": COP variability " + value
+                + " cannot be negative");
+    else
+      copVariability = value;
+    return this;
+  }
+
+  public double getTurnoverVariability ()
+  {
+    return turnoverVariability;
+  }
+
+  @ConfigurableValue(valueType = "Double",
+      description = "Relative std deviation of stock turnover ratio")
+  @StateChange
+  public ColdStoragePopulation withTurnoverVariability (double value)
+  {
+    if (value < 0.0)
+      log.error(getName() + ": Turnover variability " + value
+                + " cannot be negative");
+    else
+      turnoverVariability = value;
+    return this;
+  }
+
+  public double getNominalTempSd ()
+  {
+    return nominalTempSd;
+  }
+
+  @ConfigurableValue(valueType = "Double",
+      description = "Std deviation of site nominal temperature")
+  @StateChange
+  public ColdStoragePopulation withNominalTempSd (double value)
+  {
+    if (value < 0.0)
+      log.error(getName() + ": Nominal temp sd " + value
+                + " cannot be negative");
+    else
+      nominalTempSd = value;
+    return this;
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer.coldstorage;
+
+import org.powertac.common.Tariff;
+
+/**
+ * Price-responsive setpoint table for a ColdStorage warehouse under a
+ * single tariff. Gives the target temperature for each hour of the week
+ * and each temperature band, as chosen by the ThermalStorageOptimizer
+ * value function. Built once when the warehouse subscribes to a tariff;
+ * lookups are O(1).
+ */
+class ControlPolicy
+{
+  private Tariff tariff;
+  private int hours;
+  private int bands;
+  private double lowTemp;
+  private double bandWidth;
+
+  // target temp, indexed by hour * bands + band
+  private double[] targets;
+
+  ControlPolicy (Tariff tariff, int hours, int bands,
+                 double lowTemp, double bandWidth)
+  {
+    super();
+    this.tariff = tariff;
+    this.hours = hours;
+    this.bands = bands;
+    this.lowTemp = lowTemp;
+    this.bandWidth = bandWidth;
+    targets = new double[hours * bands];
+  }
+
+  Tariff getTariff ()
+  {
+    return tariff;
+  }
+
+  void setTarget (int hour, int band, double temp)
+  {
+    targets[hour * bands + band] = temp;
+  }
+
+  /**
+   * Returns the target temperature for the given hour of the week (0 is
+   * Monday 00:00) and current temperature. Temperatures outside the table
+   * use its nearest band.
+   */
+  double getTargetTemp (int hourOfWeek, double temp)
+  {
+    int band = 0;
+    if (bandWidth > 0.0)
+      band = (int)Math.round((temp - lowTemp) / bandWidth);
+    band = Math.max(0, Math.min(bands - 1, band));
+    return targets[(hourOfWeek % hours) * bands + band];
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer.coldstorage;
+
+/**
+ * A run of quiescent hours of one warehouse along its expected path (see
+ * ThermalProjection.quiescentHours()). The length of the run is found
+ * once, in closed form, when it starts, and each hour is then evaluated
+ * from the starting state in closed form at that hour's own outside
+ * temperature, so hourly usage is the same as hour-by-hour projection
+ * however the weather changes.
+ *
+ * A span continues only while the warehouse is in the state its last
+ * hour left it in. Anything else that moves the state, such as
+ * regulation, a full-fidelity step or a restore, starts a new span at
+ * the next hour, so a span carries no state that needs saving.
+ */
+class QuiescentSpan
+{
+  // longest span, so the closed form is re-anchored at least daily
+  static final int MAX_HOURS = 24;
+
+  private ThermalProjection.State start = null;
+  private ThermalProjection.State state = null;
+  private int hours = 0;
+  private int elapsed = 0;
+  private double usage = 0.0;
+
+  // buffers for a single projected hour
+  private final double[] hourWeather = new double[1];
+  private final double[] hourUsage = new double[1];
+  private final double[] hourTemp = new double[1];
+
+  QuiescentSpan ()
+  {
+    super();
+  }
+
+  /**
+   * Advances one hour from the given state at the given outside
+   * temperature, starting a new span if the state is not where the last
+   * hour left it or the span has run out. Returns false, and clears the
+   * span, if the warehouse is not quiescent in that state.
+   */
+  boolean advance (ThermalProjection projection,
+                   ThermalProjection.State current, double outsideTemp)
+  {
+    if (!continues(current)) {
+      hours = Math.min(projection.quiescentHours(current), MAX_HOURS);
+      if (hours <= 0) {
+        clear();
+        return false;
+      }
+      start = current;
+      elapsed = 0;
+    }
+    elapsed += 1;
+    usage = projection.quiescentUsage(start, outsideTemp, elapsed);
+    state = projection.afterQuiescent(start, elapsed);
+    return true;
+  }
+
+  /**
+   * Advances one hour along the expected path from the given state:
+   * through the span if the warehouse is quiescent, otherwise by
+   * projecting the controller for one hour. Either way, getUsage() and
+   * getState() give the result.
+   */
+  void advanceExpected (ThermalProjection projection,
+                        ThermalProjection.State current, double outsideTemp)
+  {
+    if (advance(projection, current, outsideTemp))
+      return;
+    hourWeather[0] = outsideTemp;
+    projection.project(current, hourWeather, null, 1, hourUsage, hourTemp);
+    usage = hourUsage[0];
+    ThermalProjection.State after = projection.afterQuiescent(current, 1);
+    state = new ThermalProjection.State(hourTemp[0], after.getStock(),
+                                        after.getNcUsage());
+  }
+
+  // True if the span has hours left and the state is where it left it
+  private boolean continues (ThermalProjection.State current)
+  {
+    return null != start && elapsed < hours
+        && current.getTemp() == state.getTemp()
+        && current.getStock() == state.getStock()
+        && current.getNcUsage() == state.getNcUsage();
+  }
+
+  /**
+   * Ends the span, so the next hour starts a new one
+   */
+  void clear ()
+  {
+    start = null;
+    state = null;
+    hours = 0;
+    elapsed = 0;
+  }
+
+  /**
+   * kWh used in the last hour advanced
+   */
+  double getUsage ()
+  {
+    return usage;
+  }
+
+  /**
+   * State at the end of the last hour advanced
+   */
+  ThermalProjection.State getState ()
+  {
+    return state;
+  }
+}
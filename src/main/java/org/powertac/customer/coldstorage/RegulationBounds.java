@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer.coldstorage;
+
+/**
+ * Regulation capacity that a ColdStorage warehouse can sustain over the
+ * next K hours. Keeps a rolling window of the cooling energy needed to
+ * hold nominal temperature in each of the hours t+1..t+K, as projected
+ * from the weather forecast, with the window minimum and maximum
+ * maintained by monotone deques. The window is filled once; after that
+ * each timeslot drops the hour that has arrived and adds the one newly
+ * in reach, so the update is O(1) amortized.
+ *
+ * Up-regulation is limited by the smallest baseline cooling in the
+ * window, since cooling cannot be curtailed below zero, and by the
+ * thermal headroom to maxTemp spread over K hours. Down-regulation is
+ * limited by the spare cooling capacity in the busiest hour, and by
+ * the room to minTemp spread over K hours.
+ */
+class RegulationBounds
+{
+  private final int horizon;
+
+  // projected cooling energy, thermal kWh, by hour in a ring
+  private final double[] energy;
+  private long pushed = 0;
+  private long popped = 0;
+
+  // sequence numbers of window entries, in rings of the same size
+  private final long[] minDeque;
+  private int minHead = 0;
+  private int minSize = 0;
+  private final long[] maxDeque;
+  private int maxHead = 0;
+  private int maxSize = 0;
+
+  RegulationBounds (int horizon)
+  {
+    super();
+    this.horizon = Math.max(1, horizon);
+    energy = new double[this.horizon];
+    minDeque = new long[this.horizon];
+    maxDeque = new long[this.horizon];
+  }
+
+  int getHorizon ()
+  {
+    return horizon;
+  }
+
+  boolean isEmpty ()
+  {
+    return pushed == popped;
+  }
+
+  /**
+   * Fills an empty window with the projected cooling energy for each of
+   * its hours, nearest first
+   */
+  void fill (double[] projected)
+  {
+    for (double value : projected)
+      push(value);
+  }
+
+  /**
+   * Moves the window one hour ahead, dropping the hour that has arrived
+   * and adding the projected cooling energy for its new last hour
+   */
+  void advance (double projected)
+  {
+    pop();
+    push(projected);
+  }
+
+  // Projected energy for the hours in the window, nearest first, for
+  // snapshots; fill() restores it
+  double[] getWindow ()
+  {
+    double[] result = new double[(int)(pushed - popped)];
+    for (int i = 0; i < result.length; i++)
+      result[i] = energy[(int)((popped + i) % horizon)];
+    return result;
+  }
+
+  private void push (double value)
+  {
+    long seq = pushed++;
+    energy[(int)(seq % horizon)] = value;
+    while (minSize > 0 && valueAt(minDeque, minHead, minSize - 1) >= value)
+      minSize -= 1;
+    minDeque[(minHead + minSize++) % horizon] = seq;
+    while (maxSize > 0 && valueAt(maxDeque, maxHead, maxSize - 1) <= value)
+      maxSize -= 1;
+    maxDeque[(maxHead + maxSize++) % horizon] = seq;
+  }
+
+  private void pop ()
+  {
+    long seq = popped++;
+    if (minSize > 0 && minDeque[minHead] == seq) {
+      minHead = (minHead + 1) % horizon;
+      minSize -= 1;
+    }
+    if (maxSize > 0 && maxDeque[maxHead] == seq) {
+      maxHead = (maxHead + 1) % horizon;
+      maxSize -= 1;
+    }
+  }
+
+  private double valueAt (long[] deque, int head, int offset)
+  {
+    return energy[(int)(deque[(head + offset) % horizon] % horizon)];
+  }
+
+  double getMinEnergy ()
+  {
+    return energy[(int)(minDeque[minHead] % horizon)];
+  }
+
+  double getMaxEnergy ()
+  {
+    return energy[(int)(maxDeque[maxHead] % horizon)];
+  }
+
+  /**
+   * Up-regulation (kW, positive) sustainable over the horizon from the
+   * given temperature and thermal mass (kWh/K).
+   */
+  double getSustainableUp (double temp, double mass, double maxTemp,
+                           double cop)
+  {
+    double headroom = Math.max(0.0, (maxTemp - temp) * mass / horizon);
+    return Math.max(0.0, Math.min(getMinEnergy(), headroom)) / cop;
+  }
+
+  /**
+   * Down-regulation (kW, negative) sustainable over the horizon from the
+   * given temperature and thermal mass (kWh/K).
+   */
+  double getSustainableDown (double temp, double mass, double minTemp,
+                             double maxCooling, double cop)
+  {
+    double room = Math.max(0.0, (temp - minTemp) * mass / horizon);
+    return -Math.max(0.0, Math.min(maxCooling - getMaxEnergy(), room)) / cop;
+  }
+}
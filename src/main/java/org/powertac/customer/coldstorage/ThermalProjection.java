@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer.coldstorage;
+
+/**
+ * Side-effect-free forward projection of a ColdStorage warehouse. Starting
+ * from an immutable State snapshot, simulates the warehouse controller
+ * hour by hour against given outside temperatures and writes the results
+ * into caller-supplied buffers. Stock turnover and non-cooling load follow
+ * their expected values rather than random draws, so a projection never
+ * touches the model's random streams or state.
+ *
+ * Parameters are captured at construction and never change, and
+ * project() allocates nothing, so a single instance may be shared by
+ * profile generation, regulation look-ahead and what-if queries, and
+ * used from several threads at once.
+ */
+class ThermalProjection
+{
+  private final double cop;
+  private final double coolingLossPerK;
+  private final double floorLossPerK;
+  private final double maxCooling;
+  private final double nominalTemp;
+  private final double halfHysteresis;
+  private final double turnover; // tonnes/hour, in and out
+  private final double newStockTemp;
+  private final double nonCoolingUsage;
+  private final double ncMeanReversion;
+  private final boolean ncVariable;
+
+  ThermalProjection (ColdStorage cs)
+  {
+    this(cs, cs.getRoofArea(), cs.getWallArea(), cs.getCop(),
+         cs.getTurnoverRatio(), cs.getNonCoolingUsage());
+  }
+
+  /**
+   * Projection of a warehouse like cs, but with the given roof and wall
+   * areas, coefficient of performance, turnover ratio and non-cooling
+   * usage. Used for calibration, without touching cs.
+   */
+  ThermalProjection (ColdStorage cs, double roofArea, double wallArea,
+                     double cop, double turnoverRatio,
+                     double nonCoolingUsage)
+  {
+    this(cop,
+         ColdStorage.computeCoolingLossPerK(roofArea, cs.getRoofRValue(),
+                                            wallArea, cs.getWallRValue(),
+                                            cs.getInfiltrationRatio()),
+         ColdStorage.R_CONVERSION / cs.getFloorRValue() * roofArea,
+         cs.getMaxCooling(), cs.getNominalTemp(), cs.getHysteresis(),
+         turnoverRatio * cs.getStockCapacity() / 24.0,
+         cs.getNewStockTemp(), nonCoolingUsage, cs.getNcMeanReversion(),
+         cs.getNcUsageVariability());
+  }
+
+  /**
+   * Projection of a single site from its parameters, as held by the
+   * batch engine. Losses are in kW/K, and turnover is in tonnes/hour.
+   */
+  ThermalProjection (double cop, double coolingLossPerK,
+                     double floorLossPerK, double maxCooling,
+                     double nominalTemp, double hysteresis, double turnover,
+                     double newStockTemp, double nonCoolingUsage,
+                     double ncMeanReversion, double ncUsageVariability)
+  {
+    super();
+    this.cop = cop;
+    this.coolingLossPerK = coolingLossPerK;
+    this.floorLossPerK = floorLossPerK;
+    this.maxCooling = maxCooling;
+    this.nominalTemp = nominalTemp;
+    halfHysteresis = hysteresis / 2.0;
+    this.turnover = turnover;
+    this.newStockTemp = newStockTemp;
+    this.nonCoolingUsage = nonCoolingUsage;
+    this.ncMeanReversion = ncMeanReversion;
+    ncVariable = (ncUsageVariability != 0.0);
+  }
+
+  /**
+   * Projects the given number of hours from the start state, with the
+   * controller holding nominal temperature. See
+   * project(State, double[], double[], double[], int, double[], double[]).
+   */
+  double project (State start, double[] outsideTemps, double[] prices,
+                  int hours, double[] usage, double[] temps)
+  {
+    return project(start, outsideTemps, prices, null, hours, usage, temps);
+  }
+
+  /**
+   * Projects the given number of hours from the start state.
+   * outsideTemps gives the weather for each hour. If prices is non-null,
+   * it gives the usage charge per kWh for each hour (negative for
+   * consumption) and the return value is the projected cost; otherwise
+   * the return value is zero. If targetTemps is non-null, it gives the
+   * controller setpoint for each hour in place of nominal temperature.
+   * usage receives kWh consumed in each hour, and temps, if non-null,
+   * receives the temperature at the end of each hour.
+   */
+  double project (State start, double[] outsideTemps, double[] prices,
+                  double[] targetTemps, int hours,
+                  double[] usage, double[] temps)
+  {
+    final double cp = ColdStorage.CP_ICE;
+    double t = start.getTemp();
+    double s = start.getStock();
+    double nc = start.getNcUsage();
+    double cost = 0.0;
+    for (int h = 0; h < hours; h++) {
+      // stock turnover at its mean, which leaves stock unchanged
+      double remaining = s - turnover;
+      double mixed =
+          ((remaining * t + turnover * newStockTemp) / (remaining + turnover));
+      t = t + (mixed - t);
+
+      // non-cooling load reverts toward its nominal value
+      if (ncVariable)
+        nc = Math.max(0.0, nc + ncMeanReversion * (nonCoolingUsage - nc));
+
+      double target = (null == targetTemps) ? nominalTemp : targetTemps[h];
+      double loss = coolingLossPerK * (outsideTemps[h] - t)
+          + floorLossPerK * (ColdStorage.GROUND_TEMP - t)
+          + nc;
+      double adjustment = 0.0;
+      if (t < (target - halfHysteresis)) {
+        adjustment = -Math.min(loss, s * cp * (target - t));
+      }
+      else if (t > (target + halfHysteresis)) {
+        adjustment = Math.min(s * cp * (t - target), maxCooling - loss);
+      }
+      t = t + (-adjustment / (s * cp));
+      double kWh = nc + (loss + adjustment) / cop;
+      usage[h] = kWh;
+      if (null != temps)
+        temps[h] = t;
+      if (null != prices)
+        cost -= prices[h] * kWh;
+    }
+    return cost;
+  }
+
+  /**
+   * Number of hours along the expected path that a warehouse starting
+   * in the given state stays within the hysteresis band around nominal
+   * temperature, so the controller takes no action. Turnover pulls the
+   * temperature geometrically toward the new-stock temperature, so the
+   * count is closed-form. Returns zero if the warehouse is outside the
+   * band now, and Integer.MAX_VALUE if turnover never carries it out.
+   */
+  int quiescentHours (State start)
+  {
+    double t = start.getTemp();
+    double low = nominalTemp - halfHysteresis;
+    double high = nominalTemp + halfHysteresis;
+    if (t < low || t > high)
+      return 0;
+    if ((newStockTemp >= low && newStockTemp <= high) || t == newStockTemp)
+      return Integer.MAX_VALUE;
+    double q = retention(start.getStock());
+    if (q <= 0.0)
+      return 0;
+    if (q >= 1.0)
+      return Integer.MAX_VALUE;
+    double bound = (newStockTemp > high) ? high : low;
+    double ratio = (bound - newStockTemp) / (t - newStockTemp);
+    double hours = Math.floor(Math.log(ratio) / Math.log(q));
+    if (hours >= Integer.MAX_VALUE)
+      return Integer.MAX_VALUE;
+    return (int)hours;
+  }
+
+  /**
+   * Closed-form total kWh over the given number of quiescent hours (see
+   * quiescentHours()) at a constant outside temperature. Temperature and
+   * non-cooling load both follow geometric paths, and usage is linear in
+   * them, so the total is a pair of geometric sums. Agrees with the sum
+   * of project() usage over the same hours, to rounding.
+   */
+  double integrateQuiescent (State start, double outsideTemp, int hours)
+  {
+    if (hours <= 0)
+      return 0.0;
+    double t0 = start.getTemp();
+    double nc0 = start.getNcUsage();
+    double sumTemp = hours * newStockTemp
+        + (t0 - newStockTemp) * geometricSum(retention(start.getStock()),
+                                             hours);
+    double sumNc = hours * nc0;
+    if (ncVariable) {
+      sumNc = hours * nonCoolingUsage
+          + (nc0 - nonCoolingUsage) * geometricSum(1.0 - ncMeanReversion,
+                                                   hours);
+    }
+    double lossPerK = coolingLossPerK + floorLossPerK;
+    double fixedLoss = coolingLossPerK * outsideTemp
+        + floorLossPerK * ColdStorage.GROUND_TEMP;
+    return sumNc * (1.0 + 1.0 / cop)
+        + (hours * fixedLoss - lossPerK * sumTemp) / cop;
+  }
+
+  /**
+   * kWh used in the given hour of a quiescent span, starting at 1, at
+   * that hour's outside temperature. The difference of two closed-form
+   * totals, so it agrees with the project() usage for the hour however
+   * the weather changes from hour to hour. O(1).
+   */
+  double quiescentUsage (State start, double outsideTemp, int hour)
+  {
+    return integrateQuiescent(start, outsideTemp, hour)
+        - integrateQuiescent(start, outsideTemp, hour - 1);
+  }
+
+  /**
+   * State after the given number of quiescent hours along the expected
+   * path, in closed form like integrateQuiescent(). Non-cooling load
+   * follows the same path whether or not the warehouse is quiescent.
+   */
+  State afterQuiescent (State start, int hours)
+  {
+    double temp = newStockTemp
+        + (start.getTemp() - newStockTemp)
+          * Math.pow(retention(start.getStock()), hours);
+    return new State(temp, start.getStock(),
+                     expectedNcUsage(start.getNcUsage(), hours));
+  }
+
+  // Non-cooling load after the given number of hours of mean reversion
+  private double expectedNcUsage (double nc, int hours)
+  {
+    if (!ncVariable)
+      return nc;
+    return nonCoolingUsage
+        + (nc - nonCoolingUsage) * Math.pow(1.0 - ncMeanReversion, hours);
+  }
+
+  /**
+   * Cooling energy (thermal kWh) for one hour of holding nominal
+   * temperature: the loss at the post-turnover temperature plus the
+   * energy to pull turnover back to nominal. O(1).
+   */
+  double holdingEnergy (double outsideTemp, double stock, double ncUsage)
+  {
+    double mixed = nominalTemp
+        + (turnover / stock) * (newStockTemp - nominalTemp);
+    return coolingLossPerK * (outsideTemp - mixed)
+        + floorLossPerK * (ColdStorage.GROUND_TEMP - mixed)
+        + ncUsage
+        + stock * ColdStorage.CP_ICE * (mixed - nominalTemp);
+  }
+
+  /**
+   * Holding energy for the given hour ahead of the start state, starting
+   * at 1, at that hour's outside temperature. Stock stays at its
+   * expected value and non-cooling load follows its expected path. O(1).
+   */
+  double holdingEnergy (State start, double outsideTemp, int hoursAhead)
+  {
+    return holdingEnergy(outsideTemp, start.getStock(),
+                         expectedNcUsage(start.getNcUsage(), hoursAhead));
+  }
+
+  // Fraction of the temperature gap to new stock that survives an hour
+  // of turnover
+  private double retention (double stock)
+  {
+    return (stock - turnover) / stock;
+  }
+
+  // q + q^2 + ... + q^n
+  private static double geometricSum (double q, int n)
+  {
+    if (q == 1.0)
+      return n;
+    return q * (1.0 - Math.pow(q, n)) / (1.0 - q);
+  }
+
+  /**
+   * Immutable snapshot of the warehouse state that drives projection.
+   */
+  static final class State
+  {
+    private final double temp;
+    private final double stock;
+    private final double ncUsage;
+
+    State (double temp, double stock, double ncUsage)
+    {
+      super();
+      this.temp = temp;
+      this.stock = stock;
+      this.ncUsage = ncUsage;
+    }
+
+    double getTemp ()
+    {
+      return temp;
+    }
+
+    double getStock ()
+    {
+      return stock;
+    }
+
+    double getNcUsage ()
+    {
+      return ncUsage;
+    }
+  }
+}
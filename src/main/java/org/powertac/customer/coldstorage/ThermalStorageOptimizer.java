@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer.coldstorage;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.powertac.common.Tariff;
+
+/**
+ * Dynamic-programming optimizer for ColdStorage consumption under a
+ * time-of-use price vector. The warehouse temperature is discretized into
+ * a grid spanning the cost-shift band, from nominalTemp - shiftSag up to
+ * nominalTemp, clipped to [minTemp, maxTemp]. Each hour the controller
+ * picks the next grid temperature; cooling energy follows from the heat
+ * balance and must lie in [0, maxCooling].
+ *
+ * The cost of a move splits into a part that depends only on the current
+ * temperature and a part linear in the next temperature, so the best
+ * successor for each state is a minimum of a single per-hour function over
+ * a window of grid points. Windows move monotonically with the current
+ * temperature, so a sliding-window minimum gives O(hours x grid) cost.
+ *
+ * Profiles are memoized by price vector, so tariffs with identical
+ * prices share a single optimization.
+ */
+class ThermalStorageOptimizer
+{
+  static private Logger log =
+      Logger.getLogger(ThermalStorageOptimizer.class.getName());
+
+  static final int DEFAULT_GRID_SIZE = 81;
+  static final int CACHE_SIZE = 64;
+  private static final double EPSILON = 1e-9;
+
+  private int gridSize;
+  private int hours;
+
+  // model parameters, captured at construction
+  private double lowTemp;
+  private double highTemp;
+  private double nominalTemp;
+  private double step;
+  private double heatCapacity; // kWh/K for the full stock
+  private double lossPerK; // walls, roof, infiltration, floor, turnover
+  private double fixedLoad; // heat load at 0C inside
+  private double maxCooling;
+  private double cop;
+  private double ncUsage;
+
+  // working storage, reused across runs
+  private double[] value;
+  private double[] nextValue;
+  private double[] candidate;
+  private int[][] choice;
+  private int[] window;
+  private int[] deque;
+  private double[] temps;
+
+  // memoized profiles, keyed by price vector
+  private Map<PriceKey, double[]> cache;
+
+  ThermalStorageOptimizer (ColdStorage cs, int hours)
+  {
+    this(cs, hours, DEFAULT_GRID_SIZE);
+  }
+
+  ThermalStorageOptimizer (ColdStorage cs, int hours, int gridSize)
+  {
+    super();
+    this.hours = hours;
+    this.gridSize = Math.max(2, gridSize);
+    nominalTemp = cs.getNominalTemp();
+    highTemp = Math.min(cs.getMaxTemp(), nominalTemp);
+    lowTemp = Math.max(cs.getMinTemp(), nominalTemp - cs.getShiftSag());
+    if (lowTemp > highTemp)
+      lowTemp = highTemp;
+    step = (highTemp - lowTemp) / (this.gridSize - 1);
+    heatCapacity = cs.getStockCapacity() * ColdStorage.CP_ICE;
+    double floorLossPerK =
+        ColdStorage.R_CONVERSION / cs.getFloorRValue() * cs.getRoofArea();
+    double turnoverPerK =
+        cs.getStockCapacity() * cs.getTurnoverRatio() / 24.0
+        * ColdStorage.CP_ICE;
+    lossPerK = cs.getCoolingLossPerK() + floorLossPerK + turnoverPerK;
+    fixedLoad = cs.getCoolingLossPerK() * cs.getEvalEnvTemp()
+        + floorLossPerK * ColdStorage.GROUND_TEMP
+        + turnoverPerK * cs.getNewStockTemp()
+        + cs.getNonCoolingUsage();
+    maxCooling = cs.getMaxCooling();
+    cop = cs.getCop();
+    ncUsage = cs.getNonCoolingUsage();
+
+    value = new double[this.gridSize];
+    nextValue = new double[this.gridSize];
+    candidate = new double[this.gridSize];
+    choice = new int[hours][this.gridSize];
+    window = new int[this.gridSize];
+    deque = new int[this.gridSize];
+    temps = new double[hours + 1];
+    cache = new LinkedHashMap<PriceKey, double[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry (Map.Entry<PriceKey, double[]> e)
+      {
+        return size() > CACHE_SIZE;
+      }
+    };
+  }
+
+  /**
+   * Returns the kWh consumption profile that minimizes cost over the
+   * given prices, which are usage charges per kWh (negative for
+   * consumption). Returns null if no feasible temperature path exists,
+   * in which case the caller should fall back to some other profile.
+   * The returned array is shared among tariffs with the same prices and
+   * must not be modified.
+   */
+  double[] getProfile (double[] prices)
+  {
+    PriceKey key = new PriceKey(prices);
+    double[] result = cache.get(key);
+    if (null == result) {
+      result = optimize(key.prices);
+      if (null != result)
+        cache.put(key, result);
+    }
+    return result;
+  }
+
+  /**
+   * Temperature trajectory of the most recent optimization, starting at
+   * nominal temperature.
+   */
+  double[] getTemps ()
+  {
+    return temps;
+  }
+
+  int getCacheSize ()
+  {
+    return cache.size();
+  }
+
+  double getLowTemp ()
+  {
+    return lowTemp;
+  }
+
+  double getHighTemp ()
+  {
+    return highTemp;
+  }
+
+  double[] optimize (double[] prices)
+  {
+    int n = Math.min(hours, prices.length);
+    double meanCost = 0.0;
+    for (int h = 0; h < n; h++)
+      meanCost -= prices[h];
+    meanCost /= n;
+
+    // Terminal value: stored cold is worth what it would cost to make it
+    // at the mean price, so the optimizer does not simply drain storage.
+    for (int i = 0; i < gridSize; i++) {
+      value[i] = meanCost * heatCapacity * (gridTemp(i) - nominalTemp) / cop;
+    }
+
+    for (int h = n - 1; h >= 0; h--) {
+      double cost = -prices[h];
+      // part of the cost that depends only on the next temperature
+      for (int j = 0; j < gridSize; j++) {
+        candidate[j] = value[j] - cost * heatCapacity * gridTemp(j) / cop;
+      }
+      slidingMinimum();
+      for (int i = 0; i < gridSize; i++) {
+        int j = window[i];
+        if (j < 0) {
+          nextValue[i] = Double.POSITIVE_INFINITY;
+          choice[h][i] = -1;
+          continue;
+        }
+        double t = gridTemp(i);
+        double fixed =
+            cost * (ncUsage + (heatLoad(t) + heatCapacity * t) / cop);
+        nextValue[i] = fixed + candidate[j];
+        choice[h][i] = j;
+      }
+      double[] swap = value;
+      value = nextValue;
+      nextValue = swap;
+    }
+
+    int state = gridSize - 1; // nominal temperature
+    if (Double.isInfinite(value[state])) {
+      log.warn("No feasible storage path from nominal temperature");
+      return null;
+    }
+    double[] result = new double[n];
+    temps[0] = gridTemp(state);
+    for (int h = 0; h < n; h++) {
+      int next = choice[h][state];
+      double t = gridTemp(state);
+      double energy =
+          heatLoad(t) + heatCapacity * (t - gridTemp(next));
+      result[h] = ncUsage + energy / cop;
+      state = next;
+      temps[h + 1] = gridTemp(state);
+    }
+    if (log.isDebugEnabled())
+      log.debug("optimized profile " + Arrays.toString(result));
+    return result;
+  }
+
+  /**
+   * Builds the setpoint table for a tariff from the value function over
+   * the given prices, which start at Monday 00:00. The target for each
+   * hour and temperature band is the optimal next temperature; bands with
+   * no feasible successor hold the top of the band.
+   */
+  ControlPolicy makePolicy (Tariff tariff, double[] weeklyPrices)
+  {
+    optimize(weeklyPrices);
+    int n = Math.min(hours, weeklyPrices.length);
+    ControlPolicy policy =
+        new ControlPolicy(tariff, n, gridSize, lowTemp, step);
+    for (int h = 0; h < n; h++) {
+      for (int i = 0; i < gridSize; i++) {
+        int j = choice[h][i];
+        policy.setTarget(h, i, (j < 0) ? highTemp : gridTemp(j));
+      }
+    }
+    return policy;
+  }
+
+  // For each state i, finds the successor j in its feasible window that
+  // minimizes candidate[j], or -1 if the window is empty. Window bounds
+  // are non-decreasing in i, so a monotone deque suffices; if they are
+  // not, falls back to a direct scan.
+  private void slidingMinimum ()
+  {
+    int head = 0;
+    int tail = 0;
+    int added = 0;
+    int lastLo = -1;
+    int lastHi = -1;
+    for (int i = 0; i < gridSize; i++) {
+      double t = gridTemp(i);
+      double load = heatLoad(t);
+      // energy >= 0 bounds the next temp from above,
+      // energy <= maxCooling bounds it from below
+      int lo = (int)Math.ceil((t + (load - maxCooling) / heatCapacity
+                               - lowTemp) / step - EPSILON);
+      int hi = (int)Math.floor((t + load / heatCapacity - lowTemp) / step
+                               + EPSILON);
+      lo = Math.max(lo, 0);
+      hi = Math.min(hi, gridSize - 1);
+      if (lo > hi) {
+        window[i] = -1;
+        continue;
+      }
+      if (lo < lastLo || hi < lastHi) {
+        window[i] = scan(lo, hi);
+        continue;
+      }
+      lastLo = lo;
+      lastHi = hi;
+      while (added <= hi) {
+        while (tail > head && candidate[deque[tail - 1]] >= candidate[added])
+          tail -= 1;
+        deque[tail++] = added++;
+      }
+      while (deque[head] < lo)
+        head += 1;
+      window[i] = deque[head];
+    }
+  }
+
+  private int scan (int lo, int hi)
+  {
+    int best = lo;
+    for (int j = lo + 1; j <= hi; j++) {
+      if (candidate[j] < candidate[best])
+        best = j;
+    }
+    return best;
+  }
+
+  private double gridTemp (int index)
+  {
+    return lowTemp + index * step;
+  }
+
+  // thermal kWh needed per hour to hold the given inside temperature
+  private double heatLoad (double temp)
+  {
+    return fixedLoad - lossPerK * temp;
+  }
+
+  // Hash key for a price vector
+  static class PriceKey
+  {
+    private final double[] prices;
+    private final int hash;
+
+    PriceKey (double[] prices)
+    {
+      super();
+      this.prices = prices.clone();
+      this.hash = Arrays.hashCode(this.prices);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return hash;
+    }
+
+    @Override
+    public boolean equals (Object other)
+    {
+      if (!(other instanceof PriceKey))
+        return false;
+      return Arrays.equals(prices, ((PriceKey)other).prices);
+    }
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Configuration-time feasibility check for LiftTruck fleets. Builds the
+ * FleetProfile for each configured fleet in parallel, adds batteries and
+ * chargers where the shift schedule needs them, and logs a single summary
+ * report. Fleets that have been analyzed pass their own validation in
+ * initialize() without further adjustment, and reuse the profile
+ * for planning.
+ */
+public class FleetAnalyzer
+{
+  static private Logger log =
+      Logger.getLogger(FleetAnalyzer.class.getName());
+
+  private int threads;
+
+  /**
+   * Creates an analyzer that uses one thread per available processor.
+   */
+  public FleetAnalyzer ()
+  {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  public FleetAnalyzer (int threads)
+  {
+    super();
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Analyzes the given configured instances, ignoring any that are not
+   * LiftTruck fleets. Returns the report, which has also been logged.
+   */
+  public Report analyze (Collection<?> instances)
+  {
+    List<LiftTruck> fleets = new ArrayList<LiftTruck>();
+    for (Object thing : instances) {
+      if (thing instanceof LiftTruck)
+        fleets.add((LiftTruck)thing);
+    }
+    Report report = new Report();
+    if (fleets.isEmpty())
+      return report;
+
+    ExecutorService pool =
+        Executors.newFixedThreadPool(Math.min(threads, fleets.size()));
+    List<Future<FleetResult>> futures =
+        new ArrayList<Future<FleetResult>>(fleets.size());
+    try {
+      for (final LiftTruck fleet : fleets) {
+        futures.add(pool.submit(new Callable<FleetResult>() {
+          @Override
+          public FleetResult call ()
+          {
+            return analyzeFleet(fleet);
+          }
+        }));
+      }
+      // collect in configuration order, so the report is repeatable
+      for (Future<FleetResult> future : futures) {
+        report.add(future.get());
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.error("Fleet analysis interrupted");
+    }
+    catch (ExecutionException e) {
+      log.error("Fleet analysis failed", e.getCause());
+    }
+    finally {
+      pool.shutdown();
+    }
+
+    // adjustments are applied on the calling thread
+    for (FleetResult result : report.getResults()) {
+      LiftTruck fleet = result.getFleet();
+      if (result.getAddedBatteries() > 0)
+        fleet.setNBatteries(fleet.getNBatteries() + result.getAddedBatteries());
+      if (result.getAddedChargers() > 0)
+        fleet.setNChargers(fleet.getNChargers() + result.getAddedChargers());
+    }
+    log.info(report.toString());
+    return report;
+  }
+
+  // Runs on a worker thread, touching only the given fleet
+  FleetResult analyzeFleet (LiftTruck fleet)
+  {
+    fleet.ensureShifts();
+    FleetProfile profile = fleet.getFleetProfile();
+    FleetResult result = new FleetResult(fleet);
+    result.batteries = profile.getBatteryShortfall(fleet.getNBatteries());
+    result.chargers =
+        profile.getChargerShortfall(fleet.getNChargers(),
+                                    fleet.getMaxChargeKW());
+    result.margin =
+        profile.getChargerMargin(fleet.getNChargers() + result.chargers,
+                                 fleet.getMaxChargeKW());
+    return result;
+  }
+
+  /**
+   * Outcome of the analysis of a single fleet
+   */
+  public static class FleetResult
+  {
+    private LiftTruck fleet;
+    private int batteries = 0;
+    private int chargers = 0;
+    private double margin = 0.0;
+
+    FleetResult (LiftTruck fleet)
+    {
+      super();
+      this.fleet = fleet;
+    }
+
+    public LiftTruck getFleet ()
+    {
+      return fleet;
+    }
+
+    public int getAddedBatteries ()
+    {
+      return batteries;
+    }
+
+    public int getAddedChargers ()
+    {
+      return chargers;
+    }
+
+    /**
+     * Daily charging energy to spare after any added chargers
+     */
+    public double getChargerMargin ()
+    {
+      return margin;
+    }
+
+    public boolean isFeasible ()
+    {
+      return 0 == batteries && 0 == chargers;
+    }
+  }
+
+  /**
+   * Summary of the analysis of all fleets
+   */
+  public static class Report
+  {
+    private List<FleetResult> results = new ArrayList<FleetResult>();
+
+    void add (FleetResult result)
+    {
+      results.add(result);
+    }
+
+    public List<FleetResult> getResults ()
+    {
+      return results;
+    }
+
+    public int getInfeasibleCount ()
+    {
+      int count = 0;
+      for (FleetResult result : results) {
+        if (!result.isFeasible())
+          count += 1;
+      }
+      return count;
+    }
+
+    @Override
+    public String toString ()
+    {
+      StringBuilder sb = new StringBuilder();
+      sb.append("LiftTruck fleets analyzed: ").append(results.size())
+        .append(", adjusted: ").append(getInfeasibleCount());
+      for (FleetResult result : results) {
+        if (result.isFeasible())
+          continue;
+        sb.append("\n  ").append(result.getFleet().getName())
+          .append(": +").append(result.getAddedBatteries())
+          .append(" batteries, +").append(result.getAddedChargers())
+          .append(" chargers, margin ").append(result.getChargerMargin())
+          .append(" kWh/day");
+      }
+      return sb.toString();
+    }
+  }
+}
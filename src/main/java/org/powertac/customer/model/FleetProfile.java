@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer.model;
+
+import org.powertac.customer.model.LiftTruck.Shift;
+
+/**
+ * Static facts about a LiftTruck shift schedule, computed once from the
+ * compiled weekly schedule and reused by validation and planning. The
+ * schedule is treated as cyclic, so runs and windows wrap from Sunday
+ * night into Monday morning.
+ */
+class FleetProfile
+{
+  private int size;
+
+  // hours from each index to the end of its run of identical entries
+  private int[] runLength;
+
+  // truck energy use (kWh) in each hour of the week
+  private double[] demand;
+
+  // truck energy use in the busiest 24-hour window
+  private double maxDailyEnergy = 0.0;
+
+  // batteries needed to cover the largest pair of adjacent shifts
+  private int minBatteries = 0;
+
+  FleetProfile (Shift[] schedule, double truckKW, double batteryCapacity)
+  {
+    super();
+    size = schedule.length;
+    runLength = new int[size];
+    demand = new double[size];
+    for (int i = 0; i < size; i++) {
+      if (null != schedule[i])
+        demand[i] = schedule[i].getTrucks() * truckKW;
+    }
+    computeRunLengths(schedule);
+    computeMaxDailyEnergy();
+    computeMinBatteries(schedule, truckKW, batteryCapacity);
+  }
+
+  // Walks backward from the end of some run, so each entry is one more
+  // than its successor in the same run.
+  private void computeRunLengths (Shift[] schedule)
+  {
+    int end = -1;
+    for (int i = 0; i < size; i++) {
+      if (schedule[i] != schedule[(i + 1) % size]) {
+        end = i;
+        break;
+      }
+    }
+    if (-1 == end) {
+      // the whole week is a single run
+      for (int i = 0; i < size; i++)
+        runLength[i] = size;
+      return;
+    }
+    runLength[end] = 1;
+    int next = end;
+    for (int n = 1; n < size; n++) {
+      int i = (end - n + size) % size;
+      if (schedule[i] == schedule[next])
+        runLength[i] = runLength[next] + 1;
+      else
+        runLength[i] = 1;
+      next = i;
+    }
+  }
+
+  // Sliding-window sum over the cyclic demand vector
+  private void computeMaxDailyEnergy ()
+  {
+    int window = Math.min(LiftTruck.HOURS_DAY, size);
+    double sum = 0.0;
+    for (int i = 0; i < window; i++)
+      sum += demand[i];
+    double max = sum;
+    for (int i = 1; i < size; i++) {
+      sum += demand[(i + window - 1) % size] - demand[i - 1];
+      max = Math.max(max, sum);
+    }
+    maxDailyEnergy = max;
+  }
+
+  // There must be at least enough batteries to supply the two largest
+  // adjacent shifts, and there must also be enough to power them, in
+  // case a single battery cannot power an entire shift.
+  private void computeMinBatteries (Shift[] schedule, double truckKW,
+                                    double batteryCapacity)
+  {
+    int result = 0;
+    Shift s1 = null;
+    Shift s2 = null;
+    for (int i = 0; i < size; i++) {
+      Shift s = schedule[i];
+      if (null == s) {
+        s1 = s2;
+      }
+      else if (s2 != s) {
+        s1 = s2;
+        s2 = s;
+        if (null != s1) {
+          int n1 = s1.getTrucks();
+          int d1 = s1.getDuration();
+          int n2 = s2.getTrucks();
+          int d2 = s2.getDuration();
+          double neededBatteries =
+              (n1 * d1 + n2 * d2) * truckKW / batteryCapacity;
+          result = Math.max(result, (n1 + n2));
+          result = (int)Math.max(result, Math.ceil(neededBatteries));
+        }
+      }
+    }
+    minBatteries = result;
+  }
+
+  /**
+   * Number of hours, starting at index, until the schedule entry changes.
+   */
+  int getRunLength (int index)
+  {
+    return runLength[index];
+  }
+
+  /**
+   * Truck energy use in the given hour of the week.
+   */
+  double getDemand (int index)
+  {
+    return demand[index];
+  }
+
+  /**
+   * Truck energy use in the busiest 24-hour window of the week.
+   */
+  double getMaxDailyEnergy ()
+  {
+    return maxDailyEnergy;
+  }
+
+  int getMinBatteries ()
+  {
+    return minBatteries;
+  }
+
+  /**
+   * Number of batteries that must be added to support the schedule,
+   * zero if there are enough.
+   */
+  int getBatteryShortfall (int nBatteries)
+  {
+    return Math.max(0, minBatteries - nBatteries);
+  }
+
+  /**
+   * Daily charger output beyond the busiest day's need; negative if the
+   * chargers cannot keep up.
+   */
+  double getChargerMargin (int nChargers, double maxChargeKW)
+  {
+    return nChargers * maxChargeKW * LiftTruck.HOURS_DAY - maxDailyEnergy;
+  }
+
+  /**
+   * Number of chargers that must be added to support the schedule,
+   * zero if there are enough.
+   */
+  int getChargerShortfall (int nChargers, double maxChargeKW)
+  {
+    double margin = getChargerMargin(nChargers, maxChargeKW);
+    if (margin >= 0.0)
+      return 0;
+    return (int)Math.ceil(-margin / (maxChargeKW * LiftTruck.HOURS_DAY));
+  }
+}
@@ -15,21 +15,21 @@
  */
 package org.powertac.customer.model;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
-import org.apache.commons.math3.distribution.NormalDistribution;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTimeFieldType;
 import org.joda.time.Instant;
 import org.powertac.common.CustomerInfo;
 import org.powertac.common.RandomSeed;
-import org.powertac.common.RegulationCapacity;
 import org.powertac.common.Tariff;
 import org.powertac.common.TariffEvaluator;
 import org.powertac.common.TariffSubscription;
@@ -41,6 +41,21 @@ import org.powertac.common.interfaces.CustomerModelAccessor;
 import org.powertac.common.state.Domain;
 import org.powertac.common.state.StateChange;
 import org.powertac.customer.AbstractCustomer;
+import org.powertac.customer.BootstrapMode;
+import org.powertac.customer.EventTrace;
+import org.powertac.customer.ModelHistory;
+import org.powertac.customer.ModelMetrics;
+import org.powertac.customer.ModelSnapshot;
+import org.powertac.customer.ProfileCache;
+import org.powertac.customer.ReplayRecorder;
+import org.powertac.customer.SnapshotState;
+import org.powertac.customer.SplitRandom;
+import org.powertac.customer.StateJournal;
+import org.powertac.customer.SubscriptionHandle;
+import org.powertac.customer.SubscriptionUpdates;
+import org.powertac.customer.TariffEquivalenceFilter;
+import org.powertac.customer.TraceEvent;
+import org.powertac.customer.WeatherSnapshot;
 
 import com.joptimizer.optimizers.LPOptimizationRequest;
 import com.joptimizer.optimizers.LPPrimalDualMethod;
@@ -77,7 +92,7 @@ import com.joptimizer.optimizers.OptimizationResponse;
 @ConfigurableInstance
 public class LiftTruck
 extends AbstractCustomer
-implements CustomerModelAccessor
+implements CustomerModelAccessor, SnapshotState
 {
   static private Logger log =
       Logger.getLogger(LiftTruck.class.getName());
@@ -87,6 +102,24 @@ implements CustomerModelAccessor
   static final int DAYS_WEEK = 7;
   //static final long HOUR = 3600*1000;
 
+  // kinds of charger usage decisions
+  static final int NO_SLACK = 0;
+  static final int PLANNED = 1;
+  static final int SLACK = 2;
+
+  static final int SNAPSHOT_VERSION = 1;
+
+  // relative tolerance when reusing a weekly plan, that of the LP solver
+  static final double REUSE_TOLERANCE = 1e-2;
+
+  // journaled state changes
+  private static final int SET_ENERGY_CHARGING =
+      StateJournal.method("setEnergyCharging");
+  private static final int SET_ENERGY_IN_USE =
+      StateJournal.method("setEnergyInUse");
+  private static final int SET_CAPACITY_IN_USE =
+      StateJournal.method("setCapacityInUse");
+
   // need a name so we can configure it (in case it's not an AbstractCustomer)
   //private String name;
 
@@ -99,6 +132,7 @@ implements CustomerModelAccessor
   private double chargeEfficiency = 0.9;
   private int planningHorizon = 60;
   private int minPlanningHorizon = 24;
+  private boolean bootstrapFastMode = false; // weekly plans in bootstrap
 
   // ==== Shift data ====
   // These List values are configured through their setter methods.
@@ -112,6 +146,7 @@ implements CustomerModelAccessor
                     "shift", "0", "8", "3");
   private Shift[] shiftSchedule = new Shift[DAYS_WEEK * HOURS_DAY];
   private Shift currentShift = null;
+  private FleetProfile fleetProfile = null; // lazy, from shiftSchedule
 
   // ==== Current state ====
 //  private double currentChargeRate = 1.0;
@@ -136,14 +171,29 @@ implements CustomerModelAccessor
   private PowerType powerType;
   //private ShiftEnergy[] futureEnergyNeeds = null;
   private CapacityPlan plan;
+  private StepCursor stepCursor = null;
+  private boolean fastMode = false; // last step was a bootstrap fast step
+  private Tariff weeklyTariff = null;
+  private HashMap<Integer, double[][]> weeklyPlans =
+      new HashMap<Integer, double[][]>(); // usage, slack by hour of week
+  private SubscriptionHandle subscriptionHandle = null;
+  private ModelHistory history = null;
+  private double[] historyRecord = new double[3];
+  // made by their getters, since a truck is named after construction
+  private EventTrace.Source trace = null;
+  private StateJournal.Source journal = null;
+  private ReplayRecorder.Source replay = null;
+  private ModelMetrics metrics = null;
 
   // random seeds
   private RandomSeed opSeed = null;
   private RandomSeed evalSeed = null;
-  private NormalDistribution normal;
+  private SplitRandom opRandom; // per-timeslot draws
 
   // context references
   private TariffEvaluator tariffEvaluator;
+  private TariffEquivalenceFilter equivalence =
+      new TariffEquivalenceFilter(DAYS_WEEK * HOURS_DAY);
 
   /**
    * Default constructor, requires manual setting of name
@@ -219,8 +269,7 @@ implements CustomerModelAccessor
       evalSeed = service.getRandomSeedRepo()
           .getRandomSeed(LiftTruck.class.getName() + "-" + name,
                          0, "eval");
-      normal = new NormalDistribution(0.0, 1.0);
-      normal.reseedRandomGenerator(opSeed.nextLong());
+      opRandom = SplitRandom.fromSeed(opSeed);
     }
   }
 
@@ -242,31 +291,7 @@ implements CustomerModelAccessor
   // cannot power an entire shift.
   void validateBatteries ()
   {
-    int minBatteries = 0;
-    Shift s1 = null;
-    Shift s2 = null;
-    for (int i = 0; i < shiftSchedule.length; i++) {
-      Shift s = shiftSchedule[i];
-      if (null == s) {
-        s1 = s2;
-      }
-      else if (s2 != s) {
-        s1 = s2;
-        s2 = s;
-        if (null != s1) {
-          int n1 = s1.getTrucks();
-          int d1 = s1.getDuration();
-          int n2 = s2.getTrucks();
-          int d2 = s2.getDuration();
-          double neededBatteries =
-              (n1 * d1 + n2 * d2) * truckKW / getBatteryCapacity();
-          minBatteries =
-              (int)Math.max(minBatteries, (n1 + n2));
-          minBatteries =
-              (int)Math.max(minBatteries, Math.ceil(neededBatteries));
-        }
-      }
-    }
+    int minBatteries = getFleetProfile().getMinBatteries();
     int neededBatteries = minBatteries - nBatteries;
     if (neededBatteries > 0) {
       log.error("Not enough batteries (" + nBatteries +
@@ -285,48 +310,9 @@ implements CustomerModelAccessor
     // of batteries in a single shift
 
     // The total output of the availableChargers should be at least enough
-    // to power the trucks over a 24-hour period. Note that the shift schedule
-    // starts at midnight, which may not be the start of the current shift.
-    double maxNeeded = 0.0;
-    int offset = 0;
-    while (null == shiftSchedule[offset]) {
-      offset += 1;
-    }
-    Shift currentShift = shiftSchedule[offset];
-    int remainingDuration = 0;
-    int hoursInShift = (HOURS_DAY - currentShift.getStart()) % HOURS_DAY;
-    remainingDuration = currentShift.getDuration() - hoursInShift;
-
-    for (int i = offset; i < (shiftSchedule.length - HOURS_DAY); i++) {
-      double totalEnergy = 0.0;
-      Shift thisShift = shiftSchedule[i];
-      if (thisShift != currentShift) {
-        currentShift = thisShift;
-        if (null != currentShift) {
-          // first block of energy in 24h window starting at i
-          remainingDuration = currentShift.getDuration();
-        }
-      }
-      if (null != currentShift) {
-        totalEnergy +=
-            currentShift.getTrucks() * remainingDuration * truckKW;
-      }
-      // now run fwd 24h and add energy from future shifts
-      Shift current = currentShift;
-      //int shiftStart = i;
-      for (int j = i + 1; j < (i + HOURS_DAY); j++) {
-        Shift newShift = shiftSchedule[j];
-        if (null != newShift && current != newShift) {
-          int durationInWindow =
-              (int)Math.min((i + HOURS_DAY - j), newShift.getDuration());
-          totalEnergy +=
-              newShift.getTrucks() * durationInWindow * truckKW;
-          current = newShift;
-        }
-      }
-      maxNeeded = Math.max(maxNeeded, totalEnergy);
-      remainingDuration -= 1;
-    }
+    // to power the trucks over any 24-hour period, including the
+    // weekend wrap-around.
+    double maxNeeded = getFleetProfile().getMaxDailyEnergy();
 
     double chargeEnergy = nChargers * maxChargeKW * HOURS_DAY;
     if (maxNeeded > chargeEnergy) {
@@ -349,11 +335,47 @@ implements CustomerModelAccessor
   @Override
   public void step ()
   {
+    long start = System.nanoTime();
+    try {
+      stepTimeslot();
+    }
+    finally {
+      getMetrics().stepped(System.nanoTime() - start);
+    }
+  }
+
+  // One timeslot of the model, timed by step()
+  private void stepTimeslot ()
+  {
+    recordInputs();
+
+    // Plans made in bootstrap fast mode are not used at full fidelity,
+    // nor the other way around
+    boolean fast =
+        bootstrapFastMode && BootstrapMode.isBootstrap(getTimeslotIndex());
+    if (fast != fastMode) {
+      fastMode = fast;
+      plan = null;
+      stepCursor = null;
+    }
+
+    // Within a ShiftEnergy run, the charger actions were worked out
+    // when the run was entered; use them unless something has changed.
+    if (null != stepCursor) {
+      TariffSubscription sub = getSubscription();
+      if (stepCursor.isReady(getNowInstant(), sub)) {
+        stepFast(sub);
+        return;
+      }
+      stepCursor = null;
+    }
+
+    getMetrics().planMiss();
+
     // check for end-of-shift
     Shift newShift =
         shiftSchedule[indexOfShift(getNowInstant())];
     if (newShift != currentShift) {
-      log.info(getName() + " start of shift");
       // Take all batteries out of service
       double totalEnergy = getEnergyCharging() + getEnergyInUse();
       setEnergyCharging(getEnergyCharging() + getEnergyInUse());
@@ -366,37 +388,158 @@ implements CustomerModelAccessor
         setEnergyInUse(Math.min(getCapacityInUse(), totalEnergy));
         setEnergyCharging(totalEnergy - getEnergyInUse());
       }
-      log.info(getName() + ": new shift cInUse " + capacityInUse
-               + ", eInUse " + energyInUse + ", eCharging " + energyCharging);
+      EventTrace.Source trace = getTrace();
+      if (trace.isEnabled())
+        trace.record(getTimeslotIndex(), TraceEvent.TRUCK_SHIFT,
+                     capacityInUse, energyInUse, energyCharging);
       currentShift = newShift;
     }
 
     // discharge batteries on active trucks
+    dischargeTrucks();
+
+    // use energy on chargers, accounting for regulation
+    TariffSubscription sub = getSubscription();
+    double regulation = sub.getRegulation();
+    getMetrics().addRegulationDelivered(regulation);
+    EventTrace.Source trace = getTrace();
+    if (trace.isEnabled())
+      trace.record(getTimeslotIndex(), TraceEvent.TRUCK_REGULATION,
+                   regulation);
+    double energyUsed = useEnergy(regulation);
+
+    // Record energy used
+    SubscriptionUpdates.usePower(sub, energyUsed);
+    getMetrics().addEnergy(energyUsed);
+    recordHistory(energyUsed);
+    if (trace.isEnabled())
+      trace.record(getTimeslotIndex(), TraceEvent.TRUCK_STATE,
+                   capacityInUse, energyInUse, energyCharging);
+  }
+
+  // Intermediate-hour step. The cursor has already checked the time,
+  // the tariff, and the absence of regulation; if the trucks overdraw
+  // their batteries, the precomputed actions no longer apply and we
+  // finish the timeslot on the full path.
+  private void stepFast (TariffSubscription sub)
+  {
+    dischargeTrucks();
+    if (!stepCursor.isCharging(getEnergyCharging())) {
+      stepCursor = null;
+      getMetrics().planMiss();
+      double energyUsed = useEnergy(0.0);
+      SubscriptionUpdates.usePower(sub, energyUsed);
+      getMetrics().addEnergy(energyUsed);
+      recordHistory(energyUsed);
+      return;
+    }
+    getMetrics().planHit();
+    double used = stepCursor.getUsed();
+    addEnergyCharging(used * chargeEfficiency);
+    double up = stepCursor.getUpRegulation();
+    double down = stepCursor.getDownRegulation();
+    SubscriptionUpdates.setRegulationCapacity(sub, up, down);
+    getMetrics().addRegulationOffered(up, down);
+    stepCursor.advance(used);
+    SubscriptionUpdates.usePower(sub, used);
+    getMetrics().addEnergy(used);
+    recordHistory(used);
+  }
+
+  private EventTrace.Source getTrace ()
+  {
+    if (null == trace)
+      trace = new EventTrace.Source(getName());
+    return trace;
+  }
+
+  ModelMetrics getMetrics ()
+  {
+    if (null == metrics) {
+      metrics = ModelMetrics.forModel(this);
+      metrics.setProfileCache(profiles);
+    }
+    return metrics;
+  }
+
+  private StateJournal.Source getJournal ()
+  {
+    if (null == journal)
+      journal = new StateJournal.Source(getClass().getName(), getId());
+    return journal;
+  }
+
+  private ReplayRecorder.Source getReplay ()
+  {
+    if (null == replay)
+      replay = new ReplayRecorder.Source(this);
+    return replay;
+  }
+
+  // Records a change to one of the battery state values; these are
+  // journaled rather than @StateChange, since they change every step
+  private void journal (int method, double value)
+  {
+    StateJournal.Source source = getJournal();
+    source.record(source.isEnabled() ? getTimeslotIndex() : -1,
+                  method, value);
+  }
+
+  // Records the timeslot's external inputs when replay recording is on
+  private void recordInputs ()
+  {
+    ReplayRecorder.Source source = getReplay();
+    if (source.isEnabled()) {
+      source.record(service.getTimeslotRepo().currentTimeslot(),
+                    WeatherSnapshot.get(service), getSubscription());
+    }
+  }
+
+  private int getTimeslotIndex ()
+  {
+    return service.getTimeslotRepo().currentSerialNumber();
+  }
+
+  // Adds this timeslot to the model's history
+  private void recordHistory (double used)
+  {
+    if (null == history) {
+      history = new ModelHistory("energyInUse", "energyCharging", "usage");
+    }
+    historyRecord[0] = getEnergyInUse();
+    historyRecord[1] = getEnergyCharging();
+    historyRecord[2] = used;
+    history.record(getTimeslotIndex(), historyRecord);
+  }
+
+  /**
+   * Per-timeslot history of energyInUse, energyCharging and usage
+   */
+  public ModelHistory getHistory ()
+  {
+    return history;
+  }
+
+  // Draws energy from the batteries in the trucks that are active in the
+  // current shift
+  private void dischargeTrucks ()
+  {
     if (null != currentShift) {
       double usage =
           Math.max(0.0,
-                   normal.sample() * truckStd +
+                   opRandom.nextGaussian() * truckStd +
                    truckKW * currentShift.getTrucks());
       double deficit = usage - getEnergyInUse();
       log.debug(getName() + ": trucks use " + usage + " kWh");
       if (deficit > 0.0) {
         log.warn(getName() + ": trucks use more energy than available by "
             + deficit + " kWh");
+        getMetrics().deficit(deficit);
         addEnergyInUse(deficit);
         addEnergyCharging(-deficit);
       }
       addEnergyInUse(-usage);
     }
-
-    // use energy on chargers, accounting for regulation
-    double regulation = getSubscription().getRegulation();
-    log.info(getName() + ": regulation " + regulation);
-    double energyUsed = useEnergy(regulation);
-
-    // Record energy used
-    getSubscription().usePower(energyUsed);
-    log.info(getName() + " cInUse " + capacityInUse + ", eInUse "
-             + energyInUse + ", eCharging " + energyCharging);
   }
 
   // Computes energy use by chargers in the current timeslot.
@@ -412,67 +555,164 @@ implements CustomerModelAccessor
     // positive regulation means we lost energy in the last timeslot
     // and should make it up in the remainder of the shift
     addEnergyCharging(-regulation * chargeEfficiency);
-    ShiftEnergy need = plan.getCurrentNeed(getNowInstant());
+    Instant now = getNowInstant();
+    ShiftEnergy need = plan.getCurrentNeed(now);
     if (need.getDuration() <= 0) {
       log.error(getName() + " negative need duration " + need.getDuration());
     }
     need.addEnergy(-regulation);
 
+    double[] action = new double[3];
+    boolean flat = !(tariff.isTimeOfUse() || tariff.isVariableRate());
+    int mode = computeUsage(flat, need.getDuration(), need.getEnergyNeeded(),
+                            recommendedUsage(need, need.getUsageIndex()),
+                            getEnergyCharging(), action);
+    EventTrace.Source trace = getTrace();
+    if (trace.isEnabled() && (NO_SLACK == mode || SLACK == mode))
+      trace.record(getTimeslotIndex(), TraceEvent.TRUCK_NEED, mode,
+                   need.getEnergyNeeded(), need.getDuration());
+    double used = action[0];
+
+    // use it
+    addEnergyCharging(used * chargeEfficiency);
+    SubscriptionUpdates.setRegulationCapacity(subscription, action[1],
+                                              action[2]);
+    getMetrics().addRegulationOffered(action[1], action[2]);
+    if (trace.isEnabled())
+      trace.record(getTimeslotIndex(), TraceEvent.TRUCK_USAGE, used,
+                   action[1], action[2]);
+    need.tick();
+    need.addEnergy(used);
+
+    // work out the rest of this ShiftEnergy run in advance
+    stepCursor = makeStepCursor(tariff, need, now);
+    return used;
+  }
+
+  // Charger usage decision for one timeslot, shared by the full step
+  // and the precomputed step cursor. Fills in result with
+  // {used, up-regulation, down-regulation} and returns the kind of
+  // decision that was made.
+  int computeUsage (boolean flat, int duration, double needed,
+                    double recommended, double charging, double[] result)
+  {
     // Compute the max and min we could possibly use in this timeslot
     // -- start with max and avail for remainder of shift
-    double max = nChargers * maxChargeKW * need.getDuration(); //  shift
+    double max = nChargers * maxChargeKW * duration; //  shift
     double avail = // for remainder of shift
-        nBatteries * batteryCapacity - getCapacityInUse() - getEnergyCharging();
+        nBatteries * batteryCapacity - getCapacityInUse() - charging;
     double maxUsable = Math.min(max, avail) / chargeEfficiency;
-    double needed = need.getEnergyNeeded();
 
-    double used = 0;
-    RegulationCapacity regCapacity = null;
     if (needed >= maxUsable) {
       // we just use the max, and allow no regulation capacity
-      log.info(getName() + ": no slack - need " + needed
-               + ", max " + max + ", avail " + avail + ", dur " + need.getDuration());
-      used = Math.min(maxUsable, (needed / need.getDuration()));
-      regCapacity = new RegulationCapacity(subscription, 0.0, 0.0);
+      result[0] = Math.min(maxUsable, (needed / duration));
+      result[1] = 0.0;
+      result[2] = 0.0;
+      return NO_SLACK;
     }
-    else if (tariff.isTimeOfUse() || tariff.isVariableRate()) {
+    else if (!flat) {
       // if the current tariff is not a flat rate, we will just use the
       // planned amout, without offering regulation capacity
       // TODO - figure out how to combine variable prices with regulation
-      used = need.getRecommendedUsage()[need.getUsageIndex()];
-      regCapacity = new RegulationCapacity(subscription, 0.0, 0.0);
-    }
-    else {
-      // otherwise use energy to maximize regulation capacity
-      double slack =
-          (maxUsable - needed) / need.getDuration() / 2.0;
-      log.info(getName() + " needed " + needed
-               + ", maxUsable " + maxUsable
-               + ", duration " + need.getDuration());
-      used = needed / need.getDuration() + slack;
-      regCapacity = new RegulationCapacity(subscription, slack, -slack);
+      result[0] = recommended;
+      result[1] = 0.0;
+      result[2] = 0.0;
+      return PLANNED;
+    }
+    // otherwise use energy to maximize regulation capacity
+    double slack = (maxUsable - needed) / duration / 2.0;
+    result[0] = needed / duration + slack;
+    result[1] = slack;
+    result[2] = -slack;
+    return SLACK;
+  }
+
+  // Returns the recommended usage at the given index, or zero past the
+  // end of the recommendation
+  private double recommendedUsage (ShiftEnergy need, int index)
+  {
+    double[] usage = need.getRecommendedUsage();
+    if (null == usage || index >= usage.length)
+      return 0.0;
+    return usage[index];
+  }
+
+  // Simulates the remaining hours of the current ShiftEnergy, assuming
+  // no regulation and no battery deficit, stopping early if the plan
+  // would need to be replaced.
+  private StepCursor makeStepCursor (Tariff tariff, ShiftEnergy need,
+                                     Instant now)
+  {
+    int hours = Math.min(need.getDuration(),
+                         plan.getRemainingHours(now)
+                         - getMinPlanningHorizon());
+    if (fastMode)
+      // stop at the end of the week, where the weekly plan is replaced
+      hours = Math.min(hours,
+                       HOURS_DAY * DAYS_WEEK - 1 - plan.getElapsedHours(now));
+    if (hours <= 0)
+      return null;
+    boolean flat = !(tariff.isTimeOfUse() || tariff.isVariableRate());
+    StepCursor cursor =
+        new StepCursor(tariff, need, now.getMillis() + TimeService.HOUR, hours);
+    double[] action = new double[3];
+    double charging = getEnergyCharging();
+    double needed = need.getEnergyNeeded();
+    int duration = need.getDuration();
+    int index = need.getUsageIndex();
+    for (int i = 0; i < hours; i++) {
+      computeUsage(flat, duration, needed,
+                   recommendedUsage(need, index), charging, action);
+      cursor.set(i, charging, action);
+      charging += action[0] * chargeEfficiency;
+      needed = Math.max(0.0, (needed - action[0]));
+      duration -= 1;
+      index += 1;
     }
-
-    // use it
-    addEnergyCharging(used * chargeEfficiency);
-    getSubscription().setRegulationCapacity(regCapacity);
-    log.info(getName() + " uses " + used + "kWh, reg cap ("
-             + regCapacity.getUpRegulationCapacity() + ", "
-             + regCapacity.getDownRegulationCapacity() + ")");
-    need.tick();
-    need.addEnergy(used);
-    return used;
+    return cursor;
   }
 
   // Ensures that there is a valid capacity plan in place
   void ensureCapacityPlan (Tariff tariff)
   {
+    if (fastMode) {
+      ensureWeeklyPlan(tariff, getNowInstant());
+      return;
+    }
     if (null == plan || !plan.isValid(getNowInstant(), tariff)) {
       plan = getCapacityPlan(tariff, getNowInstant(), getPlanningHorizon());
       plan.createPlan(getEnergyCharging());
     }
   }
 
+  // Bootstrap fast mode. Plans cover a week plus the minimum horizon and
+  // are replaced after a week, so each starts at the same hour of the
+  // week as the one before. The shift schedule repeats weekly and the
+  // bootstrap tariff does not change, so the LP solution of the first
+  // plan is reused for the rest, as long as it still fits the needs at
+  // the current battery charge; if not, the LP is solved again.
+  private void ensureWeeklyPlan (Tariff tariff, Instant now)
+  {
+    if (null != plan && plan.isValid(now, tariff)
+        && plan.getElapsedHours(now) < HOURS_DAY * DAYS_WEEK)
+      return;
+    if (tariff != weeklyTariff) {
+      weeklyPlans.clear();
+      weeklyTariff = tariff;
+    }
+    Integer key = indexOfShift(now);
+    plan = getCapacityPlan(tariff, now,
+                           HOURS_DAY * DAYS_WEEK + getMinPlanningHorizon());
+    double[][] cached = weeklyPlans.get(key);
+    if (null == cached
+        || !plan.reusePlan(getEnergyCharging(), cached[0], cached[1])) {
+      plan.createPlan(getEnergyCharging());
+      weeklyPlans.put(key, new double[][] {
+          Arrays.copyOf(plan.usage, plan.usage.length),
+          Arrays.copyOf(plan.slack, plan.slack.length)});
+    }
+  }
+
   // Computes constraints on future energy needs
   // Amounts are energy needed to run the chargers. Energy input to trucks
   // will be smaller due to charge efficiency.
@@ -483,11 +723,9 @@ implements CustomerModelAccessor
     int index = indexOfShift(start);
     // current time is likely to be partway into first shift
     Shift currentShift = shiftSchedule[index]; // might be null
-    int duration = 0;
-    while (shiftSchedule[index] == currentShift) {
-      duration += 1;
-      index = nextShiftIndex(index);
-    }
+    FleetProfile profile = getFleetProfile();
+    int duration = profile.getRunLength(index);
+    index = (index + duration) % shiftSchedule.length;
     Shift nextShift = shiftSchedule[index];
     // this gives us the info we need to start the sequence
     ArrayList<ShiftEnergy> data = new ArrayList<ShiftEnergy>();
@@ -497,11 +735,8 @@ implements CustomerModelAccessor
     // add shifts until we run off the end of the horizon
     // keep in mind that a shift can be null
     while (elapsed < horizon) {
-      duration = 0;
-      while (nextShift == shiftSchedule[index]) {
-        index = nextShiftIndex(index);
-        duration += 1;
-      }
+      duration = profile.getRunLength(index);
+      index = (index + duration) % shiftSchedule.length;
       nextShift = shiftSchedule[index];
       data.add(new ShiftEnergy(seStart, index, duration));
       elapsed += duration;
@@ -636,6 +871,7 @@ implements CustomerModelAccessor
   public void setTruckKW (double value)
   {
     truckKW = value;
+    fleetProfile = null;
   }
 
   public double getTruckKW ()
@@ -764,6 +1000,7 @@ implements CustomerModelAccessor
         shiftSchedule[index] = shift;
       }
     }
+    fleetProfile = null;
   }
 
   // a valid block has integers in the range [1..7]
@@ -790,12 +1027,24 @@ implements CustomerModelAccessor
     return shiftSchedule;
   }
 
+  // Static schedule facts, recomputed after the schedule or the
+  // parameters it depends on change
+  FleetProfile getFleetProfile ()
+  {
+    if (null == fleetProfile) {
+      fleetProfile =
+          new FleetProfile(shiftSchedule, truckKW, getBatteryCapacity());
+    }
+    return fleetProfile;
+  }
+
   @ConfigurableValue(valueType = "Double",
       description = "size of battery pack in kWh")
   @StateChange
   public void setBatteryCapacity (double value)
   {
     batteryCapacity = value;
+    fleetProfile = null;
   }
 
   public double getBatteryCapacity ()
@@ -868,6 +1117,19 @@ implements CustomerModelAccessor
     return planningHorizon;
   }
 
+  @ConfigurableValue(valueType = "Boolean",
+      description = "Reuse weekly charging plans during bootstrap")
+  @StateChange
+  public void setBootstrapFastMode (boolean value)
+  {
+    bootstrapFastMode = value;
+  }
+
+  public boolean isBootstrapFastMode ()
+  {
+    return bootstrapFastMode;
+  }
+
   @ConfigurableValue(valueType = "Integer",
       description = "minimum useful horizon of existing plan")
   @StateChange
@@ -884,10 +1146,10 @@ implements CustomerModelAccessor
   /**
    * Updates the energy content of offline batteries
    */
-  @StateChange
   public void setEnergyCharging (double kwh)
   {
     energyCharging = kwh;
+    journal(SET_ENERGY_CHARGING, kwh);
   }
 
   public double getEnergyCharging ()
@@ -903,10 +1165,10 @@ implements CustomerModelAccessor
   /**
    * Updates the energy content of in-use batteries
    */
-  @StateChange
   public void setEnergyInUse (double kwh)
   {
     energyInUse = kwh;
+    journal(SET_ENERGY_IN_USE, kwh);
   }
 
   public double getEnergyInUse ()
@@ -922,10 +1184,10 @@ implements CustomerModelAccessor
   /**
    * Updates the total capacity of in-use batteries
    */
-  @StateChange
   public void setCapacityInUse (double kwh)
   {
     capacityInUse = kwh;
+    journal(SET_CAPACITY_IN_USE, kwh);
   }
 
   public double getCapacityInUse ()
@@ -933,34 +1195,146 @@ implements CustomerModelAccessor
     return capacityInUse;
   }
 
+  // ======== Snapshot state ===========
+  @Override
+  public int getSnapshotVersion ()
+  {
+    return SNAPSHOT_VERSION;
+  }
+
+  /**
+   * Writes the battery energy pools, the current shift, the position of
+   * the random stream and the current capacity plan. The plan refers to
+   * its tariff by id; if that tariff is gone on restore, a new plan is
+   * made on the next step. Precomputed charger actions are not kept;
+   * they are worked out again by step().
+   */
+  @Override
+  public void saveState (DataOutput out) throws IOException
+  {
+    out.writeDouble(energyCharging);
+    out.writeDouble(energyInUse);
+    out.writeDouble(capacityInUse);
+    out.writeInt(Arrays.asList(shiftSchedule).indexOf(currentShift));
+    opRandom.saveState(out);
+    out.writeBoolean(null != plan);
+    if (null == plan)
+      return;
+    out.writeLong(plan.tariff.getId());
+    out.writeLong(plan.start.getMillis());
+    out.writeInt(plan.size);
+    ModelSnapshot.writeDoubles(out, orEmpty(plan.usage));
+    ModelSnapshot.writeDoubles(out, orEmpty(plan.slack));
+    ShiftEnergy[] needs = (null == plan.needs) ? new ShiftEnergy[0]
+                                               : plan.needs;
+    out.writeInt(needs.length);
+    for (ShiftEnergy need : needs) {
+      out.writeLong(need.start.getMillis());
+      out.writeInt(need.endIndex);
+      out.writeInt(need.duration);
+      out.writeDouble(need.energyNeeded);
+      out.writeDouble(need.maxSurplus);
+      out.writeDouble(need.slack);
+      out.writeInt(need.usageIndex);
+      ModelSnapshot.writeDoubles(out, orEmpty(need.recommendedUsage));
+    }
+  }
+
+  @Override
+  public boolean restoreState (ByteBuffer in, int version)
+  {
+    if (version != SNAPSHOT_VERSION)
+      return false;
+    setEnergyCharging(in.getDouble());
+    setEnergyInUse(in.getDouble());
+    setCapacityInUse(in.getDouble());
+    int shift = in.getInt();
+    currentShift = (shift < 0) ? null : shiftSchedule[shift];
+    opRandom = SplitRandom.restoreState(in);
+    stepCursor = null;
+    plan = null;
+    if (0 == in.get())
+      return true;
+    long tariffId = in.getLong();
+    CapacityPlan restored =
+        new CapacityPlan(service.getTariffRepo().findTariffById(tariffId),
+                         new Instant(in.getLong()), in.getInt());
+    restored.usage = ModelSnapshot.readDoubles(in);
+    restored.slack = ModelSnapshot.readDoubles(in);
+    restored.needs = new ShiftEnergy[in.getInt()];
+    for (int i = 0; i < restored.needs.length; i++) {
+      ShiftEnergy need =
+          new ShiftEnergy(new Instant(in.getLong()), in.getInt(), in.getInt());
+      need.energyNeeded = in.getDouble();
+      need.maxSurplus = in.getDouble();
+      need.slack = in.getDouble();
+      need.usageIndex = in.getInt();
+      need.recommendedUsage = ModelSnapshot.readDoubles(in);
+      restored.needs[i] = need;
+    }
+    if (null == restored.tariff)
+      log.warn(getName() + ": tariff " + tariffId
+               + " for saved plan not found, planning again");
+    else
+      plan = restored;
+    return true;
+  }
+
+  private double[] orEmpty (double[] values)
+  {
+    return (null == values) ? new double[0] : values;
+  }
+
   // ======== CustomerModelAccessor API ===========
 
   // digs out the current subscription for this thing. Since the population is
   // always one, there should only ever be one of them
   private TariffSubscription getSubscription ()
   {
-    List<TariffSubscription> subs = getCurrentSubscriptions(powerType);
-    if (subs.size() > 1) {
-      log.warn("Multiple subscriptions " + subs.size() + " for " + getName());
+    if (null == subscriptionHandle) {
+      subscriptionHandle = new SubscriptionHandle(this, powerType);
     }
-    return subs.get(0);
+    return subscriptionHandle.get();
+  }
+
+  SubscriptionHandle getSubscriptionHandle ()
+  {
+    return subscriptionHandle;
   }
 
-  private Map<Tariff, CapacityPlan> profiles = null;
+  // usage profiles only; the plans themselves are not kept
+  private ProfileCache<double[]> profiles = null;
   @Override
   public double[] getCapacityProfileStartingNextTimeSlot (Tariff tariff)
   {
     if (null == profiles) {
-      profiles = new HashMap<Tariff, CapacityPlan>();
+      profiles = new ProfileCache<double[]>();
+      getMetrics().setProfileCache(profiles);
     }
-    CapacityPlan plan = profiles.get(tariff);
-    if (null != plan) {
-      return plan.getUsage();
+    int timeslot = service.getTimeslotRepo().currentSerialNumber();
+    double[] usage = profiles.get(tariff, timeslot);
+    if (null != usage) {
+      return usage;
+    }
+    // Prices that differ only by a factor give the same LP solution, so
+    // the plan is shared; the evaluator costs it with this tariff's rates
+    Tariff equivalent = equivalence.getEquivalentTariff(tariff);
+    if (null != equivalent) {
+      log.debug(getName() + ": tariff " + tariff.getId()
+                + " shares the plan of " + equivalent.getId());
+      return getCapacityProfileStartingNextTimeSlot(equivalent);
     }
-    plan = getCapacityPlan(tariff, getNextSunday(), getPlanningHorizon());
-    profiles.put(tariff, plan);
+    CapacityPlan plan =
+        getCapacityPlan(tariff, getNextSunday(), getPlanningHorizon());
     plan.createPlan(tariff, 0.0);
-    return plan.getUsage();
+    usage = plan.getUsage();
+    profiles.put(tariff, usage, timeslot);
+    return usage;
+  }
+
+  ProfileCache<double[]> getProfileCache ()
+  {
+    return profiles;
   }
 
   @Override
@@ -988,7 +1362,18 @@ implements CustomerModelAccessor
   public void evaluateTariffs (List<Tariff> tariffs)
   {
     log.info(getName() + ": evaluate tariffs");
+    List<Tariff> candidates = new ArrayList<Tariff>(tariffs);
+    List<Tariff> active = service.getTariffRepo().findActiveTariffs(powerType);
+    if (null != active) {
+      candidates.addAll(active);
+    }
+    equivalence.update(candidates, getNextSunday());
+    if (null != profiles)
+      profiles.purge(service.getTimeslotRepo().currentSerialNumber());
     tariffEvaluator.evaluateTariffs();
+    // signups and withdrawals come from here
+    if (null != subscriptionHandle)
+      subscriptionHandle.invalidate();
   }
 
 
@@ -1234,6 +1619,81 @@ implements CustomerModelAccessor
     }
   }
 
+  // ======== Precomputed charger actions ========
+  // Holds the per-hour charger usage and regulation capacity for the rest
+  // of a ShiftEnergy run, computed on the assumption that there will be
+  // no regulation and no battery deficit along the way.
+  class StepCursor
+  {
+    private Tariff tariff;
+    private ShiftEnergy need;
+    private long nextMillis;
+    private int index = 0;
+    private double[] charging;
+    private double[] used;
+    private double[] up;
+    private double[] down;
+
+    StepCursor (Tariff tariff, ShiftEnergy need, long nextMillis, int hours)
+    {
+      super();
+      this.tariff = tariff;
+      this.need = need;
+      this.nextMillis = nextMillis;
+      charging = new double[hours];
+      used = new double[hours];
+      up = new double[hours];
+      down = new double[hours];
+    }
+
+    void set (int hour, double energyCharging, double[] action)
+    {
+      charging[hour] = energyCharging;
+      used[hour] = action[0];
+      up[hour] = action[1];
+      down[hour] = action[2];
+    }
+
+    // True if the next precomputed hour applies to this timeslot
+    boolean isReady (Instant now, TariffSubscription sub)
+    {
+      return index < used.length
+          && now.getMillis() == nextMillis
+          && sub.getTariff() == tariff
+          && sub.getRegulation() == 0.0;
+    }
+
+    // True if the batteries are in the state the precomputation expected
+    boolean isCharging (double energyCharging)
+    {
+      return energyCharging == charging[index];
+    }
+
+    double getUsed ()
+    {
+      return used[index];
+    }
+
+    double getUpRegulation ()
+    {
+      return up[index];
+    }
+
+    double getDownRegulation ()
+    {
+      return down[index];
+    }
+
+    // Keeps the ShiftEnergy in step, in case we fall back to the full path
+    void advance (double energy)
+    {
+      need.tick();
+      need.addEnergy(energy);
+      index += 1;
+      nextMillis += TimeService.HOUR;
+    }
+  }
+
   // ======== Consumption plan ========
   // Used for tariff evaluation, and for guiding consumption.
   class CapacityPlan
@@ -1266,8 +1726,7 @@ implements CustomerModelAccessor
     {
       if (tariff != this.tariff)
         return false;
-      int remaining =
-          (int)(size - (now.getMillis() - start.getMillis()) / TimeService.HOUR);
+      int remaining = getRemainingHours(now);
       if (remaining < getMinPlanningHorizon())
         return false;
       return true;
@@ -1278,6 +1737,19 @@ implements CustomerModelAccessor
       return usage;
     }
 
+    // Returns the number of hours left in the plan at the given time
+    int getRemainingHours (Instant now)
+    {
+      return (int)(size - (now.getMillis() - start.getMillis())
+                   / TimeService.HOUR);
+    }
+
+    // Returns the number of whole hours since the start of the plan
+    int getElapsedHours (Instant now)
+    {
+      return (int)((now.getMillis() - start.getMillis()) / TimeService.HOUR);
+    }
+
     // Returns the ShiftEnergy instance for the current time
     // Note that for this to work, the ShiftEnergy.tick() method
     // must be called once/timeslot.
@@ -1316,11 +1788,64 @@ implements CustomerModelAccessor
         newSize += need.getDuration();
       size = newSize;
       LpPlan plan = new LpPlan(tariff, needs, size);
+      getMetrics().solved();
       usage = plan.getSolution();
       slack = plan.getSlack();
       updateNeeds();
     }
 
+    // Decorates the plan with a copy of the solution of an earlier plan
+    // of the same shape, in place of solving the LP. The needs depend on
+    // the starting charge, so the solution is kept only if it meets the
+    // LP's constraints for this plan's needs: hourly usage within each
+    // shift's bound, and cumulative usage covering the cumulative need by
+    // no more than the shift's slack bound. Slack is worked out again
+    // for these needs. Returns false if the shapes differ or the
+    // solution does not fit.
+    boolean reusePlan (double initialCharging, double[] usage,
+                       double[] slack)
+    {
+      needs = getFutureEnergyNeeds(start, size, initialCharging);
+      int newSize = 0;
+      for (ShiftEnergy need : needs)
+        newSize += need.getDuration();
+      if (newSize != usage.length || needs.length != slack.length)
+        return false;
+      double[] newSlack = new double[needs.length];
+      double cumulative = 0.0;
+      double cumulativeMin = 0.0;
+      int index = 0;
+      for (int i = 0; i < needs.length; i++) {
+        ShiftEnergy need = needs[i];
+        double limit = need.getEnergyNeeded() + need.getMaxSurplus();
+        double hourly = limit / need.getDuration();
+        for (int j = 0; j < need.getDuration(); j++) {
+          if (usage[index] < -tolerance(hourly)
+              || usage[index] > hourly + tolerance(hourly))
+            return false;
+          cumulative += usage[index];
+          index += 1;
+        }
+        cumulativeMin += need.getEnergyNeeded()
+            + Math.min(0.0, need.getMaxSurplus());
+        double excess = cumulative - cumulativeMin;
+        if (excess < -tolerance(cumulativeMin)
+            || excess > limit + tolerance(limit))
+          return false;
+        newSlack[i] = Math.max(0.0, excess);
+      }
+      size = newSize;
+      this.usage = Arrays.copyOf(usage, usage.length);
+      this.slack = newSlack;
+      updateNeeds();
+      return true;
+    }
+
+    private double tolerance (double bound)
+    {
+      return REUSE_TOLERANCE * Math.max(1.0, Math.abs(bound));
+    }
+
     // returns the ShiftEnergy array used to create the plan,
     // decorated with the most recent solution
     ShiftEnergy[] updateNeeds ()
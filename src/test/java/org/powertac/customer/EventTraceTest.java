@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.StringWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventTraceTest
+{
+  private File file;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    file = File.createTempFile("trace", ".bin");
+    file.deleteOnExit();
+  }
+
+  @After
+  public void tearDown ()
+  {
+    EventTrace.stop();
+  }
+
+  private String decode () throws Exception
+  {
+    StringWriter out = new StringWriter();
+    FileInputStream in = new FileInputStream(file);
+    try {
+      new TraceDecoder().decode(in, out);
+    }
+    finally {
+      in.close();
+    }
+    return out.toString();
+  }
+
+  @Test
+  public void testDisabled ()
+  {
+    EventTrace.Source source = new EventTrace.Source("cs");
+    assertFalse("off", source.isEnabled());
+    source.record(1, TraceEvent.COLD_NC_USAGE, 15.0);
+    assertEquals("nothing recorded", 0, EventTrace.get().getRecorded());
+  }
+
+  @Test
+  public void testRoundTrip () throws Exception
+  {
+    EventTrace.start(file, 64);
+    EventTrace.Source cs = new EventTrace.Source("cs");
+    EventTrace.Source truck = new EventTrace.Source("truck");
+    assertTrue("on", cs.isEnabled());
+    cs.record(7, TraceEvent.COLD_NC_USAGE, 15.5);
+    truck.record(7, TraceEvent.TRUCK_USAGE, 12.0, 3.0, -4.0);
+    cs.record(8, TraceEvent.COLD_COOLING, -20.0, 1.5, 40.0, -0.25);
+    EventTrace.stop();
+
+    String[] lines = decode().split("\n");
+    assertEquals("three events", 3, lines.length);
+    assertEquals("first", "7 cs coldstorage.ncUsage ncUsage=15.5", lines[0]);
+    assertEquals("second",
+                 "7 truck lifttruck.usage used=12.0 up=3.0 down=-4.0",
+                 lines[1]);
+    assertEquals("third",
+                 "8 cs coldstorage.cooling temp=-20.0 adjustment=1.5"
+                 + " energy=40.0 tempChange=-0.25", lines[2]);
+  }
+
+  // a source registers again with a new trace
+  @Test
+  public void testRestart () throws Exception
+  {
+    EventTrace.Source cs = new EventTrace.Source("cs");
+    EventTrace.start(file, 64);
+    cs.record(1, TraceEvent.COLD_NC_USAGE, 1.0);
+    EventTrace.start(file, 64);
+    cs.record(2, TraceEvent.COLD_NC_USAGE, 2.0);
+    EventTrace.stop();
+    assertEquals("new file", "2 cs coldstorage.ncUsage ncUsage=2.0",
+                 decode().trim());
+  }
+
+  // names are queued off the ring, so a full ring drops no names
+  @Test
+  public void testNamesKept () throws Exception
+  {
+    EventTrace.start(file, 16);
+    for (int i = 0; i < 200; i++)
+      new EventTrace.Source("m" + i).record(i, TraceEvent.COLD_NC_USAGE, i);
+    EventTrace.stop();
+    for (String line : decode().split("\n")) {
+      String[] parts = line.split(" ");
+      assertEquals("named", "m" + parts[0], parts[1]);
+    }
+  }
+
+  // many threads, all events written in claim order per source
+  @Test
+  public void testConcurrent () throws Exception
+  {
+    EventTrace.start(file, EventTrace.DEFAULT_SLOTS);
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final EventTrace.Source source = new EventTrace.Source("m" + t);
+      threads[t] = new Thread() {
+        @Override
+        public void run ()
+        {
+          for (int i = 0; i < 1000; i++)
+            source.record(i, TraceEvent.COLD_NC_USAGE, i);
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    EventTrace trace = EventTrace.get();
+    EventTrace.stop();
+    assertEquals("none dropped", 0, trace.getDropped());
+    String[] lines = decode().split("\n");
+    assertEquals("all written", 4000, lines.length);
+    int[] last = {-1, -1, -1, -1};
+    for (String line : lines) {
+      String[] parts = line.split(" ");
+      int model = Integer.parseInt(parts[1].substring(1));
+      int timeslot = Integer.parseInt(parts[0]);
+      assertEquals("in order", last[model] + 1, timeslot);
+      last[model] = timeslot;
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.StringWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ModelDiagnosticsTest
+{
+  private ModelDiagnostics uut;
+  private File trace;
+  private File journal;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    uut = new ModelDiagnostics();
+    trace = File.createTempFile("trace", ".bin");
+    trace.deleteOnExit();
+    journal = File.createTempFile("journal", ".bin");
+    journal.deleteOnExit();
+  }
+
+  @After
+  public void tearDown ()
+  {
+    uut.stop();
+  }
+
+  @Test
+  public void testNothingConfigured ()
+  {
+    uut.start();
+    assertFalse("no trace", EventTrace.get().isEnabled());
+    assertFalse("no journal", StateJournal.get().isEnabled());
+    assertFalse("no recording", ReplayRecorder.get().isEnabled());
+  }
+
+  // stop() writes out the trace; a restart starts new files
+  @Test
+  public void testStartStop () throws Exception
+  {
+    uut.withTraceFile(trace.getPath()).withJournalFile(journal.getPath());
+    uut.start();
+    assertTrue("tracing", EventTrace.get().isEnabled());
+    assertTrue("journaling", StateJournal.get().isEnabled());
+    assertFalse("not recording", ReplayRecorder.get().isEnabled());
+    EventTrace.Source source = new EventTrace.Source("cs");
+    source.record(3, TraceEvent.COLD_NC_USAGE, 1.0);
+    EventTrace first = EventTrace.get();
+    uut.start();
+    assertNotSame("new trace", first, EventTrace.get());
+    source.record(4, TraceEvent.COLD_NC_USAGE, 2.0);
+    uut.stop();
+    assertFalse("stopped", EventTrace.get().isEnabled());
+    assertFalse("journal stopped", StateJournal.get().isEnabled());
+
+    StringWriter out = new StringWriter();
+    FileInputStream in = new FileInputStream(trace);
+    try {
+      new TraceDecoder().decode(in, out);
+    }
+    finally {
+      in.close();
+    }
+    assertEquals("second game only", "4 cs coldstorage.ncUsage ncUsage=2.0",
+                 out.toString().trim());
+  }
+}
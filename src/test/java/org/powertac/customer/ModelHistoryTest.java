@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ModelHistoryTest
+{
+  // values come back bit-for-bit, and old blocks are dropped
+  @Test
+  public void testSeriesRoundTrip ()
+  {
+    Random random = new Random(1);
+    CompressedSeries series = new CompressedSeries(1000);
+    double[] values = new double[5000];
+    double temp = -20.0;
+    for (int i = 0; i < values.length; i++) {
+      if (random.nextInt(4) == 0)
+        temp += random.nextGaussian() * 0.1;
+      values[i] = (i % 97 == 0) ? Double.NaN : temp;
+      series.append(values[i]);
+    }
+    assertEquals("end", 5000, series.getEndIndex());
+    assertTrue("retains capacity", 5000 - series.getFirstIndex() >= 1000);
+    assertTrue("drops old blocks", series.getFirstIndex() > 0);
+
+    double[] result = new double[values.length];
+    series.read(0, values.length, result, 0);
+    for (int i = 0; i < values.length; i++) {
+      if (i < series.getFirstIndex())
+        assertTrue("dropped " + i, Double.isNaN(result[i]));
+      else
+        assertEquals("value " + i, Double.doubleToLongBits(values[i]),
+                     Double.doubleToLongBits(result[i]));
+    }
+    assertEquals("single", values[4503], series.get(4503), 0.0);
+    assertTrue("past the end", Double.isNaN(series.get(5000)));
+    assertTrue("compressed", series.getBytes() < 1100 * 8);
+  }
+
+  @Test
+  public void testHistoryTiers ()
+  {
+    ModelHistory history = new ModelHistory("temp", "energy");
+    int temp = history.getColumn("temp");
+    int energy = history.getColumn("energy");
+    assertEquals("no data", -1, history.getLastTimeslot());
+    for (int ts = 360; ts < 360 + 48; ts++) {
+      history.record(ts, -20.0 + (ts % 24), 10.0);
+    }
+    // skipped timeslots are NaN
+    history.record(410, -20.0, 10.0);
+    assertEquals("first", 360, history.getFirstTimeslot());
+    assertEquals("last", 410, history.getLastTimeslot());
+    assertEquals("hourly", -20.0 + (370 % 24),
+                 history.getHourly(temp, 370), 1e-12);
+    assertTrue("gap", Double.isNaN(history.getHourly(energy, 408)));
+
+    double[] range = new double[4];
+    history.getHourly(energy, 406, 410, range);
+    assertEquals("in range", 10.0, range[0], 1e-12);
+    assertTrue("gap in range", Double.isNaN(range[2]));
+
+    assertEquals("two days", 2, history.getDays());
+    double[] days = new double[2];
+    history.getDaily(energy, 0, 2, days);
+    assertEquals("daily mean", 10.0, days[1], 1e-12);
+  }
+
+  // daily means skip missing samples rather than turning NaN
+  @Test
+  public void testDailyGap ()
+  {
+    ModelHistory history = new ModelHistory("energy");
+    for (int ts = 0; ts < 10; ts++)
+      history.record(ts, 12.0);
+    // timeslots 10 through 14 are skipped
+    for (int ts = 15; ts < 24; ts++)
+      history.record(ts, 6.0);
+    // a day with nothing recorded after its first hour
+    history.record(24, 3.0);
+    history.record(48, 5.0);
+    assertEquals("two days", 2, history.getDays());
+    double[] days = new double[2];
+    history.getDaily(0, 0, 2, days);
+    assertEquals("mean of present", (10 * 12.0 + 9 * 6.0) / 19.0,
+                 days[0], 1e-12);
+    assertEquals("single sample", 3.0, days[1], 1e-12);
+  }
+
+  // a full 60-day game fits in well under 100 kB per model
+  @Test
+  public void testFootprint ()
+  {
+    Random random = new Random(2);
+    ModelHistory history = new ModelHistory("temp", "stock", "energy");
+    double temp = -20.0;
+    double stock = 500.0;
+    for (int ts = 0; ts < ModelHistory.DEFAULT_HOURS; ts++) {
+      temp += random.nextGaussian() * 0.05;
+      stock += random.nextGaussian();
+      history.record(ts, temp, stock, 60.0 + 20.0 * random.nextDouble());
+    }
+    assertEquals("all held", 0, history.getOldestTimeslot());
+    assertTrue("compact", history.getBytes() < 100000);
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+import org.powertac.common.Tariff;
+
+public class ModelMetricsTest
+{
+  @After
+  public void tearDown ()
+  {
+    ModelMetrics.stopJmx();
+  }
+
+  @Test
+  public void testCounters ()
+  {
+    ModelMetrics metrics = ModelMetrics.forModel(new Dummy("counters"));
+    metrics.stepped(2000L);
+    metrics.stepped(4000L);
+    metrics.addEnergy(1.5);
+    metrics.addEnergy(2.0);
+    metrics.addRegulationOffered(3.0, -1.0);
+    metrics.addRegulationDelivered(0.5);
+    metrics.addRegulationDelivered(-0.25);
+    metrics.addRegulationDelivered(0.0);
+    metrics.planHit();
+    metrics.planHit();
+    metrics.planHit();
+    metrics.planMiss();
+    metrics.solved();
+    metrics.deficit(7.0);
+
+    assertEquals("steps", 2L, metrics.getSteps());
+    assertEquals("mean", 3.0, metrics.getMeanStepMicros(), 1e-9);
+    assertEquals("max", 4.0, metrics.getMaxStepMicros(), 1e-9);
+    assertEquals("energy", 3.5, metrics.getEnergyUsed(), 1e-9);
+    assertEquals("offered up", 3.0, metrics.getRegulationOfferedUp(), 1e-9);
+    assertEquals("offered down", -1.0,
+                 metrics.getRegulationOfferedDown(), 1e-9);
+    assertEquals("delivered up", 0.5,
+                 metrics.getRegulationDeliveredUp(), 1e-9);
+    assertEquals("delivered down", -0.25,
+                 metrics.getRegulationDeliveredDown(), 1e-9);
+    assertEquals("plan hit rate", 0.75, metrics.getPlanHitRate(), 1e-9);
+    assertEquals("solves", 1L, metrics.getSolves());
+    assertEquals("deficits", 1L, metrics.getDeficits());
+    assertEquals("deficit energy", 7.0, metrics.getDeficitEnergy(), 1e-9);
+
+    metrics.reset();
+    assertEquals("reset", 0L, metrics.getSteps());
+    assertEquals("reset energy", 0.0, metrics.getEnergyUsed(), 0.0);
+  }
+
+  @Test
+  public void testProfileCache ()
+  {
+    ModelMetrics metrics = ModelMetrics.forModel(new Dummy("profiles"));
+    assertEquals("no cache", 0.0, metrics.getProfileHitRate(), 0.0);
+    ProfileCache<double[]> cache = new ProfileCache<double[]>();
+    metrics.setProfileCache(cache);
+    Tariff tariff = mock(Tariff.class);
+    when(tariff.getId()).thenReturn(1L);
+    cache.get(tariff, 0);
+    cache.put(tariff, new double[1], 0);
+    cache.get(tariff, 1);
+    cache.get(tariff, 2);
+    assertEquals("hits", 2L, metrics.getProfileHits());
+    assertEquals("misses", 1L, metrics.getProfileMisses());
+  }
+
+  // totals are by type; a model created again replaces the old one
+  @Test
+  public void testTotals ()
+  {
+    ModelMetrics.forModel(new Other("a")).addEnergy(1.0);
+    ModelMetrics b = ModelMetrics.forModel(new Other("b"));
+    b.addEnergy(2.0);
+    b.stepped(9000L);
+    ModelMetrics.forModel(new Dummy("a")).addEnergy(100.0);
+    ModelMetricsMBean totals = ModelMetrics.getTotals("Other");
+    assertEquals("energy", 3.0, totals.getEnergyUsed(), 1e-9);
+    assertEquals("max", 9.0, totals.getMaxStepMicros(), 1e-9);
+
+    ModelMetrics again = ModelMetrics.forModel(new Other("a"));
+    assertSame("replaced", again, ModelMetrics.get("Other", "a"));
+    assertEquals("fresh", 2.0, totals.getEnergyUsed(), 1e-9);
+  }
+
+  @Test
+  public void testJmx () throws Exception
+  {
+    MBeanServer server = MBeanServerFactory.newMBeanServer();
+    ModelMetrics before = ModelMetrics.forModel(new Dummy("before"));
+    before.addEnergy(4.0);
+    ModelMetrics.startJmx(server);
+    ModelMetrics after = ModelMetrics.forModel(new Dummy("after"));
+    after.planHit();
+
+    ObjectName name =
+        ModelMetrics.getObjectName("Dummy", ObjectName.quote("before"));
+    assertEquals("existing model", 4.0,
+                 (Double)server.getAttribute(name, "EnergyUsed"), 1e-9);
+    name = ModelMetrics.getObjectName("Dummy", ObjectName.quote("after"));
+    assertEquals("new model", 1L, server.getAttribute(name, "PlanHits"));
+    name = ModelMetrics.getObjectName("Dummy", ModelMetrics.TOTALS);
+    assertTrue("totals", server.isRegistered(name));
+
+    // same name registers the new instance
+    ModelMetrics.forModel(new Dummy("after"));
+    name = ModelMetrics.getObjectName("Dummy", ObjectName.quote("after"));
+    assertEquals("replaced", 0L, server.getAttribute(name, "PlanHits"));
+
+    ModelMetrics.stopJmx();
+    assertFalse("unregistered", server.isRegistered(name));
+  }
+
+  // concurrent readers and writers lose no updates
+  @Test
+  public void testConcurrent () throws Exception
+  {
+    final ModelMetrics metrics =
+        ModelMetrics.forModel(new Dummy("concurrent"));
+    final int n = 100000;
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run ()
+        {
+          for (int i = 0; i < n; i++) {
+            metrics.addEnergy(0.5);
+            metrics.stepped(i);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    assertEquals("energy", 0.5 * n * threads.length,
+                 metrics.getEnergyUsed(), 1e-6);
+    assertEquals("steps", (long)n * threads.length, metrics.getSteps());
+    assertEquals("max", (n - 1) / 1000.0, metrics.getMaxStepMicros(), 1e-9);
+  }
+
+  static class Dummy extends AbstractCustomer
+  {
+    Dummy (String name)
+    {
+      super(name);
+    }
+
+    @Override
+    public void step ()
+    {
+    }
+
+    @Override
+    public void evaluateTariffs (List<Tariff> tariffs)
+    {
+    }
+  }
+
+  static class Other extends Dummy
+  {
+    Other (String name)
+    {
+      super(name);
+    }
+  }
+}
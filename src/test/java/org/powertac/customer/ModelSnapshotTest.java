@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import static org.junit.Assert.*;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.Tariff;
+
+public class ModelSnapshotTest
+{
+  private File file;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    file = File.createTempFile("snapshot", ".bin");
+    file.deleteOnExit();
+  }
+
+  @Test
+  public void testRoundTrip () throws Exception
+  {
+    Counter a = new Counter("a", 1);
+    a.value = 3.5;
+    a.history = new double[] {1.0, 2.0, 3.0};
+    Counter b = new Counter("b", 1);
+    b.value = -1.0;
+    Plain plain = new Plain("plain");
+    assertEquals("two saved", 2,
+                 ModelSnapshot.save(file, 360,
+                                    Arrays.<AbstractCustomer>asList(a, plain,
+                                                                    b)));
+
+    ModelSnapshot snapshot = ModelSnapshot.open(file);
+    assertEquals("timeslot", 360, snapshot.getTimeslot());
+    assertEquals("keys", 2, snapshot.getKeys().size());
+    Counter a2 = new Counter("a", 1);
+    Counter b2 = new Counter("b", 1);
+    assertTrue("b restored", snapshot.restore(b2));
+    assertTrue("a restored", snapshot.restore(a2));
+    assertEquals("a value", 3.5, a2.value, 0.0);
+    assertArrayEquals("a history", a.history, a2.history, 0.0);
+    assertEquals("b value", -1.0, b2.value, 0.0);
+    assertEquals("b history", 0, b2.history.length);
+    assertFalse("not snapshot state", snapshot.restore(plain));
+  }
+
+  @Test
+  public void testMissing () throws Exception
+  {
+    ModelSnapshot.save(file, 0, Arrays.asList(new Counter("a", 1)));
+    ModelSnapshot snapshot = ModelSnapshot.open(file);
+    Counter other = new Counter("other", 1);
+    other.value = 7.0;
+    assertFalse("not in snapshot", snapshot.restore(other));
+    assertEquals("unchanged", 7.0, other.value, 0.0);
+  }
+
+  @Test
+  public void testVersion () throws Exception
+  {
+    ModelSnapshot.save(file, 0, Arrays.asList(new Counter("a", 1)));
+    Counter newer = new Counter("a", 2);
+    newer.value = 7.0;
+    assertFalse("old record", ModelSnapshot.open(file).restore(newer));
+    assertEquals("unchanged", 7.0, newer.value, 0.0);
+  }
+
+  @Test(expected = IOException.class)
+  public void testNotSnapshot () throws Exception
+  {
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[16]);
+    out.close();
+    ModelSnapshot.open(file);
+  }
+
+  static class Counter extends AbstractCustomer implements SnapshotState
+  {
+    private final int version;
+    double value = 0.0;
+    double[] history = new double[0];
+
+    Counter (String name, int version)
+    {
+      super(name);
+      this.version = version;
+    }
+
+    @Override
+    public int getSnapshotVersion ()
+    {
+      return version;
+    }
+
+    @Override
+    public void saveState (DataOutput out) throws IOException
+    {
+      out.writeDouble(value);
+      ModelSnapshot.writeDoubles(out, history);
+    }
+
+    @Override
+    public boolean restoreState (ByteBuffer in, int version)
+    {
+      if (version != this.version)
+        return false;
+      value = in.getDouble();
+      history = ModelSnapshot.readDoubles(in);
+      return true;
+    }
+
+    @Override
+    public void step ()
+    {
+    }
+
+    @Override
+    public void evaluateTariffs (List<Tariff> tariffs)
+    {
+    }
+  }
+
+  static class Plain extends AbstractCustomer
+  {
+    Plain (String name)
+    {
+      super(name);
+    }
+
+    @Override
+    public void step ()
+    {
+    }
+
+    @Override
+    public void evaluateTariffs (List<Tariff> tariffs)
+    {
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.powertac.common.RegulationCapacity;
+import org.powertac.common.Tariff;
+import org.powertac.common.TariffSubscription;
+
+public class ParallelStepperTest
+{
+  private ParallelStepper uut;
+  private TariffSubscription sub;
+  private List<String> applied;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    uut = new ParallelStepper().withThreads(4);
+    sub = mock(TariffSubscription.class);
+    applied = Collections.synchronizedList(new ArrayList<String>());
+  }
+
+  @After
+  public void tearDown ()
+  {
+    uut.shutdown();
+  }
+
+  private List<TestModel> models (int count)
+  {
+    List<TestModel> result = new ArrayList<TestModel>();
+    for (int i = 0; i < count; i++) {
+      result.add(new TestModel("m" + i, i));
+    }
+    return result;
+  }
+
+  // The first model finishes last: it holds until the others are done,
+  // and the others start once it is running
+  private List<TestModel> gated (int count)
+  {
+    List<TestModel> result = models(count);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(count - 1);
+    result.get(0).started = started;
+    result.get(0).waitFor = done;
+    for (int i = 1; i < count; i++) {
+      result.get(i).waitFor = started;
+      result.get(i).done = done;
+    }
+    return result;
+  }
+
+  private void assertReleased (List<TestModel> list)
+  {
+    for (TestModel model : list)
+      assertFalse(model.getName() + " timed out", model.timedOut);
+  }
+
+  @Test
+  public void testUpdateOrder ()
+  {
+    List<TestModel> list = gated(8);
+    uut.step(list);
+    assertReleased(list);
+    InOrder inOrder = inOrder(sub);
+    for (int i = 0; i < 8; i++) {
+      inOrder.verify(sub).usePower(i);
+    }
+    assertEquals("all deferred actions", 8, applied.size());
+    for (int i = 0; i < 8; i++) {
+      assertEquals("action " + i, "m" + i, applied.get(i));
+      assertTrue("stepped", list.get(i).stepped);
+    }
+  }
+
+  // regulation capacity is created when the updates are applied, in
+  // list order
+  @Test
+  public void testCapacityOrder ()
+  {
+    List<TestModel> list = gated(4);
+    for (TestModel model : list)
+      model.regulates = true;
+    uut.step(list);
+    assertReleased(list);
+    ArgumentCaptor<RegulationCapacity> capacity =
+        ArgumentCaptor.forClass(RegulationCapacity.class);
+    verify(sub, times(4)).setRegulationCapacity(capacity.capture());
+    for (int i = 0; i < 4; i++) {
+      RegulationCapacity rc = capacity.getAllValues().get(i);
+      assertEquals("up " + i, i, rc.getUpRegulationCapacity(), 1e-9);
+      assertEquals("down " + i, -i, rc.getDownRegulationCapacity(), 1e-9);
+    }
+  }
+
+  // updates go straight through when not stepped by the stepper
+  @Test
+  public void testDirect ()
+  {
+    SubscriptionUpdates.usePower(sub, 3.0);
+    verify(sub).usePower(3.0);
+  }
+
+  // a failing model does not stop the others
+  @Test
+  public void testFailure ()
+  {
+    List<TestModel> list = gated(4);
+    list.get(1).fail = true;
+    uut.step(list);
+    assertReleased(list);
+    verify(sub).usePower(0.0);
+    verify(sub).usePower(1.0);
+    verify(sub).usePower(2.0);
+    verify(sub).usePower(3.0);
+    assertEquals("actions before failure", 3, applied.size());
+  }
+
+  // estimates cover each model's step time, and updates still come in
+  // list order once the models are scheduled by cost
+  @Test
+  public void testCostEstimates ()
+  {
+    List<TestModel> list = gated(6);
+    assertTrue("unknown", Double.isNaN(uut.getCostEstimate(list.get(0))));
+    uut.step(list);
+    assertReleased(list);
+    double[] first = new double[6];
+    for (int i = 0; i < 6; i++) {
+      first[i] = uut.getCostEstimate(list.get(i));
+      assertTrue("first estimate " + i, first[i] >= list.get(i).nanos);
+    }
+    for (TestModel model : list)
+      model.started = model.waitFor = model.done = null;
+    uut.step(list);
+    long work = 0;
+    for (int i = 0; i < 6; i++) {
+      TestModel model = list.get(i);
+      work += model.nanos;
+      assertTrue("smoothed " + i, uut.getCostEstimate(model)
+                 >= Math.min(first[i], model.nanos));
+    }
+    assertTrue("work counted", uut.getWork() >= work);
+    assertTrue("wall time", uut.getWallTime() > 0);
+    InOrder inOrder = inOrder(sub);
+    for (int i = 0; i < 6; i++) {
+      inOrder.verify(sub).usePower(i);
+    }
+    for (int i = 0; i < 6; i++) {
+      assertEquals("second step " + i, "m" + i, applied.get(6 + i));
+    }
+  }
+
+  @Test
+  public void testSequential ()
+  {
+    uut.withThreads(1);
+    uut.step(models(3));
+    InOrder inOrder = inOrder(sub);
+    inOrder.verify(sub).usePower(0.0);
+    inOrder.verify(sub).usePower(1.0);
+    inOrder.verify(sub).usePower(2.0);
+  }
+
+  class TestModel extends AbstractCustomer
+  {
+    double kWh;
+    boolean fail = false;
+    boolean stepped = false;
+    boolean regulates = false;
+    boolean timedOut = false;
+    long nanos = 0; // time spent in the last step
+    CountDownLatch started = null; // released when this model starts
+    CountDownLatch waitFor = null; // awaited before finishing
+    CountDownLatch done = null; // released when this model finishes
+
+    TestModel (String name, double kWh)
+    {
+      super(name);
+      this.kWh = kWh;
+    }
+
+    @Override
+    public void step ()
+    {
+      long start = System.nanoTime();
+      stepped = true;
+      if (null != started)
+        started.countDown();
+      try {
+        SubscriptionUpdates.usePower(sub, kWh);
+        if (regulates)
+          SubscriptionUpdates.setRegulationCapacity(sub, kWh, -kWh);
+        if (fail)
+          throw new RuntimeException("test failure");
+        if (null != waitFor && !waitFor.await(10, TimeUnit.SECONDS))
+          timedOut = true;
+        final String name = getName();
+        SubscriptionUpdates.defer(new Runnable() {
+          @Override
+          public void run ()
+          {
+            applied.add(name);
+          }
+        });
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      finally {
+        if (null != done)
+          done.countDown();
+        nanos = System.nanoTime() - start;
+      }
+    }
+
+    @Override
+    public void evaluateTariffs (List<Tariff> tariffs)
+    {
+    }
+  }
+}
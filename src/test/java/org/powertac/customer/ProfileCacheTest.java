@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.Tariff;
+
+public class ProfileCacheTest
+{
+  private ProfileCache<double[]> uut;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    uut = new ProfileCache<double[]>(3, 24);
+  }
+
+  private Tariff tariff (long id)
+  {
+    Tariff result = mock(Tariff.class);
+    when(result.getId()).thenReturn(id);
+    return result;
+  }
+
+  @Test
+  public void testHitMiss ()
+  {
+    Tariff t1 = tariff(1);
+    assertNull("empty", uut.get(t1, 0));
+    double[] profile = {1.0, 2.0};
+    uut.put(t1, profile, 0);
+    assertSame("hit", profile, uut.get(t1, 5));
+    assertEquals("hits", 1, uut.getHits());
+    assertEquals("misses", 1, uut.getMisses());
+    assertEquals("rate", 0.5, uut.getHitRate(), 1e-9);
+  }
+
+  // least recently used entry goes first
+  @Test
+  public void testSizeEviction ()
+  {
+    Tariff t1 = tariff(1);
+    Tariff t2 = tariff(2);
+    Tariff t3 = tariff(3);
+    Tariff t4 = tariff(4);
+    uut.put(t1, new double[1], 0);
+    uut.put(t2, new double[1], 0);
+    uut.put(t3, new double[1], 0);
+    assertNotNull("touch t1", uut.get(t1, 0));
+    uut.put(t4, new double[1], 0);
+    assertEquals("size", 3, uut.size());
+    assertEquals("one eviction", 1, uut.getEvictions());
+    assertNull("t2 evicted", uut.get(t2, 0));
+    assertNotNull("t1 kept", uut.get(t1, 0));
+  }
+
+  @Test
+  public void testAgeEviction ()
+  {
+    Tariff t1 = tariff(1);
+    uut.put(t1, new double[1], 10);
+    assertNotNull("young", uut.get(t1, 34));
+    assertNull("old", uut.get(t1, 35));
+    assertEquals("evicted", 1, uut.getEvictions());
+    assertEquals("gone", 0, uut.size());
+  }
+
+  // revoked and expired tariffs are dropped
+  @Test
+  public void testLifecycle ()
+  {
+    Tariff t1 = tariff(1);
+    Tariff t2 = tariff(2);
+    Tariff t3 = tariff(3);
+    uut.put(t1, new double[1], 0);
+    uut.put(t2, new double[1], 0);
+    uut.put(t3, new double[1], 0);
+    when(t1.isRevoked()).thenReturn(true);
+    assertNull("revoked", uut.get(t1, 1));
+    when(t2.isExpired()).thenReturn(true);
+    uut.purge(1);
+    assertEquals("one left", 1, uut.size());
+    assertEquals("invalidated", 2, uut.getInvalidations());
+    uut.invalidate(t3);
+    assertEquals("empty", 0, uut.size());
+  }
+}
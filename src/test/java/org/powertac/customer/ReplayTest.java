@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Instant;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.powertac.common.CustomerInfo;
+import org.powertac.common.Tariff;
+import org.powertac.common.TariffSubscription;
+import org.powertac.common.TimeService;
+import org.powertac.common.Timeslot;
+import org.powertac.common.WeatherReport;
+import org.powertac.common.interfaces.CustomerServiceAccessor;
+import org.powertac.common.repo.RandomSeedRepo;
+import org.powertac.common.repo.TariffRepo;
+import org.powertac.common.repo.TariffSubscriptionRepo;
+import org.powertac.common.repo.TimeslotRepo;
+import org.powertac.common.repo.WeatherReportRepo;
+
+public class ReplayTest
+{
+  private File file;
+  private CustomerServiceAccessor service;
+  private TimeslotRepo timeslotRepo;
+  private WeatherReportRepo weatherRepo;
+  private TariffSubscriptionRepo subscriptionRepo;
+  private TariffRepo tariffRepo;
+  private Tariff tariff;
+  private TariffSubscription sub;
+  private Instant start;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    file = File.createTempFile("replay", ".bin");
+    file.deleteOnExit();
+    timeslotRepo = mock(TimeslotRepo.class);
+    weatherRepo = mock(WeatherReportRepo.class);
+    subscriptionRepo = mock(TariffSubscriptionRepo.class);
+    service = mock(CustomerServiceAccessor.class);
+    when(service.getTimeslotRepo()).thenReturn(timeslotRepo);
+    when(service.getWeatherReportRepo()).thenReturn(weatherRepo);
+    when(service.getTariffSubscriptionRepo()).thenReturn(subscriptionRepo);
+    tariff = mock(Tariff.class);
+    when(tariff.getId()).thenReturn(7L);
+    tariffRepo = mock(TariffRepo.class);
+    when(tariffRepo.findTariffById(7L)).thenReturn(tariff);
+    sub = mock(TariffSubscription.class);
+    when(sub.getTariff()).thenReturn(tariff);
+    when(sub.getCustomersCommitted()).thenReturn(1);
+    List<TariffSubscription> subs = new ArrayList<TariffSubscription>();
+    subs.add(sub);
+    when(subscriptionRepo.findActiveSubscriptionsForCustomer(any(CustomerInfo.class)))
+        .thenReturn(subs);
+    start = new DateTime(2015, 1, 5, 0, 0, 0, DateTimeZone.UTC).toInstant();
+  }
+
+  @After
+  public void tearDown ()
+  {
+    ReplayRecorder.stop();
+  }
+
+  // records a run of the probe, flushing after each timeslot as the
+  // host does, and returns the energy it used
+  private double[] record (Probe probe, int first, int count)
+  {
+    probe.setServiceAccessor(service);
+    probe.initialize();
+    for (int i = first; i < first + count; i++) {
+      step(probe, i);
+      ReplayRecorder.get().flush();
+    }
+    ArgumentCaptor<Double> used = ArgumentCaptor.forClass(Double.class);
+    verify(sub, times(count)).usePower(used.capture());
+    double[] result = new double[count];
+    for (int i = 0; i < count; i++)
+      result[i] = used.getAllValues().get(i);
+    return result;
+  }
+
+  private void step (Probe probe, int timeslot)
+  {
+    when(timeslotRepo.currentSerialNumber()).thenReturn(timeslot);
+    when(timeslotRepo.currentTimeslot())
+        .thenReturn(new Timeslot(timeslot,
+                                 start.plus(timeslot * TimeService.HOUR)));
+    when(weatherRepo.currentWeatherReport())
+        .thenReturn(new WeatherReport(timeslot, 10.0 + timeslot,
+                                      0.0, 0.0, 0.0));
+    when(sub.getRegulation()).thenReturn(0 == timeslot % 3 ? -2.0 : 0.0);
+    probe.step();
+  }
+
+  @Test
+  public void testDisabled ()
+  {
+    assertFalse("off", ReplayRecorder.get().isEnabled());
+    record(new Probe("probe"), 0, 3);
+    assertEquals("nothing recorded", 0L, ReplayRecorder.get().getRecords());
+  }
+
+  @Test
+  public void testRoundTrip () throws Exception
+  {
+    ReplayRecorder recorder = ReplayRecorder.start(file);
+    double[] used = record(new Probe("probe"), 24, 48);
+    ReplayRecorder.stop();
+    assertEquals("records", 48L, recorder.getRecords());
+
+    ReplayLog log = ReplayLog.read(file);
+    assertEquals("first", 24, log.getFirstTimeslot());
+    assertEquals("last", 71, log.getLastTimeslot());
+    Probe copy = new Probe("probe");
+    ReplayLog.Inputs inputs = log.get(copy);
+    assertEquals("entries", 48, inputs.size());
+    assertEquals("temperature", 11.0 + 24, inputs.getTemperature(1), 0.0);
+    assertEquals("tariff", 7L, inputs.getTariffId(1));
+    assertEquals("regulation", -2.0, inputs.getRegulation(3), 0.0);
+
+    ReplayDriver driver =
+        new ReplayDriver(log, tariffRepo, mock(RandomSeedRepo.class));
+    assertTrue("added", driver.add(copy));
+    assertEquals("replayed", 48, driver.run(null));
+    assertArrayEquals("same usage", used, driver.getUsage(copy), 0.0);
+  }
+
+  // inputs are held by the model until the host flushes, and a flush
+  // reaches the file while recording goes on
+  @Test
+  public void testFlush () throws Exception
+  {
+    ReplayRecorder recorder = ReplayRecorder.start(file);
+    Probe probe = new Probe("probe");
+    record(probe, 0, 3);
+    assertEquals("flushed", 3L, recorder.getRecords());
+    step(probe, 3);
+    assertEquals("held", 3L, recorder.getRecords());
+    assertEquals("in file", 3,
+                 ReplayLog.read(file).get(new Probe("probe")).size());
+    recorder.flush();
+    assertEquals("written", 4L, recorder.getRecords());
+    assertEquals("timeslot in file", 3, ReplayLog.read(file).getLastTimeslot());
+  }
+
+  // a recording cut off by a crash is read up to its last full record
+  @Test
+  public void testTruncated () throws Exception
+  {
+    ReplayRecorder.start(file);
+    record(new Probe("probe"), 0, 10);
+    ReplayRecorder.stop();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(raf.length() - 5);
+    raf.close();
+    ReplayLog log = ReplayLog.read(file);
+    assertEquals("last full record", 8, log.getLastTimeslot());
+    assertEquals("entries", 9, log.get(new Probe("probe")).size());
+  }
+
+  // the forecast a model saw is replayed, not rebuilt from the
+  // temperature
+  @Test
+  public void testForecast () throws Exception
+  {
+    service = mock(CustomerServiceAccessor.class,
+                   withSettings().extraInterfaces(WeatherSnapshot.Source.class));
+    when(service.getTimeslotRepo()).thenReturn(timeslotRepo);
+    when(service.getWeatherReportRepo()).thenReturn(weatherRepo);
+    when(service.getTariffSubscriptionRepo()).thenReturn(subscriptionRepo);
+    WeatherSnapshot.Source source = (WeatherSnapshot.Source)service;
+    ReplayRecorder.start(file);
+    Probe probe = new Probe("probe");
+    probe.setServiceAccessor(service);
+    probe.initialize();
+    double[] forecast = new double[WeatherSnapshot.FORECAST_HOURS];
+    for (int i = 0; i < 6; i++) {
+      for (int h = 0; h < forecast.length; h++)
+        forecast[h] = 20.0 - i - h;
+      when(source.getWeatherSnapshot())
+          .thenReturn(WeatherSnapshot.create(i, new WeatherReport(i, 10.0 + i,
+                                                                  0.0, 0.0,
+                                                                  0.0),
+                                             forecast));
+      step(probe, i);
+      ReplayRecorder.get().flush();
+    }
+    ReplayRecorder.stop();
+    ArgumentCaptor<Double> used = ArgumentCaptor.forClass(Double.class);
+    verify(sub, times(6)).usePower(used.capture());
+
+    ReplayLog log = ReplayLog.read(file);
+    assertEquals("forecast hours", WeatherSnapshot.FORECAST_HOURS,
+                 log.getForecast(4).length);
+    assertEquals("third hour", 14.0, log.getForecast(4)[2], 0.0);
+    assertNull("no forecast", log.getForecast(6));
+    Probe copy = new Probe("probe");
+    ReplayDriver driver =
+        new ReplayDriver(log, tariffRepo, mock(RandomSeedRepo.class));
+    assertTrue("added", driver.add(copy));
+    assertEquals("replayed", 6, driver.run(null));
+    double[] replayed = driver.getUsage(copy);
+    for (int i = 0; i < 6; i++)
+      assertEquals("same usage " + i, used.getAllValues().get(i),
+                   replayed[i], 0.0);
+  }
+
+  @Test
+  public void testMissingTariff () throws Exception
+  {
+    ReplayRecorder.start(file);
+    record(new Probe("probe"), 0, 4);
+    ReplayRecorder.stop();
+    ReplayDriver driver =
+        new ReplayDriver(ReplayLog.read(file), mock(TariffRepo.class),
+                         mock(RandomSeedRepo.class));
+    assertFalse("tariff missing", driver.add(new Probe("probe")));
+    assertFalse("not recorded", driver.add(new Probe("other")));
+    assertEquals("nothing to do", 0, driver.run(null));
+  }
+
+  // Uses energy that depends on all of its inputs
+  static class Probe extends AbstractCustomer
+  {
+    private CustomerInfo info;
+    private ReplayRecorder.Source replay = null;
+
+    Probe (String name)
+    {
+      super(name);
+    }
+
+    @Override
+    public void initialize ()
+    {
+      super.initialize();
+      info = new CustomerInfo(name, 1);
+      addCustomerInfo(info);
+    }
+
+    @Override
+    public void step ()
+    {
+      WeatherSnapshot weather = WeatherSnapshot.get(service);
+      double temperature = weather.getTemperature();
+      Timeslot timeslot = service.getTimeslotRepo().currentTimeslot();
+      if (null == replay)
+        replay = new ReplayRecorder.Source(this);
+      for (TariffSubscription sub : getCurrentSubscriptions(info)) {
+        if (replay.isEnabled())
+          replay.record(timeslot, weather, sub);
+        sub.usePower(temperature + 0.5 * weather.getForecastTemp(3)
+                     + 10.0 * sub.getRegulation()
+                     + sub.getCustomersCommitted()
+                     + sub.getTariff().getId() * 100.0);
+      }
+    }
+
+    @Override
+    public void evaluateTariffs (List<Tariff> tariffs)
+    {
+    }
+  }
+}
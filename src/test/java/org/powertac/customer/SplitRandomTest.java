@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.powertac.common.RandomSeed;
+
+public class SplitRandomTest
+{
+  @Test
+  public void testReproducible ()
+  {
+    SplitRandom a = new SplitRandom(42);
+    SplitRandom b = new SplitRandom(42);
+    for (int i = 0; i < 1000; i++) {
+      assertEquals("same draw " + i, a.nextLong(), b.nextLong());
+    }
+    assertFalse("different seed",
+                new SplitRandom(43).nextLong() == new SplitRandom(42).nextLong());
+  }
+
+  @Test
+  public void testFromSeed ()
+  {
+    RandomSeed seed = mock(RandomSeed.class);
+    when(seed.nextLong()).thenReturn(17L);
+    assertEquals("seeded", new SplitRandom(17).nextDouble(),
+                 SplitRandom.fromSeed(seed).nextDouble(), 0.0);
+  }
+
+  // derived streams do not depend on draws made from the parent
+  @Test
+  public void testStream ()
+  {
+    SplitRandom parent = new SplitRandom(3);
+    SplitRandom first = parent.stream(5);
+    parent.nextGaussian();
+    parent.nextDouble();
+    SplitRandom second = parent.stream(5);
+    assertEquals("same stream", first.nextLong(), second.nextLong());
+    assertFalse("other key",
+                parent.stream(6).nextLong() == parent.stream(5).nextLong());
+  }
+
+  // a restored stream continues where the saved one was, and derives
+  // the same child streams
+  @Test
+  public void testSaveState () throws Exception
+  {
+    SplitRandom random = new SplitRandom(9);
+    random.nextGaussian();
+    random.nextLong();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    random.saveState(new DataOutputStream(bytes));
+    SplitRandom restored =
+        SplitRandom.restoreState(ByteBuffer.wrap(bytes.toByteArray()));
+    for (int i = 0; i < 100; i++) {
+      assertEquals("same draw " + i, random.nextLong(), restored.nextLong());
+    }
+    assertEquals("same stream", random.stream(4).nextLong(),
+                 restored.stream(4).nextLong());
+  }
+
+  @Test
+  public void testBulkFill ()
+  {
+    SplitRandom a = new SplitRandom(7);
+    SplitRandom b = new SplitRandom(7);
+    double[] doubles = new double[10];
+    a.fillDoubles(doubles, 2, 8);
+    for (int i = 2; i < 10; i++) {
+      assertEquals("double " + i, b.nextDouble(), doubles[i], 0.0);
+    }
+    double[] normals = new double[100];
+    a.fillGaussians(normals, 0, 100);
+    for (int i = 0; i < 100; i++) {
+      assertEquals("normal " + i, b.nextGaussian(), normals[i], 0.0);
+    }
+    assertEquals("in step", a.nextLong(), b.nextLong());
+  }
+
+  @Test
+  public void testUniform ()
+  {
+    SplitRandom random = new SplitRandom(11);
+    int[] counts = new int[5];
+    for (int i = 0; i < 100000; i++) {
+      double x = random.nextDouble();
+      assertTrue("in range", x >= 0.0 && x < 1.0);
+      counts[random.nextInt(5)] += 1;
+    }
+    for (int count : counts) {
+      assertEquals("even", 20000, count, 600);
+    }
+  }
+
+  // moments and tails of the ziggurat sampler
+  @Test
+  public void testGaussian ()
+  {
+    SplitRandom random = new SplitRandom(0);
+    int n = 1000000;
+    double sum = 0.0;
+    double sumSq = 0.0;
+    double sumFourth = 0.0;
+    int tail = 0;
+    for (int i = 0; i < n; i++) {
+      double x = random.nextGaussian();
+      sum += x;
+      sumSq += x * x;
+      sumFourth += x * x * x * x;
+      if (Math.abs(x) > 2.0)
+        tail += 1;
+    }
+    assertEquals("mean", 0.0, sum / n, 0.005);
+    assertEquals("variance", 1.0, sumSq / n, 0.01);
+    assertEquals("kurtosis", 3.0, sumFourth / n, 0.05);
+    assertEquals("tails", 0.0455, (double)tail / n, 0.001);
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.StringWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StateJournalTest
+{
+  private static final int SET_A = StateJournal.method("setA");
+  private static final int SET_B = StateJournal.method("setB");
+
+  private File file;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    file = File.createTempFile("journal", ".bin");
+    file.deleteOnExit();
+  }
+
+  @After
+  public void tearDown ()
+  {
+    StateJournal.stop();
+  }
+
+  // decoded lines, with the millisecond prefix checked and removed
+  private String decode () throws Exception
+  {
+    StringWriter out = new StringWriter();
+    FileInputStream in = new FileInputStream(file);
+    try {
+      new StateJournalDecoder().decode(in, out);
+    }
+    finally {
+      in.close();
+    }
+    StringBuilder result = new StringBuilder();
+    for (String line : out.toString().split("\n")) {
+      if (line.isEmpty())
+        continue;
+      int colon = line.indexOf(':');
+      long millis = Long.parseLong(line.substring(0, colon));
+      assertTrue("elapsed time", millis >= 0L);
+      result.append(line.substring(colon + 1)).append('\n');
+    }
+    return result.toString();
+  }
+
+  @Test
+  public void testMethods ()
+  {
+    assertEquals("same index", SET_A, StateJournal.method("setA"));
+    assertFalse("distinct", SET_A == SET_B);
+    assertEquals("name", "setB", StateJournal.methodName(SET_B));
+  }
+
+  @Test
+  public void testDisabled ()
+  {
+    StateJournal.Source source = new StateJournal.Source("x.Thing", 3L);
+    assertFalse("off", source.isEnabled());
+    source.record(1, SET_A, 2.0);
+    assertEquals("nothing written", 0L, StateJournal.get().getEntries());
+  }
+
+  @Test
+  public void testRoundTrip () throws Exception
+  {
+    StateJournal journal = StateJournal.start(file);
+    StateJournal.Source cs = new StateJournal.Source("x.Cold", 5L);
+    StateJournal.Source truck = new StateJournal.Source("x.Truck", 6L);
+    cs.record(7, SET_A, -20.0);
+    cs.record(7, SET_A, -20.5);
+    truck.record(7, SET_B, 12.0);
+    journal.flush();
+    cs.record(8, SET_A, -21.0);
+    truck.record(8, SET_B, 11.0);
+    StateJournal.stop();
+    assertEquals("entries", 5L, journal.getEntries());
+    assertEquals("one batch per timeslot", 2L, journal.getBatches());
+
+    String[] lines = decode().split("\n");
+    assertEquals("five changes", 5, lines.length);
+    assertEquals("first", "x.Cold::5::setA::-20.0", lines[0]);
+    assertEquals("second", "x.Cold::5::setA::-20.5", lines[1]);
+    assertEquals("third", "x.Truck::6::setB::12.0", lines[2]);
+    assertEquals("fourth", "x.Cold::5::setA::-21.0", lines[3]);
+    assertEquals("fifth", "x.Truck::6::setB::11.0", lines[4]);
+  }
+
+  // nothing is written until the host flushes; then each timeslot gets
+  // one block, even for a source that skipped a timeslot
+  @Test
+  public void testBatching () throws Exception
+  {
+    StateJournal journal = StateJournal.start(file);
+    StateJournal.Source a = new StateJournal.Source("x.Cold", 1L);
+    StateJournal.Source b = new StateJournal.Source("x.Cold", 2L);
+    a.record(1, SET_A, 1.0);
+    a.record(3, SET_A, 3.0);
+    b.record(1, SET_B, 10.0);
+    b.record(2, SET_B, 20.0);
+    b.record(3, SET_B, 30.0);
+    assertEquals("pending", 0L, journal.getBatches());
+    journal.flush();
+    assertEquals("one block per timeslot", 3L, journal.getBatches());
+    assertEquals("all written", 5L, journal.getEntries());
+    StateJournal.stop();
+    assertEquals("decoded", "x.Cold::1::setA::1.0\n"
+                 + "x.Cold::2::setB::10.0\n"
+                 + "x.Cold::2::setB::20.0\n"
+                 + "x.Cold::1::setA::3.0\n"
+                 + "x.Cold::2::setB::30.0", decode().trim());
+  }
+
+  // a timeslot's changes are ordered by object, whatever order the
+  // sources recorded in
+  @Test
+  public void testOrder () throws Exception
+  {
+    StateJournal journal = StateJournal.start(file);
+    StateJournal.Source late = new StateJournal.Source("x.Truck", 1L);
+    StateJournal.Source second = new StateJournal.Source("x.Cold", 9L);
+    StateJournal.Source first = new StateJournal.Source("x.Cold", 2L);
+    late.record(4, SET_A, 1.0);
+    second.record(4, SET_A, 2.0);
+    first.record(4, SET_A, 3.0);
+    first.record(4, SET_B, 4.0);
+    journal.flush();
+    StateJournal.stop();
+    assertEquals("decoded", "x.Cold::2::setA::3.0\n"
+                 + "x.Cold::2::setB::4.0\n"
+                 + "x.Cold::9::setA::2.0\n"
+                 + "x.Truck::1::setA::1.0", decode().trim());
+  }
+
+  // a source registers again with a new journal
+  @Test
+  public void testRestart () throws Exception
+  {
+    StateJournal.Source source = new StateJournal.Source("x.Cold", 1L);
+    StateJournal.start(file);
+    source.record(1, SET_A, 1.0);
+    StateJournal.start(file);
+    source.record(2, SET_B, 2.0);
+    StateJournal.stop();
+    assertEquals("new file", "x.Cold::1::setB::2.0", decode().trim());
+  }
+
+  // enough changes to need more than one mapped region
+  @Test
+  public void testLarge () throws Exception
+  {
+    StateJournal journal = StateJournal.start(file);
+    StateJournal.Source source = new StateJournal.Source("x.Cold", 1L);
+    int n = 400000;
+    for (int i = 0; i < n; i++)
+      source.record(i / 1000, SET_A, i);
+    StateJournal.stop();
+    assertEquals("all written", n, journal.getEntries());
+    StringWriter out = new StringWriter();
+    FileInputStream in = new FileInputStream(file);
+    try {
+      assertEquals("all decoded", n,
+                   new StateJournalDecoder().decode(in, out));
+    }
+    finally {
+      in.close();
+    }
+    assertTrue("truncated", file.length() < 2L * n * StateJournal.ENTRY_SIZE);
+  }
+}
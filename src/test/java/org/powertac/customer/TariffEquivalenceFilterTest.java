@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Instant;
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.Broker;
+import org.powertac.common.Competition;
+import org.powertac.common.Rate;
+import org.powertac.common.Tariff;
+import org.powertac.common.TariffSpecification;
+import org.powertac.common.TimeService;
+import org.powertac.common.enumerations.PowerType;
+import org.powertac.common.repo.TariffRepo;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class TariffEquivalenceFilterTest
+{
+  private TimeService timeService;
+  private TariffRepo tariffRepo;
+  private Broker broker;
+  private Instant start;
+  private TariffEquivalenceFilter uut;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    Competition.setCurrent(Competition.newInstance("equivalence test"));
+    timeService = new TimeService();
+    start =
+        new DateTime(2015, 2, 15, 0, 0, 0, 0, DateTimeZone.UTC).toInstant();
+    timeService.setCurrentTime(start);
+    tariffRepo = new TariffRepo();
+    broker = new Broker("Sam");
+    uut = new TariffEquivalenceFilter(168);
+  }
+
+  private Tariff makeTariff (TariffSpecification spec)
+  {
+    Tariff result = new Tariff(spec);
+    ReflectionTestUtils.setField(result, "timeService", timeService);
+    ReflectionTestUtils.setField(result, "tariffRepo", tariffRepo);
+    result.init();
+    return result;
+  }
+
+  private Tariff flat (double price)
+  {
+    return makeTariff(new TariffSpecification(broker,
+                                              PowerType.THERMAL_STORAGE_CONSUMPTION)
+        .addRate(new Rate().withValue(-price)));
+  }
+
+  private Tariff dayNight (double day, double night)
+  {
+    TariffSpecification spec =
+        new TariffSpecification(broker, PowerType.THERMAL_STORAGE_CONSUMPTION);
+    spec.addRate(new Rate().withDailyBegin(7).withDailyEnd(19)
+                 .withValue(-day));
+    spec.addRate(new Rate().withDailyBegin(20).withDailyEnd(6)
+                 .withValue(-night));
+    return makeTariff(spec);
+  }
+
+  @Test
+  public void testBounds ()
+  {
+    Tariff tou = dayNight(0.18, 0.08);
+    List<Tariff> tariffs = new ArrayList<Tariff>();
+    tariffs.add(tou);
+    uut.update(tariffs, start);
+    TariffEquivalenceFilter.PriceBounds pb = uut.getBounds(tou);
+    assertTrue("bounded", pb.isBounded());
+    assertEquals("min", 0.08, pb.getMinCost(), 1e-6);
+    assertEquals("max", 0.18, pb.getMaxCost(), 1e-6);
+  }
+
+  @Test
+  public void testFixedTerms ()
+  {
+    Tariff cheap = flat(0.10);
+    Tariff bonus =
+        makeTariff(new TariffSpecification(broker,
+                                           PowerType.THERMAL_STORAGE_CONSUMPTION)
+            .withSignupPayment(10.0)
+            .addRate(new Rate().withValue(-0.12)));
+    List<Tariff> tariffs = new ArrayList<Tariff>();
+    tariffs.add(bonus);
+    tariffs.add(cheap);
+    uut.update(tariffs, start);
+    // fixed terms do not change the plan
+    assertEquals("signup bonus shares", cheap,
+                 uut.getEquivalentTariff(bonus));
+  }
+
+  @Test
+  public void testIdenticalTariffs ()
+  {
+    Tariff t1 = flat(0.10);
+    Tariff t2 = flat(0.10);
+    List<Tariff> tariffs = new ArrayList<Tariff>();
+    tariffs.add(t1);
+    tariffs.add(t2);
+    uut.update(tariffs, start);
+    // exactly one of them stands in for the other
+    Tariff e1 = uut.getEquivalentTariff(t1);
+    Tariff e2 = uut.getEquivalentTariff(t2);
+    assertTrue("one shares", (null == e1) != (null == e2));
+  }
+
+  @Test
+  public void testEquivalentTariffs ()
+  {
+    Tariff cheap = flat(0.10);
+    Tariff dear = flat(0.15);
+    Tariff tou = dayNight(0.18, 0.08);
+    Tariff touDouble = dayNight(0.36, 0.16);
+    Tariff touOther = dayNight(0.20, 0.08);
+    List<Tariff> tariffs = new ArrayList<Tariff>();
+    tariffs.add(dear);
+    tariffs.add(touOther);
+    tariffs.add(cheap);
+    tariffs.add(touDouble);
+    tariffs.add(tou);
+    uut.update(tariffs, start);
+    assertNull("cheap plans for itself", uut.getEquivalentTariff(cheap));
+    assertEquals("flat shares", cheap, uut.getEquivalentTariff(dear));
+    assertNull("tou plans for itself", uut.getEquivalentTariff(tou));
+    assertEquals("scaled tou shares", tou,
+                 uut.getEquivalentTariff(touDouble));
+    assertNull("other shape", uut.getEquivalentTariff(touOther));
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2015 by the original author
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.powertac.customer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.powertac.common.WeatherForecast;
+import org.powertac.common.WeatherForecastPrediction;
+import org.powertac.common.WeatherReport;
+import org.powertac.common.interfaces.CustomerServiceAccessor;
+import org.powertac.common.repo.TimeslotRepo;
+import org.powertac.common.repo.WeatherReportRepo;
+
+public class WeatherSnapshotTest
+{
+  private CustomerServiceAccessor service;
+  private TimeslotRepo timeslotRepo;
+  private WeatherReportRepo weatherRepo;
+
+  @Before
+  public void setUp () throws Exception
+  {
+    timeslotRepo = mock(TimeslotRepo.class);
+    weatherRepo = mock(WeatherReportRepo.class);
+    service = mock(CustomerServiceAccessor.class,
+                   withSettings().extraInterfaces(WeatherSnapshot.Source.class));
+    when(service.getTimeslotRepo()).thenReturn(timeslotRepo);
+    when(service.getWeatherReportRepo()).thenReturn(weatherRepo);
+  }
+
+  // the service's snapshot is used without touching the repo
+  @Test
+  public void testSource ()
+  {
+    when(timeslotRepo.currentSerialNumber()).thenReturn(8);
+    double[] forecast = {1.0, 2.0, 3.0};
+    WeatherSnapshot published =
+        WeatherSnapshot.create(8, new WeatherReport(8, 0.5, 3.0, 0.0, 0.0),
+                               forecast);
+    forecast[0] = 99.0;
+    when(((WeatherSnapshot.Source)service).getWeatherSnapshot())
+        .thenReturn(published);
+    for (int i = 0; i < 10; i++)
+      assertSame("shared", published, WeatherSnapshot.get(service));
+    WeatherSnapshot snap = WeatherSnapshot.get(service);
+    assertEquals("timeslot", 8, snap.getTimeslot());
+    assertEquals("temperature", 0.5, snap.getTemperature(), 1e-6);
+    assertEquals("wind", 3.0, snap.getWindSpeed(), 1e-6);
+    assertEquals("first hour", 1.0, snap.getForecastTemp(1), 1e-6);
+    assertEquals("last hour", 3.0, snap.getForecastTemp(3), 1e-6);
+    assertEquals("past the end", 3.0, snap.getForecastTemp(10), 1e-6);
+    double[] copy = new double[snap.getForecastHours()];
+    snap.copyForecast(copy);
+    assertArrayEquals("copy", new double[] {1.0, 2.0, 3.0}, copy, 1e-6);
+    verify(weatherRepo, never()).currentWeatherReport();
+  }
+
+  // with no snapshot for the timeslot, the repo gives a persistence
+  // forecast
+  @Test
+  public void testFallback ()
+  {
+    WeatherSnapshot stale =
+        WeatherSnapshot.create(4, new WeatherReport(4, 9.0, 0.0, 0.0, 0.0),
+                               new double[] {1.0});
+    when(((WeatherSnapshot.Source)service).getWeatherSnapshot())
+        .thenReturn(stale);
+    when(timeslotRepo.currentSerialNumber()).thenReturn(5);
+    when(weatherRepo.currentWeatherReport())
+        .thenReturn(new WeatherReport(5, 12.0, 3.0, 180.0, 0.5));
+    WeatherSnapshot snap = WeatherSnapshot.get(service);
+    assertEquals("timeslot", 5, snap.getTimeslot());
+    assertEquals("temperature", 12.0, snap.getTemperature(), 1e-6);
+    assertEquals("persistence forecast", 12.0, snap.getForecastTemp(6), 1e-6);
+    verify(weatherRepo, times(1)).currentWeatherReport();
+  }
+
+  // the fallback is built once per timeslot and shared by later calls
+  @Test
+  public void testFallbackCached ()
+  {
+    when(timeslotRepo.currentSerialNumber()).thenReturn(5);
+    when(weatherRepo.currentWeatherReport())
+        .thenReturn(new WeatherReport(5, 12.0, 3.0, 180.0, 0.5));
+    WeatherSnapshot first = WeatherSnapshot.get(service);
+    for (int i = 0; i < 10; i++)
+      assertSame("shared", first, WeatherSnapshot.get(service));
+    verify(weatherRepo, times(1)).currentWeatherReport();
+
+    // the next timeslot reads the repo again
+    when(timeslotRepo.currentSerialNumber()).thenReturn(6);
+    when(weatherRepo.currentWeatherReport())
+        .thenReturn(new WeatherReport(6, 14.0, 3.0, 180.0, 0.5));
+    WeatherSnapshot next = WeatherSnapshot.get(service);
+    assertEquals("timeslot", 6, next.getTimeslot());
+    assertEquals("temperature", 14.0, next.getTemperature(), 1e-6);
+    assertSame("shared", next, WeatherSnapshot.get(service));
+    verify(weatherRepo, times(2)).currentWeatherReport();
+  }
+
+  // predictions fill the forecast by hour ahead; gaps hold the hour before
+  @Test
+  public void testForecast ()
+  {
+    List<WeatherForecastPrediction> predictions =
+        new ArrayList<WeatherForecastPrediction>();
+    predictions.add(prediction(2, 11.0));
+    predictions.add(prediction(1, 10.0));
+    predictions.add(prediction(5, 14.0));
+    WeatherForecast forecast = mock(WeatherForecast.class);
+    when(forecast.getPredictions()).thenReturn(predictions);
+    WeatherSnapshot snap =
+        WeatherSnapshot.create(3, new WeatherReport(3, 8.0, 0.0, 0.0, 0.0),
+                               forecast);
+    assertEquals("hours", WeatherSnapshot.FORECAST_HOURS,
+                 snap.getForecastHours());
+    assertEquals("hour 1", 10.0, snap.getForecastTemp(1), 1e-6);
+    assertEquals("hour 2", 11.0, snap.getForecastTemp(2), 1e-6);
+    assertEquals("gap", 11.0, snap.getForecastTemp(4), 1e-6);
+    assertEquals("hour 5", 14.0, snap.getForecastTemp(5), 1e-6);
+    assertEquals("beyond", 14.0, snap.getForecastTemp(24), 1e-6);
+
+    WeatherSnapshot none =
+        WeatherSnapshot.create(3, new WeatherReport(3, 8.0, 0.0, 0.0, 0.0),
+                               (WeatherForecast)null);
+    assertEquals("no forecast", 8.0, none.getForecastTemp(1), 1e-6);
+  }
+
+  private WeatherForecastPrediction prediction (int hour, double temp)
+  {
+    WeatherForecastPrediction result = mock(WeatherForecastPrediction.class);
+    when(result.getForecastTime()).thenReturn(hour);
+    when(result.getTemperature()).thenReturn(temp);
+    return result;
+  }
+}
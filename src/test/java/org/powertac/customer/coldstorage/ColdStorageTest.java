@@ -21,9 +21,11 @@ import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.anyString;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
@@ -73,6 +75,8 @@ import org.powertac.common.repo.TariffSubscriptionRepo;
 import org.powertac.common.repo.TimeSeriesRepo;
 import org.powertac.common.repo.TimeslotRepo;
 import org.powertac.common.repo.WeatherReportRepo;
+import org.powertac.customer.ModelSnapshot;
+import org.powertac.customer.WeatherSnapshot;
 import org.springframework.test.util.ReflectionTestUtils;
 
 /**
@@ -89,7 +93,7 @@ public class ColdStorageTest
   private TariffSubscriptionRepo mockSubscriptionRepo;
   private TimeslotRepo mockTimeslotRepo;
   private TimeService timeService;
-  private CustomerServiceAccessor serviceAccessor;
+  private ServiceAccessor serviceAccessor;
 
   private ServerConfiguration serverConfig;
   private Configurator config;
@@ -216,14 +220,14 @@ public class ColdStorageTest
     uut.step();
     ArgumentCaptor<Double> pwr = ArgumentCaptor.forClass(Double.class);
     verify(subscription).usePower(pwr.capture());
-    assertEquals("correct usage", 52.6998, pwr.getValue(), 1e-4);
+    assertEquals("correct usage", 52.6042, pwr.getValue(), 1e-4);
     ArgumentCaptor<RegulationCapacity> rcap =
       ArgumentCaptor.forClass(RegulationCapacity.class);
     verify(subscription).setRegulationCapacity(rcap.capture());
     RegulationCapacity rc = rcap.getValue();
-    assertEquals("correct up-regulation", 37.0998,
+    assertEquals("correct up-regulation", 40.4456,
                  rc.getUpRegulationCapacity(), 1e-4);
-    assertEquals("correct down-regulationCapacity", -56.3402,
+    assertEquals("correct down-regulationCapacity", -52.9944,
                  rc.getDownRegulationCapacity(), 1e-4);
   }
 
@@ -239,7 +243,7 @@ public class ColdStorageTest
     uut.step();
     ArgumentCaptor<Double> pwr = ArgumentCaptor.forClass(Double.class);
     verify(subscription).usePower(pwr.capture());
-    assertEquals("correct usage", 110.24, pwr.getValue(), 1e-4);
+    assertEquals("correct usage", 105.5986, pwr.getValue(), 1e-4);
     ArgumentCaptor<RegulationCapacity> rcap =
       ArgumentCaptor.forClass(RegulationCapacity.class);
     verify(subscription).setRegulationCapacity(rcap.capture());
@@ -262,7 +266,7 @@ public class ColdStorageTest
     uut.step();
     ArgumentCaptor<Double> pwr = ArgumentCaptor.forClass(Double.class);
     verify(subscription).usePower(pwr.capture());
-    assertEquals("correct usage", 14.4, pwr.getValue(), 1e-4);
+    assertEquals("correct usage", 12.1586, pwr.getValue(), 1e-4);
     ArgumentCaptor<RegulationCapacity> rcap =
       ArgumentCaptor.forClass(RegulationCapacity.class);
     verify(subscription).setRegulationCapacity(rcap.capture());
@@ -273,6 +277,572 @@ public class ColdStorageTest
                  rc.getDownRegulationCapacity(), 1e-4);
   }
 
+  // the batch kernel must match the per-object path. Turnover and
+  // non-cooling load are held at their means, so the random draws the
+  // warehouse makes do not matter.
+  @Test
+  public void testBatchKernel ()
+  {
+    when(seed.nextDouble()).thenReturn(18.0/25.0);
+    weather = new WeatherReport(0, 30, 0, 0, 0);
+    when(mockWeatherRepo.currentWeatherReport()).thenReturn(weather);
+    ReflectionTestUtils.setField(uut, "turnoverSd", 0.0);
+    ReflectionTestUtils.setField(uut, "ncUsageVariability", 0.0);
+    init();
+    when(subscription.getRegulation()).thenReturn(0.0);
+    ColdStorageBatch batch = new ColdStorageBatch(1);
+    batch.setParameters(0, uut.getCop(), uut.getCoolingLossPerK(),
+                        ColdStorage.R_CONVERSION / uut.getFloorRValue()
+                            * uut.getRoofArea(),
+                        uut.getMaxCooling(), uut.getNominalTemp(),
+                        uut.getMinTemp(), uut.getMaxTemp(),
+                        uut.getHysteresis(),
+                        uut.getTurnoverRatio() * uut.getStockCapacity() / 24.0,
+                        0.0, uut.getNewStockTemp(), uut.getNonCoolingUsage(),
+                        0.0, uut.getNcMeanReversion());
+    batch.setState(0, uut.getCurrentTemp(), uut.getCurrentStock(),
+                   uut.getCurrentNcUsage());
+    batch.setInputs(0, 0.0, 0.0, 0.0, 0.0);
+    batch.setPolicy(0, null, 0.0);
+    assertEquals("one site", 1, batch.size());
+
+    int steps = 6;
+    double[] usage = new double[steps];
+    for (int i = 0; i < steps; i++) {
+      uut.step();
+      batch.advance(30.0);
+      usage[i] = batch.getEnergy(0);
+      assertEquals("same temp " + i,
+                   uut.getCurrentTemp(), batch.getTemp(0), 1e-9);
+      assertEquals("same stock " + i,
+                   uut.getCurrentStock(), batch.getStock(0), 1e-9);
+    }
+    ArgumentCaptor<Double> pwr = ArgumentCaptor.forClass(Double.class);
+    verify(subscription, times(steps)).usePower(pwr.capture());
+    for (int i = 0; i < steps; i++) {
+      assertEquals("same usage " + i, pwr.getAllValues().get(i),
+                   usage[i], 1e-9);
+    }
+    ArgumentCaptor<RegulationCapacity> rcap =
+      ArgumentCaptor.forClass(RegulationCapacity.class);
+    verify(subscription, times(steps)).setRegulationCapacity(rcap.capture());
+    RegulationCapacity rc = rcap.getValue();
+    assertEquals("same up-regulation", rc.getUpRegulationCapacity(),
+                 batch.getUpRegulation(0), 1e-9);
+    assertEquals("same down-regulation", rc.getDownRegulationCapacity(),
+                 batch.getDownRegulation(0), 1e-9);
+  }
+
+  // a restored warehouse continues exactly as the original would
+  @Test
+  public void testSnapshot () throws IOException
+  {
+    when(seed.nextDouble()).thenReturn(15.0/25.0);
+    weather = new WeatherReport(0, 30, 0, 0, 0);
+    when(mockWeatherRepo.currentWeatherReport()).thenReturn(weather);
+    init();
+    when(subscription.getRegulation()).thenReturn(0.0);
+    for (int i = 0; i < 15; i++) {
+      when(mockTimeslotRepo.currentSerialNumber()).thenReturn(i);
+      uut.step();
+    }
+    File file = File.createTempFile("snapshot", ".bin");
+    file.deleteOnExit();
+    assertEquals("saved", 1,
+                 ModelSnapshot.save(file, 14, Arrays.asList(uut)));
+
+    ColdStorage copy = new ColdStorage("test");
+    copy.setServiceAccessor(serviceAccessor);
+    copy.initialize();
+    TariffSubscription copySub = mock(TariffSubscription.class);
+    when(copySub.getRegulation()).thenReturn(0.0);
+    List<TariffSubscription> subs = new ArrayList<TariffSubscription>();
+    subs.add(copySub);
+    when(mockSubscriptionRepo.findActiveSubscriptionsForCustomer(copy
+             .getCustomerInfo())).thenReturn(subs);
+    ModelSnapshot snapshot = ModelSnapshot.open(file);
+    assertEquals("timeslot", 14, snapshot.getTimeslot());
+    assertTrue("restored", snapshot.restore(copy));
+    assertEquals("same temp", uut.getCurrentTemp(), copy.getCurrentTemp(),
+                 0.0);
+
+    for (int i = 15; i < 40; i++) {
+      when(mockTimeslotRepo.currentSerialNumber()).thenReturn(i);
+      uut.step();
+      copy.step();
+      assertEquals("same temp " + i,
+                   uut.getCurrentTemp(), copy.getCurrentTemp(), 1e-12);
+      assertEquals("same stock " + i,
+                   uut.getCurrentStock(), copy.getCurrentStock(), 1e-12);
+    }
+  }
+
+  // bootstrap fast mode hands off to full fidelity at game start
+  @Test
+  public void testBootstrapFastMode ()
+  {
+    competition.withBootstrapTimeslotCount(24)
+        .withBootstrapDiscardedTimeslots(0);
+    when(seed.nextDouble()).thenReturn(15.0/25.0);
+    weather = new WeatherReport(0, 30, 0, 0, 0);
+    when(mockWeatherRepo.currentWeatherReport()).thenReturn(weather);
+    uut.withBootstrapFastMode(true);
+    init();
+    when(subscription.getRegulation()).thenReturn(0.0);
+    for (int i = 0; i < 24; i++) {
+      when(mockTimeslotRepo.currentSerialNumber()).thenReturn(i);
+      uut.step();
+      assertTrue("in range " + i,
+                 uut.getCurrentTemp() >= uut.getMinTemp()
+                 && uut.getCurrentTemp() <= uut.getMaxTemp());
+    }
+
+    // a full-fidelity warehouse started from the same state
+    ColdStorage full = new ColdStorage("full");
+    full.setServiceAccessor(serviceAccessor);
+    full.initialize();
+    TariffSubscription fullSub = mock(TariffSubscription.class);
+    when(fullSub.getRegulation()).thenReturn(0.0);
+    List<TariffSubscription> subs = new ArrayList<TariffSubscription>();
+    subs.add(fullSub);
+    when(mockSubscriptionRepo.findActiveSubscriptionsForCustomer(full
+             .getCustomerInfo())).thenReturn(subs);
+    full.setState(uut.getCurrentTemp(), uut.getCurrentStock(),
+                  uut.getCurrentNcUsage());
+    for (int i = 24; i < 48; i++) {
+      when(mockTimeslotRepo.currentSerialNumber()).thenReturn(i);
+      uut.step();
+      full.step();
+      assertEquals("same temp " + i,
+                   full.getCurrentTemp(), uut.getCurrentTemp(), 1e-12);
+    }
+    verify(subscription, times(48)).usePower(anyDouble());
+  }
+
+  // subscription is looked up only when it may have changed
+  @Test
+  public void testSubscriptionHandle ()
+  {
+    weather = new WeatherReport(0, 30, 0, 0, 0);
+    when(mockWeatherRepo.currentWeatherReport()).thenReturn(weather);
+    init();
+    when(subscription.getCustomersCommitted()).thenReturn(1);
+    when(subscription.getRegulation()).thenReturn(0.0);
+    for (int i = 0; i < 5; i++)
+      uut.step();
+    verify(mockSubscriptionRepo, times(1))
+        .findActiveSubscriptionsForCustomer(uut.getCustomerInfo());
+    verify(subscription, times(5)).usePower(anyDouble());
+    assertEquals("one refresh", 1,
+                 uut.getSubscriptionHandle().getRefreshCount());
+
+    // customer moves to a new subscription
+    TariffSubscription newSub = mock(TariffSubscription.class);
+    when(newSub.getCustomersCommitted()).thenReturn(1);
+    when(newSub.getRegulation()).thenReturn(0.0);
+    List<TariffSubscription> subs = new ArrayList<TariffSubscription>();
+    subs.add(newSub);
+    when(mockSubscriptionRepo.findActiveSubscriptionsForCustomer(uut
+             .getCustomerInfo())).thenReturn(subs);
+    when(subscription.getCustomersCommitted()).thenReturn(0);
+    uut.step();
+    uut.step();
+    verify(newSub, times(2)).usePower(anyDouble());
+    verify(subscription, times(5)).usePower(anyDouble());
+    assertEquals("two refreshes", 2,
+                 uut.getSubscriptionHandle().getRefreshCount());
+  }
+
+  // regulation offered is limited to what can be sustained
+  @Test
+  public void testSustainableRegulation ()
+  {
+    when(seed.nextDouble()).thenReturn(20.0/25.0);
+    weather = new WeatherReport(0, 30, 0, 0, 0);
+    when(mockWeatherRepo.currentWeatherReport()).thenReturn(weather);
+    uut.withRegulationHorizon(48);
+    init();
+    when(subscription.getRegulation()).thenReturn(0.0);
+    uut.step();
+    ArgumentCaptor<RegulationCapacity> rcap =
+      ArgumentCaptor.forClass(RegulationCapacity.class);
+    verify(subscription).setRegulationCapacity(rcap.capture());
+    RegulationCapacity rc = rcap.getValue();
+    // 5K above nominal, thermal headroom to maxTemp limits up-regulation
+    double headroom = (uut.getMaxTemp() - uut.getCurrentTemp())
+        * uut.getCurrentStock() * ColdStorage.CP_ICE / 48.0 / uut.getCop();
+    assertTrue("limited", headroom < 30.0);
+    assertEquals("sustainable up-regulation", headroom,
+                 rc.getUpRegulationCapacity(), 1e-6);
+    assertEquals("no down-regulation", 0.0,
+                 rc.getDownRegulationCapacity(), 1e-6);
+    assertEquals("horizon", 48, uut.getRegulationBounds().getHorizon());
+  }
+
+  // rolling window min and max match a direct scan
+  @Test
+  public void testRegulationBoundsWindow ()
+  {
+    int horizon = 5;
+    RegulationBounds bounds = new RegulationBounds(horizon);
+    assertTrue("empty", bounds.isEmpty());
+    java.util.Random rand = new java.util.Random(42);
+    double[] values = new double[50];
+    for (int i = 0; i < values.length; i++)
+      values[i] = rand.nextDouble() * 100.0;
+    bounds.fill(Arrays.copyOf(values, horizon));
+    for (int i = horizon - 1; i < values.length; i++) {
+      if (i >= horizon)
+        bounds.advance(values[i]);
+      double min = Double.MAX_VALUE;
+      double max = -Double.MAX_VALUE;
+      for (int j = i - horizon + 1; j <= i; j++) {
+        min = Math.min(min, values[j]);
+        max = Math.max(max, values[j]);
+      }
+      assertEquals("min " + i, min, bounds.getMinEnergy(), 1e-12);
+      assertEquals("max " + i, max, bounds.getMaxEnergy(), 1e-12);
+    }
+  }
+
+  // the regulation window covers the coming hours, at forecast weather
+  @Test
+  public void testRegulationLookAhead ()
+  {
+    when(seed.nextDouble()).thenReturn(15.0/25.0);
+    weather = new WeatherReport(0, 20, 0, 0, 0);
+    when(mockWeatherRepo.currentWeatherReport()).thenReturn(weather);
+    uut.withRegulationHorizon(4);
+    init();
+    when(subscription.getRegulation()).thenReturn(0.0);
+    serviceAccessor.snapshot =
+        WeatherSnapshot.create(0, weather,
+                               new double[] {10.0, 15.0, 25.0, 40.0, 5.0});
+    uut.step();
+    ThermalProjection projection = new ThermalProjection(uut);
+    ThermalProjection.State first =
+        new ThermalProjection.State(uut.getCurrentTemp(),
+                                    uut.getCurrentStock(),
+                                    uut.getCurrentNcUsage());
+    RegulationBounds bounds = uut.getRegulationBounds();
+    double hottest = projection.holdingEnergy(first, 40.0, 4);
+    assertEquals("hottest hour", hottest, bounds.getMaxEnergy(), 1e-9);
+    assertEquals("coolest hour", projection.holdingEnergy(first, 10.0, 1),
+                 bounds.getMinEnergy(), 1e-9);
+
+    // next hour drops the first forecast hour and adds a cooler one
+    when(mockTimeslotRepo.currentSerialNumber()).thenReturn(1);
+    serviceAccessor.snapshot =
+        WeatherSnapshot.create(1, weather,
+                               new double[] {15.0, 25.0, 40.0, 5.0, 5.0});
+    uut.step();
+    ThermalProjection.State second =
+        new ThermalProjection.State(uut.getCurrentTemp(),
+                                    uut.getCurrentStock(),
+                                    uut.getCurrentNcUsage());
+    assertEquals("still hottest", hottest, bounds.getMaxEnergy(), 1e-9);
+    assertEquals("new coolest", projection.holdingEnergy(second, 5.0, 4),
+                 bounds.getMinEnergy(), 1e-9);
+  }
+
+  // population charges each subscription the total usage of its sites
+  @Test
+  public void testPopulation ()
+  {
+    when(seed.nextDouble()).thenReturn(15.0/25.0);
+    weather = new WeatherReport(0, 30, 0, 0, 0);
+    when(mockWeatherRepo.currentWeatherReport()).thenReturn(weather);
+    ColdStoragePopulation pop = new ColdStoragePopulation("pop");
+    pop.withPopulation(10);
+    pop.setServiceAccessor(serviceAccessor);
+    pop.initialize();
+    assertEquals("population", 10, pop.getCustomerInfo().getPopulation());
+    TariffSubscription sub1 = mock(TariffSubscription.class);
+    when(sub1.getCustomersCommitted()).thenReturn(4);
+    TariffSubscription sub2 = mock(TariffSubscription.class);
+    when(sub2.getCustomersCommitted()).thenReturn(6);
+    List<TariffSubscription> subs = new ArrayList<TariffSubscription>();
+    subs.add(sub1);
+    subs.add(sub2);
+    when(mockSubscriptionRepo.findActiveSubscriptionsForCustomer(pop
+             .getCustomerInfo())).thenReturn(subs);
+
+    pop.step();
+    ColdStorageBatch ensemble = pop.getEnsemble();
+    assertEquals("ensemble size", 10, ensemble.size());
+    double first = 0.0;
+    double second = 0.0;
+    for (int i = 0; i < 10; i++) {
+      if (i < 4)
+        first += ensemble.getEnergy(i);
+      else
+        second += ensemble.getEnergy(i);
+      assertTrue("within range", ensemble.getTemp(i) < -5.0);
+    }
+    ArgumentCaptor<Double> pwr = ArgumentCaptor.forClass(Double.class);
+    verify(sub1).usePower(pwr.capture());
+    assertEquals("first group", first, pwr.getValue(), 1e-9);
+    verify(sub2).usePower(pwr.capture());
+    assertEquals("second group", second, pwr.getValue(), 1e-9);
+    verify(sub1).setRegulationCapacity(any(RegulationCapacity.class));
+    verify(sub2).setRegulationCapacity(any(RegulationCapacity.class));
+  }
+
+  // in bootstrap fast mode, each population site follows its own
+  // expected path
+  @Test
+  public void testPopulationBootstrap ()
+  {
+    competition.withBootstrapTimeslotCount(24)
+        .withBootstrapDiscardedTimeslots(0);
+    when(seed.nextDouble()).thenReturn(15.0/25.0);
+    weather = new WeatherReport(0, 30, 0, 0, 0);
+    when(mockWeatherRepo.currentWeatherReport()).thenReturn(weather);
+    ColdStoragePopulation pop = new ColdStoragePopulation("pop");
+    pop.withPopulation(10).withBootstrapFastMode(true);
+    pop.setServiceAccessor(serviceAccessor);
+    pop.initialize();
+    TariffSubscription sub = mock(TariffSubscription.class);
+    when(sub.getCustomersCommitted()).thenReturn(10);
+    List<TariffSubscription> subs = new ArrayList<TariffSubscription>();
+    subs.add(sub);
+    when(mockSubscriptionRepo.findActiveSubscriptionsForCustomer(pop
+             .getCustomerInfo())).thenReturn(subs);
+
+    // expected paths of the sites, projected from their starting states
+    ColdStorageBatch ensemble = pop.getEnsemble();
+    double[] outside = new double[24];
+    Arrays.fill(outside, 30.0);
+    double[] expected = new double[24];
+    double[] usage = new double[24];
+    double[] finalTemps = new double[10];
+    double[] temps = new double[24];
+    for (int i = 0; i < 10; i++) {
+      ThermalProjection.State start =
+          new ThermalProjection.State(ensemble.getTemp(i),
+                                      ensemble.getStock(i),
+                                      ensemble.getNcUsage(i));
+      ensemble.makeProjection(i).project(start, outside, null, 24,
+                                         usage, temps);
+      for (int h = 0; h < 24; h++)
+        expected[h] += usage[h];
+      finalTemps[i] = temps[23];
+    }
+
+    for (int h = 0; h < 24; h++) {
+      when(mockTimeslotRepo.currentSerialNumber()).thenReturn(h);
+      pop.step();
+    }
+    ArgumentCaptor<Double> pwr = ArgumentCaptor.forClass(Double.class);
+    verify(sub, times(24)).usePower(pwr.capture());
+    for (int h = 0; h < 24; h++)
+      assertEquals("usage " + h, expected[h], pwr.getAllValues().get(h),
+                   1e-6);
+    for (int i = 0; i < 10; i++)
+      assertEquals("temp " + i, finalTemps[i], ensemble.getTemp(i), 1e-9);
+    verify(sub, never()).setRegulationCapacity(any(RegulationCapacity.class));
+  }
+
+  // population sites follow the TOU control policy: pre-cool at night,
+  // coast by day, compared to the same sites on a flat tariff
+  @Test
+  public void testPopulationTou ()
+  {
+    when(seed.nextDouble()).thenReturn(15.0/25.0);
+    weather = new WeatherReport(0, 20, 0, 0, 0);
+    when(mockWeatherRepo.currentWeatherReport()).thenReturn(weather);
+    TariffSpecification dailySpec =
+        new TariffSpecification(broker, PowerType.THERMAL_STORAGE_CONSUMPTION);
+    dailySpec.addRate(new Rate().withDailyBegin(7).withDailyEnd(19)
+                      .withValue(-0.18));
+    dailySpec.addRate(new Rate().withDailyBegin(20).withDailyEnd(6)
+                      .withValue(-0.08));
+    Tariff touTariff = new Tariff(dailySpec);
+    ReflectionTestUtils.setField(touTariff, "timeService", timeService);
+    ReflectionTestUtils.setField(touTariff, "tariffRepo", tariffRepo);
+    touTariff.init();
+
+    ColdStoragePopulation flat = new ColdStoragePopulation("pop");
+    ColdStoragePopulation tou = new ColdStoragePopulation("pop");
+    TariffSubscription flatSub = mock(TariffSubscription.class);
+    when(flatSub.getTariff()).thenReturn(tariff);
+    TariffSubscription touSub = mock(TariffSubscription.class);
+    when(touSub.getTariff()).thenReturn(touTariff);
+    for (ColdStoragePopulation pop : new ColdStoragePopulation[] {flat, tou}) {
+      pop.withPopulation(20);
+      pop.setServiceAccessor(serviceAccessor);
+      pop.initialize();
+      TariffSubscription sub = (pop == flat) ? flatSub : touSub;
+      when(sub.getCustomersCommitted()).thenReturn(20);
+      List<TariffSubscription> subs = new ArrayList<TariffSubscription>();
+      subs.add(sub);
+      when(mockSubscriptionRepo.findActiveSubscriptionsForCustomer(pop
+               .getCustomerInfo())).thenReturn(subs);
+    }
+
+    // two days from Monday 00:00; the second one is compared
+    DateTime monday = new DateTime(2015, 2, 9, 0, 0, 0, DateTimeZone.UTC);
+    for (int i = 0; i < 48; i++) {
+      when(mockTimeslotRepo.currentSerialNumber()).thenReturn(i);
+      when(mockTimeslotRepo.currentTimeslot())
+          .thenReturn(new Timeslot(i, monday.toInstant()
+                                       .plus(i * TimeService.HOUR)));
+      flat.step();
+      tou.step();
+    }
+    ArgumentCaptor<Double> flatPwr = ArgumentCaptor.forClass(Double.class);
+    verify(flatSub, times(48)).usePower(flatPwr.capture());
+    ArgumentCaptor<Double> touPwr = ArgumentCaptor.forClass(Double.class);
+    verify(touSub, times(48)).usePower(touPwr.capture());
+    double flatNight = 0.0;
+    double touNight = 0.0;
+    double flatDay = 0.0;
+    double touDay = 0.0;
+    for (int i = 24; i < 48; i++) {
+      int hour = i % 24;
+      if (hour >= 7 && hour <= 19) {
+        flatDay += flatPwr.getAllValues().get(i);
+        touDay += touPwr.getAllValues().get(i);
+      }
+      else {
+        flatNight += flatPwr.getAllValues().get(i);
+        touNight += touPwr.getAllValues().get(i);
+      }
+    }
+    assertTrue("more at night", touNight > flatNight * 1.2);
+    assertTrue("less by day", touDay < flatDay * 0.8);
+  }
+
+  // closed-form quiescent integration matches projection
+  @Test
+  public void testQuiescentIntegration ()
+  {
+    when(seed.nextDouble()).thenReturn(15.0/25.0);
+    uut.withHysteresis(2.0);
+    init();
+    ThermalProjection projection = uut.getProjection();
+    ThermalProjection.State start =
+        new ThermalProjection.State(-20.5, uut.getStockCapacity(), 18.0);
+    int hours = projection.quiescentHours(start);
+    assertTrue("some quiescent hours", hours > 4);
+    assertTrue("bounded", hours < 100);
+
+    double[] weather = new double[hours + 1];
+    Arrays.fill(weather, 12.0);
+    double[] usage = new double[hours + 1];
+    double[] temps = new double[hours + 1];
+    projection.project(start, weather, null, hours + 1, usage, temps);
+    double sum = 0.0;
+    for (int i = 0; i < hours; i++) {
+      sum += usage[i];
+      assertTrue("in band " + i,
+                 Math.abs(temps[i] - uut.getNominalTemp()) <= 1.0 + 1e-9);
+    }
+    assertEquals("same total", sum,
+                 projection.integrateQuiescent(start, 12.0, hours), 1e-6);
+    // the next hour leaves the band, and the controller starts cooling
+    assertTrue("cooling", temps[hours] < temps[hours - 1]);
+
+    // hour by hour at varying outside temperatures, the closed form
+    // matches the projection
+    for (int i = 0; i < hours; i++)
+      weather[i] = 12.0 + i % 5;
+    projection.project(start, weather, null, hours, usage, temps);
+    for (int i = 0; i < hours; i++) {
+      assertEquals("usage " + i, usage[i],
+                   projection.quiescentUsage(start, weather[i], i + 1),
+                   1e-9);
+      assertEquals("temp " + i, temps[i],
+                   projection.afterQuiescent(start, i + 1).getTemp(), 1e-9);
+    }
+  }
+
+  // fast-forward reports the expected-path usage of each quiescent hour
+  @Test
+  public void testFastForward ()
+  {
+    when(seed.nextDouble()).thenReturn(15.0/25.0);
+    weather = new WeatherReport(0, 12.0, 0, 0, 0);
+    when(mockWeatherRepo.currentWeatherReport()).thenReturn(weather);
+    uut.withHysteresis(2.0).withFastForward(true);
+    init();
+    when(subscription.getRegulation()).thenReturn(0.0);
+    ThermalProjection projection = uut.getProjection();
+    ThermalProjection.State start =
+        new ThermalProjection.State(-20.5, uut.getStockCapacity(), 18.0);
+    uut.setState(start.getTemp(), start.getStock(), start.getNcUsage());
+    int hours = Math.min(projection.quiescentHours(start), 10);
+    assertTrue("some quiescent hours", hours > 4);
+
+    double[] outside = new double[hours];
+    Arrays.fill(outside, 12.0);
+    double[] usage = new double[hours];
+    double[] temps = new double[hours];
+    projection.project(start, outside, null, hours, usage, temps);
+    for (int i = 0; i < hours; i++) {
+      when(mockTimeslotRepo.currentSerialNumber()).thenReturn(i);
+      uut.step();
+      assertEquals("temp " + i, temps[i], uut.getCurrentTemp(), 1e-9);
+    }
+    ArgumentCaptor<Double> pwr = ArgumentCaptor.forClass(Double.class);
+    verify(subscription, times(hours)).usePower(pwr.capture());
+    for (int i = 0; i < hours; i++)
+      assertEquals("usage " + i, usage[i], pwr.getAllValues().get(i), 1e-9);
+    verify(subscription, times(hours))
+        .setRegulationCapacity(any(RegulationCapacity.class));
+    assertEquals("served from spans", (long)hours,
+                 uut.getMetrics().getPlanHits());
+    assertEquals("no misses", 0L, uut.getMetrics().getPlanMisses());
+
+    // regulation sends the hour through the full model
+    when(mockTimeslotRepo.currentSerialNumber()).thenReturn(hours);
+    when(subscription.getRegulation()).thenReturn(5.0);
+    uut.step();
+    assertEquals("one miss", 1L, uut.getMetrics().getPlanMisses());
+  }
+
+  // projection must not touch model state
+  @Test
+  public void testProjection ()
+  {
+    when(seed.nextDouble()).thenReturn(20.0/25.0);
+    init();
+    double temp = uut.getCurrentTemp();
+    double stock = uut.getCurrentStock();
+    double nc = uut.getCurrentNcUsage();
+    ThermalProjection.State start = uut.getSnapshot();
+    ThermalProjection projection = uut.getProjection();
+
+    int hours = 24;
+    double[] weather = new double[hours];
+    double[] prices = new double[hours];
+    Arrays.fill(weather, 30.0);
+    Arrays.fill(prices, -0.11);
+    double[] usage = new double[hours];
+    double[] temps = new double[hours];
+    double cost =
+        projection.project(start, weather, prices, hours, usage, temps);
+    assertEquals("temp unchanged", temp, uut.getCurrentTemp(), 1e-9);
+    assertEquals("stock unchanged", stock, uut.getCurrentStock(), 1e-9);
+    assertEquals("nc unchanged", nc, uut.getCurrentNcUsage(), 1e-9);
+
+    // starts 5K above nominal, cools at full capacity with the
+    // expected non-cooling load
+    assertEquals("full cooling", 108.44, usage[0], 1e-4);
+    assertTrue("cooling down", temps[0] < temp);
+    assertEquals("settles at nominal", uut.getNominalTemp(),
+                 temps[hours - 1], uut.getHysteresis());
+    double sum = 0.0;
+    for (double kWh : usage)
+      sum += kWh;
+    assertEquals("cost", 0.11 * sum, cost, 1e-6);
+
+    // repeatable
+    double[] usage2 = new double[hours];
+    projection.project(start, weather, null, hours, usage2, null);
+    assertArrayEquals("same result", usage, usage2, 1e-12);
+  }
+
   @Test
   public void testStateLog ()
   {
@@ -429,6 +999,250 @@ public class ColdStorageTest
     assertEquals("Sa 21", .05, result[57], 1e-6);
   }
 
+  // DP-optimized TOU profile
+  @Test
+  public void testOptimizedTouProfile ()
+  {
+    init();
+    double[] prices = new double[168];
+    for (int i = 0; i < prices.length; i++) {
+      int hour = i % 24;
+      prices[i] = (hour >= 7 && hour < 20) ? -0.18 : -0.08;
+    }
+    ColdStorage.TariffInfo info = uut.makeTariffInfo(tariff);
+    info.setPrices(prices);
+    uut.optimizedTouProfile(info);
+    double[] profile = info.getProfile();
+    assertNotNull("profile exists", profile);
+    assertEquals("profile length", 168, profile.length);
+
+    // temperature stays in the cost-shift band
+    ThermalStorageOptimizer opt = uut.getStorageOptimizer();
+    double[] temps = opt.getTemps();
+    assertEquals("starts at nominal", uut.getNominalTemp(), temps[0], 1e-6);
+    for (double temp : temps) {
+      assertTrue("above min", temp >= uut.getMinTemp() - 1e-6);
+      assertTrue("below max", temp <= uut.getMaxTemp() + 1e-6);
+      assertTrue("within sag",
+                 temp >= uut.getNominalTemp() - uut.getShiftSag() - 1e-6);
+    }
+
+    // consumption shifts into cheap hours, and costs less than
+    // holding nominal temperature
+    double day = 0.0;
+    double night = 0.0;
+    double cost = 0.0;
+    double total = 0.0;
+    for (int i = 0; i < 24; i++) {
+      if (prices[i] == -0.18)
+        day += profile[i] / 13.0;
+      else
+        night += profile[i] / 11.0;
+    }
+    for (int i = 0; i < prices.length; i++) {
+      cost -= prices[i] * profile[i];
+      total += profile[i];
+    }
+    assertTrue("more at night", night > day);
+    double[] flat = new double[168];
+    Arrays.fill(flat, -0.11);
+    double[] hold = opt.getProfile(flat);
+    assertEquals("flat holds temp", hold[0], hold[100], 1e-6);
+    double holdCost = 0.0;
+    for (int i = 0; i < prices.length; i++)
+      holdCost -= prices[i] * hold[i];
+    assertTrue("cheaper than holding", cost < holdCost);
+    assertTrue("cheaper per kWh", cost / total < holdCost / (168 * hold[0]));
+
+    // identical prices are memoized
+    ColdStorage.TariffInfo info2 = uut.makeTariffInfo(tariff);
+    info2.setPrices(prices.clone());
+    uut.optimizedTouProfile(info2);
+    assertSame("memoized", profile, info2.getProfile());
+    assertEquals("two price vectors", 2, opt.getCacheSize());
+  }
+
+  // price-responsive setpoints from the control policy table
+  @Test
+  public void testControlPolicy ()
+  {
+    init();
+    // Monday 03:00
+    DateTime now = new DateTime(2015, 2, 9, 3, 0, 0, DateTimeZone.UTC);
+    when(mockTimeslotRepo.currentTimeslot())
+        .thenReturn(new Timeslot(0, now.toInstant()));
+    TariffSpecification dailySpec =
+        new TariffSpecification(broker, PowerType.THERMAL_STORAGE_CONSUMPTION);
+    dailySpec.addRate(new Rate().withDailyBegin(7).withDailyEnd(19)
+                      .withValue(-0.18));
+    dailySpec.addRate(new Rate().withDailyBegin(20).withDailyEnd(6)
+                      .withValue(-0.08));
+    Tariff touTariff = new Tariff(dailySpec);
+    ReflectionTestUtils.setField(touTariff, "timeService", timeService);
+    ReflectionTestUtils.setField(touTariff, "tariffRepo", tariffRepo);
+    touTariff.init();
+    when(subscription.getTariff()).thenReturn(touTariff);
+    when(subscription.getRegulation()).thenReturn(0.0);
+    uut.setCurrentTemp(uut.getNominalTemp());
+    uut.step();
+
+    ControlPolicy policy = uut.getControlPolicy();
+    assertNotNull("policy built", policy);
+    assertSame("for subscribed tariff", touTariff, policy.getTariff());
+    double nominal = uut.getNominalTemp();
+    double mid = nominal - uut.getShiftSag() / 2.0;
+    // pre-cool at night, coast up during the day
+    assertTrue("cools at night", policy.getTargetTemp(3, nominal) < nominal);
+    assertEquals("holds nominal by day", nominal,
+                 policy.getTargetTemp(12, nominal), 1e-6);
+    assertTrue("coasts by day", policy.getTargetTemp(12, mid) > mid);
+    assertEquals("weekly", policy.getTargetTemp(3, mid),
+                 policy.getTargetTemp(3 + 24 * 3, mid), 1e-6);
+
+    // built once per tariff
+    uut.step();
+    assertSame("same policy", policy, uut.getControlPolicy());
+    when(subscription.getTariff()).thenReturn(tariff);
+    uut.step();
+    assertNull("no policy on flat tariff", uut.getControlPolicy());
+  }
+
+  // variable-rate profiles are updated only where prices change
+  @Test
+  public void testVariableRateProfile ()
+  {
+    init();
+    final Instant start =
+        new DateTime(2015, 2, 9, 3, 0, 0, DateTimeZone.UTC).toInstant();
+    when(mockTimeslotRepo.currentTimeslot())
+        .thenReturn(new Timeslot(0, start));
+    // published charges by hour offset from start
+    final TreeMap<Long, Double> charges = new TreeMap<Long, Double>();
+    Tariff variable = mock(Tariff.class);
+    when(variable.isVariableRate()).thenReturn(true);
+    when(variable.getUsageCharge(any(Instant.class), anyDouble(), anyDouble()))
+        .thenAnswer(new Answer<Double>() {
+          @Override
+          public Double answer (InvocationOnMock invocation)
+          {
+            Object[] args = invocation.getArguments();
+            long hour = (((Instant)args[0]).getMillis() - start.getMillis())
+                / TimeService.HOUR;
+            Double price = charges.get(hour);
+            return (null == price ? -0.12 : price) * (Double)args[1];
+          }
+        });
+    Rate rate = mock(Rate.class);
+    when(rate.isFixed()).thenReturn(false);
+    when(rate.getMinValue()).thenReturn(-0.05);
+    when(rate.getMaxValue()).thenReturn(-0.25);
+    TariffSpecification varSpec = mock(TariffSpecification.class);
+    when(varSpec.getRates()).thenReturn(Arrays.asList(rate));
+    when(variable.getTariffSpecification()).thenReturn(varSpec);
+
+    double[] profile = uut.getCapacityProfileStartingNextTimeSlot(variable);
+    assertEquals("length", 168, profile.length);
+    double nominal = profile[0];
+    assertEquals("flat at expected mean", nominal, profile[100], 1e-9);
+
+    // a published charge changes only its hour
+    charges.put(5L, -0.20);
+    charges.put(6L, -0.08);
+    double[] before = profile.clone();
+    profile = uut.getCapacityProfileStartingNextTimeSlot(variable);
+    assertTrue("less at high cost", profile[5] < nominal);
+    assertTrue("more at low cost", profile[6] > nominal);
+    for (int i = 0; i < 168; i++) {
+      if (i != 5 && i != 6)
+        assertEquals("unchanged " + i, before[i], profile[i], 1e-12);
+    }
+
+    // an hour later, the window shifts
+    double shifted = profile[5];
+    when(mockTimeslotRepo.currentTimeslot())
+        .thenReturn(new Timeslot(1, start.plus(TimeService.HOUR)));
+    profile = uut.getCapacityProfileStartingNextTimeSlot(variable);
+    assertEquals("shifted", shifted, profile[4], 1e-12);
+    assertEquals("new last hour", nominal, profile[167], 1e-9);
+  }
+
+  // calibration recovers a load series generated by the model itself
+  @Test
+  public void testCalibration ()
+  {
+    int hours = 24 * 14;
+    double[] temps = new double[hours];
+    for (int h = 0; h < hours; h++)
+      temps[h] = 10.0 + 8.0 * Math.sin(2.0 * Math.PI * h / 24.0);
+    double[] load = new double[hours];
+    new ThermalProjection(uut, 1300.0, 1100.0, 1.5, 0.14, 11.0)
+        .project(new ThermalProjection.State(uut.getNominalTemp(),
+                                             uut.getStockCapacity(), 11.0),
+                 temps, null, hours, load, null);
+    ColdStorageCalibrator calibrator =
+        new ColdStorageCalibrator(uut, load, temps).withThreads(4);
+    double[] fitted = calibrator.calibrate();
+    assertEquals("five parameters", 5, fitted.length);
+    assertTrue("close fit", calibrator.getRmsError() < 0.1);
+    assertTrue("better than template",
+               calibrator.computeError(fitted)
+               < calibrator.computeError(new double[] {900.0, 1440.0, 1.5,
+                                                       0.1, 15.0}));
+
+    // deterministic regardless of thread count
+    ColdStorageCalibrator single =
+        new ColdStorageCalibrator(uut, load, temps).withThreads(1);
+    assertArrayEquals("same result", fitted, single.calibrate(), 0.0);
+  }
+
+  // a missing hour mid-series is left out of the error, and does not
+  // disturb the hours after it
+  @Test
+  public void testCalibrationGaps ()
+  {
+    int hours = 24 * 7;
+    double[] temps = new double[hours];
+    Arrays.fill(temps, 10.0);
+    double[] load = new double[hours];
+    new ThermalProjection(uut)
+        .project(new ThermalProjection.State(uut.getNominalTemp(),
+                                             uut.getStockCapacity(),
+                                             uut.getNonCoolingUsage()),
+                 temps, null, hours, load, null);
+    for (int h = 0; h < hours; h++)
+      load[h] += 1.0;
+    temps[100] = Double.NaN;
+    load[120] = Double.NaN;
+    ColdStorageCalibrator calibrator =
+        new ColdStorageCalibrator(uut, load, temps).withMaxEvaluations(1);
+    double[] template =
+        {uut.getRoofArea(), uut.getWallArea(), uut.getCop(),
+         uut.getTurnoverRatio(), uut.getNonCoolingUsage()};
+    assertEquals("one kWh per counted hour", hours - 24 - 2,
+                 calibrator.computeError(template), 1e-6);
+    calibrator.calibrate();
+    assertEquals("rms over counted hours", 1.0,
+                 calibrator.getRmsError(), 1e-6);
+  }
+
+  @Test
+  public void testReadHourlySeries () throws IOException
+  {
+    StringBuilder data = new StringBuilder("CST;01:00;02:00\n");
+    data.append("01.04.2009");
+    for (int h = 0; h < 24; h++)
+      data.append(";").append(h).append(",5");
+    data.append("\n\n02.04.2009;44,79;x\n");
+    double[] series =
+        ColdStorageCalibrator.readHourlySeries(new StringReader(data.toString()));
+    assertEquals("two days", 48, series.length);
+    assertEquals("first", 0.5, series[0], 1e-9);
+    assertEquals("last of day", 23.5, series[23], 1e-9);
+    assertEquals("second day", 44.79, series[24], 1e-9);
+    assertTrue("bad value", Double.isNaN(series[25]));
+    assertTrue("missing value", Double.isNaN(series[47]));
+  }
+
   // TOU usage profile
   @Test
   public void testTouHeuristicProfile ()
@@ -471,8 +1285,16 @@ public class ColdStorageTest
     System.out.println(Arrays.toString(profile));
   }
 
-  class ServiceAccessor implements CustomerServiceAccessor
+  class ServiceAccessor
+  implements CustomerServiceAccessor, WeatherSnapshot.Source
   {
+    WeatherSnapshot snapshot = null;
+
+    @Override
+    public WeatherSnapshot getWeatherSnapshot ()
+    {
+      return snapshot;
+    }
 
     @Override
     public CustomerRepo getCustomerRepo ()
@@ -21,8 +21,10 @@ import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.*;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -33,6 +35,7 @@ import org.joda.time.DateTimeZone;
 import org.joda.time.Instant;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.powertac.common.Broker;
@@ -41,6 +44,7 @@ import org.powertac.common.RandomSeed;
 import org.powertac.common.Rate;
 import org.powertac.common.Tariff;
 import org.powertac.common.TariffSpecification;
+import org.powertac.common.TariffSubscription;
 import org.powertac.common.TimeService;
 import org.powertac.common.Timeslot;
 import org.powertac.common.config.Configurator;
@@ -458,6 +462,59 @@ public class LiftTruckTest
     assertEquals("5 after c5 validation", 5, c5.getNChargers());
   }
 
+  // all fleets validated at once, with one report
+  @Test
+  public void testFleetAnalyzer ()
+  {
+    TreeMap<String, String> map = new TreeMap<String, String>();
+    map.put("customer.model.liftTruck.instances",
+            "truck_kw, charge_kw, ncharge, short, c5");
+    map.put("customer.model.liftTruck.truck_kw.truckKW", "10.0");
+    map.put("customer.model.liftTruck.charge_kw.maxChargeKW", "2.0");
+    map.put("customer.model.liftTruck.ncharge.nChargers", "3");
+    map.put("customer.model.liftTruck.short.shiftData",
+            "block,1,2,3,4,5, shift,6,8,8, shift,14,8,6, shift,22,8,4,"
+            + "block,6,7, shift,6,8,3, shift,14,8,2");
+    map.put("customer.model.liftTruck.short.nBatteries", "6");
+    map.put("customer.model.liftTruck.c5.nChargers", "5");
+    config = new MapConfiguration(map);
+    Configurator configurator = new Configurator();
+    configurator.setConfiguration(config);
+    Collection<?> instances =
+        configurator.configureInstances(LiftTruck.class);
+    Map<String, LiftTruck> trucks = mapNames(instances);
+
+    FleetAnalyzer.Report report = new FleetAnalyzer(2).analyze(instances);
+    assertEquals("five fleets", 5, report.getResults().size());
+    assertEquals("four adjusted", 4, report.getInfeasibleCount());
+    assertEquals("truck_kw", 10, trucks.get("truck_kw").getNChargers());
+    assertEquals("charge_kw", 12, trucks.get("charge_kw").getNChargers());
+    assertEquals("ncharge", 4, trucks.get("ncharge").getNChargers());
+    assertEquals("short", 14, trucks.get("short").getNBatteries());
+    assertEquals("c5", 5, trucks.get("c5").getNChargers());
+
+    // validation after analysis changes nothing
+    LiftTruck tkw = trucks.get("truck_kw");
+    tkw.validateChargers();
+    assertEquals("still 10", 10, tkw.getNChargers());
+  }
+
+  // run lengths wrap around the end of the week
+  @Test
+  public void testFleetProfile ()
+  {
+    LiftTruck truck = new LiftTruck("Test");
+    truck.ensureShifts();
+    FleetProfile profile = truck.getFleetProfile();
+    // default schedule: weekdays 0-8 (3), 8-16 (8), 16-24 (6)
+    assertEquals("Mon 0:00", 8, profile.getRunLength(0));
+    assertEquals("Mon 10:00", 6, profile.getRunLength(10));
+    assertEquals("Mon 8:00 demand", 32.0, profile.getDemand(8), 1e-6);
+    assertEquals("Sat idle until Mon", 48, profile.getRunLength(5 * 24));
+    assertEquals("max daily energy", 544.0,
+                 profile.getMaxDailyEnergy(), 1e-6);
+  }
+
   // initialize fills in unconfigured fields
   @Test
   public void testInitialize ()
@@ -754,6 +811,148 @@ public class LiftTruckTest
 //    System.out.println("day: " + now.get(DateTimeFieldType.dayOfWeek()));
   }
 
+  // Precomputed intermediate-hour steps must match the full step path
+  @Test
+  public void testStepFastPath ()
+  {
+    DateTime now =
+        new DateTime(2014, 12, 1, 10, 0, 0, DateTimeZone.UTC);
+    Tariff flat = makeFlatTariff(now);
+    LiftTruck fast = new LiftTruck("fast");
+    LiftTruck full = new LiftTruck("full");
+    TariffSubscription fastSub = initStepTruck(fast, flat);
+    TariffSubscription fullSub = initStepTruck(full, flat);
+
+    for (int i = 0; i < 5; i++) {
+      Timeslot ts =
+          new Timeslot(2 + i,
+                       now.toInstant().plus(i * TimeService.HOUR));
+      when(tsRepo.currentTimeslot()).thenReturn(ts);
+      fast.step();
+      // discard precomputed actions, forcing the full path every hour
+      ReflectionTestUtils.setField(full, "stepCursor", null);
+      full.step();
+    }
+    assertNotNull("fast path primed",
+                  ReflectionTestUtils.getField(fast, "stepCursor"));
+    ArgumentCaptor<Double> fastUse = ArgumentCaptor.forClass(Double.class);
+    verify(fastSub, times(5)).usePower(fastUse.capture());
+    ArgumentCaptor<Double> fullUse = ArgumentCaptor.forClass(Double.class);
+    verify(fullSub, times(5)).usePower(fullUse.capture());
+    for (int i = 0; i < 5; i++) {
+      assertEquals("same usage hour " + i,
+                   fullUse.getAllValues().get(i),
+                   fastUse.getAllValues().get(i), 1e-9);
+    }
+    assertEquals("same charge state",
+                 full.getEnergyCharging(), fast.getEnergyCharging(), 1e-9);
+  }
+
+  // In bootstrap fast mode the second week starts from a copy of the
+  // first week's plan, and the truck replans at full fidelity once the
+  // bootstrap is over
+  @Test
+  public void testBootstrapFastMode ()
+  {
+    competition.withBootstrapTimeslotCount(14 * 24)
+        .withBootstrapDiscardedTimeslots(0);
+    DateTime start =
+        new DateTime(2014, 12, 1, 0, 0, 0, DateTimeZone.UTC);
+    Tariff flat = makeFlatTariff(start);
+    LiftTruck truck = new LiftTruck("boot");
+    truck.setBootstrapFastMode(true);
+    TariffSubscription sub = initStepTruck(truck, flat);
+
+    double[] firstWeek = null;
+    int hours = 15 * 24;
+    for (int i = 0; i < hours; i++) {
+      Timeslot ts =
+          new Timeslot(i, start.toInstant().plus(i * TimeService.HOUR));
+      when(tsRepo.currentTimeslot()).thenReturn(ts);
+      when(tsRepo.currentSerialNumber()).thenReturn(i);
+      truck.step();
+      LiftTruck.CapacityPlan plan =
+          (LiftTruck.CapacityPlan)ReflectionTestUtils.getField(truck, "plan");
+      if (0 == i)
+        firstWeek = plan.getUsage();
+      else if (7 * 24 == i)
+        assertNotSame("second week copies plan", firstWeek, plan.getUsage());
+      else if (14 * 24 == i)
+        assertNotSame("new plan after bootstrap", firstWeek, plan.getUsage());
+    }
+    verify(sub, times(hours)).usePower(anyDouble());
+    assertTrue("charge not negative", truck.getEnergyCharging() >= 0.0);
+  }
+
+  // A weekly solution is reused only if it fits the needs at the new
+  // starting charge, and the plan gets its own copy
+  @Test
+  public void testReusePlan ()
+  {
+    LiftTruck truck = new LiftTruck("Test");
+    truck.setServiceAccessor(serviceAccessor);
+    truck.initialize();
+    Instant now =
+        new DateTime(2014, 12, 1, 10, 0, 0, DateTimeZone.UTC).toInstant();
+    ShiftEnergy[] needs = truck.getFutureEnergyNeeds(now, 60, 0.0);
+    int size = 0;
+    for (ShiftEnergy need : needs)
+      size += need.getDuration();
+    // just enough energy for each shift
+    double[] usage = new double[size];
+    double[] slack = new double[needs.length];
+    int index = 0;
+    for (ShiftEnergy need : needs) {
+      for (int i = 0; i < need.getDuration(); i++)
+        usage[index++] = need.getEnergyNeeded() / need.getDuration();
+    }
+    LiftTruck.CapacityPlan plan = truck.getCapacityPlan(null, now, 60);
+    assertTrue("fits", plan.reusePlan(0.0, usage, slack));
+    assertNotSame("copied", usage, plan.getUsage());
+    assertArrayEquals("same usage", usage, plan.getUsage(), 1e-12);
+    usage[0] += 1.0;
+    assertEquals("not shared", usage[0] - 1.0, plan.getUsage()[0], 1e-12);
+
+    // the first shift's bound rises with the starting charge
+    for (int i = 0; i < needs[0].getDuration(); i++)
+      usage[i] = 60.0;
+    assertFalse("over the bound when empty",
+                truck.getCapacityPlan(null, now, 60)
+                    .reusePlan(0.0, usage, slack));
+    assertTrue("fits when charged",
+               truck.getCapacityPlan(null, now, 60)
+                   .reusePlan(400.0, usage, slack));
+  }
+
+  private Tariff makeFlatTariff (DateTime now)
+  {
+    TariffSpecification spec =
+        new TariffSpecification(new Broker("bob"), PowerType.CONSUMPTION);
+    spec.addRate(new Rate().withValue(0.15));
+    Tariff result = new Tariff(spec);
+    TimeService tsvc = mock(TimeService.class);
+    when(tsvc.getCurrentTime()).thenReturn(now.toInstant());
+    ReflectionTestUtils.setField(result, "timeService", tsvc);
+    ReflectionTestUtils.setField(result, "tariffRepo", mock(TariffRepo.class));
+    result.init();
+    return result;
+  }
+
+  private TariffSubscription initStepTruck (LiftTruck truck, Tariff tariff)
+  {
+    truck.setEnergyCharging(400.0);
+    truck.setServiceAccessor(serviceAccessor);
+    truck.initialize();
+    TariffSubscription sub = mock(TariffSubscription.class);
+    when(sub.getTariff()).thenReturn(tariff);
+    when(sub.getRegulation()).thenReturn(0.0);
+    List<TariffSubscription> subs = new ArrayList<TariffSubscription>();
+    subs.add(sub);
+    when(mockSubscriptionRepo.findActiveSubscriptionsForCustomer(truck
+             .getCustomerInfo())).thenReturn(subs);
+    return sub;
+  }
+
   class ServiceAccessor implements CustomerServiceAccessor
   {
 